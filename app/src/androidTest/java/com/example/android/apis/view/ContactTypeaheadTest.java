@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.apis.view;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.text.SpannableStringBuilder;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@code ContactTypeahead} against a fake {@code Source}, so that no contacts provider
+ * (or permission to read it) is needed. Each test drives the engine the way
+ * {@code AutoComplete4} does: {@code query} on a filter thread, and the {@code TextWatcher}
+ * callbacks in the order the text view calls them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ContactTypeaheadTest {
+    /**
+     * Column names of the cursors of our fake source.
+     */
+    private static final String[] COLUMNS = {"_id", "display_name"};
+    /**
+     * The contacts our fake source holds.
+     */
+    private static final String[] NAMES = {"Alice Brown", "Abe Lincoln", "Bob Abbott", "Carol"};
+    /**
+     * Debounce interval of the tests which need a query to wait, long enough for the test thread
+     * to type again while it does.
+     */
+    private static final long DEBOUNCE_MS = 200;
+    /**
+     * How long the test thread waits after starting a query before it types again.
+     */
+    private static final long TYPING_DELAY_MS = 50;
+
+    /**
+     * Fake contacts provider holding {@code NAMES}, matching a constraint the way the real one
+     * does (every word of the constraint is the start of a word of the name, "*" matches all)
+     * and counting its queries. If {@code mBlock} is set a query waits until it is canceled.
+     */
+    private static class FakeSource implements ContactTypeahead.Source {
+        /**
+         * Number of queries made.
+         */
+        int mQueries;
+        /**
+         * Whether a query blocks until its {@code CancellationSignal} is canceled.
+         */
+        boolean mBlock;
+        /**
+         * Counted down when a query starts.
+         */
+        final CountDownLatch mEntered = new CountDownLatch(1);
+
+        @Override
+        public synchronized Cursor query(String constraint, CancellationSignal signal) {
+            mQueries++;
+            mEntered.countDown();
+            if (mBlock) {
+                final CountDownLatch canceled = new CountDownLatch(1);
+                signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        canceled.countDown();
+                    }
+                });
+                try {
+                    canceled.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                signal.throwIfCanceled();
+            }
+            MatrixCursor cursor = new MatrixCursor(COLUMNS);
+            for (int i = 0; i < NAMES.length; i++) {
+                if (matches(NAMES[i], constraint)) {
+                    cursor.newRow().add((long) i).add(NAMES[i]);
+                }
+            }
+            return cursor;
+        }
+
+        /**
+         * Whether {@code name} matches {@code constraint}.
+         *
+         * @param name       a contact name.
+         * @param constraint the text typed.
+         * @return true if every word of {@code constraint} starts a word of {@code name}.
+         */
+        private static boolean matches(String name, String constraint) {
+            if (constraint.contains("*")) {
+                return true;
+            }
+            String[] nameWords = name.toLowerCase(Locale.US).split(" ");
+            for (String word : constraint.toLowerCase(Locale.US).trim().split("\\s+")) {
+                boolean found = false;
+                for (String nameWord : nameWords) {
+                    found |= nameWord.startsWith(word);
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the display names held by {@code cursor}, and closes it.
+     *
+     * @param cursor a cursor returned by {@code ContactTypeahead.query}.
+     * @return the names, in order.
+     */
+    private static List<String> names(Cursor cursor) {
+        List<String> names = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Runs {@code typeahead.query(constraint)} on a new thread, standing in for the filter thread
+     * of the adapter.
+     *
+     * @param typeahead  the engine.
+     * @param constraint the text to query.
+     * @param result     receives the cursor returned.
+     * @return the started thread.
+     */
+    private static Thread queryOnFilterThread(final ContactTypeahead typeahead,
+                                              final String constraint,
+                                              final AtomicReference<Cursor> result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(typeahead.query(constraint));
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Types {@code text} the way the text view reports it to its watchers, except that the
+     * {@code AutoCompleteTextView}'s own watcher (which starts the filtering) is left to the
+     * caller.
+     *
+     * @param typeahead the engine.
+     * @param before    the text before the keystroke.
+     */
+    private static void beforeKeystroke(ContactTypeahead typeahead, String before) {
+        typeahead.beforeTextChanged(before, before.length(), 0, 1);
+    }
+
+    /**
+     * Reports the rest of a keystroke to {@code typeahead}, after {@code beforeKeystroke}.
+     *
+     * @param typeahead the engine.
+     * @param after     the text after the keystroke.
+     */
+    private static void afterKeystroke(ContactTypeahead typeahead, String after) {
+        typeahead.onTextChanged(after, after.length() - 1, 0, 1);
+        typeahead.afterTextChanged(new SpannableStringBuilder(after));
+    }
+
+    /**
+     * The query of the last keystroke is answered even though our {@code afterTextChanged}
+     * runs after the filtering of that keystroke has started.
+     */
+    @Test
+    public void lastKeystrokeIsQueried() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        ContactTypeahead typeahead = new ContactTypeahead(source, COLUMNS, DEBOUNCE_MS);
+        AtomicReference<Cursor> result = new AtomicReference<>();
+
+        beforeKeystroke(typeahead, "a");
+        Thread filter = queryOnFilterThread(typeahead, "ab", result);
+        Thread.sleep(TYPING_DELAY_MS);
+        afterKeystroke(typeahead, "ab");
+        filter.join();
+
+        assertNotNull(result.get());
+        assertEquals(1, source.mQueries);
+        List<String> names = names(result.get());
+        assertEquals(2, names.size());
+        assertTrue(names.contains("Abe Lincoln"));
+        assertTrue(names.contains("Bob Abbott"));
+    }
+
+    /**
+     * A query still waiting out its debounce interval when the user types again gives up without
+     * reaching the source, and returns null so that the adapter keeps the cursor it is displaying.
+     */
+    @Test
+    public void supersededQueryIsDebounced() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        ContactTypeahead typeahead = new ContactTypeahead(source, COLUMNS, DEBOUNCE_MS);
+        AtomicReference<Cursor> result = new AtomicReference<>();
+
+        Thread filter = queryOnFilterThread(typeahead, "a", result);
+        Thread.sleep(TYPING_DELAY_MS);
+        beforeKeystroke(typeahead, "a");
+        afterKeystroke(typeahead, "ab");
+        filter.join();
+
+        assertNull(result.get());
+        assertEquals(0, source.mQueries);
+        assertEquals(0, typeahead.getRoundTrips());
+    }
+
+    /**
+     * The query in flight is canceled as soon as the user types again.
+     */
+    @Test
+    public void inFlightQueryIsCanceled() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        source.mBlock = true;
+        ContactTypeahead typeahead = new ContactTypeahead(source, COLUMNS, 0);
+        AtomicReference<Cursor> result = new AtomicReference<>();
+
+        Thread filter = queryOnFilterThread(typeahead, "a", result);
+        assertTrue(source.mEntered.await(5, TimeUnit.SECONDS));
+        beforeKeystroke(typeahead, "a");
+        filter.join();
+
+        assertNull(result.get());
+        assertEquals(1, typeahead.getRoundTrips());
+    }
+
+    /**
+     * Extending a cached constraint is answered by refining the cached rows, without a round
+     * trip, and gives the same rows the source would.
+     */
+    @Test
+    public void extendedConstraintIsRefinedFromCache() {
+        FakeSource source = new FakeSource();
+        ContactTypeahead typeahead = new ContactTypeahead(source, COLUMNS, 0);
+
+        assertEquals(3, names(typeahead.query("a")).size());
+        List<String> refined = names(typeahead.query("ab"));
+        List<String> again = names(typeahead.query("AB"));
+
+        assertEquals(1, source.mQueries);
+        assertEquals(1, typeahead.getRoundTrips());
+        assertEquals(2, typeahead.getCacheHits());
+        assertEquals(names(source.query("ab", new CancellationSignal())), refined);
+        assertEquals(refined, again);
+    }
+
+    /**
+     * A constraint the provider does not match word by word (a wildcard) is never refined in
+     * memory, and {@code invalidate} forgets what was cached.
+     */
+    @Test
+    public void wildcardAndInvalidateQueryAgain() {
+        FakeSource source = new FakeSource();
+        ContactTypeahead typeahead = new ContactTypeahead(source, COLUMNS, 0);
+
+        assertEquals(NAMES.length, names(typeahead.query("*")).size());
+        assertEquals(NAMES.length, names(typeahead.query("*c")).size());
+        assertEquals(2, typeahead.getRoundTrips());
+
+        names(typeahead.query("*"));
+        assertEquals(2, typeahead.getRoundTrips());
+        typeahead.invalidate();
+        names(typeahead.query("*"));
+        assertEquals(3, typeahead.getRoundTrips());
+    }
+}
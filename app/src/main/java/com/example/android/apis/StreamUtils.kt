@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.apis
+
+import android.content.res.AssetFileDescriptor
+import android.content.res.Resources
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+
+/**
+ * Stream helpers shared by the demos which read whole resources into memory or copy streams, so
+ * that none of them grows a `ByteArrayOutputStream` 1 KB at a time (copying its contents again at
+ * every doubling, and once more in `toByteArray`):
+ *
+ *  * When the length of the data is known (the [AssetFileDescriptor] of a resource or asset which
+ *  is stored uncompressed tells us) [readFully] allocates an array of exactly that size and reads
+ *  straight into it.
+ *  * Otherwise the data is read into [CHUNK_SIZE] byte chunks by a [ChunkedOutputStream], and
+ *  copied once into an array of the right size at the end. The chunks come from, and go back to,
+ *  a small pool, as does the buffer used by [copy].
+ *  * [mapAsset] maps the slice of the .apk holding an uncompressed resource or asset, so that a
+ *  decoder which accepts a `ByteBuffer` (`ImageDecoder` for instance) reads it straight from the
+ *  page cache without it ever being copied into the heap.
+ */
+object StreamUtils {
+    /**
+     * Size of the chunks of a [ChunkedOutputStream] and of the buffer used by [copy].
+     */
+    const val CHUNK_SIZE = 64 * 1024
+    /**
+     * Largest number of free chunks we keep in [sChunks].
+     */
+    private const val MAX_POOLED_CHUNKS = 8
+
+    /**
+     * Free chunks, guarded by itself.
+     */
+    private val sChunks = ArrayDeque<ByteArray>()
+
+    /**
+     * Takes a chunk of [CHUNK_SIZE] bytes from our pool, or allocates one if the pool is empty.
+     *
+     * @return a chunk, its contents are garbage.
+     */
+    private fun obtainChunk(): ByteArray {
+        synchronized(sChunks) {
+            sChunks.pollFirst()?.let { return it }
+        }
+        return ByteArray(CHUNK_SIZE)
+    }
+
+    /**
+     * Gives [chunk] back to our pool, unless it is full.
+     *
+     * @param chunk a chunk returned by [obtainChunk], which the caller must not use any more.
+     */
+    private fun recycleChunk(chunk: ByteArray) {
+        synchronized(sChunks) {
+            if (sChunks.size < MAX_POOLED_CHUNKS) {
+                sChunks.addLast(chunk)
+            }
+        }
+    }
+
+    /**
+     * Reads the raw resource [id] into an array. If the resource is stored uncompressed we open it
+     * with `openRawResourceFd`, whose length lets [readFully] read it into an array of the exact
+     * size. A compressed resource has no file descriptor, so we read its stream in chunks.
+     *
+     * @param resources the [Resources] holding the resource.
+     * @param id the resource id of a raw resource.
+     * @return the bytes of the resource.
+     * @throws IOException if the resource cannot be read.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun readRawResource(resources: Resources, id: Int): ByteArray {
+        val afd: AssetFileDescriptor? = try {
+            resources.openRawResourceFd(id)
+        } catch (e: Resources.NotFoundException) {
+            null // compressed
+        }
+        if (afd != null) {
+            try {
+                return readFully(afd)
+            } finally {
+                afd.close() // AssetFileDescriptor is only Closeable from KitKat on
+            }
+        }
+        return resources.openRawResource(id).use { readFully(it) }
+    }
+
+    /**
+     * Reads the whole slice described by [afd] into an array of exactly its length, or in chunks
+     * if its length is unknown. The caller still owns [afd].
+     *
+     * @param afd the [AssetFileDescriptor] to read.
+     * @return the bytes of the slice.
+     * @throws IOException if it cannot be read.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun readFully(afd: AssetFileDescriptor): ByteArray {
+        val length = afd.length
+        val input = FileInputStream(afd.fileDescriptor)
+        input.channel.position(afd.startOffset)
+        if (length == AssetFileDescriptor.UNKNOWN_LENGTH || length > Int.MAX_VALUE) {
+            return readFully(input)
+        }
+        return readFully(input, length.toInt())
+    }
+
+    /**
+     * Reads [input] into an array of [length] bytes, for a stream whose length is known. If the
+     * stream ends early the array returned is only as long as what was read.
+     *
+     * @param input the stream to read, the caller still owns it.
+     * @param length the number of bytes to read.
+     * @return the bytes read.
+     * @throws IOException if the stream cannot be read.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun readFully(input: InputStream, length: Int): ByteArray {
+        val bytes = ByteArray(length)
+        var count = 0
+        while (count < length) {
+            val n = input.read(bytes, count, length - count)
+            if (n < 0) {
+                return bytes.copyOf(count)
+            }
+            count += n
+        }
+        return bytes
+    }
+
+    /**
+     * Reads [input] to its end into an array, for a stream whose length is not known. The bytes
+     * are read straight into pooled chunks and copied once into the array returned.
+     *
+     * @param input the stream to read, the caller still owns it.
+     * @return the bytes read.
+     * @throws IOException if the stream cannot be read.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun readFully(input: InputStream): ByteArray {
+        ChunkedOutputStream().use { out ->
+            out.readFrom(input)
+            return out.toByteArray()
+        }
+    }
+
+    /**
+     * Copies [input] to [output] through a pooled buffer of [CHUNK_SIZE] bytes, first skipping
+     * [skip] bytes of [input] and then copying at most [limit] bytes (all of it if [limit] is
+     * negative). Neither stream is closed.
+     *
+     * @param input the stream to copy from.
+     * @param output the stream to copy to.
+     * @param skip number of bytes of [input] to skip first.
+     * @param limit largest number of bytes to copy, or -1 for no limit.
+     * @return the number of bytes copied.
+     * @throws IOException if either stream fails.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(input: InputStream, output: OutputStream, skip: Long = 0L, limit: Long = -1L): Long {
+        var toSkip = skip
+        while (toSkip > 0) {
+            val skipped = input.skip(toSkip)
+            if (skipped <= 0) break
+            toSkip -= skipped
+        }
+        val buffer = obtainChunk()
+        try {
+            var copied = 0L
+            while (limit < 0 || copied < limit) {
+                val want = if (limit < 0) {
+                    buffer.size
+                } else {
+                    minOf(buffer.size.toLong(), limit - copied).toInt()
+                }
+                val n = input.read(buffer, 0, want)
+                if (n < 0) break
+                output.write(buffer, 0, n)
+                copied += n
+            }
+            return copied
+        } finally {
+            recycleChunk(buffer)
+        }
+    }
+
+    /**
+     * Maps the slice described by [afd] read only, so that it can be decoded without copying it
+     * into the heap. The mapping stays valid after [afd] is closed.
+     *
+     * @param afd the [AssetFileDescriptor] of an uncompressed resource or asset.
+     * @return the mapped bytes of the slice, or *null* if its length is unknown.
+     * @throws IOException if it cannot be mapped.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun mapAsset(afd: AssetFileDescriptor): MappedByteBuffer? {
+        if (afd.length == AssetFileDescriptor.UNKNOWN_LENGTH) return null
+        return FileInputStream(afd.fileDescriptor).channel
+                .map(FileChannel.MapMode.READ_ONLY, afd.startOffset, afd.length)
+    }
+
+    /**
+     * An [OutputStream] collecting what is written to it in pooled chunks of [CHUNK_SIZE] bytes
+     * instead of one array which is reallocated as it grows. [toByteArray] copies the bytes once
+     * into an array of the right size, and [close] gives the chunks back to the pool, after which
+     * the stream must not be used. Not thread safe.
+     */
+    class ChunkedOutputStream : OutputStream() {
+        /**
+         * Our chunks, all full except the last one.
+         */
+        private val mChunks = ArrayList<ByteArray>()
+        /**
+         * Number of bytes used in the last chunk.
+         */
+        private var mCount = CHUNK_SIZE
+        /**
+         * Total number of bytes written.
+         */
+        private var mSize = 0
+
+        /**
+         * Returns the number of bytes written.
+         *
+         * @return the number of bytes written.
+         */
+        fun size(): Int {
+            return mSize
+        }
+
+        /**
+         * Returns the last chunk, adding a new one if it is full.
+         *
+         * @return a chunk with room for at least one byte.
+         */
+        private fun current(): ByteArray {
+            if (mCount == CHUNK_SIZE) {
+                mChunks.add(obtainChunk())
+                mCount = 0
+            }
+            return mChunks[mChunks.size - 1]
+        }
+
+        /**
+         * Writes the byte [b].
+         *
+         * @param b the byte to write, in its low 8 bits.
+         */
+        override fun write(b: Int) {
+            current()[mCount++] = b.toByte()
+            mSize++
+        }
+
+        /**
+         * Writes [len] bytes of [b] starting at [off].
+         *
+         * @param b the bytes to write.
+         * @param off offset in [b] of the first byte.
+         * @param len number of bytes to write.
+         */
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var offset = off
+            var remaining = len
+            while (remaining > 0) {
+                val chunk = current()
+                val n = minOf(remaining, CHUNK_SIZE - mCount)
+                System.arraycopy(b, offset, chunk, mCount, n)
+                mCount += n
+                offset += n
+                remaining -= n
+                mSize += n
+            }
+        }
+
+        /**
+         * Reads [input] to its end straight into our chunks.
+         *
+         * @param input the stream to read, the caller still owns it.
+         * @throws IOException if the stream cannot be read.
+         */
+        @Throws(IOException::class)
+        fun readFrom(input: InputStream) {
+            while (true) {
+                val chunk = current()
+                val n = input.read(chunk, mCount, CHUNK_SIZE - mCount)
+                if (n < 0) return
+                mCount += n
+                mSize += n
+            }
+        }
+
+        /**
+         * Returns a copy of the bytes written, in an array of exactly their size.
+         *
+         * @return the bytes written.
+         */
+        fun toByteArray(): ByteArray {
+            val bytes = ByteArray(mSize)
+            var offset = 0
+            for (chunk in mChunks) {
+                val n = minOf(CHUNK_SIZE, mSize - offset)
+                System.arraycopy(chunk, 0, bytes, offset, n)
+                offset += n
+            }
+            return bytes
+        }
+
+        /**
+         * Gives our chunks back to the pool.
+         */
+        override fun close() {
+            for (chunk in mChunks) {
+                recycleChunk(chunk)
+            }
+            mChunks.clear()
+            mCount = CHUNK_SIZE
+            mSize = 0
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.apis
+
+import android.os.Handler
+import java.util.*
+
+/**
+ * In memory trigram index used to answer case insensitive substring queries over a set of items
+ * without rescanning the text of every item on every keystroke. Every item added is given an
+ * increasing document id, and the id is appended to the posting list of each of the distinct
+ * three character sequences (trigrams) of its lower cased text. A query of three or more
+ * characters is answered by intersecting the posting lists of its trigrams (smallest first),
+ * and then verifying the few surviving candidates with a real substring match. Items can be
+ * added and removed at any time, so the index can be maintained incrementally as the data it
+ * indexes changes. All methods which touch the index are synchronized, so it can be updated on
+ * one thread while being searched on another.
+ *
+ * @param T the type of the items we index, items are compared with `equals` and `hashCode` so that
+ * a boxed value such as an [Int] finds the item it was added as.
+ */
+class TrigramIndex<T> {
+
+    /**
+     * Growable sorted array of document ids, the posting list of a single trigram. Since
+     * document ids are handed out in increasing order, [add] only ever needs to append.
+     */
+    private class Postings {
+        /**
+         * Storage for our document ids, only the first [size] entries are used.
+         */
+        var ids = IntArray(4)
+
+        /**
+         * Number of document ids in [ids].
+         */
+        var size = 0
+
+        /**
+         * Appends the document id [id], growing [ids] if need be.
+         *
+         * @param id the document id to add, always larger than any id already present.
+         */
+        fun add(id: Int) {
+            if (size == ids.size) {
+                ids = ids.copyOf(size * 2)
+            }
+            ids[size++] = id
+        }
+
+        /**
+         * Removes the document id [id] if it is present, using a binary search to find it.
+         *
+         * @param id the document id to remove.
+         */
+        fun remove(id: Int) {
+            val index = Arrays.binarySearch(ids, 0, size, id)
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1)
+                size--
+            }
+        }
+    }
+
+    /**
+     * Receives the results of a [Search], always on the thread of the [Handler] passed to
+     * [search].
+     */
+    interface ResultSink<T> {
+        /**
+         * Called with each batch of matching items, in the order they were added to the index.
+         *
+         * @param batch the next batch of matching items.
+         */
+        fun onResults(batch: List<@JvmSuppressWildcards T>)
+
+        /**
+         * Called once after the last batch has been delivered, unless the search was canceled.
+         */
+        fun onComplete()
+    }
+
+    /**
+     * A single query against our index, which is run by handing it to an executor and which
+     * streams its results to a [ResultSink] in batches of [mBatchSize] items.
+     */
+    inner class Search
+    /**
+     * Our constructor, use [search] to create instances.
+     *
+     * @param mQuery the text to search for.
+     * @param mHandler the [Handler] to deliver results on.
+     * @param mSink the [ResultSink] to deliver results to.
+     * @param mBatchSize the number of items to deliver in each batch.
+     */
+    internal constructor(
+            private val mQuery: String,
+            private val mHandler: Handler,
+            private val mSink: ResultSink<T>,
+            private val mBatchSize: Int
+    ) : Runnable {
+
+        /**
+         * Set by [cancel], once set no more results are delivered to [mSink].
+         */
+        @Volatile
+        var isCanceled: Boolean = false
+            private set
+
+        /**
+         * Cancels the search. If this is called on the thread of [mHandler] then it is guaranteed
+         * that [mSink] will not be called again for this search.
+         */
+        fun cancel() {
+            isCanceled = true
+        }
+
+        /**
+         * Runs the search, called on a background thread. We fetch the candidate documents for
+         * [mQuery] from our index, then verify each candidate with a real substring match,
+         * posting each batch of [mBatchSize] matches to [mHandler] for delivery to [mSink] and
+         * stopping as soon as we have been canceled. Finally we post the completion.
+         */
+        override fun run() {
+            val candidates = candidates(mQuery)
+            var batch = ArrayList<T>(mBatchSize)
+            for ((item, text) in candidates) {
+                if (isCanceled) return
+                if (text.contains(mQuery)) {
+                    batch.add(item)
+                    if (batch.size == mBatchSize) {
+                        deliver(batch)
+                        batch = ArrayList(mBatchSize)
+                    }
+                }
+            }
+            if (batch.isNotEmpty()) {
+                deliver(batch)
+            }
+            mHandler.post {
+                if (!isCanceled) {
+                    mSink.onComplete()
+                }
+            }
+        }
+
+        /**
+         * Posts [batch] to [mHandler] for delivery to [mSink] unless we are canceled by then.
+         *
+         * @param batch the batch of matching items to deliver.
+         */
+        private fun deliver(batch: List<T>) {
+            mHandler.post {
+                if (!isCanceled) {
+                    mSink.onResults(batch)
+                }
+            }
+        }
+    }
+
+    /**
+     * The posting lists of our index, keyed by the three characters of the trigram packed into
+     * a [Long].
+     */
+    private val mPostings = HashMap<Long, Postings>()
+
+    /**
+     * The lower cased text of every document, keyed by document id. A [TreeMap] so that we can
+     * walk the documents in the order they were added when a query is too short to use trigrams.
+     */
+    private val mTexts = TreeMap<Int, String>()
+
+    /**
+     * The item of every document, keyed by document id.
+     */
+    private val mItems = HashMap<Int, T>()
+
+    /**
+     * The document id of every item, keyed by `equals` and `hashCode` of the item.
+     */
+    private val mIds = HashMap<T, Int>()
+
+    /**
+     * The document id that will be given to the next item added.
+     */
+    private var mNextId = 0
+
+    /**
+     * The number of items in the index.
+     */
+    val size: Int
+        @Synchronized get() = mIds.size
+
+    /**
+     * Adds [item] to the index using [text] as the text it is searched by. If [item] is already in
+     * the index it is first removed, so this can also be used to update the text of an item.
+     *
+     * @param item the item to add.
+     * @param text the text that queries are matched against.
+     */
+    @Synchronized
+    fun add(item: T, text: CharSequence) {
+        remove(item)
+        val id = mNextId++
+        val normalized = normalize(text)
+        mTexts[id] = normalized
+        mItems[id] = item
+        mIds[item] = id
+        for (trigram in trigramsOf(normalized)) {
+            mPostings.getOrPut(trigram) { Postings() }.add(id)
+        }
+    }
+
+    /**
+     * Removes [item] from the index, removing its document id from the posting list of each of
+     * its trigrams (and dropping posting lists which become empty).
+     *
+     * @param item the item to remove.
+     * @return *true* if [item] was in the index.
+     */
+    @Synchronized
+    fun remove(item: T): Boolean {
+        val id = mIds.remove(item) ?: return false
+        val text = mTexts.remove(id)!!
+        mItems.remove(id)
+        for (trigram in trigramsOf(text)) {
+            val postings = mPostings[trigram] ?: continue
+            postings.remove(id)
+            if (postings.size == 0) {
+                mPostings.remove(trigram)
+            }
+        }
+        return true
+    }
+
+    /**
+     * Replaces the entire contents of the index with [items], using [textOf] to fetch the text
+     * of each of them.
+     *
+     * @param items the items to index, in the order results should be returned in.
+     * @param textOf returns the text to index an item by.
+     */
+    @Synchronized
+    fun setAll(items: Collection<T>, textOf: (T) -> CharSequence) {
+        clear()
+        for (item in items) {
+            add(item, textOf(item))
+        }
+    }
+
+    /**
+     * Removes every item from the index.
+     */
+    @Synchronized
+    fun clear() {
+        mPostings.clear()
+        mTexts.clear()
+        mItems.clear()
+        mIds.clear()
+    }
+
+    /**
+     * Creates a [Search] for [query] which, when run on a background thread, delivers the
+     * matching items to [sink] on the thread of [handler]. An empty query matches every item.
+     *
+     * @param query the text to search for, case is ignored.
+     * @param handler the [Handler] to deliver results on.
+     * @param sink the [ResultSink] to deliver results to.
+     * @param batchSize the number of items to deliver in each batch.
+     * @return a [Search] to execute, which can be canceled.
+     */
+    @JvmOverloads
+    fun search(query: CharSequence, handler: Handler, sink: ResultSink<T>, batchSize: Int = 32): Search {
+        return Search(normalize(query), handler, sink, batchSize)
+    }
+
+    /**
+     * Returns the items (paired with their lower cased text) which might contain [query], in the
+     * order they were added. If [query] is shorter than a trigram every item is a candidate,
+     * otherwise we intersect the posting lists of the trigrams of [query] starting with the
+     * shortest one. The caller must still verify each candidate with a substring match since
+     * containing all the trigrams of [query] does not mean containing [query].
+     *
+     * @param query the lower cased query.
+     * @return the candidates for [query].
+     */
+    @Synchronized
+    internal fun candidates(query: String): List<Pair<T, String>> {
+        if (query.length < 3) {
+            return mTexts.map { (id, text) -> Pair(mItems[id]!!, text) }
+        }
+        val lists = ArrayList<Postings>()
+        for (trigram in trigramsOf(query)) {
+            lists.add(mPostings[trigram] ?: return emptyList())
+        }
+        lists.sortBy { it.size }
+        var ids = lists[0].ids.copyOf(lists[0].size)
+        for (i in 1 until lists.size) {
+            ids = intersect(ids, lists[i])
+            if (ids.isEmpty()) return emptyList()
+        }
+        return ids.map { Pair(mItems[it]!!, mTexts[it]!!) }
+    }
+
+    /**
+     * Our static methods.
+     */
+    companion object {
+        /**
+         * Lower cases [text] the same way for both indexed text and queries.
+         *
+         * @param text the text to normalize.
+         * @return the lower cased [String].
+         */
+        private fun normalize(text: CharSequence): String {
+            return text.toString().toLowerCase(Locale.ROOT)
+        }
+
+        /**
+         * Returns the distinct trigrams of [text], each packed into a [Long].
+         *
+         * @param text lower cased text.
+         * @return the set of trigrams of [text].
+         */
+        private fun trigramsOf(text: String): Set<Long> {
+            val trigrams = HashSet<Long>()
+            for (i in 0..text.length - 3) {
+                trigrams.add((text[i].toLong() shl 32) or (text[i + 1].toLong() shl 16) or text[i + 2].toLong())
+            }
+            return trigrams
+        }
+
+        /**
+         * Returns the document ids in the sorted array [ids] which are also in the sorted posting
+         * list [postings]. We walk the shorter [ids] and binary search [postings] from the point
+         * the previous search left off.
+         *
+         * @param ids sorted document ids, usually the shorter of the two.
+         * @param postings a sorted posting list.
+         * @return the sorted intersection.
+         */
+        private fun intersect(ids: IntArray, postings: Postings): IntArray {
+            val result = IntArray(ids.size)
+            var count = 0
+            var from = 0
+            for (id in ids) {
+                val index = Arrays.binarySearch(postings.ids, from, postings.size, id)
+                if (index >= 0) {
+                    result[count++] = id
+                    from = index + 1
+                } else {
+                    from = -(index + 1)
+                }
+                if (from >= postings.size) break
+            }
+            return result.copyOf(count)
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.apis.app
+
+import android.os.Parcel
+import android.os.Parcelable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+/**
+ * The arguments of one call of `ISecondary.basicTypes` bundled into a [Parcelable], so that many
+ * of them can be sent in a single transaction by `ISecondary.basicTypesBatch`. It can also be
+ * written to and read from a stream for `ISecondary.basicTypesStream`, which sends them through
+ * a pipe instead of the binder buffer.
+ */
+class BasicTypes : Parcelable {
+    /**
+     * The `anInt` argument of `basicTypes`.
+     */
+    val anInt: Int
+    /**
+     * The `aLong` argument of `basicTypes`.
+     */
+    val aLong: Long
+    /**
+     * The `aBoolean` argument of `basicTypes`.
+     */
+    val aBoolean: Boolean
+    /**
+     * The `aFloat` argument of `basicTypes`.
+     */
+    val aFloat: Float
+    /**
+     * The `aDouble` argument of `basicTypes`.
+     */
+    val aDouble: Double
+    /**
+     * The `aString` argument of `basicTypes`.
+     */
+    val aString: String
+
+    /**
+     * Constructs an instance holding the arguments of one call of `basicTypes`.
+     *
+     * @param anInt the `anInt` argument.
+     * @param aLong the `aLong` argument.
+     * @param aBoolean the `aBoolean` argument.
+     * @param aFloat the `aFloat` argument.
+     * @param aDouble the `aDouble` argument.
+     * @param aString the `aString` argument.
+     */
+    constructor(anInt: Int, aLong: Long, aBoolean: Boolean, aFloat: Float, aDouble: Double, aString: String) {
+        this.anInt = anInt
+        this.aLong = aLong
+        this.aBoolean = aBoolean
+        this.aFloat = aFloat
+        this.aDouble = aDouble
+        this.aString = aString
+    }
+
+    /**
+     * Constructs an instance by reading the parameter `Parcel in` which was previously written
+     * to by [writeToParcel].
+     *
+     * @param in The Parcel to read the object's data from.
+     */
+    private constructor(`in`: Parcel) {
+        anInt = `in`.readInt()
+        aLong = `in`.readLong()
+        aBoolean = `in`.readInt() != 0
+        aFloat = `in`.readFloat()
+        aDouble = `in`.readDouble()
+        aString = `in`.readString() ?: ""
+    }
+
+    /**
+     * Part of the `Parcelable` interface. Describe the kinds of special objects contained
+     * in this  Parcelable's marshalled representation. We simply return 0.
+     *
+     * @return a bitmask indicating the set of special object types marshalled by the Parcelable.
+     */
+    override fun describeContents(): Int {
+        return 0
+    }
+
+    /**
+     * Part of the `Parcelable` interface. Flatten this object into a `Parcel`. We write our
+     * fields in the order our `Parcel` constructor reads them.
+     *
+     * @param dest The Parcel in which the object should be written.
+     * @param flags Additional flags about how the object should be written.
+     */
+    override fun writeToParcel(dest: Parcel, flags: Int) {
+        dest.writeInt(anInt)
+        dest.writeLong(aLong)
+        dest.writeInt(if (aBoolean) 1 else 0)
+        dest.writeFloat(aFloat)
+        dest.writeDouble(aDouble)
+        dest.writeString(aString)
+    }
+
+    /**
+     * Writes our fields to [out] in the order [readFrom] reads them.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if the stream cannot be written to.
+     */
+    @Throws(IOException::class)
+    fun writeTo(out: DataOutputStream) {
+        out.writeInt(anInt)
+        out.writeLong(aLong)
+        out.writeBoolean(aBoolean)
+        out.writeFloat(aFloat)
+        out.writeDouble(aDouble)
+        out.writeUTF(aString)
+    }
+
+    companion object {
+
+        /**
+         * Reads an instance written by [writeTo] from [input].
+         *
+         * @param input the stream to read from.
+         * @return the instance read.
+         * @throws java.io.EOFException if the stream has no more instances.
+         */
+        @Throws(IOException::class)
+        fun readFrom(input: DataInputStream): BasicTypes {
+            return BasicTypes(input.readInt(), input.readLong(), input.readBoolean(),
+                    input.readFloat(), input.readDouble(), input.readUTF())
+        }
+
+        /**
+         * Interface that must be implemented and provided as a public CREATOR field that generates
+         * instances of your Parcelable class from a Parcel.
+         */
+        @Suppress("unused")
+        @JvmField
+        val CREATOR: Parcelable.Creator<BasicTypes> = object : Parcelable.Creator<BasicTypes> {
+            /**
+             * Create a new instance of the Parcelable class, instantiating it from the given
+             * Parcel whose data had previously been written by [writeToParcel].
+             *
+             * @param in The Parcel to read the object's data from.
+             * @return Returns a new instance of the Parcelable class BasicTypes
+             */
+            override fun createFromParcel(`in`: Parcel): BasicTypes {
+                return BasicTypes(`in`)
+            }
+
+            /**
+             * Create a new array of the Parcelable class BasicTypes
+             *
+             * @param size Size of the array.
+             * @return Returns an array of the Parcelable class, with every entry
+             * initialized to null.
+             */
+            override fun newArray(size: Int): Array<BasicTypes?> {
+                return arrayOfNulls(size)
+            }
+        }
+    }
+}
@@ -29,15 +29,26 @@ import android.content.Intent
 import android.graphics.Color
 import android.os.AsyncTask
 import android.os.Build
+import android.os.SystemClock
 import androidx.annotation.RequiresApi
 import android.util.Log
 import android.widget.Toast
 
 import com.example.android.apis.R
 
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.Semaphore
+
 /**
  * This is an example of implementing a [JobService] that dispatches work enqueued in
  * to it. The [JobWorkServiceActivity] class shows how to interact with the service.
+ * Work items are processed by a pool of up to [EXTRA_PARALLELISM] workers (taken from the
+ * extras of the `JobInfo`, 1 gives the classic one at a time behavior), they complete in
+ * whatever order they finish in, and latency and queue depth statistics are kept in [sStats]
+ * for the activity to display.
  */
 @RequiresApi(api = Build.VERSION_CODES.O)
 class JobWorkService : JobService() {
@@ -53,7 +64,120 @@ class JobWorkService : JobService() {
     private var mCurProcessor: CommandProcessor? = null
 
     /**
-     * This is a task to dequeue and process work in the background.
+     * Latency and queue depth statistics of the work items handled by [JobWorkService]. The
+     * activity counts the items it enqueues and the service counts the items it starts, completes
+     * and cancels, so the depth of the queue of the job (items enqueued but not yet handed to a
+     * worker) can be worked out even though the `JobScheduler` does not expose it. Latency is
+     * measured from the time stamp stored in the [EXTRA_ENQUEUE_TIME] extra of the work [Intent]
+     * to the time the work is completed, and the most recent [LATENCY_SAMPLES] are kept.
+     */
+    class WorkStats {
+        /**
+         * Number of items enqueued by [JobWorkServiceActivity].
+         */
+        private var mEnqueued = 0
+        /**
+         * Number of items handed to a worker, an item cancelled by `onStopJob` is redelivered
+         * and so is counted again when it is restarted.
+         */
+        private var mStarted = 0
+        /**
+         * Number of items completed.
+         */
+        private var mCompleted = 0
+        /**
+         * Number of items cancelled by `onStopJob` before they completed.
+         */
+        private var mCancelled = 0
+        /**
+         * Ring buffer holding the most recent latencies in milliseconds.
+         */
+        private val mLatencies = LongArray(LATENCY_SAMPLES)
+        /**
+         * Number of latencies ever recorded in [mLatencies].
+         */
+        private var mLatencyCount = 0
+
+        /**
+         * Called when a work item has been enqueued.
+         */
+        @Synchronized
+        fun onEnqueued() {
+            mEnqueued++
+        }
+
+        /**
+         * Called when a work item has been dequeued and handed to a worker.
+         */
+        @Synchronized
+        fun onStarted() {
+            mStarted++
+        }
+
+        /**
+         * Called when a work item has been completed.
+         *
+         * @param latencyMs milliseconds from enqueueing the item to completing it.
+         */
+        @Synchronized
+        fun onCompleted(latencyMs: Long) {
+            mCompleted++
+            mLatencies[mLatencyCount++ % LATENCY_SAMPLES] = latencyMs
+        }
+
+        /**
+         * Called when a work item has been cancelled before it completed.
+         */
+        @Synchronized
+        fun onCancelled() {
+            mCancelled++
+        }
+
+        /**
+         * Number of items waiting in the queue of the job for a worker.
+         */
+        val queueDepth: Int
+            @Synchronized get() = (mEnqueued - mStarted + mCancelled).coerceAtLeast(0)
+
+        /**
+         * Number of items currently being processed by a worker.
+         */
+        val inFlight: Int
+            @Synchronized get() = mStarted - mCompleted - mCancelled
+
+        /**
+         * Number of items completed.
+         */
+        val completed: Int
+            @Synchronized get() = mCompleted
+
+        /**
+         * Number of items cancelled.
+         */
+        val cancelled: Int
+            @Synchronized get() = mCancelled
+
+        /**
+         * Returns the [percent] percentile of the recent latencies, or 0 if there are none.
+         *
+         * @param percent the percentile wanted, 0 to 100.
+         * @return latency in milliseconds.
+         */
+        @Synchronized
+        fun latencyPercentile(percent: Int): Long {
+            val count = mLatencyCount.coerceAtMost(LATENCY_SAMPLES)
+            if (count == 0) return 0
+            val sorted = mLatencies.copyOf(count)
+            sorted.sort()
+            return sorted[((count - 1) * percent / 100)]
+        }
+    }
+
+    /**
+     * This is a task to dequeue work in the background and hand it to a pool of workers. It only
+     * dequeues an item when a worker is free to take it, so items stay in the queue of the job
+     * (where they survive our process being killed) until they can be started. Each worker calls
+     * `completeWork` for its own item as soon as it is done, so items complete in any order.
      */
     @SuppressLint("StaticFieldLeak") // We may indeed leak instances! TODO: check this out.
     internal inner class CommandProcessor
@@ -69,78 +193,183 @@ class JobWorkService : JobService() {
             private val mParams: JobParameters) : AsyncTask<Void, Void, Void>() {
 
         /**
-         * Override this method to perform a computation on a background thread. Our while loop is
-         * designed to first check whether this task has been canceled by calling `isCanceled`
-         * saving the return value in `canceled` and if we have not been canceled we dequeue
-         * the next pending [JobWorkItem] from our field `JobParameters mParams` into
-         * `work` and if that is not null we continue:
-         *  - We initialize our [String] variable `val txt` by retrieving the [Intent] from `work`
-         * and fetching the string extra stored under the key "name" in it.
-         *  - We log a message describing what we are doing with `text`
-         *  - We call our [showNotification] method to display a notification about `txt`
-         *  - Wrapped in a try block intended to catch and log `InterruptedException` we
-         * sleep for 5 seconds.
-         *  - We call our [hideNotification] method to cancel our notification.
-         *  - We log the fact that we are done processing `work`
-         *  - We call the `completeWork` method of `mParams` report the completion of
-         * executing the [JobWorkItem] `work` (tells the system you are done with the work
-         * associated with that item, so it will not be returned again).
+         * Maximum number of work items we process at once, read from the [EXTRA_PARALLELISM]
+         * extra of the job.
+         */
+        private val mParallelism = mParams.extras.getInt(EXTRA_PARALLELISM, DEFAULT_PARALLELISM)
+                .coerceAtLeast(1)
+
+        /**
+         * Our pool of worker threads.
+         */
+        private val mWorkers: ExecutorService = Executors.newFixedThreadPool(mParallelism)
+
+        /**
+         * One permit per idle worker, we acquire one before dequeueing an item.
+         */
+        private val mSlots = Semaphore(mParallelism)
+
+        /**
+         * The items being processed and the [Future] of their worker, so that `onStopJob` can
+         * cancel them one by one. Also used as the lock for [mActiveNames].
+         */
+        private val mActive = HashMap<JobWorkItem, Future<*>>()
+
+        /**
+         * The "name" extras of the items being processed, shown in our notification.
+         */
+        private val mActiveNames = ArrayList<String?>()
+
+        /**
+         * Released once every time an item is done with (completed, failed or cancelled), so that
+         * [doInBackground] can wait for the items still running once the queue is empty.
+         */
+        private val mFinished = Semaphore(0)
+
+        /**
+         * The [FutureTask] running [process] for one [JobWorkItem]. Its [done] override runs
+         * exactly once whether the item completed, was interrupted while running or was cancelled
+         * before a worker ever started it, so it is where we give back the permit of [mSlots]
+         * and remove the item from [mActive].
          *
-         * When we exit the while loop we check if that was because we were canceled and if so we
-         * log this fact. Then we return *null* to the caller.
+         * @param work the work item to process.
+         */
+        private inner class WorkTask(private val work: JobWorkItem)
+            : FutureTask<Unit>({ process(work) }) {
+            /**
+             * Removes [work] from [mActive], counts it in [sStats] if it was cancelled (whether
+             * or not it had started), releases our permit of [mSlots] and signals [mFinished].
+             */
+            override fun done() {
+                synchronized(mActive) {
+                    mActive.remove(work)
+                }
+                if (isCancelled) {
+                    sStats.onCancelled()
+                }
+                mSlots.release()
+                mFinished.release()
+            }
+        }
+
+        /**
+         * Override this method to perform a computation on a background thread. Our while loop
+         * first waits for a free worker by acquiring a permit from [mSlots], then dequeues the
+         * next pending [JobWorkItem] from our field `JobParameters mParams` into `work`. If we
+         * have been cancelled we return the permit and leave the loop. Otherwise we count the
+         * start in [sStats], remember a [WorkTask] for `work` in [mActive] (under the lock of
+         * [mActive] so that the task cannot remove it before it has been added) and hand the task
+         * to our pool [mWorkers].
+         *
+         * If `work` is *null* the queue of the job is empty for now, but the job only ends when
+         * `dequeueWork` returns *null* while no dequeued item is still being processed (a later
+         * `completeWork` does not end it), and more work may be enqueued while our items run. So
+         * we return the permit and, unless [mActive] is empty in which case this *null* has ended
+         * the job and we leave the loop, we wait for an item to finish by acquiring [mFinished]
+         * (after draining it, so that only items which finish from now on count) and then try
+         * to dequeue again.
+         *
+         * When we exit the while loop we log if that was because we were canceled, and shut down
+         * [mWorkers] which lets the workers still running finish their items. Then we return
+         * *null* to the caller.
          *
          * @param params we do not have any
          * @return we do not have a return value.
          */
         override fun doInBackground(vararg params: Void): Void? {
             /*
-             * true if task was cancelled before it completed, we set every loop of our while loop
-             */
-            var cancelled: Boolean
-            /*
-             * JobWorkItem removed from queue to be performed
+             * Iterate over available work.  Once dequeueWork() returns null while
+             * none of our items is still running, the job's work queue is empty
+             * and the job stops, so we can let this async task complete.
              */
-            var work: JobWorkItem?
+            try {
+                while (!isCancelled) {
+                    mSlots.acquire()
+                    if (isCancelled) {
+                        mSlots.release()
+                        break
+                    }
+                    mFinished.drainPermits()
+                    val work = mParams.dequeueWork()
+                    if (work == null) {
+                        mSlots.release()
+                        val running = synchronized(mActive) { mActive.size }
+                        if (running == 0) break
+                        mFinished.acquire()
+                        continue
+                    }
+                    sStats.onStarted()
+                    val task = WorkTask(work)
+                    synchronized(mActive) {
+                        mActive[work] = task
+                    }
+                    mWorkers.execute(task)
+                }
+            } catch (e: InterruptedException) {
+                Log.i("JobWorkService", "Interrupted while waiting for a worker")
+            }
 
-            /*
-             * Iterate over available work.  Once dequeueWork() returns null, the
-             * job's work queue is empty and the job has stopped, so we can let this
-             * async task complete.
-             */
-            var b: Boolean = run {
-                cancelled = isCancelled
-                work = mParams.dequeueWork()
-                !(cancelled) && (work) != null
+            if (isCancelled) {
+                Log.i("JobWorkService", "CANCELLED!")
             }
-            while (b) {
-                val txt = work!!.intent.getStringExtra("name")
-                Log.i("JobWorkService", "Processing work: $work, msg: $txt")
-                showNotification(txt)
+            mWorkers.shutdown()
 
-                // Process work here...  we'll pretend by sleeping.
-                try {
-                    Thread.sleep(5000)
-                } catch (e: InterruptedException) {
-                    Log.i("JobWorkService", "Interrupted while sleeping")
-                }
+            return null
+        }
 
-                hideNotification()
+        /**
+         * Processes a single [JobWorkItem] on one of our workers. We fetch the string extra
+         * stored under the key "name" from the [Intent] of [work] and add it to the names shown
+         * in our notification. Then wrapped in a try block intended to catch [InterruptedException]
+         * we pretend to process the work by sleeping for 5 seconds, record its latency in [sStats]
+         * and tell the system we are done with it by calling the `completeWork` method of [mParams].
+         * If we are interrupted (`onStopJob` cancelled us) we do not complete the item, so that it
+         * is redelivered when the job is rescheduled (our [WorkTask] counts it as cancelled). In
+         * any case we remove its name from our notification. The `done` override of our
+         * [WorkTask] then removes the item from [mActive] and releases our permit of [mSlots] so
+         * that the next item can be dequeued.
+         *
+         * @param work the work item to process.
+         */
+        private fun process(work: JobWorkItem) {
+            val txt = work.intent.getStringExtra("name")
+            val startTime = SystemClock.elapsedRealtime()
+            Log.i("JobWorkService", "Processing work: $work, msg: $txt")
+            synchronized(mActive) {
+                mActiveNames.add(txt)
+                updateNotification(mActiveNames)
+            }
+            try {
+                // Process work here...  we'll pretend by sleeping.
+                Thread.sleep(5000)
 
                 // Tell system we have finished processing the work.
                 Log.i("JobWorkService", "Done with: $work")
-                mParams.completeWork(work as JobWorkItem)
-                b = run {
-                    cancelled = isCancelled
-                    work = mParams.dequeueWork()
-                    !(cancelled) && (work) != null
+                sStats.onCompleted(SystemClock.elapsedRealtime()
+                        - work.intent.getLongExtra(EXTRA_ENQUEUE_TIME, startTime))
+                mParams.completeWork(work)
+            } catch (e: InterruptedException) {
+                Log.i("JobWorkService", "Interrupted while processing: $work")
+            } finally {
+                synchronized(mActive) {
+                    mActiveNames.remove(txt)
+                    updateNotification(mActiveNames)
                 }
             }
+        }
 
-            if (cancelled) {
-                Log.i("JobWorkService", "CANCELLED!")
+        /**
+         * Called from `onStopJob` to stop processing. We cancel ourselves, which interrupts our
+         * wait for a worker, and then cancel the [Future] of every item being processed, which
+         * interrupts its worker.
+         */
+        fun cancelAll() {
+            cancel(true)
+            synchronized(mActive) {
+                for (future in mActive.values) {
+                    future.cancel(true)
+                }
             }
-
-            return null
         }
     }
 
@@ -199,7 +428,9 @@ class JobWorkService : JobService() {
 
     /**
      * This method is called if the system has determined that you must stop execution of your job
-     * even before you've had a chance to call [jobFinished].
+     * even before you've had a chance to call [jobFinished]. We call the `cancelAll` method of
+     * our [CommandProcessor] field [mCurProcessor] which stops it dequeueing and interrupts every
+     * item still being processed (those items are not completed, so they will be redelivered).
      *
      * @param params The parameters identifying this job, as supplied to
      * the job in the [onStartJob] callback.
@@ -208,8 +439,8 @@ class JobWorkService : JobService() {
      * to end the job entirely. Regardless of the value returned, your job must stop executing.
      */
     override fun onStopJob(params: JobParameters): Boolean {
-        // Have the processor cancel its current work.
-        mCurProcessor!!.cancel(true)
+        // Have the processor cancel all of its current work items.
+        mCurProcessor!!.cancelAll()
 
         // Tell the system to reschedule the job -- the only reason we would be here is
         // because the job needs to stop for some reason before it has completed all of
@@ -254,6 +485,20 @@ class JobWorkService : JobService() {
         mNM!!.notify(R.string.job_service_created, noteBuilder.build())
     }
 
+    /**
+     * Shows the names of the work items being processed in our notification, or cancels the
+     * notification if there are none.
+     *
+     * @param names the "name" extras of the items being processed.
+     */
+    private fun updateNotification(names: List<String?>) {
+        if (names.isEmpty()) {
+            hideNotification()
+        } else {
+            showNotification(names.joinToString())
+        }
+    }
+
     /**
      * Cancels the notification with id R.string.job_service_created.
      */
@@ -266,5 +511,32 @@ class JobWorkService : JobService() {
          * The id of the primary notification channel
          */
         const val PRIMARY_CHANNEL = "default"
+
+        /**
+         * Key of the [Int] extra of the `JobInfo` giving the number of work items to process at
+         * once.
+         */
+        const val EXTRA_PARALLELISM = "com.example.android.apis.app.extra.PARALLELISM"
+
+        /**
+         * Number of work items processed at once if the `JobInfo` does not say.
+         */
+        const val DEFAULT_PARALLELISM = 3
+
+        /**
+         * Key of the [Long] extra of a work [Intent] holding the `SystemClock.elapsedRealtime`
+         * at which it was enqueued, used to measure its latency.
+         */
+        const val EXTRA_ENQUEUE_TIME = "com.example.android.apis.app.extra.ENQUEUE_TIME"
+
+        /**
+         * Number of recent latencies kept by [WorkStats].
+         */
+        const val LATENCY_SAMPLES = 64
+
+        /**
+         * The statistics of the work items enqueued to and processed by [JobWorkService].
+         */
+        val sStats = WorkStats()
     }
 }
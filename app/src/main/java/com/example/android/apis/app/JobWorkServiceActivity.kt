@@ -24,9 +24,13 @@ import android.content.Context
 import android.content.Intent
 import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.PersistableBundle
 import android.os.Process
+import android.os.SystemClock
 import android.view.View
 import android.widget.Button
+import android.widget.TextView
 
 import androidx.annotation.RequiresApi
 import androidx.appcompat.app.AppCompatActivity
@@ -50,6 +54,28 @@ class JobWorkServiceActivity : AppCompatActivity() {
      * to receive the callback from the JobScheduler.
      */
     internal lateinit var mJobInfo: JobInfo
+    /**
+     * [TextView] with id R.id.job_work_stats that displays the statistics of [JobWorkService].
+     */
+    internal lateinit var mStats: TextView
+    /**
+     * [Handler] used to refresh [mStats] periodically while we are resumed.
+     */
+    private val mHandler = Handler()
+
+    /**
+     * Refreshes the statistics shown in [mStats] from [JobWorkService.sStats], then reposts
+     * itself to run again in [STATS_REFRESH_MS] milliseconds.
+     */
+    private val mRefreshStats = object : Runnable {
+        override fun run() {
+            val stats = JobWorkService.sStats
+            mStats.text = getString(R.string.job_work_stats, stats.queueDepth, stats.inFlight,
+                    stats.completed, stats.cancelled, stats.latencyPercentile(50),
+                    stats.latencyPercentile(95))
+            mHandler.postDelayed(this, STATS_REFRESH_MS)
+        }
+    }
 
     /**
      * Called when the button with id R.id.enqueue1 is clicked. We use our [JobScheduler] field
@@ -61,8 +87,7 @@ class JobWorkServiceActivity : AppCompatActivity() {
      * Parameter: View that was clicked.
      */
     private val mEnqueue1Listener = View.OnClickListener {
-        mJobScheduler.enqueue(mJobInfo, JobWorkItem(
-                Intent("com.example.android.apis.ONE").putExtra("name", "One")))
+        enqueue("com.example.android.apis.ONE", "One")
     }
 
     /**
@@ -75,8 +100,7 @@ class JobWorkServiceActivity : AppCompatActivity() {
      * Parameter: View that was clicked.
      */
     private val mEnqueue2Listener = View.OnClickListener {
-        mJobScheduler.enqueue(mJobInfo, JobWorkItem(
-                Intent("com.example.android.apis.TWO").putExtra("name", "Two")))
+        enqueue("com.example.android.apis.TWO", "Two")
     }
 
     /**
@@ -89,8 +113,25 @@ class JobWorkServiceActivity : AppCompatActivity() {
      * Parameter: View that was clicked.
      */
     private val mEnqueue3Listener = View.OnClickListener {
-        mJobScheduler.enqueue(mJobInfo, JobWorkItem(
-                Intent("com.example.android.apis.THREE").putExtra("name", "Three")))
+        enqueue("com.example.android.apis.THREE", "Three")
+    }
+
+    /**
+     * Enqueues a [JobWorkItem] whose [Intent] has the action [action] and stores [name] as an
+     * extra under the key "name" to the work queue of the work service specified in our [JobInfo]
+     * field [mJobInfo]. We also store the current `SystemClock.elapsedRealtime` as an extra under
+     * the key [JobWorkService.EXTRA_ENQUEUE_TIME] so that the service can measure the latency of
+     * the item, and count the item as enqueued in [JobWorkService.sStats].
+     *
+     * @param action the action of the work [Intent].
+     * @param name the string to store under the key "name" in the work [Intent].
+     */
+    private fun enqueue(action: String, name: String) {
+        val intent = Intent(action)
+                .putExtra("name", name)
+                .putExtra(JobWorkService.EXTRA_ENQUEUE_TIME, SystemClock.elapsedRealtime())
+        JobWorkService.sStats.onEnqueued()
+        mJobScheduler.enqueue(mJobInfo, JobWorkItem(intent))
     }
 
     /**
@@ -112,7 +153,9 @@ class JobWorkServiceActivity : AppCompatActivity() {
      * JOB_SCHEDULER_SERVICE system level service. We initialize our [JobInfo] field [mJobInfo] by
      * using a [JobInfo.Builder] specifying the resource id R.string.job_service_created as the job
      * id, and the class of [JobWorkService] to receive the callback from the `JobScheduler`,
-     * setting its deadline to 0 milliseconds and then building the [JobInfo].
+     * setting its deadline to 0 milliseconds, giving it an extras bundle which asks for
+     * [PARALLELISM] work items to be processed at once, and then building the [JobInfo]. We
+     * initialize our [TextView] field [mStats] by finding the view with id R.id.job_work_stats.
      * We find the buttons in our UI in order to set their `OnClickListener` as follows:
      *  - R.id.enqueue1: `OnClickListener` field [mEnqueue1Listener] enqueues a [JobWorkItem]
      * for [JobWorkService] with an `Intent` whose action is "com.example.android.apis.ONE"
@@ -133,8 +176,14 @@ class JobWorkServiceActivity : AppCompatActivity() {
         setContentView(R.layout.job_work_service_activity)
 
         mJobScheduler = getSystemService(Context.JOB_SCHEDULER_SERVICE) as JobScheduler
+        val extras = PersistableBundle()
+        extras.putInt(JobWorkService.EXTRA_PARALLELISM, PARALLELISM)
         mJobInfo = JobInfo.Builder(R.string.job_service_created,
-                ComponentName(this, JobWorkService::class.java)).setOverrideDeadline(0).build()
+                ComponentName(this, JobWorkService::class.java))
+                .setOverrideDeadline(0)
+                .setExtras(extras)
+                .build()
+        mStats = findViewById(R.id.job_work_stats)
 
         // Watch for button clicks.
         var button: Button = findViewById(R.id.enqueue1)
@@ -146,4 +195,36 @@ class JobWorkServiceActivity : AppCompatActivity() {
         button = findViewById(R.id.kill)
         button.setOnClickListener(mKillListener)
     }
+
+    /**
+     * Called after [onRestoreInstanceState], [onRestart], or [onPause], for our activity to start
+     * interacting with the user. We call our super's implementation of `onResume` then run our
+     * [Runnable] field [mRefreshStats] which shows the statistics of [JobWorkService] and keeps
+     * refreshing them until we are paused.
+     */
+    override fun onResume() {
+        super.onResume()
+        mRefreshStats.run()
+    }
+
+    /**
+     * Called as part of the activity lifecycle when an activity is going into the background. We
+     * call our super's implementation of `onPause` then stop the periodic refresh of [mStats].
+     */
+    override fun onPause() {
+        super.onPause()
+        mHandler.removeCallbacks(mRefreshStats)
+    }
+
+    companion object {
+        /**
+         * Number of work items we ask [JobWorkService] to process at once.
+         */
+        const val PARALLELISM = JobWorkService.DEFAULT_PARALLELISM
+
+        /**
+         * How often we refresh the statistics shown in [mStats], in milliseconds.
+         */
+        const val STATS_REFRESH_MS = 500L
+    }
 }
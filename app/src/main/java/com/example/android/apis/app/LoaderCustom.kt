@@ -23,17 +23,25 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
+import android.content.SharedPreferences
 import android.content.pm.ActivityInfo
 import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
 import android.content.res.Configuration
 import android.content.res.Resources
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.drawable.BitmapDrawable
 import android.graphics.drawable.Drawable
 import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.os.OperationCanceledException
 import android.text.TextUtils
 import android.util.Log
+import android.util.LruCache
 import android.view.*
 import android.widget.*
 
@@ -45,12 +53,20 @@ import androidx.loader.content.Loader
 import androidx.appcompat.widget.SearchView
 import androidx.appcompat.widget.SearchView.OnCloseListener
 import androidx.appcompat.widget.SearchView.OnQueryTextListener
+import androidx.core.graphics.drawable.toBitmap
 
 import com.example.android.apis.R
+import com.example.android.apis.TrigramIndex
 
 import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
 import java.text.Collator
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 /**
  * Demonstration of the implementation of a custom Loader. Shows how to implement a custom
@@ -103,7 +119,9 @@ class LoaderCustom : AppCompatActivity() {
      *
      * Parameter: loader "this" when called in our `AppListLoader` background thread
      * Parameter: info   one of the `ApplicationInfo` instances of the list that is returned
-     * from the call to `PackageManager.getInstalledApplications`
+     * from the call to `PackageManager.getInstalledPackages`
+     * Parameter: lastUpdateTime the time at which the package was last updated, used together
+     * with the package name as the key into our [AppEntryCache]
      */
     (
             /**
@@ -113,8 +131,19 @@ class LoaderCustom : AppCompatActivity() {
             /**
              * ApplicationInfo for package we are assigned to
              */
-            val applicationInfo: ApplicationInfo
+            val applicationInfo: ApplicationInfo,
+            /**
+             * The `lastUpdateTime` field of the [PackageInfo] of our package, a new install or an
+             * update of the package changes it, which invalidates anything we cached about it.
+             */
+            val lastUpdateTime: Long
     ) {
+        /**
+         * Key used for our package in the label and icon caches of [AppEntryCache], it changes
+         * whenever the package is reinstalled or updated.
+         */
+        val cacheKey: String = AppEntryCache.keyOf(applicationInfo.packageName, lastUpdateTime)
+
         /**
          * Full path to the base APK for the package
          */
@@ -207,10 +236,15 @@ class LoaderCustom : AppCompatActivity() {
          * field [mMounted] is *false*) we check to see if our [File] field [mApkFile] exists
          * and if it does not we set [mMounted] to *false* and set [label] to the contents
          * of the `packageName` field our our [ApplicationInfo] field [applicationInfo]. If the
-         * apk file does exist we set [mMounted] to *true* and try to load the label from the apk
-         * to initialize our [CharSequence] variable `val label`. If successful we set [label] to
-         * the [String] value of `label`, otherwise we set [label] to the contents of the
-         * `packageName` field our our [ApplicationInfo] field [applicationInfo].
+         * apk file does exist we set [mMounted] to *true* and if the [AppEntryCache] of our loader
+         * has a label for our package name and [lastUpdateTime] we set [label] to it and return.
+         * Otherwise we try to load the label from the apk to initialize our [CharSequence] variable
+         * `val label`. If successful we set [label] to the [String] value of `label`, otherwise we
+         * set [label] to the contents of the `packageName` field our our [ApplicationInfo] field
+         * [applicationInfo], and then we store [label] in the [AppEntryCache] of our loader.
+         *
+         * This is called concurrently for many [AppEntry] instances by the worker threads of
+         * [AppEntryCache.sExecutor], but each instance is only touched by a single thread.
          *
          * If [label] is currently not *null*, and the apk has been mounted (our flag [mMounted] is
          * *true*) we do nothing.
@@ -225,9 +259,379 @@ class LoaderCustom : AppCompatActivity() {
                     label = applicationInfo.packageName
                 } else {
                     mMounted = true
+                    val cached = mLoader.mCache.getLabel(applicationInfo.packageName, lastUpdateTime)
+                    if (cached != null) {
+                        this.label = cached
+                        return
+                    }
                     val label: CharSequence? = applicationInfo.loadLabel(context.packageManager)
 
                     this.label = label?.toString() ?: applicationInfo.packageName
+                    mLoader.mCache.putLabel(applicationInfo.packageName, lastUpdateTime, this.label!!)
+                }
+            }
+        }
+    }
+
+    /**
+     * Cache of the labels and icons of the installed packages which outlives any single load of
+     * our [AppListLoader], so that when a [PackageIntentReceiver] broadcast triggers a reload only
+     * the packages which were actually installed or updated need to have their label loaded from
+     * their apk. Entries are keyed by package name and the `lastUpdateTime` of the package, so an
+     * update of a package automatically invalidates what we have cached for it.
+     *
+     * Labels are kept in memory and are also persisted to a private [SharedPreferences] file so
+     * that they survive process death (they are discarded wholesale if the default [Locale] has
+     * changed since they were written). Icons are decoded into [Bitmap]'s of the system app icon
+     * size on the worker threads of our [ExecutorService] field [sExecutor] and kept in a
+     * [LruCache] whose size is bounded by the number of bytes of the bitmaps it holds. They are
+     * also persisted, as PNG files named after [AppEntry.cacheKey] in a directory of our cache
+     * directory, so that after process death an icon costs the decoding of a small PNG instead of
+     * loading the resources of the apk of its package. Being in the cache directory they may be
+     * deleted by the system at any time, in which case we just load them from the apk again.
+     */
+    class AppEntryCache
+    /**
+     * Our constructor, use [getInstance] to retrieve the process wide singleton instead of
+     * calling this directly.
+     *
+     * @param context the application [Context], used to access our [SharedPreferences] file.
+     */
+    private constructor(context: Context) {
+
+        /**
+         * The [SharedPreferences] file we persist our labels in. The key of each entry is the
+         * package name, and the value is the `lastUpdateTime` of the package followed by a ':'
+         * and the label.
+         */
+        private val mPrefs: SharedPreferences =
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+
+        /**
+         * The directory we persist our icons in, one PNG file per [AppEntry.cacheKey].
+         */
+        private val mIconDir = File(context.cacheDir, ICONS_DIR)
+
+        /**
+         * In memory copy of the labels, keyed by package name, the value is encoded the same way
+         * as in [mPrefs].
+         */
+        private val mLabels = ConcurrentHashMap<String, String>()
+
+        /**
+         * Labels which have been added to [mLabels] since the last time we called [commit], they
+         * will be written to [mPrefs] by the next call to [commit].
+         */
+        private val mDirty = ConcurrentHashMap<String, String>()
+
+        /**
+         * The [Locale] (as a [String]) the labels in [mLabels] were loaded for, *null* until our
+         * method [prepare] has read [mPrefs].
+         */
+        private var mLocale: String? = null
+
+        /**
+         * Called from the background thread of [AppListLoader] before any labels are requested.
+         * If this is our first call we read all the labels persisted in [mPrefs] into [mLabels].
+         * Then if the labels we hold were loaded for a [Locale] other than the current default
+         * we discard all of them (in memory and on disk) since they are now in the wrong language,
+         * and the icons as well since they may be localized resources too.
+         */
+        @Synchronized
+        internal fun prepare() {
+            val locale = Locale.getDefault().toString()
+            if (mLocale == null) {
+                for ((key, value) in mPrefs.all) {
+                    if (key != LOCALE_KEY && value is String) {
+                        mLabels[key] = value
+                    }
+                }
+                mLocale = mPrefs.getString(LOCALE_KEY, locale)
+            }
+            if (mLocale != locale) {
+                mLabels.clear()
+                mDirty.clear()
+                mPrefs.edit().clear().putString(LOCALE_KEY, locale).apply()
+                sIcons.evictAll()
+                mIconDir.listFiles()?.forEach { it.delete() }
+                mLocale = locale
+            }
+        }
+
+        /**
+         * Returns the label we have cached for the package [packageName] if it was cached for
+         * the same [lastUpdateTime], or *null* if we have to load it from the apk.
+         *
+         * @param packageName the name of the package.
+         * @param lastUpdateTime the `lastUpdateTime` field of the [PackageInfo] of the package.
+         * @return the cached label or *null*.
+         */
+        internal fun getLabel(packageName: String, lastUpdateTime: Long): String? {
+            val value = mLabels[packageName] ?: return null
+            val colon = value.indexOf(':')
+            if (colon < 0 || value.substring(0, colon) != lastUpdateTime.toString()) {
+                return null
+            }
+            return value.substring(colon + 1)
+        }
+
+        /**
+         * Stores the label [label] of the package [packageName] with update time [lastUpdateTime]
+         * in [mLabels], and remembers in [mDirty] that it needs to be persisted by [commit].
+         *
+         * @param packageName the name of the package.
+         * @param lastUpdateTime the `lastUpdateTime` field of the [PackageInfo] of the package.
+         * @param label the label loaded from the apk of the package.
+         */
+        internal fun putLabel(packageName: String, lastUpdateTime: Long, label: String) {
+            val value = "$lastUpdateTime:$label"
+            mLabels[packageName] = value
+            mDirty[packageName] = value
+        }
+
+        /**
+         * Returns the file in [mIconDir] holding the icon with the key [key].
+         *
+         * @param key the [AppEntry.cacheKey] of the package.
+         * @return the PNG file of its icon, which may not exist.
+         */
+        private fun iconFile(key: String): File {
+            return File(mIconDir, "$key$ICON_SUFFIX")
+        }
+
+        /**
+         * Reads the icon with the key [key] persisted by [writeIcon], called on a thread of
+         * [sExecutor].
+         *
+         * @param key the [AppEntry.cacheKey] of the package.
+         * @return the icon, or *null* if it has not been persisted (or cannot be decoded).
+         */
+        internal fun readIcon(key: String): Bitmap? {
+            val file = iconFile(key)
+            return if (file.exists()) BitmapFactory.decodeFile(file.path) else null
+        }
+
+        /**
+         * Persists the icon [bitmap] with the key [key] as a PNG file in [mIconDir], called on a
+         * thread of [sExecutor]. We write it to a temporary file which we then rename, so that a
+         * process which dies in the middle of the write never leaves a truncated icon behind.
+         * Failing to write is only logged, the icon will simply be loaded from the apk again.
+         *
+         * @param key the [AppEntry.cacheKey] of the package.
+         * @param bitmap its icon.
+         */
+        internal fun writeIcon(key: String, bitmap: Bitmap) {
+            val file = iconFile(key)
+            val temp = File(mIconDir, "$key.tmp")
+            try {
+                mIconDir.mkdirs()
+                FileOutputStream(temp).use { bitmap.compress(Bitmap.CompressFormat.PNG, 100, it) }
+                if (!temp.renameTo(file)) {
+                    temp.delete()
+                }
+            } catch (e: IOException) {
+                Log.i(TAG, "Could not persist the icon of $key", e)
+                temp.delete()
+            }
+        }
+
+        /**
+         * Persists the labels added since our last call and forgets the labels of packages which
+         * are no longer installed. Called from a background thread of [AppListLoader] at the
+         * end of a successful load. The write to [mPrefs] is done asynchronously by `apply`.
+         * After a full load we also delete the persisted icons which are no longer current, that
+         * is those of packages which are no longer installed or which have been updated since
+         * (whose file name holds a `lastUpdateTime` other than the one in [mLabels]).
+         *
+         * @param installed the names of all the packages that are currently installed, or *null*
+         * if only a few packages were reloaded and we should just persist the new labels.
+         */
+        @Synchronized
+        internal fun commit(installed: Set<String>?) {
+            val editor = mPrefs.edit()
+            if (installed != null) {
+                val stale = mLabels.keys.filter { it !in installed }
+                for (packageName in stale) {
+                    mLabels.remove(packageName)
+                    editor.remove(packageName)
+                }
+            }
+            for ((packageName, value) in mDirty) {
+                editor.putString(packageName, value)
+            }
+            mDirty.clear()
+            editor.putString(LOCALE_KEY, mLocale)
+            editor.apply()
+            if (installed != null) {
+                for (file in mIconDir.listFiles() ?: emptyArray()) {
+                    val key = file.name.removeSuffix(ICON_SUFFIX)
+                    val packageName = key.substringBeforeLast('@')
+                    val lastUpdateTime = key.substringAfterLast('@')
+                    if (mLabels[packageName]?.startsWith("$lastUpdateTime:") != true) {
+                        file.delete()
+                    }
+                }
+            }
+        }
+
+        /**
+         * Our static fields and methods.
+         */
+        companion object {
+            /**
+             * Name of the [SharedPreferences] file we persist our labels in.
+             */
+            private const val PREFS_NAME = "LoaderCustomLabels"
+
+            /**
+             * Key in [PREFS_NAME] used for the [Locale] the labels were loaded for, the ':' makes
+             * sure that it can never collide with a package name.
+             */
+            private const val LOCALE_KEY = ":locale"
+
+            /**
+             * Name of the directory of our cache directory we persist our icons in.
+             */
+            private const val ICONS_DIR = "LoaderCustomIcons"
+
+            /**
+             * Suffix of the names of the files of our persisted icons.
+             */
+            private const val ICON_SUFFIX = ".png"
+
+            /**
+             * Bounded pool of worker threads used to load labels in parallel and to decode icons
+             * off of the UI thread.
+             */
+            internal val sExecutor: ExecutorService = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors().coerceIn(2, 4))
+
+            /**
+             * Single worker thread used by [AppListLoader.onPackageChanged] to look up changed
+             * packages one at a time, so that the results for a package (an ACTION_PACKAGE_REMOVED
+             * followed by an ACTION_PACKAGE_ADDED say) are posted back in the order they arrived.
+             */
+            internal val sPackageExecutor: ExecutorService = Executors.newSingleThreadExecutor()
+
+            /**
+             * The decoded icons, keyed by [AppEntry.cacheKey], limited to 1/16 of the maximum
+             * heap size measured in bytes.
+             */
+            internal val sIcons: LruCache<String, Bitmap> =
+                    object : LruCache<String, Bitmap>((Runtime.getRuntime().maxMemory() / 16).toInt()) {
+                        override fun sizeOf(key: String, value: Bitmap): Int {
+                            return value.byteCount
+                        }
+                    }
+
+            /**
+             * The [ImageView]'s waiting for the icons which are currently being decoded by one of
+             * the threads of [sExecutor], keyed by the [AppEntry.cacheKey] of the icon. Used to
+             * avoid decoding the same icon twice while still updating every view which asked for
+             * it. Guarded by itself.
+             */
+            private val sWaiting = HashMap<String, MutableList<ImageView>>()
+
+            /**
+             * Our singleton instance, created by [getInstance].
+             */
+            private var sInstance: AppEntryCache? = null
+
+            /**
+             * Returns the process wide [AppEntryCache], creating it if this is the first call.
+             *
+             * @param context any [Context], we use its application context.
+             * @return the singleton [AppEntryCache].
+             */
+            @Synchronized
+            fun getInstance(context: Context): AppEntryCache {
+                if (sInstance == null) {
+                    sInstance = AppEntryCache(context.applicationContext)
+                }
+                return sInstance!!
+            }
+
+            /**
+             * Builds the key used for a package in our caches.
+             *
+             * @param packageName the name of the package.
+             * @param lastUpdateTime the `lastUpdateTime` field of the [PackageInfo] of the package.
+             * @return the key to use for the package in our caches.
+             */
+            fun keyOf(packageName: String, lastUpdateTime: Long): String {
+                return "$packageName@$lastUpdateTime"
+            }
+
+            /**
+             * Displays the icon of [entry] in [imageView]. If the icon is already in our [LruCache]
+             * field [sIcons] we display it immediately. Otherwise we display the [placeholder]
+             * and tag [imageView] with the [AppEntry.cacheKey] of [entry], and add [imageView] to
+             * the list of views waiting for that key in [sWaiting]. If another thread is already
+             * decoding the icon that is all, otherwise we submit a task to [sExecutor] which reads
+             * the icon persisted by a previous process if there is one, or else loads the icon of
+             * [entry], scales it to [size] pixels and persists it, and then stores it in [sIcons].
+             * When the task is done it takes the list of waiting views out of [sWaiting] and posts
+             * a [Runnable] to each of them which displays the icon only if the view has not been
+             * recycled for a different entry in the mean time.
+             *
+             * @param entry the [AppEntry] whose icon we are to display.
+             * @param imageView the [ImageView] to display it in.
+             * @param placeholder the [Drawable] to display until the icon has been decoded.
+             * @param size the width and height in pixels to decode the icon to.
+             */
+            fun bindIcon(entry: AppEntry, imageView: ImageView, placeholder: Drawable?, size: Int) {
+                val key = entry.cacheKey
+                imageView.tag = key
+                val cached = sIcons.get(key)
+                if (cached != null) {
+                    imageView.setImageBitmap(cached)
+                    return
+                }
+                imageView.setImageDrawable(placeholder)
+                synchronized(sWaiting) {
+                    val waiting = sWaiting[key]
+                    if (waiting != null) {
+                        // Already being decoded, the view will be updated when it is done.
+                        if (imageView !in waiting) {
+                            waiting.add(imageView)
+                        }
+                        return
+                    }
+                    sWaiting[key] = arrayListOf(imageView)
+                }
+                val cache = getInstance(imageView.context)
+                sExecutor.execute {
+                    var views: List<ImageView>? = null
+                    try {
+                        var bitmap = cache.readIcon(key)
+                        if (bitmap == null) {
+                            val drawable = entry.icon
+                            bitmap = if (drawable is BitmapDrawable && drawable.bitmap.width == size
+                                    && drawable.bitmap.height == size) {
+                                drawable.bitmap
+                            } else {
+                                drawable?.toBitmap(size, size)
+                            }
+                            if (bitmap != null) {
+                                cache.writeIcon(key, bitmap)
+                            }
+                        }
+                        if (bitmap != null) {
+                            sIcons.put(key, bitmap)
+                        }
+                    } finally {
+                        synchronized(sWaiting) {
+                            views = sWaiting.remove(key)
+                        }
+                    }
+                    for (view in views ?: emptyList<ImageView>()) {
+                        view.post {
+                            val bitmap = sIcons.get(key)
+                            if (bitmap != null && view.tag == key) {
+                                view.setImageBitmap(bitmap)
+                            }
+                        }
+                    }
                 }
             }
         }
@@ -299,9 +703,11 @@ class LoaderCustom : AppCompatActivity() {
      *  * `Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE`
      *  * `Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE`
      *
-     * Then it calls the `onContentChanged` method of our [AppListLoader] field [mLoader] (which it
-     * inherits unchanged from its superclass [AsyncTaskLoader]) when it receives one of these
-     * [Intent]'s in its [onReceive] override.
+     * When it receives one of these [Intent]'s in its [onReceive] override it tells our
+     * [AppListLoader] field [mLoader] which packages changed by calling its `onPackageChanged`
+     * method so that only their entries need to be updated, falling back to calling the
+     * `onContentChanged` method of [mLoader] (which it inherits unchanged from its superclass
+     * [AsyncTaskLoader]) to reload everything if the [Intent] does not name the packages.
      */
     class PackageIntentReceiver
     /**
@@ -344,16 +750,32 @@ class LoaderCustom : AppCompatActivity() {
 
         /**
          * This method is called when the [BroadcastReceiver] is receiving an [Intent] broadcast.
-         * We merely inform our [AppListLoader] field [mLoader] that the data it is handling may have
-         * changed by calling its callback method `onContentChanged` (which it inherits
-         * unchanged from its superclass `AsyncTaskLoader`).
+         * If [intent] is an ACTION_PACKAGE_REMOVED which is part of a package being replaced we
+         * ignore it, since an ACTION_PACKAGE_ADDED for the new version follows. If the data URI of
+         * [intent] names a package (the ACTION_PACKAGE_* broadcasts) we call the `onPackageChanged`
+         * method of our [AppListLoader] field [mLoader] with that package name, and if [intent]
+         * has an EXTRA_CHANGED_PACKAGE_LIST extra (the ACTION_EXTERNAL_APPLICATIONS_* broadcasts)
+         * we call `onPackageChanged` for every package in it. Otherwise we merely inform [mLoader]
+         * that the data it is handling may have changed by calling its callback method
+         * `onContentChanged` (which it inherits unchanged from its superclass `AsyncTaskLoader`).
          *
          * @param context The [Context] in which the receiver is running.
          * @param intent  The [Intent] being received.
          */
         override fun onReceive(context: Context, intent: Intent) {
+            if (intent.action == Intent.ACTION_PACKAGE_REMOVED
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // The ACTION_PACKAGE_ADDED which follows will update the entry.
+                return
+            }
+            val packageName: String? = intent.data?.schemeSpecificPart
+            val changed: Array<String>? = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST)
             // Tell the loader about the change.
-            mLoader.onContentChanged()
+            when {
+                packageName != null -> mLoader.onPackageChanged(packageName)
+                changed != null -> for (name in changed) mLoader.onPackageChanged(name)
+                else -> mLoader.onContentChanged()
+            }
         }
     }
 
@@ -382,6 +804,12 @@ class LoaderCustom : AppCompatActivity() {
         @Suppress("LeakingThis")
         internal val mPm: PackageManager = getContext().packageManager
 
+        /**
+         * The [AppEntryCache] holding the labels and icons of the packages we have already
+         * loaded, shared with all other instances of [AppListLoader] in our process.
+         */
+        internal val mCache: AppEntryCache = AppEntryCache.getInstance(getContext())
+
         /**
          * Our list of [AppEntry] Objects describing the installed applications which we supply
          * to those using us as a [Loader].
@@ -397,17 +825,176 @@ class LoaderCustom : AppCompatActivity() {
          */
         internal var mPackageObserver: PackageIntentReceiver? = null
 
+        /**
+         * Our current entries indexed by package name, used to find the old entry of a package
+         * named by a [PackageIntentReceiver] broadcast. Only accessed on the main thread.
+         */
+        internal val mByPackage = HashMap<String, AppEntry>()
+
+        /**
+         * The listener which is told about the entries that [applyPackageDelta] inserts into and
+         * removes from its copy of [mApps], so that it can update what it displays in place.
+         */
+        internal var mChangeListener: OnAppEntriesChangedListener? = null
+
+        /**
+         * [Handler] used to return to the main thread after loading a changed package.
+         */
+        internal val mHandler = Handler(Looper.getMainLooper())
+
+        /**
+         * Interface implemented by the client of an [AppListLoader] that wants to be told about
+         * incremental changes to the list most recently delivered to it. The delivered list itself
+         * is never modified, each change comes with a new list which replaces it.
+         */
+        interface OnAppEntriesChangedListener {
+            /**
+             * Called when [entry] has been removed from position [index] of the list.
+             *
+             * @param apps the new list, with the whole change to the package applied.
+             * @param index the position [entry] used to occupy.
+             * @param entry the [AppEntry] which was removed.
+             */
+            fun onAppEntryRemoved(apps: List<AppEntry>, index: Int, entry: AppEntry)
+
+            /**
+             * Called when [entry] has been inserted at position [index] of the list.
+             *
+             * @param apps the new list, with the whole change to the package applied.
+             * @param index the position [entry] now occupies.
+             * @param entry the [AppEntry] which was inserted.
+             */
+            fun onAppEntryInserted(apps: List<AppEntry>, index: Int, entry: AppEntry)
+        }
+
+        /**
+         * Called by our [PackageIntentReceiver] on the main thread when the package [packageName]
+         * has been installed, removed or changed. If we are not started, or have not loaded our
+         * list yet, we just call `onContentChanged` to have the whole list (re)loaded. Otherwise we
+         * submit a task to [AppEntryCache.sPackageExecutor] which fetches the [PackageInfo] of the
+         * package (if it is still installed), creates an [AppEntry] for it and loads its label,
+         * then posts a call to [applyPackageDelta] back to the main thread to splice it into our
+         * list. Since [AppEntryCache.sPackageExecutor] has a single thread, the deltas are applied
+         * in the same order as the broadcasts which caused them.
+         *
+         * @param packageName the name of the package that changed.
+         */
+        internal fun onPackageChanged(packageName: String) {
+            if (!isStarted || mApps == null) {
+                onContentChanged()
+                return
+            }
+            val context = context
+            AppEntryCache.sPackageExecutor.execute {
+                val entry: AppEntry? = try {
+                    @SuppressLint("InlinedApi")
+                    val info = mPm.getPackageInfo(packageName,
+                            PackageManager.MATCH_UNINSTALLED_PACKAGES or PackageManager.MATCH_DISABLED_COMPONENTS)
+                    val appInfo: ApplicationInfo? = info.applicationInfo
+                    if (appInfo == null) null else AppEntry(this, appInfo, info.lastUpdateTime)
+                } catch (e: PackageManager.NameNotFoundException) {
+                    null
+                }
+                if (entry != null) {
+                    entry.loadLabel(context)
+                    mCache.commit(null)
+                }
+                mHandler.post { applyPackageDelta(packageName, entry) }
+            }
+        }
+
+        /**
+         * Applies the change of a single package to our sorted list [mApps] without re-sorting it.
+         * Must be called on the main thread. If we have no list (we were reset in the mean time)
+         * we do nothing. The list in [mApps] has already been delivered to our client, so we never
+         * modify it, we copy it to our variable `val apps` and work on that instead. If
+         * [mByPackage] holds an old entry for [packageName] we find its position by binary search
+         * and remove it from `apps`. Then if [entry] is not *null* (the package is still
+         * installed) we find its insertion point by binary search using [ALPHA_COMPARATOR] and
+         * insert it there.
+         *
+         * Having set [mApps] to `apps` we tell [mChangeListener] about the removal and insertion,
+         * passing it `apps` to use from now on. If there is no listener but we are started we
+         * deliver `apps` using our super's implementation of `deliverResult` instead.
+         *
+         * @param packageName the name of the package that changed.
+         * @param entry the new [AppEntry] for the package, or *null* if it has been removed.
+         */
+        internal fun applyPackageDelta(packageName: String, entry: AppEntry?) {
+            val apps = ArrayList(mApps ?: return)
+            val old = mByPackage.remove(packageName)
+            val removed = if (old == null) -1 else indexOfEntry(apps, old)
+            if (removed >= 0) {
+                apps.removeAt(removed)
+            }
+            var inserted = -1
+            if (entry != null) {
+                val found = Collections.binarySearch(apps, entry, ALPHA_COMPARATOR)
+                inserted = if (found < 0) -(found + 1) else found
+                apps.add(inserted, entry)
+                mByPackage[packageName] = entry
+            }
+            mApps = apps
+
+            val listener = mChangeListener
+            if (listener == null) {
+                if (isStarted) {
+                    super.deliverResult(apps)
+                }
+                return
+            }
+            if (removed >= 0) {
+                listener.onAppEntryRemoved(apps, removed, old!!)
+            }
+            if (entry != null) {
+                listener.onAppEntryInserted(apps, inserted, entry)
+            }
+        }
+
+        /**
+         * Finds the position of [entry] in the sorted list [apps]. We binary search for it using
+         * [ALPHA_COMPARATOR], then since several entries may share the same label we scan the run
+         * of entries with an equal label on both sides of the hit for [entry] itself.
+         *
+         * @param apps our sorted list of [AppEntry] objects.
+         * @param entry the [AppEntry] to look for.
+         * @return the index of [entry] in [apps] or -1 if it is not there.
+         */
+        private fun indexOfEntry(apps: List<AppEntry>, entry: AppEntry): Int {
+            val found = Collections.binarySearch(apps, entry, ALPHA_COMPARATOR)
+            if (found < 0) return -1
+            var i = found
+            while (i >= 0 && ALPHA_COMPARATOR.compare(apps[i], entry) == 0) {
+                if (apps[i] === entry) return i
+                i--
+            }
+            i = found + 1
+            while (i < apps.size && ALPHA_COMPARATOR.compare(apps[i], entry) == 0) {
+                if (apps[i] === entry) return i
+                i++
+            }
+            return -1
+        }
+
         /**
          * This is where the bulk of our work is done. This function is called in a background
          * thread and should generate a new set of data to be published by the loader. First we
-         * use our [PackageManager] field [mPm] to retrieve all known applications to our variable
-         * `List<ApplicationInfo> apps`. If no apps are returned (`apps` is null) we allocate
-         * an empty `ArrayList<>` for `apps`. We initialize our [Context] variable `val context`
-         * with an application context retrieved from the [Context] passed to the constructor. We
-         * create our return list `List<AppEntry>` to initialize our variable `val entries`, and
-         * populate it with an [AppEntry] for each of the [ApplicationInfo] instances in `apps`.
-         * When done we sort `entries` using our `Comparator<AppEntry> ALPHA_COMPARATOR`. Finally
-         * we return `entries` to the caller.
+         * use our [PackageManager] field [mPm] to retrieve the [PackageInfo] of all known packages
+         * to our variable `List<PackageInfo> packages` (we use `getInstalledPackages` rather than
+         * `getInstalledApplications` because we need the `lastUpdateTime` of each package to key
+         * our [AppEntryCache] field [mCache]). If no packages are returned we allocate an empty
+         * `ArrayList<>` for `packages`. We initialize our [Context] variable `val context` with an
+         * application context retrieved from the [Context] passed to the constructor, and call the
+         * `prepare` method of [mCache] to have it read its persisted labels. We create our return
+         * list `List<AppEntry>` to initialize our variable `val entries`, and populate it with an
+         * [AppEntry] for each of the [PackageInfo] instances in `packages`.
+         *
+         * Then we load the labels of all of the entries in parallel by handing a [Callable] for
+         * each of them to the `invokeAll` method of [AppEntryCache.sExecutor] (labels which are
+         * still in [mCache] do not need to touch the apk at all). If our load was canceled while
+         * this was happening we throw [OperationCanceledException]. Otherwise we have [mCache]
+         * persist the new labels, sort `entries` using our `Comparator<AppEntry>`
+         * `ALPHA_COMPARATOR`, and return `entries` to the caller.
          *
          * @return The result of the load operation.
          */
@@ -415,22 +1002,38 @@ class LoaderCustom : AppCompatActivity() {
             // Retrieve all known applications.
 
             @SuppressLint("InlinedApi")
-            var apps: List<ApplicationInfo>? = mPm.getInstalledApplications(
+            var packages: List<PackageInfo>? = mPm.getInstalledPackages(
                     PackageManager.MATCH_UNINSTALLED_PACKAGES or PackageManager.MATCH_DISABLED_COMPONENTS)
 
-            if (apps == null) {
-                apps = ArrayList()
+            if (packages == null) {
+                packages = ArrayList()
             }
 
             val context = context
+            mCache.prepare()
 
-            // Create corresponding array of entries and load their labels.
-            val entries = ArrayList<AppEntry>(apps.size)
-            for (i in apps.indices) {
-                val entry = AppEntry(this, apps[i])
-                entry.loadLabel(context)
-                entries.add(entry)
+            // Create corresponding array of entries.
+            val entries = ArrayList<AppEntry>(packages.size)
+            for (i in packages.indices) {
+                val info = packages[i].applicationInfo ?: continue
+                entries.add(AppEntry(this, info, packages[i].lastUpdateTime))
+            }
+
+            // Load their labels in parallel, those still in the cache cost nothing.
+            val tasks = entries.map { entry ->
+                Callable<Unit> {
+                    if (!isLoadInBackgroundCanceled) {
+                        entry.loadLabel(context)
+                    }
+                }
+            }
+            for (future in AppEntryCache.sExecutor.invokeAll(tasks)) {
+                future.get()
             }
+            if (isLoadInBackgroundCanceled) {
+                throw OperationCanceledException()
+            }
+            mCache.commit(entries.mapTo(HashSet()) { it.applicationInfo.packageName })
 
             // Sort the list.
             Collections.sort(entries, ALPHA_COMPARATOR)
@@ -471,6 +1074,8 @@ class LoaderCustom : AppCompatActivity() {
 
             val oldApps = mApps
             mApps = apps
+            mByPackage.clear()
+            apps?.forEach { mByPackage[it.applicationInfo.packageName] = it }
 
             if (isStarted) {
                 // If the Loader is currently started, we can immediately
@@ -583,6 +1188,7 @@ class LoaderCustom : AppCompatActivity() {
             if (mApps != null) {
                 onReleaseResources(mApps)
                 mApps = null
+                mByPackage.clear()
             }
 
             // Stop monitoring for changes.
@@ -630,6 +1236,17 @@ class LoaderCustom : AppCompatActivity() {
          */
         private val mInflater: LayoutInflater = context.getSystemService(Context.LAYOUT_INFLATER_SERVICE) as LayoutInflater
 
+        /**
+         * Size in pixels that the icons are decoded to, the standard size of an application icon.
+         */
+        private val mIconSize: Int = context.resources.getDimensionPixelSize(android.R.dimen.app_icon_size)
+
+        /**
+         * Icon displayed while the real icon of an entry is being decoded in the background.
+         */
+        @Suppress("DEPRECATION")
+        private val mPlaceholder: Drawable? = context.resources.getDrawable(android.R.drawable.sym_def_app_icon)
+
         /**
          * Sets the contents of our [ArrayAdapter]. First we remove all elements from our list,
          * and then if our `List<AppEntry>` parameter [data] is not *null*, we add all the elements
@@ -651,9 +1268,11 @@ class LoaderCustom : AppCompatActivity() {
          * we use our [LayoutInflater] field [mInflater] to inflate the list item layout file
          * R.layout.list_item_icon_text into `view`. If [convertView] is not *null* we recycle it
          * by setting `view` to it. Next we fetch the item at [position] to initialize our [AppEntry]
-         * variable `val item`, set the [ImageView] with ID R.id.icon in `view` to the icon associated
-         * with the data in `item` and set the text of the [TextView] with ID R.id.text in `view` to
-         * the `label` associated with `item`. Finally we return `view` to the caller.
+         * variable `val item`, and call the `bindIcon` method of [AppEntryCache] to display the icon
+         * associated with the data in `item` in the [ImageView] with ID R.id.icon in `view` (it is
+         * decoded on a background thread if it is not already cached, [mPlaceholder] is displayed
+         * until then), and set the text of the [TextView] with ID R.id.text in `view` to the
+         * `label` associated with `item`. Finally we return `view` to the caller.
          *
          * @param position    The position of the item within the adapter's data set of the item
          * whose view we want.
@@ -670,7 +1289,8 @@ class LoaderCustom : AppCompatActivity() {
 
             val item = getItem(position)
 
-            (view.findViewById<View>(R.id.icon) as ImageView).setImageDrawable(item!!.icon)
+            AppEntryCache.bindIcon(item!!, view.findViewById<View>(R.id.icon) as ImageView,
+                    mPlaceholder, mIconSize)
             (view.findViewById<View>(R.id.text) as TextView).text = item.label
 
             return view
@@ -683,7 +1303,8 @@ class LoaderCustom : AppCompatActivity() {
     class AppListFragment : ListFragment(),
             OnQueryTextListener,
             OnCloseListener,
-            LoaderManager.LoaderCallbacks<List<AppEntry>>
+            LoaderManager.LoaderCallbacks<List<AppEntry>>,
+            AppListLoader.OnAppEntriesChangedListener
     {
 
         /**
@@ -701,6 +1322,24 @@ class LoaderCustom : AppCompatActivity() {
          */
         internal var mCurFilter: String? = null
 
+        /**
+         * The complete list of entries most recently delivered by our loader (which keeps it up
+         * to date as packages change), displayed in full when there is no filter.
+         */
+        internal var mData: List<AppEntry>? = null
+
+        /**
+         * Trigram index of the labels of the entries in [mData], used to answer the queries typed
+         * into [mSearchView] without rescanning every label on every keystroke.
+         */
+        internal val mIndex = TrigramIndex<AppEntry>()
+
+        /**
+         * The search for [mCurFilter] which is currently streaming its results into [mAdapter],
+         * canceled when the filter changes again.
+         */
+        internal var mSearch: TrigramIndex<AppEntry>.Search? = null
+
         /**
          * Called when the fragment's activity has been created and this fragment's view hierarchy
          * instantiated. First we call through to our super's implementation of `onActivityCreated`,
@@ -800,24 +1439,67 @@ class LoaderCustom : AppCompatActivity() {
         /**
          * Called when the query text is changed by the user. If the [newText] entered by the
          * user is not empty, we set our [String] field [mCurFilter] to it, otherwise we set
-         * [mCurFilter] to *null*. We get a [Filter] for our [AppListAdapter] field [mAdapter]
-         * and then use it to start an asynchronous filtering operation using [mCurFilter]
-         * (canceling all previous non-executed filtering requests and posting a new filtering
-         * request that will be executed later.) Finally we return *true* to indicate that the
-         * action was handled by us.
+         * [mCurFilter] to *null*. Then we call our method [runFilter] to cancel any search that
+         * is still running and start a new one for [mCurFilter] against our [TrigramIndex] field
+         * [mIndex]. Finally we return *true* to indicate that the action was handled by us.
          *
          * @param newText the new content of the query text field.
          * @return *false* if the [SearchView] should perform the default action of showing any
          * suggestions if available, *true* if the action was handled by the listener.
          */
         override fun onQueryTextChange(newText: String): Boolean {
-            // Called when the action bar search text has changed.  Since this
-            // is a simple array adapter, we can just have it do the filtering.
+            // Called when the action bar search text has changed.
             mCurFilter = if (!TextUtils.isEmpty(newText)) newText else null
-            mAdapter.filter.filter(mCurFilter)
+            runFilter()
             return true
         }
 
+        /**
+         * Updates the contents of our [AppListAdapter] field [mAdapter] to match the current
+         * filter [mCurFilter]. First we cancel the previous [TrigramIndex.Search] in [mSearch] if
+         * there is one. If there is no filter we just set the data of [mAdapter] to the full list
+         * [mData]. Otherwise we create a search of [mIndex] for [mCurFilter] which replaces the
+         * contents of [mAdapter] with the first batch of results it delivers and appends later
+         * batches as they arrive, and execute it on [AppEntryCache.sExecutor]. When the search
+         * completes we clear [mAdapter] if nothing matched, and sort it with [ALPHA_COMPARATOR]
+         * in case entries inserted since the index was built came back out of order.
+         */
+        internal fun runFilter() {
+            mSearch?.cancel()
+            mSearch = null
+            val filter = mCurFilter
+            if (filter == null) {
+                mAdapter.setData(mData)
+                return
+            }
+            val search = mIndex.search(filter, Handler(Looper.getMainLooper()),
+                    object : TrigramIndex.ResultSink<AppEntry> {
+                        /**
+                         * *true* until the first batch of results has replaced the old contents.
+                         */
+                        var first = true
+
+                        override fun onResults(batch: List<AppEntry>) {
+                            if (first) {
+                                first = false
+                                mAdapter.setData(batch)
+                            } else {
+                                mAdapter.addAll(batch)
+                            }
+                        }
+
+                        override fun onComplete() {
+                            if (first) {
+                                mAdapter.setData(null)
+                            } else {
+                                mAdapter.sort(ALPHA_COMPARATOR)
+                            }
+                        }
+                    })
+            mSearch = search
+            AppEntryCache.sExecutor.execute(search)
+        }
+
         /**
          * Called when the user submits the query. This could be due to a key press on the keyboard
          * or due to pressing a submit button. The listener can override the standard behavior by
@@ -884,7 +1566,12 @@ class LoaderCustom : AppCompatActivity() {
 
         /**
          * Called when a previously created loader has finished its load. We set the data of our
-         * [AppListAdapter] field [mAdapter] to our `List<AppEntry>` parameter [data]. If our
+         * [AppListAdapter] field [mAdapter] to our `List<AppEntry>` parameter [data], and register
+         * *this* as the [AppListLoader.OnAppEntriesChangedListener] of [loader] so that we are
+         * told about the single package updates it makes to a copy of [data] from then on.
+         * (Actually we save [data] in our field [mData], rebuild our [TrigramIndex] field [mIndex]
+         * from the labels in [data], and call our method [runFilter] to display either all of
+         * [data] or those entries which match the current filter [mCurFilter].) If our
          * Fragment is in the `Resumed` state (newly created) we set our `List` to be shown,
          * otherwise (an orientation change has occurred) we set our `List` to be shown without the
          * animation from the previous state (don't know why, because the animation looks nifty).
@@ -894,7 +1581,10 @@ class LoaderCustom : AppCompatActivity() {
          */
         override fun onLoadFinished(loader: Loader<List<AppEntry>>, data: List<AppEntry>) {
             // Set the new data in the adapter.
-            mAdapter.setData(data)
+            mData = data
+            mIndex.setAll(data) { it.label!! }
+            runFilter()
+            (loader as AppListLoader).mChangeListener = this
 
             // The list should now be shown.
             if (isResumed) {
@@ -909,14 +1599,60 @@ class LoaderCustom : AppCompatActivity() {
          * making its data unavailable. The application should at this point
          * remove any references it has to the Loader's data.
          *
-         * We simply set the data of our [AppListAdapter] field [mAdapter] to null.
+         * We unregister as the [AppListLoader.OnAppEntriesChangedListener] of [loader], cancel any
+         * search that is running, forget [mData] and empty [mIndex], and set the data of our
+         * [AppListAdapter] field [mAdapter] to null.
          *
          * @param loader The Loader that is being reset.
          */
         override fun onLoaderReset(loader: Loader<List<AppEntry>>) {
+            (loader as AppListLoader).mChangeListener = null
+            mSearch?.cancel()
+            mSearch = null
+            mData = null
+            mIndex.clear()
             // Clear the data in the adapter.
             mAdapter.setData(null)
         }
+
+        /**
+         * Called by our [AppListLoader] when it has removed [entry] from position [index] of the
+         * list it delivered to us. We save the new list [apps] in our field [mData], then remove
+         * [entry] from our [TrigramIndex] field [mIndex] and from our [AppListAdapter] field
+         * [mAdapter] (where it may not be present if it did not match the current filter, in
+         * which case removing it does nothing).
+         *
+         * @param apps the new list which replaces the one delivered to us.
+         * @param index the position [entry] used to occupy.
+         * @param entry the [AppEntry] which was removed.
+         */
+        override fun onAppEntryRemoved(apps: List<AppEntry>, index: Int, entry: AppEntry) {
+            mData = apps
+            mIndex.remove(entry)
+            mAdapter.remove(entry)
+        }
+
+        /**
+         * Called by our [AppListLoader] when it has inserted [entry] at position [index] of the
+         * list it delivered to us. We save the new list [apps] in our field [mData], and add
+         * [entry] to our [TrigramIndex] field [mIndex]. Then if there is no filter we insert
+         * [entry] at the same position of our [AppListAdapter] field [mAdapter] (whose list then
+         * mirrors that of the loader), otherwise we call [runFilter] to re-run the current filter
+         * [mCurFilter], which is cheap thanks to [mIndex].
+         *
+         * @param apps the new list which replaces the one delivered to us.
+         * @param index the position [entry] now occupies.
+         * @param entry the [AppEntry] which was inserted.
+         */
+        override fun onAppEntryInserted(apps: List<AppEntry>, index: Int, entry: AppEntry) {
+            mData = apps
+            mIndex.add(entry, entry.label!!)
+            if (mCurFilter == null) {
+                mAdapter.insert(entry, index)
+            } else {
+                runFilter()
+            }
+        }
     }
 
     /**
@@ -22,6 +22,7 @@ import android.content.Context
 import android.content.Intent
 import android.graphics.Color
 import android.os.*
+import android.util.Log
 import android.widget.Toast
 
 // Need the following import to get access to the app resources, since this
@@ -36,6 +37,11 @@ import java.util.*
  * remote interaction with a service, without needing to define an AIDL
  * interface.
  *
+ * Value changes are not sent to the clients directly by [IncomingHandler], they are handed to a
+ * [CoalescingBroadcaster] which sends them on its own thread, merges the changes made within a
+ * short window into a single delivery of the latest value, and drops clients which are dead or
+ * too slow to keep up.
+ *
  * Notice the use of the [NotificationManager] when interesting things
  * happen in the service. This is generally how background services should
  * interact with the user, rather than doing something more disruptive such as
@@ -49,14 +55,278 @@ class MessengerService : Service() {
      */
     var mNM: NotificationManager? = null
     /**
-     * Keeps track of all current registered clients.
+     * Keeps track of all current registered clients and sends them value changes.
      */
-    var mClients = ArrayList<Messenger>()
+    val mBroadcaster = CoalescingBroadcaster(DEFAULT_COALESCE_WINDOW_MS)
     /**
      * Holds last value set by a client.
      */
     var mValue = 0
 
+    /**
+     * Sends the value changes of [MessengerService] to its registered clients on a background
+     * [HandlerThread] so that a slow client never blocks [IncomingHandler]. A change does not go
+     * out at once, instead a flush is scheduled [mWindowMs] milliseconds later and every change
+     * made before it runs is merged into it, so a burst of updates costs each client a single
+     * delivery of the latest value. Each client also remembers the last value it was sent and is
+     * skipped if it already has the latest one.
+     *
+     * Dead clients are found by linking to the death of their binder (and by a failing `send`
+     * whose binder is no longer alive). A client whose `send` fails although it is alive (its
+     * binder buffer is full) or whose `send` takes longer than [SLOW_SEND_MS] gets a strike and
+     * is retried with the latest value at the next flush; after [MAX_STRIKES] strikes in a row it
+     * is dropped. All the state below is only touched on our thread.
+     */
+    class CoalescingBroadcaster
+    /**
+     * Our constructor, we start our [HandlerThread].
+     *
+     * @param mWindowMs the window within which value changes are merged, in milliseconds.
+     */
+    (
+            /**
+             * The window within which value changes are merged, in milliseconds.
+             */
+            private var mWindowMs: Long
+    ) {
+        /**
+         * A registered client, which is also the [IBinder.DeathRecipient] of its binder.
+         */
+        private inner class Client
+        /**
+         * Our constructor.
+         *
+         * @param messenger the [Messenger] of the client.
+         */
+        (
+                /**
+                 * The [Messenger] of the client.
+                 */
+                val messenger: Messenger
+        ) : IBinder.DeathRecipient {
+            /**
+             * The last value sent to this client, *null* if none has been.
+             */
+            var delivered: Int? = null
+            /**
+             * Number of consecutive slow or failed sends.
+             */
+            var strikes = 0
+
+            /**
+             * Called (on a binder thread) when the process hosting the client dies, we post the
+             * removal of the client to our thread.
+             */
+            override fun binderDied() {
+                mHandler.post { drop(this, "died") }
+            }
+        }
+
+        /**
+         * The thread the broadcasts are sent on.
+         */
+        private val mThread = HandlerThread("MessengerBroadcaster")
+        /**
+         * [Handler] running on [mThread].
+         */
+        private val mHandler: Handler
+        /**
+         * The registered clients.
+         */
+        private val mClients = ArrayList<Client>()
+        /**
+         * The latest value.
+         */
+        private var mValue = 0
+        /**
+         * *true* once there is a value to send.
+         */
+        private var mHasValue = false
+        /**
+         * *true* while a flush is scheduled.
+         */
+        private var mFlushPending = false
+        /**
+         * Number of value changes published.
+         */
+        private var mUpdates = 0L
+        /**
+         * Number of messages actually sent to clients.
+         */
+        private var mDeliveries = 0L
+        /**
+         * Number of clients dropped because they were dead or too slow.
+         */
+        private var mDropped = 0
+
+        /**
+         * Sends the latest value to every client which does not have it yet.
+         */
+        private val mFlush = Runnable { flush() }
+
+        init {
+            mThread.start()
+            mHandler = Handler(mThread.looper)
+        }
+
+        /**
+         * Registers the client [messenger], linking to the death of its binder. A client which
+         * is already registered or already dead is ignored.
+         *
+         * @param messenger the [Messenger] of the client.
+         */
+        fun register(messenger: Messenger) {
+            mHandler.post {
+                if (mClients.none { it.messenger == messenger }) {
+                    val client = Client(messenger)
+                    try {
+                        messenger.binder.linkToDeath(client, 0)
+                        mClients.add(client)
+                    } catch (e: RemoteException) {
+                        Log.i(TAG, "Client died before it was registered")
+                    }
+                }
+            }
+        }
+
+        /**
+         * Unregisters the client [messenger].
+         *
+         * @param messenger the [Messenger] of the client.
+         */
+        fun unregister(messenger: Messenger) {
+            mHandler.post {
+                val client = mClients.firstOrNull { it.messenger == messenger }
+                if (client != null) {
+                    messenger.binder.unlinkToDeath(client, 0)
+                    mClients.remove(client)
+                }
+            }
+        }
+
+        /**
+         * Publishes a new value. If no flush is scheduled we schedule one [mWindowMs] from now,
+         * otherwise [value] simply replaces the value the scheduled flush will send.
+         *
+         * @param value the new value.
+         */
+        fun publish(value: Int) {
+            mHandler.post {
+                mValue = value
+                mHasValue = true
+                mUpdates++
+                scheduleFlush()
+            }
+        }
+
+        /**
+         * Changes the window within which value changes are merged.
+         *
+         * @param windowMs the new window in milliseconds, 0 merges only the changes which are
+         * already queued when the flush runs.
+         */
+        fun setWindow(windowMs: Long) {
+            mHandler.post { mWindowMs = windowMs.coerceAtLeast(0) }
+        }
+
+        /**
+         * Sends a [MSG_STATS] message to [replyTo] whose data [Bundle] holds the number of
+         * registered clients, value changes published, messages delivered and clients dropped.
+         * This is what a stress test can use to measure the fan-out with many clients.
+         *
+         * @param replyTo the [Messenger] to send the statistics to.
+         */
+        fun sendStats(replyTo: Messenger) {
+            mHandler.post {
+                val msg = Message.obtain(null, MSG_STATS)
+                val data = Bundle()
+                data.putInt(STATS_CLIENTS, mClients.size)
+                data.putLong(STATS_UPDATES, mUpdates)
+                data.putLong(STATS_DELIVERIES, mDeliveries)
+                data.putInt(STATS_DROPPED, mDropped)
+                msg.data = data
+                try {
+                    replyTo.send(msg)
+                } catch (e: RemoteException) {
+                    Log.i(TAG, "Could not send statistics")
+                }
+            }
+        }
+
+        /**
+         * Stops our thread, anything not yet sent is discarded.
+         */
+        fun quit() {
+            mThread.quitSafely()
+        }
+
+        /**
+         * Schedules a flush [mWindowMs] from now unless one is already scheduled.
+         */
+        private fun scheduleFlush() {
+            if (!mFlushPending) {
+                mFlushPending = true
+                mHandler.postDelayed(mFlush, mWindowMs)
+            }
+        }
+
+        /**
+         * Sends the latest value to every client which does not have it yet, going through the
+         * list from back to front so that clients can be dropped inside the loop. A send which
+         * fails because the binder of the client is dead drops it, a send which fails otherwise
+         * or takes longer than [SLOW_SEND_MS] gives the client a strike, and a client with
+         * [MAX_STRIKES] strikes is dropped. If a client was left without the latest value we
+         * schedule another flush to retry it.
+         */
+        private fun flush() {
+            mFlushPending = false
+            if (!mHasValue) return
+            var retry = false
+            for (i in mClients.indices.reversed()) {
+                val client = mClients[i]
+                if (client.delivered == mValue) continue
+                val start = SystemClock.uptimeMillis()
+                try {
+                    client.messenger.send(Message.obtain(null, MSG_SET_VALUE, mValue, 0))
+                    client.delivered = mValue
+                    mDeliveries++
+                    if (SystemClock.uptimeMillis() - start > SLOW_SEND_MS) {
+                        client.strikes++
+                    } else {
+                        client.strikes = 0
+                    }
+                } catch (e: RemoteException) {
+                    if (!client.messenger.binder.isBinderAlive) {
+                        drop(client, "died")
+                        continue
+                    }
+                    client.strikes++
+                    retry = true
+                }
+                if (client.strikes >= MAX_STRIKES) {
+                    drop(client, "too slow")
+                }
+            }
+            if (retry) {
+                scheduleFlush()
+            }
+        }
+
+        /**
+         * Removes [client] from our list of clients and counts it as dropped.
+         *
+         * @param client the client to drop.
+         * @param reason why it is being dropped, for the log.
+         */
+        private fun drop(client: Client, reason: String) {
+            if (mClients.remove(client)) {
+                client.messenger.binder.unlinkToDeath(client, 0)
+                mDropped++
+                Log.i(TAG, "Dropped client: $reason")
+            }
+        }
+    }
+
     /**
      * Handler of incoming messages from clients.
      */
@@ -66,41 +336,30 @@ class MessengerService : Service() {
          * Subclasses must implement this to receive messages. We switch based on the `what`
          * field of the `Message msg` we have received:
          *
-         *  * MSG_REGISTER_CLIENT - we add the value contained in the `replyTo` field to the
-         *  list of clients we maintain in `ArrayList<Messenger>` field [mClients].
-         *  * MSG_UNREGISTER_CLIENT - we remove the value contained in the `replyTo` field from
-         *  the list of clients we maintain in `ArrayList<Messenger>` field [mClients].
+         *  * MSG_REGISTER_CLIENT - we register the value contained in the `replyTo` field with
+         *  our [CoalescingBroadcaster] field [mBroadcaster].
+         *  * MSG_UNREGISTER_CLIENT - we unregister the value contained in the `replyTo` field
+         *  from our [CoalescingBroadcaster] field [mBroadcaster].
          *  * MSG_SET_VALUE - we store the value sent in the field `arg1` of `Message msg`
-         *  in our field `int mValue`, then looping backwards through all the clients
-         *  in `ArrayList<Messenger>` field [mClients] we try to send a message with the `what`
-         *  field set to MSG_SET_VALUE, and `arg1` field set to `mValue`. If we
-         *  catch a [RemoteException] we remove that client from [mClients] (safe because
-         *  we are going through the list in backwards order).
+         *  in our field `int mValue`, then publish it using [mBroadcaster] which will send it
+         *  to all the clients (merged with any other changes made within its window) on its
+         *  own thread.
+         *  * MSG_SET_COALESCE_WINDOW - we set the window of [mBroadcaster] to `arg1` milliseconds.
+         *  * MSG_GET_STATS - we have [mBroadcaster] send its statistics to `replyTo`.
          *  * default - we pass the `msg` on to our super's implementation of `handleMessage`.
          *
          * @param msg [Message] received by the [Messenger] we are the [Handler] for
          */
         override fun handleMessage(msg: Message) {
             when (msg.what) {
-                MSG_REGISTER_CLIENT -> mClients.add(msg.replyTo)
-                MSG_UNREGISTER_CLIENT -> mClients.remove(msg.replyTo)
+                MSG_REGISTER_CLIENT -> mBroadcaster.register(msg.replyTo)
+                MSG_UNREGISTER_CLIENT -> mBroadcaster.unregister(msg.replyTo)
                 MSG_SET_VALUE -> {
                     mValue = msg.arg1
-                    var i = mClients.size - 1
-                    while (i >= 0) {
-                        try {
-                            mClients[i].send(Message.obtain(null, MSG_SET_VALUE, mValue, 0))
-                        } catch (e: RemoteException) {
-                            /**
-                             * The client is dead. Remove it from the list;
-                             * we are going through the list from back to front
-                             * so this is safe to do inside the loop.
-                             */
-                            mClients.removeAt(i)
-                        }
-                        i--
-                    }
+                    mBroadcaster.publish(mValue)
                 }
+                MSG_SET_COALESCE_WINDOW -> mBroadcaster.setWindow(msg.arg1.toLong())
+                MSG_GET_STATS -> mBroadcaster.sendStats(msg.replyTo)
                 else -> super.handleMessage(msg)
             }
         }
@@ -136,9 +395,11 @@ class MessengerService : Service() {
 
     /**
      * Called by the system to notify a Service that it is no longer used and is being removed. We
-     * cancel our notification, and toast the message "Remote service has stopped".
+     * stop the thread of our [CoalescingBroadcaster] field [mBroadcaster], cancel our notification,
+     * and toast the message "Remote service has stopped".
      */
     override fun onDestroy() {
+        mBroadcaster.quit()
         /**
          * Cancel the persistent notification.
          */
@@ -233,5 +494,52 @@ class MessengerService : Service() {
          * any registered clients with the new value.
          */
         const val MSG_SET_VALUE = 3
+        /**
+         * Command to the service to change the window within which value changes are merged
+         * into a single delivery to each client, in milliseconds given in `arg1`.
+         */
+        const val MSG_SET_COALESCE_WINDOW = 4
+        /**
+         * Command to the service to send its broadcast statistics to the Messenger in the
+         * `replyTo` field, which it does with a MSG_STATS message.
+         */
+        const val MSG_GET_STATS = 5
+        /**
+         * Sent by the service in reply to MSG_GET_STATS, its data Bundle holds the statistics
+         * under the keys STATS_CLIENTS, STATS_UPDATES, STATS_DELIVERIES and STATS_DROPPED.
+         */
+        const val MSG_STATS = 6
+        /**
+         * Key of the number of registered clients in a MSG_STATS Bundle.
+         */
+        const val STATS_CLIENTS = "clients"
+        /**
+         * Key of the number of value changes published in a MSG_STATS Bundle.
+         */
+        const val STATS_UPDATES = "updates"
+        /**
+         * Key of the number of messages delivered to clients in a MSG_STATS Bundle.
+         */
+        const val STATS_DELIVERIES = "deliveries"
+        /**
+         * Key of the number of clients dropped as dead or slow in a MSG_STATS Bundle.
+         */
+        const val STATS_DROPPED = "dropped"
+        /**
+         * Default window within which value changes are merged, in milliseconds.
+         */
+        const val DEFAULT_COALESCE_WINDOW_MS = 50L
+        /**
+         * A send to a client which takes longer than this (in milliseconds) counts as slow.
+         */
+        const val SLOW_SEND_MS = 20L
+        /**
+         * Number of consecutive slow or failed sends after which a client is dropped.
+         */
+        const val MAX_STRIKES = 3
+        /**
+         * TAG used for logging.
+         */
+        private const val TAG = "MessengerService"
     }
 }
\ No newline at end of file
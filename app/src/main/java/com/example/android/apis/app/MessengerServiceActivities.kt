@@ -12,6 +12,9 @@ import android.widget.TextView
 import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
 import com.example.android.apis.R
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 @Suppress("MemberVisibilityCanBePrivate")
 @SuppressLint("SetTextI18n")
@@ -34,6 +37,10 @@ class MessengerServiceActivities {
          * The [TextView] we are using to show state information.
          */
         var mCallbackText: TextView? = null
+        /**
+         * The [TextView] we use to display the results of the stress test.
+         */
+        var mStressText: TextView? = null
 
         /**
          * [Handler] of incoming messages from service, used in constructing [Messenger] field
@@ -42,11 +49,11 @@ class MessengerServiceActivities {
          * that we create from the [IBinder] `service` we receive in the `onServiceConnected`
          * callback after binding to [MessengerService].
          *
-         * [MessengerService] maintains a list of attached clients in its `ArrayList<Messenger>`
-         * field `mClients` which it fills from the `replyTo` field in its own [IncomingHandler]
+         * [MessengerService] maintains a list of attached clients in its `CoalescingBroadcaster`
+         * field `mBroadcaster` which it fills from the `replyTo` field in its own [IncomingHandler]
          * override of `handleMessage` when it receives a [Message] with the `what` field set to
          * MSG_REGISTER_CLIENT. Clients are removed from this list when it receives a [Message]
-         * with the `what` field set to MSG_UNREGISTER_CLIENT
+         * with the `what` field set to MSG_UNREGISTER_CLIENT, or when they die or are too slow
          *
          * [MessengerService] uses its own [IncomingHandler] as the [Handler] for the [Messenger]
          * field [mMessenger] whose backing [IBinder] it returns from its `onBind(Intent intent)`
@@ -232,8 +239,11 @@ class MessengerServiceActivities {
          * Service") and set its `OnClickListener` to `OnClickListener` field [mBindListener]
          * (calls our method [doBindService]), locate the Button with ID R.id.unbind ("Unbind
          * Service") and set its `OnClickListener` to `OnClickListener` field [mUnbindListener]
-         * (calls our method [doUnbindService], and finally locate the [TextView] with ID R.id.callback
-         * to initialize our [TextView] field [mCallbackText], and set its text to "Not attached".
+         * (calls our method [doUnbindService], locate the Button with ID R.id.stress ("Stress
+         * Broadcaster") and set its `OnClickListener` to `OnClickListener` field [mStressListener],
+         * and locate the [TextView] with ID R.id.stress_result to initialize [mStressText]. Finally
+         * we locate the [TextView] with ID R.id.callback to initialize our [TextView] field
+         * [mCallbackText], and set its text to "Not attached".
          *
          * @param savedInstanceState we do not override `onSaveInstanceState` so do not use
          */
@@ -245,6 +255,9 @@ class MessengerServiceActivities {
             button.setOnClickListener(mBindListener)
             button = findViewById(R.id.unbind)
             button.setOnClickListener(mUnbindListener)
+            button = findViewById(R.id.stress)
+            button.setOnClickListener(mStressListener)
+            mStressText = findViewById(R.id.stress_result)
             mCallbackText = findViewById(R.id.callback)
             mCallbackText!!.text = "Not attached."
         }
@@ -259,5 +272,120 @@ class MessengerServiceActivities {
          * [doUnbindService] when clicked.
          */
         private val mUnbindListener = View.OnClickListener { doUnbindService() }
+
+        /**
+         * Called when the R.id.stress ("Stress Broadcaster") `Button` is clicked. We start a
+         * background thread which runs our method [stress] and then displays its report in our
+         * [TextView] field [mStressText].
+         *
+         * Parameter: View of the Button that was clicked
+         */
+        private val mStressListener = View.OnClickListener {
+            mStressText!!.text = "Running stress test..."
+            Thread(Runnable {
+                val report = stress()
+                runOnUiThread { mStressText!!.text = report }
+            }).start()
+        }
+
+        /**
+         * Drives a `MessengerService.CoalescingBroadcaster` of our own with [STRESS_FAST_CLIENTS]
+         * clients which simply count the values they receive and [STRESS_SLOW_CLIENTS] clients
+         * which take twice `MessengerService.SLOW_SEND_MS` to accept every value. The broadcaster
+         * runs in our process because that is where its `send` to a client is a synchronous call,
+         * so that a slow client is actually seen to be slow (a client in another process gets a
+         * oneway transaction which only fails once its binder buffer is full).
+         *
+         * Every fast client needs its own [Handler] (a [Messenger] made from a [Handler] uses
+         * the binder of the [Handler], and the broadcaster ignores a [Messenger] registered
+         * twice), they all run on the [HandlerThread] `val clientThread`. A slow client is a
+         * [Messenger] wrapping a bare [Binder] whose `onTransact` sleeps.
+         *
+         * We publish [STRESS_UPDATES] values one millisecond apart, so that they span many
+         * coalescing windows, wait two windows for the last flush, and then have the broadcaster
+         * send its statistics to a [Messenger] of a [Handler] on `clientThread` which hands them
+         * to us through `val stats`. The statistics arrive after every value sent to the fast
+         * clients has been counted because they are queued behind them on `clientThread`.
+         *
+         * @return our report: the values published, the messages the broadcaster delivered
+         * compared with the messages it would have sent without coalescing, the values the fast
+         * clients received, and how many of the slow clients were dropped.
+         */
+        private fun stress(): String {
+            val window = MessengerService.DEFAULT_COALESCE_WINDOW_MS
+            val broadcaster = MessengerService.CoalescingBroadcaster(window)
+            val clientThread = HandlerThread("StressClients")
+            clientThread.start()
+            val received = AtomicLong()
+            val stats = ArrayBlockingQueue<Bundle>(1)
+            try {
+                for (i in 0 until STRESS_FAST_CLIENTS) {
+                    broadcaster.register(Messenger(object : Handler(clientThread.looper) {
+                        override fun handleMessage(msg: Message) {
+                            received.incrementAndGet()
+                        }
+                    }))
+                }
+                for (i in 0 until STRESS_SLOW_CLIENTS) {
+                    broadcaster.register(Messenger(object : Binder() {
+                        override fun onTransact(code: Int, data: Parcel, reply: Parcel?,
+                                                flags: Int): Boolean {
+                            SystemClock.sleep(MessengerService.SLOW_SEND_MS * 2)
+                            return true
+                        }
+                    }))
+                }
+                val start = SystemClock.elapsedRealtime()
+                for (value in 1..STRESS_UPDATES) {
+                    broadcaster.publish(value)
+                    SystemClock.sleep(1)
+                }
+                val elapsed = SystemClock.elapsedRealtime() - start
+                SystemClock.sleep(window * 2)
+                broadcaster.sendStats(Messenger(object : Handler(clientThread.looper) {
+                    override fun handleMessage(msg: Message) {
+                        stats.offer(msg.data)
+                    }
+                }))
+                val result = stats.poll(STRESS_TIMEOUT_S, TimeUnit.SECONDS)
+                        ?: return "Timed out waiting for the broadcaster."
+                val clients = STRESS_FAST_CLIENTS + STRESS_SLOW_CLIENTS
+                val updates = result.getLong(MessengerService.STATS_UPDATES)
+                return "$updates values published to $clients clients in ${elapsed}ms\n" +
+                        "Delivered ${result.getLong(MessengerService.STATS_DELIVERIES)} " +
+                        "messages instead of ${updates * clients}\n" +
+                        "Fast clients received ${received.get()} values\n" +
+                        "Dropped ${result.getInt(MessengerService.STATS_DROPPED)} of " +
+                        "$STRESS_SLOW_CLIENTS slow clients, " +
+                        "${result.getInt(MessengerService.STATS_CLIENTS)} clients left"
+            } catch (e: InterruptedException) {
+                return "Interrupted."
+            } finally {
+                broadcaster.quit()
+                clientThread.quitSafely()
+            }
+        }
+
+        /**
+         * Our static constants.
+         */
+        companion object {
+            /**
+             * Number of clients of the stress test which accept values at once.
+             */
+            const val STRESS_FAST_CLIENTS = 100
+            /**
+             * Number of clients of the stress test which are too slow to keep.
+             */
+            const val STRESS_SLOW_CLIENTS = 5
+            /**
+             * Number of values the stress test publishes.
+             */
+            const val STRESS_UPDATES = 2000
+            /**
+             * How long the stress test waits for the statistics of the broadcaster, in seconds.
+             */
+            const val STRESS_TIMEOUT_S = 10L
+        }
     }
 }
\ No newline at end of file
@@ -17,23 +17,35 @@ package com.example.android.apis.app
 
 import android.annotation.SuppressLint
 import android.annotation.TargetApi
+import android.app.AlertDialog
 import android.app.ListActivity
 import android.content.Context
 import android.content.res.Configuration
+import android.graphics.Picture
 import android.graphics.pdf.PdfDocument
 import android.os.*
 import android.print.*
 import android.print.pdf.PrintedPdfDocument
+import android.util.Log
 import android.util.SparseIntArray
 import android.view.*
 import android.view.View.MeasureSpec
 import android.widget.BaseAdapter
 import android.widget.LinearLayout
 import android.widget.TextView
+import android.widget.Toast
 import com.example.android.apis.R
+import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
 
 /**
  * This class demonstrates how to implement custom printing support.
@@ -51,7 +63,9 @@ import java.util.*
  *  * Layout based on the selected print options is performed.
  *  * Layout work is performed only if print options change would change the content.
  *  * Layout result is properly reported.
- *  * Only requested pages are written.
+ *  * Page breaks found by the layout are remembered per set of print options.
+ *  * Only requested pages are written, and only their rows are laid out again.
+ *  * Requested pages are recorded in parallel and assembled into the PDF in order.
  *  * Write result is properly reported.
  *  * Both Layout and write respond to cancellation.
  *  * Layout and render of views is demonstrated.
@@ -72,7 +86,8 @@ class PrintCustomContent : ListActivity() {
      */
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
-        listAdapter = MotoGpStatAdapter(loadMotoGpStats(), layoutInflater)
+        listAdapter = MotoGpStatAdapter(loadMotoGpStats(intent.getIntExtra(EXTRA_ROWS, 0)),
+                layoutInflater)
     }
 
     /**
@@ -94,7 +109,8 @@ class PrintCustomContent : ListActivity() {
     /**
      * This hook is called whenever an item in your options menu is selected. If the item ID is
      * R.id.menu_print we call our method `print()` and return *true* to consume the item click
-     * here. Otherwise we return the return value of our super's implementation of
+     * here, and if it is R.id.menu_benchmark we do the same with our method `benchmark()`.
+     * Otherwise we return the return value of our super's implementation of
      * `onOptionsItemSelected`.
      *
      * @param item The menu item that was selected.
@@ -105,6 +121,10 @@ class PrintCustomContent : ListActivity() {
             print()
             return true
         }
+        if (item.itemId == R.id.menu_benchmark) {
+            benchmark()
+            return true
+        }
         return super.onOptionsItemSelected(item)
     }
 
@@ -120,6 +140,92 @@ class PrintCustomContent : ListActivity() {
         printManager.print("MotoGp stats", PrintMotoGpAdapter(), null)
     }
 
+    /**
+     * Times the printing pipeline on a document of [BENCHMARK_ROWS] rows without going through
+     * the print framework. We create a [PrintMotoGpAdapter] `val adapter`, have it compute the page
+     * size for ISO A4 paper at 300 dpi with no margins using its `updatePageSize` method, and load
+     * the rows using our method [loadMotoGpStats]. Then on a new [Thread] we time `layoutPages`
+     * laying out the rows, and time our method [benchmarkWrite] rendering all the pages to a
+     * temporary file, first sequentially and then in parallel on [sRenderExecutor]. Finally we
+     * show the report in an [AlertDialog] on the UI thread (unless we are finishing by then).
+     */
+    private fun benchmark() {
+        Toast.makeText(this, R.string.print_benchmark_running, Toast.LENGTH_SHORT).show()
+        val adapter = PrintMotoGpAdapter()
+        val attributes = PrintAttributes.Builder()
+                .setMediaSize(PrintAttributes.MediaSize.ISO_A4)
+                .setResolution(PrintAttributes.Resolution("benchmark", "300 dpi", 300, 300))
+                .setMinMargins(PrintAttributes.Margins.NO_MARGINS)
+                .setColorMode(PrintAttributes.COLOR_MODE_COLOR)
+                .build()
+        adapter.updatePageSize(attributes)
+        val items = loadMotoGpStats(BENCHMARK_ROWS)
+        Thread(Runnable {
+            val report = StringBuilder()
+            try {
+                val start = SystemClock.elapsedRealtime()
+                val pageIndex = adapter.layoutPages(items) { false }!!
+                val elapsed = SystemClock.elapsedRealtime() - start
+                report.append("Layout of ${items.size} rows: ${pageIndex.pageCount} pages in "
+                        + "${elapsed}ms\n")
+                report.append(benchmarkWrite(adapter, attributes, items, pageIndex, false))
+                report.append(benchmarkWrite(adapter, attributes, items, pageIndex, true))
+            } catch (e: Exception) {
+                Log.e(TAG, "Benchmark failed", e)
+                report.append(e.toString())
+            }
+            runOnUiThread {
+                if (!isFinishing) {
+                    AlertDialog.Builder(this)
+                            .setTitle(R.string.print_benchmark)
+                            .setMessage(report)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show()
+                }
+            }
+        }).start()
+    }
+
+    /**
+     * Renders all the pages of [items] into a new [PrintedPdfDocument] with the `writePages` method
+     * of [adapter], writes the document to a temporary file in our cache directory, and returns a
+     * line reporting how long this took and the pages per second it achieved. The temporary file
+     * is deleted before we return.
+     *
+     * @param adapter the [PrintMotoGpAdapter] which laid out [items].
+     * @param attributes the [PrintAttributes] it laid them out for.
+     * @param items the rows of the document.
+     * @param pageIndex the page breaks found by the layout.
+     * @param parallel whether to record the pages in parallel on [sRenderExecutor].
+     * @return a line of our report.
+     * @throws Exception if rendering or writing the document fails.
+     */
+    @Throws(Exception::class)
+    private fun benchmarkWrite(adapter: PrintMotoGpAdapter, attributes: PrintAttributes,
+                               items: List<MotoGpStatItem>, pageIndex: PageIndex,
+                               parallel: Boolean): String {
+        val all = TreeSet<Int>()
+        for (pageNumber in 0 until pageIndex.pageCount) {
+            all.add(pageNumber)
+        }
+        val written = SparseIntArray()
+        val file = File.createTempFile("benchmark", ".pdf", cacheDir)
+        val document = PrintedPdfDocument(this, attributes)
+        try {
+            val start = SystemClock.elapsedRealtime()
+            adapter.writePages(document, items, pageIndex, all, written, parallel) { false }
+            FileOutputStream(file).use { document.writeTo(it) }
+            val elapsed = (SystemClock.elapsedRealtime() - start).coerceAtLeast(1)
+            val threads = if (parallel) RENDER_THREADS else 1
+            val kilobytes = file.length() / 1024
+            return "Write with $threads thread(s): ${written.size()} pages, $kilobytes KB in " +
+                    "${elapsed}ms, ${written.size() * 1000L / elapsed} pages/s\n"
+        } finally {
+            document.close()
+            file.delete()
+        }
+    }
+
     /**
      * Reads in string-array resources containing the years, champions, and constructors for the
      * MotoGp winners then creates a list of [MotoGpStatItem]'s from the three. First we read in
@@ -129,12 +235,15 @@ class PrintCustomContent : ListActivity() {
      * `ArrayList<>` for the `MutableList<MotoGpStatItem>` variable `val items`. Then for every
      * entry in our three string-array's we allocate a `MotoGpStatItem` for `val item`, set the
      * fields of `item` to the respective entry in the arrays `years`, `champions`, and `constructors`.
-     * We then add the `MotoGpStatItem` in `item` to the `List<MotoGpStatItem>` in `items`. Finally
-     * we return `items` to the caller.
+     * We then add the `MotoGpStatItem` in `item` to the `List<MotoGpStatItem>` in `items`. If
+     * [rows] is larger than the number of items we read (our benchmark asks for
+     * [BENCHMARK_ROWS], and [onCreate] for the [Int] extra [EXTRA_ROWS] of our intent) we repeat
+     * the items until there are that many of them. Finally we return `items` to the caller.
      *
+     * @param rows the minimum number of rows to return, 0 for just the MotoGp stats.
      * @return list of `MotoGpStatItem`'s as read from our string-array resources
      */
-    private fun loadMotoGpStats(): List<MotoGpStatItem> {
+    private fun loadMotoGpStats(rows: Int): List<MotoGpStatItem> {
         val years = resources.getStringArray(R.array.motogp_years)
         val champions = resources.getStringArray(R.array.motogp_champions)
         val constructors = resources.getStringArray(R.array.motogp_constructors)
@@ -147,6 +256,9 @@ class PrintCustomContent : ListActivity() {
             item.constructor = constructors[i]
             items.add(item)
         }
+        while (itemCount > 0 && items.size < rows) {
+            items.add(items[items.size % itemCount])
+        }
         return items
     }
 
@@ -159,6 +271,56 @@ class PrintCustomContent : ListActivity() {
         var constructor: String? = null
     }
 
+    /**
+     * Page break index computed by the layout pass of [PrintMotoGpAdapter] for one set of
+     * [PrintAttributes], which lets the write pass go straight to the rows of the pages it has
+     * been asked for instead of measuring every row of the document again.
+     */
+    private class PageIndex
+    /**
+     * Our constructor.
+     *
+     * @param pageStarts index of the first item on each page, in page order.
+     * @param itemCount total number of items in the document.
+     * @param info the [PrintDocumentInfo] reported for the layout.
+     */
+    (
+            /**
+             * Index of the first [MotoGpStatItem] on each page, in page order.
+             */
+            val pageStarts: IntArray,
+            /**
+             * Total number of [MotoGpStatItem]'s in the document.
+             */
+            val itemCount: Int,
+            /**
+             * The [PrintDocumentInfo] we reported to `onLayoutFinished` for this layout.
+             */
+            val info: PrintDocumentInfo
+    ) {
+        /**
+         * Number of pages in the document.
+         */
+        val pageCount: Int
+            get() = pageStarts.size
+
+        /**
+         * Index of the first item on page [page].
+         *
+         * @param page page number, 0 based.
+         * @return index of the first item on [page].
+         */
+        fun firstItem(page: Int): Int = pageStarts[page]
+
+        /**
+         * Index one past the last item on page [page].
+         *
+         * @param page page number, 0 based.
+         * @return index of the first item of the next page, or [itemCount] for the last page.
+         */
+        fun endItem(page: Int): Int = if (page + 1 < pageStarts.size) pageStarts[page + 1] else itemCount
+    }
+
     /**
      * `ListAdapter` used to hold the List of `MotoGpStatItem`'s for display in our
      * `ListView` and for `PrintMotoGpAdapter` to use to supply information when it
@@ -301,6 +463,22 @@ class PrintCustomContent : ListActivity() {
          * system theme android.R.style.Theme_Holo_Light
          */
         private var mPrintContext: Context? = null
+        /**
+         * The [PageIndex] of the current layout, used by `onWrite` to render only the rows of the
+         * requested pages.
+         */
+        private var mPageIndex: PageIndex? = null
+        /**
+         * The [PageIndex]'s of the most recent layouts keyed by the [PrintAttributes] they were
+         * computed for, so that switching back to print options we have already laid out for (in
+         * the print preview for example) does not need another layout pass.
+         */
+        private val mPageIndexes = object : LinkedHashMap<PrintAttributes, PageIndex>(
+                MAX_CACHED_LAYOUTS, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<PrintAttributes, PageIndex>?): Boolean {
+                return size > MAX_CACHED_LAYOUTS
+            }
+        }
 
         /**
          * Called when the print attributes (page size, density, etc) changed
@@ -345,26 +523,16 @@ class PrintCustomContent : ListActivity() {
          * call the `onLayoutCancelled` callback of our `LayoutResultCallback` parameter [callback]
          * and return having done nothing.
          *
-         * Next we set a [Boolean] flag `var layoutNeeded` to *false*, assuming that we will not
-         * need to do a layout after all. Next we compute the [Int] value `val density` to be
-         * the max of the Horizontal DPI and Vertical DPI of our parameter [PrintAttributes]
-         * parameter [newAttributes]. We use this to calculate the `marginLeft`, `marginRight` and
-         * `contentWidth` we are to use based on the Media size specified in our [PrintAttributes]
-         * parameter [newAttributes]. If the value stashed in our [Int] field [mRenderPageWidth]
-         * is not equal to `contextWidth`, we set it to `contextWidth` and set our `layoutNeeded`
-         * flag to *true*. In a similar way we calculate the Content height given [newAttributes]
-         * for our [Int] `val contentHeight`, and if the value stashed in our [Int] field
-         * [mRenderPageHeight] is not the same we set [mRenderPageHeight] to `contentHeight` and
-         * set our `layoutNeeded` flag to *true*.
-         *
-         * Next if we have yet to set our [Context] field [mPrintContext], or the DPI it uses is
-         * different from the `density` we calculated above we create a [Configuration] for
-         * `val configuration`, set its field `densityDpi` to `density`, set [mPrintContext] to a
-         * [Context] created from `configuration` and set its theme to the system theme
-         * android.R.style.Theme_Holo_Light.
+         * Next we call our method [updatePageSize] to compute the content size of a page for
+         * [newAttributes] (stashed in our fields [mRenderPageWidth] and [mRenderPageHeight]) and
+         * to make sure our [Context] field [mPrintContext] uses the density of [newAttributes],
+         * setting our [Boolean] flag `val layoutNeeded` to the *true* it returns if the content
+         * size changed.
          *
          * Now if our flag `layoutNeeded` is still *false*, we call the callback
-         * `callback.onLayoutFinished(mDocumentInfo, false)` and return.
+         * `callback.onLayoutFinished(mDocumentInfo, false)` and return. If our cache of layouts
+         * [mPageIndexes] has a [PageIndex] for [newAttributes] we make it the current layout and
+         * report its [PrintDocumentInfo] to `callback.onLayoutFinished` without laying anything out.
          *
          * Otherwise we have work to do. We clone the contents of our `ListAdapter` into
          * `List<MotoGpStatItem>` variable `val items` so that a background thread can access it,
@@ -395,6 +563,49 @@ class PrintCustomContent : ListActivity() {
              * Now we determined if the print attributes changed in a way that
              * would change the layout and if so we will do a layout pass.
              */
+            val layoutNeeded = updatePageSize(newAttributes)
+            /**
+             * If no layout is needed that we did a layout at least once and
+             * the document info is not null, also the second argument is false
+             * to notify the system that the content did not change. This is
+             * important as if the system has some pages and the content didn't
+             * change the system will ask, the application to write them again.
+             */
+            if (!layoutNeeded) {
+                callback.onLayoutFinished(mDocumentInfo, false)
+                return
+            }
+            /**
+             * If we already laid out for these exact attributes reuse the page breaks we found.
+             */
+            val cached = mPageIndexes[newAttributes]
+            if (cached != null) {
+                mPrintAttributes = newAttributes
+                mPageIndex = cached
+                mDocumentInfo = cached.info
+                callback.onLayoutFinished(cached.info, true)
+                return
+            }
+            /**
+             * For demonstration purposes we will do the layout off the main thread
+             * but for small content sizes like this one it is OK to do that on the
+             * main thread. Store the data as we will layout off the main thread.
+             */
+            val items = (listAdapter as MotoGpStatAdapter).cloneItems()
+            MotoGpOnLayoutAsyncTask(cancellationSignal, newAttributes, items, callback)
+                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null, null)
+        }
+
+        /**
+         * Computes the size of the content of a page in printer pixels for [newAttributes] and
+         * stores it in [mRenderPageWidth] and [mRenderPageHeight], and makes sure [mPrintContext]
+         * is a [Context] for resources at the density of [newAttributes]. Called by [onLayout],
+         * and by the benchmark of our activity before it calls [layoutPages] itself.
+         *
+         * @param newAttributes the print attributes to lay out for.
+         * @return *true* if the size of the content changed, so a layout pass is needed.
+         */
+        fun updatePageSize(newAttributes: PrintAttributes): Boolean {
             var layoutNeeded = false
             val density = newAttributes.resolution!!.horizontalDpi
                     .coerceAtLeast(newAttributes.resolution!!.verticalDpi)
@@ -450,25 +661,7 @@ class PrintCustomContent : ListActivity() {
                 @Suppress("DEPRECATION")
                 (mPrintContext as Context).setTheme(android.R.style.Theme_Holo_Light)
             }
-            /**
-             * If no layout is needed that we did a layout at least once and
-             * the document info is not null, also the second argument is false
-             * to notify the system that the content did not change. This is
-             * important as if the system has some pages and the content didn't
-             * change the system will ask, the application to write them again.
-             */
-            if (!layoutNeeded) {
-                callback.onLayoutFinished(mDocumentInfo, false)
-                return
-            }
-            /**
-             * For demonstration purposes we will do the layout off the main thread
-             * but for small content sizes like this one it is OK to do that on the
-             * main thread. Store the data as we will layout off the main thread.
-             */
-            val items = (listAdapter as MotoGpStatAdapter).cloneItems()
-            MotoGpOnLayoutAsyncTask(cancellationSignal, newAttributes, items, callback)
-                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null, null)
+            return layoutNeeded
         }
 
         /**
@@ -516,7 +709,8 @@ class PrintCustomContent : ListActivity() {
          * `List<MotoGpStatItem>` variable `val items` so that a background thread can access it,
          * then launch an anonymous [MotoGpOnWriteAsyncTask] constructed using our parameter
          * [cancellationSignal], our `List` of [MotoGpStatItem]'s in `items`, our parameter [pages],
-         * and our parameter [callback] to do all the work for us.
+         * the [PageIndex] of the current layout in [mPageIndex], and our parameter [callback] to
+         * do all the work for us.
          *
          * @param pages              The pages whose content to print - non-overlapping in ascending order.
          * @param destination        The destination file descriptor to which to write.
@@ -535,7 +729,7 @@ class PrintCustomContent : ListActivity() {
             }
             // Store the data as we will layout off the main thread.
             val items = (listAdapter as MotoGpStatAdapter).cloneItems()
-            MotoGpOnWriteAsyncTask(cancellationSignal, items, pages, destination, callback)
+            MotoGpOnWriteAsyncTask(cancellationSignal, items, pages, mPageIndex!!, destination, callback)
                     .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, null, null)
         }
 
@@ -568,6 +762,250 @@ class PrintCustomContent : ListActivity() {
             view.measure(widthMeasureSpec, heightMeasureSpec)
         }
 
+        /**
+         * Lays out [items] for the page size of the last [updatePageSize] and finds the page
+         * breaks. We inflate the [View] of every item using an inflater for [mPrintContext],
+         * measure it, and add that measurement to our running count of the size of the current
+         * page kept in our variable `var pageContentHeight`. When `pageContentHeight` exceeds
+         * [mRenderPageHeight] (the height of a printed page), we advance our page count
+         * `currentPage`, "place" the last [View] laid out on a new page and record its index as
+         * the start of that page in `val pageStarts`. When we are done measuring all the Views we
+         * build a [PrintDocumentInfo] `val info` containing the page count, and return a
+         * [PageIndex] built from `pageStarts` and `info`. Called on a background thread by
+         * [MotoGpOnLayoutAsyncTask], and by the benchmark of our activity.
+         *
+         * @param items the items to lay out.
+         * @param isCancelled polled before every item, we give up when it returns *true*.
+         * @return the page breaks of [items], or *null* if we were cancelled.
+         */
+        @SuppressLint("WrongThread")
+        fun layoutPages(items: List<MotoGpStatItem>, isCancelled: () -> Boolean): PageIndex? {
+            /**
+             * Create an adapter with the stats and an inflater
+             * to load resources for the printer density.
+             */
+            val inflater = mPrintContext!!
+                    .getSystemService(Context.LAYOUT_INFLATER_SERVICE) as LayoutInflater
+            val adapter = MotoGpStatAdapter(items, inflater)
+            /**
+             * Page count, which is advanced every time pageContentHeight > [mRenderPageHeight]
+             */
+            var currentPage = 0
+            /**
+             * Height of the current page being laid out
+             */
+            var pageContentHeight = 0
+            /**
+             * view type of the last View processed
+             */
+            var viewType = -1
+            /**
+             * View containing current item that is being processed
+             * This is used to provide layout parameters when calling
+             * `MotoGpStatAdapter.getView`
+             */
+            var view: View? = null
+            val dummyParent = LinearLayout(mPrintContext)
+            dummyParent.orientation = LinearLayout.VERTICAL
+            /**
+             * Index of the first item of each page.
+             */
+            val pageStarts = ArrayList<Int>()
+            pageStarts.add(0)
+            val itemCount = adapter.count
+            for (i in 0 until itemCount) {
+                /**
+                 * Be nice and respond to cancellation.
+                 */
+                if (isCancelled()) {
+                    return null
+                }
+                /**
+                 * Get the next view.
+                 */
+                val nextViewType = adapter.getItemViewType(i)
+                view = if (viewType == nextViewType) {
+                    adapter.getView(i, (view)!!, dummyParent)
+                } else {
+                    adapter.getView(i, null, dummyParent)
+                }
+                viewType = nextViewType
+                /**
+                 * Measure the next view
+                 */
+                measureView(view)
+                /**
+                 * Add the height but if the view crosses the page
+                 * boundary we will put it to the next page.
+                 */
+                pageContentHeight += view.measuredHeight
+                if (pageContentHeight > mRenderPageHeight) {
+                    pageContentHeight = view.measuredHeight
+                    currentPage++
+                    pageStarts.add(i)
+                }
+            }
+            /**
+             * Create a document info describing the result.
+             */
+            val info = PrintDocumentInfo.Builder("MotoGP_stats.pdf")
+                    .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
+                    .setPageCount(currentPage + 1)
+                    .build()
+            return PageIndex(pageStarts.toIntArray(), itemCount, info)
+        }
+
+        /**
+         * Records the rows of page [pageNumber] into a new [Picture] the size of a rendered page,
+         * called by [writePages] on one of the threads of [sRenderExecutor] (or on its own thread
+         * when it renders sequentially). Views are not thread safe so every call creates its own
+         * [MotoGpStatAdapter] (using its own clone of the [LayoutInflater] of [mPrintContext]) and
+         * its own [LinearLayout] `val dummyParent` to provide the `LayoutParams` when calling
+         * `adapter.getView`. We begin recording our [Picture] `val picture`, then loop over the
+         * items that our [PageIndex] parameter [pageIndex] says are on the page, fetching
+         * (recycling `view` when the view type allows), measuring, laying out and drawing each of
+         * them to the recording `Canvas`, translating the `Canvas` down by the height of each view
+         * as we go, and throwing [CancellationException] as soon as [isCancelled] returns *true*.
+         * Finally we end the recording and return `picture` to the caller.
+         *
+         * @param items the items of the document.
+         * @param pageIndex the page breaks of [items].
+         * @param pageNumber the page to record, 0 based.
+         * @param isCancelled polled before every row.
+         * @return a [Picture] holding the rows of the page, drawn in rendering pixels.
+         */
+        private fun recordPage(items: List<MotoGpStatItem>, pageIndex: PageIndex, pageNumber: Int,
+                               isCancelled: () -> Boolean): Picture {
+            val inflater = LayoutInflater.from(mPrintContext!!).cloneInContext(mPrintContext)
+            val adapter = MotoGpStatAdapter(items, inflater)
+            val dummyParent = LinearLayout(mPrintContext)
+            dummyParent.orientation = LinearLayout.VERTICAL
+            /**
+             * Set to -1 so we only request a new [View] the first time
+             * (`getItemViewType` returns > 0)
+             */
+            var viewType = -1
+            /**
+             * View for item that we are laying out, then drawing to the `Canvas` of the page
+             */
+            var view: View? = null
+            val picture = Picture()
+            val canvas = picture.beginRecording(mRenderPageWidth, mRenderPageHeight)
+            try {
+                for (i in pageIndex.firstItem(pageNumber) until pageIndex.endItem(pageNumber)) {
+                    if (isCancelled()) {
+                        throw CancellationException()
+                    }
+                    /**
+                     * Get the next view.
+                     */
+                    val nextViewType = adapter.getItemViewType(i)
+                    view = if (viewType == nextViewType) {
+                        adapter.getView(i, (view)!!, dummyParent)
+                    } else {
+                        adapter.getView(i, null, dummyParent)
+                    }
+                    viewType = nextViewType
+                    /**
+                     * Measure, layout and render the content.
+                     */
+                    measureView(view)
+                    view.layout(0, 0, view.measuredWidth, view.measuredHeight)
+                    view.draw(canvas)
+                    /**
+                     * Move the canvas for the next view.
+                     */
+                    canvas.translate(0f, view.height.toFloat())
+                }
+            } finally {
+                picture.endRecording()
+            }
+            return picture
+        }
+
+        /**
+         * Renders the pages [requested] of [items] into [document] in page order, and appends the
+         * number of each page written to [writtenPages]. First we compute a [Float] scaling factor
+         * `val scale` in order to convert our layout and rendering which is done in pixels to
+         * points (1/72") which is used by the PDF canvas.
+         *
+         * Then we run a pipeline: the rows of each requested page are recorded into a [Picture] by
+         * our method [recordPage], on the bounded thread pool [sRenderExecutor] if [parallel] is
+         * *true* (keeping at most [MAX_PAGES_IN_FLIGHT] pages submitted but not yet assembled so
+         * that memory stays bounded however long the document is) or on the calling thread if it
+         * is *false*. On the calling thread we wait for the pages in page order, and for each we
+         * start a new [PdfDocument.Page], scale its `Canvas` by `scale`, draw the [Picture] of the
+         * page on it and finish the page. If [isCancelled] returns *true* we return *false* at
+         * once, and in any case the finally block cancels the pages still in flight.
+         *
+         * @param document the document to add the pages to.
+         * @param items the items of the document.
+         * @param pageIndex the page breaks of [items].
+         * @param requested the numbers of the pages to write, in ascending order.
+         * @param writtenPages the numbers of the pages written are appended to it.
+         * @param parallel whether to record the pages on [sRenderExecutor].
+         * @param isCancelled polled before every page and every row.
+         * @return *true* if all the pages were written, *false* if we were cancelled.
+         * @throws InterruptedException if we are interrupted while waiting for a page.
+         * @throws ExecutionException if recording a page failed.
+         */
+        @Throws(InterruptedException::class, ExecutionException::class)
+        fun writePages(document: PrintedPdfDocument, items: List<MotoGpStatItem>,
+                       pageIndex: PageIndex, requested: SortedSet<Int>,
+                       writtenPages: SparseIntArray, parallel: Boolean,
+                       isCancelled: () -> Boolean): Boolean {
+            /**
+             * The content is laid out and rendered in screen pixels with
+             * the width and height of the paper size times the print
+             * density but the PDF canvas size is in points which are 1/72",
+             * so we will scale down the content.
+             */
+            val scale = (document.pageContentRect.width().toFloat() / mRenderPageWidth)
+                    .coerceAtMost(document.pageContentRect.height().toFloat() / mRenderPageHeight)
+            val maxInFlight = if (parallel) MAX_PAGES_IN_FLIGHT else 1
+            val toSubmit = requested.iterator()
+            val inFlight = ArrayDeque<Future<Picture>>()
+            val inFlightPages = ArrayDeque<Int>()
+            try {
+                while (true) {
+                    while (inFlight.size < maxInFlight && toSubmit.hasNext()) {
+                        val pageNumber = toSubmit.next()
+                        val task = Callable<Picture> {
+                            recordPage(items, pageIndex, pageNumber, isCancelled)
+                        }
+                        if (parallel) {
+                            inFlight.add(sRenderExecutor.submit(task))
+                        } else {
+                            inFlight.add(FutureTask(task).also { it.run() })
+                        }
+                        inFlightPages.add(pageNumber)
+                    }
+                    val next = inFlight.poll() ?: break
+                    val pageNumber = inFlightPages.poll()!!
+                    val picture = next.get()
+                    /**
+                     * Be nice and respond to cancellation.
+                     */
+                    if (isCancelled()) {
+                        return false
+                    }
+                    val page = document.startPage(pageNumber)
+                    page.canvas.scale(scale, scale)
+                    page.canvas.drawPicture(picture)
+                    /**
+                     * Done with the page - finish it, and keep track which pages are written.
+                     */
+                    document.finishPage(page)
+                    writtenPages.append(writtenPages.size(), pageNumber)
+                }
+            } finally {
+                for (future in inFlight) {
+                    future.cancel(true)
+                }
+            }
+            return true
+        }
+
         /**
          * Used to calculate the `PageRange[]` array returned to `onWriteFinished`, it
          * parses all the page numbers printed that are adjacent in its [SparseIntArray]
@@ -638,27 +1076,6 @@ class PrintCustomContent : ListActivity() {
             return pageRangesArray
         }
 
-        /**
-         * Looks through [PageRange] array parameter [pageRanges] to see if the page [page] is
-         * included somewhere in the page ranges. For each [PageRange] `pageRange` in [pageRanges]
-         * we check to see if `pageRange` "contains" [page] between its start and end,
-         * and if so we return *true*. If none of the [PageRange]'s in [pageRanges] contain [page]
-         * we return *false*.
-         *
-         * @param pageRanges array of [PageRange] objects to search
-         * @param page       page number to search for
-         * @return *true* if page is found, *false* if not
-         */
-        private fun containsPage(pageRanges: Array<PageRange>, page: Int): Boolean {
-            for (pageRange: PageRange in pageRanges) {
-                if ((pageRange.start <= page
-                                && pageRange.end >= page)) {
-                    return true
-                }
-            }
-            return false
-        }
-
         /**
          * Background task to perform all the layouts required by the `onLayout` callback in
          * order to calculate a [PrintDocumentInfo] for the [PrintDocumentAdapter].
@@ -703,6 +1120,12 @@ class PrintCustomContent : ListActivity() {
 
         ) : AsyncTask<Void?, Void?, PrintDocumentInfo?>() {
 
+            /**
+             * The [PageIndex] built by [doInBackground], installed as the current layout by
+             * [onPostExecute].
+             */
+            private var mResultIndex: PageIndex? = null
+
             /**
              * Runs on the UI thread before [doInBackground]. First we set the `OnCancelListener`
              * of our [CancellationSignal] field [cancellationSignal] to an anonymous class which
@@ -720,17 +1143,13 @@ class PrintCustomContent : ListActivity() {
             /**
              * This background thread does a trial layout of our document in order to determine how
              * many pages the document will be, which it returns encoded in a [PrintDocumentInfo]
-             * object. Wrapped in a try block, we initialize our variables and loop through every
-             * items [View] that our [MotoGpStatAdapter] contains, inflate it, measure it, and
-             * add that measurement to our running count of the size of the current page kept in our
-             * variable `var pageContentHeight`. When `pageContentHeight` exceeds `mRenderPageHeight`
-             * (the height of a printed page), we advance our page count `currentPage` and "place"
-             * the last [View] laid out on a new page. When we are done measuring all the Views we
-             * build a [PrintDocumentInfo] `val info` containing the page count, we call the callback
-             * `LayoutResultCallback.onLayoutFinished` with `info` and the flag for reporting
-             * a layout change set to *true*. Finally we return `info` to the caller. If our try
-             * block encounters an exception, we call the callback `LayoutResultCallback.onLayoutFailed`
-             * and throw a runtime exception.
+             * object. Wrapped in a try block, we call our method [layoutPages] to measure every
+             * item of [items] and find the page breaks, giving up if this task is cancelled. We
+             * save the [PageIndex] it returns in our field [mResultIndex], and return its
+             * [PrintDocumentInfo] to the caller ([onPostExecute] reports it to
+             * `LayoutResultCallback.onLayoutFinished`). If our try block encounters an exception,
+             * we call the callback `LayoutResultCallback.onLayoutFailed` and throw a runtime
+             * exception.
              *
              * @param params we do not use any parameters
              * @return information about our document for printing purposes contains the document
@@ -740,82 +1159,8 @@ class PrintCustomContent : ListActivity() {
             @SuppressLint("WrongThread")
             override fun doInBackground(vararg params: Void?): PrintDocumentInfo? {
                 try {
-                    /**
-                     * Create an adapter with the stats and an inflater
-                     * to load resources for the printer density.
-                     */
-                    val inflater = mPrintContext!!
-                            .getSystemService(Context.LAYOUT_INFLATER_SERVICE) as LayoutInflater
-                    val adapter = MotoGpStatAdapter(items, inflater)
-                    /**
-                     * Page count, which is advanced every time pageContentHeight > [mRenderPageHeight]
-                     */
-                    var currentPage = 0
-                    /**
-                     * Height of the current page being laid out
-                     */
-                    var pageContentHeight = 0
-                    /**
-                     * view type of the last View processed
-                     */
-                    var viewType = -1
-                    /**
-                     * View containing current item that is being processed
-                     * This is used to provide layout parameters when calling
-                     * `MotoGpStatAdapter.getView`
-                     */
-                    var view: View? = null
-                    val dummyParent = LinearLayout(mPrintContext)
-                    dummyParent.orientation = LinearLayout.VERTICAL
-                    /**
-                     *
-                     */
-                    val itemCount = adapter.count
-                    for (i in 0 until itemCount) {
-                        /**
-                         * Be nice and respond to cancellation.
-                         */
-                        if (isCancelled) {
-                            return null
-                        }
-                        /**
-                         * Get the next view.
-                         */
-                        val nextViewType = adapter.getItemViewType(i)
-                        view = if (viewType == nextViewType) {
-                            adapter.getView(i, (view)!!, dummyParent)
-                        } else {
-                            adapter.getView(i, null, dummyParent)
-                        }
-                        viewType = nextViewType
-                        /**
-                         * Measure the next view
-                         */
-                        measureView(view)
-                        /**
-                         * Add the height but if the view crosses the page
-                         * boundary we will put it to the next page.
-                         */
-                        pageContentHeight += view.measuredHeight
-                        if (pageContentHeight > mRenderPageHeight) {
-                            pageContentHeight = view.measuredHeight
-                            currentPage++
-                        }
-                    }
-                    /**
-                     * Create a document info describing the result.
-                     */
-                    val info = PrintDocumentInfo.Builder("MotoGP_stats.pdf")
-                            .setContentType(PrintDocumentInfo.CONTENT_TYPE_DOCUMENT)
-                            .setPageCount(currentPage + 1)
-                            .build()
-                    /**
-                     * We completed the layout as a result of print attributes
-                     * change. Hence, if we are here the content changed for
-                     * sure which is why we pass true as the second argument.
-                     */
-                    callback.onLayoutFinished(info, true)
-                    return info
+                    mResultIndex = layoutPages(items) { isCancelled }
+                    return mResultIndex?.info
                 } catch (e: Exception) {
                     /**
                      * An unexpected error, report that we failed and
@@ -829,9 +1174,13 @@ class PrintCustomContent : ListActivity() {
 
             /**
              * Runs on the UI thread after [doInBackground]. The specified result is the value
-             * returned by [doInBackground]. We simply cache the [PrintDocumentInfo] parameter
-             * [result] in our [PrintDocumentInfo] field [mDocumentInfo] in order to send it over
-             * if the next layout pass does not result in a content change.
+             * returned by [doInBackground]. We cache the [PrintDocumentInfo] parameter [result] in
+             * our [PrintDocumentInfo] field [mDocumentInfo] in order to send it over if the next
+             * layout pass does not result in a content change, make the [PageIndex] in our field
+             * [mResultIndex] the current layout and add it to the cache [mPageIndexes]. Then we
+             * call the callback `LayoutResultCallback.onLayoutFinished` with `result` and the flag
+             * for reporting a layout change set to *true* (we do this here rather than in
+             * [doInBackground] so that [mPageIndex] is in place before `onWrite` can be called).
              *
              * @param result the [PrintDocumentInfo] calculated by our override of [doInBackground]
              */
@@ -841,6 +1190,14 @@ class PrintCustomContent : ListActivity() {
                  * layout pass does not result in a content change.
                  */
                 mDocumentInfo = result
+                mPageIndex = mResultIndex
+                mPageIndexes[newAttributes] = mResultIndex!!
+                /**
+                 * We completed the layout as a result of print attributes
+                 * change. Hence, if we are here the content changed for
+                 * sure which is why we pass true as the second argument.
+                 */
+                callback.onLayoutFinished(result, true)
             }
 
             /**
@@ -880,6 +1237,10 @@ class PrintCustomContent : ListActivity() {
                  * The pages that we should print.
                  */
                 private val pages: Array<PageRange>,
+                /**
+                 * The page breaks found by the layout pass for the current print attributes.
+                 */
+                private val pageIndex: PageIndex,
                 /**
                  * The destination file descriptor to write to.
                  */
@@ -912,60 +1273,24 @@ class PrintCustomContent : ListActivity() {
 
             /**
              * Started by our `onWrite` callback to render, draw and write pdf using our
-             * [PrintedPdfDocument] field [mPdfDocument] on a background thread. First we create
-             * an [MotoGpStatAdapter] for `val adapter` using our clone of the UI's content data
-             * list in our `List<MotoGpStatItem>` field [items], and a [LayoutInflater] retrieved
-             * from the system. We set the current page number: `var currentPage` to -1, and the
-             * height of the page we are working on: `var pageContentHeight` to 0. We set our
-             * item view type `var viewType` to -1 to indicate that we do not currently have a
-             * `View view` of the correct type for our `adapter` to reuse and need to request one
-             * by passing *null* for the `convertView` when calling `getView`. We initialize the
-             * data item [View] that we will be using for each of the data items ([View] `var view`)
-             * to null, and the [PdfDocument.Page] `var page` whose canvas we are currently
-             * drawing to for the current page to *null*. We construct a [LinearLayout] for our
-             * `val dummyParent` in order to use it for `LayoutParams` when calling `adapter.getView`,
-             * and set its orientation to VERTICAL. We compute a [Float] scaling factor `val scale`
-             * in order to convert our layout and rendering which is done in pixels to points (1/72")
-             * which is used by the PDF canvas. We set [Int] `val itemCount` to the total number of
-             * data items contained in our [MotoGpStatAdapter] `adapter` and then loop for each of
-             * these using `i` as the index.
-             *
-             * After making sure we have not been canceled first, for each item `i` contained in
-             * `adapter` we fetch the type of the view to `val nextViewType`, and if it is the same
-             * as `viewType` (the type of the current [View] in `view`) we pass `view` to
-             * `adapter.getView` to be recycled when requesting it to render the item `i` into a
-             * [View] we can set `view` to, otherwise we pass *null* so that it will allocate and
-             * layout a new [View] before rendering item `i`. We set `viewType` to `newViewType` to
-             * cause the [View] to be recycled on the next pass. We then call our method `measureView`
-             * to instruct `view` to measure itself based on the printer page dimensions, and add the
-             * measured height of the [View] in `view` to `pageContentHeight`.
-             *
-             * Then if this is the first time through the loop (`currentPage` < 0) or the size of
-             * the current page is greater than the size of the printer page ( that is:
-             * `pageContentHeight > mRenderPageHeight`) we set `pageContentHeight` to the height
-             * of the [View] `view`, increment `currentPage`, and if we have a page ready to print
-             * (not the first time through the loop, and the last page was among those requested to
-             * be printed) we finish the [PdfDocument.Page] `page` we have been working on in our
-             * [PrintedPdfDocument] field [mPdfDocument].
+             * [PrintedPdfDocument] field [mPdfDocument] on a background thread. First we collect
+             * the page numbers of the [PageRange]'s in our parameter [pages] (clamped to the pages
+             * that exist according to our [PageIndex] field [pageIndex]) into the sorted set
+             * `val requested` so that overlapping ranges are only written once.
              *
-             * We look through the `PageRanges[]` parmater [pages] for the `currentPage` using our
-             * method [containsPage], and if it is a wanted page number we start a new
-             * [PdfDocument.Page] for `page`, fetch its `Canvas` in order to scale it using our
-             * pixels to points scaling factor `scale` and append `currentPage` to our list of
-             * written pages in the [SparseIntArray] field [mWrittenPages]. If it is not a wanted
-             * page we set `page` to *null*.
+             * Then we call our method [writePages] to render the requested pages into
+             * [mPdfDocument] in parallel on [sRenderExecutor], appending the number of each page
+             * written to the [SparseIntArray] field [mWrittenPages]. Cancellation through our
+             * [CancellationSignal] cancels this [AsyncTask], which interrupts our wait and makes
+             * [writePages] give up at the next page or row; in that case we return *null* at once
+             * and our [onCancelled] override reports the cancellation. If recording a page fails
+             * for any other reason we call `callback.onWriteFailed`, close [mPdfDocument] and
+             * return *null*.
              *
-             * Then if `page` is not *null*, we layout [View] `view` and instruct it to draw
-             * itself into the `Canvas` of `page`. Then we translate the `Canvas` of `page` to
-             * get ready for the next view.
-             *
-             * Once done with all the items in our `adapter`, if `page` is not null we
-             * finish that page.
-             *
-             * Once done rendering the [PrintedPdfDocument] field [mPdfDocument], wrapped in a
-             * try block intended to catch [IOException], we instruct [mPdfDocument] to write
-             * itself to a [FileOutputStream] created from the `FileDescriptor` of our
-             * [ParcelFileDescriptor] field [destination]. If we catch an [IOException] we call
+             * Once all the pages are assembled, wrapped in a try block intended to catch [IOException],
+             * we instruct [mPdfDocument] to write itself to a [FileOutputStream] created from the
+             * `FileDescriptor` of our [ParcelFileDescriptor] field [destination], and log the number
+             * of pages written per second. If we catch an [IOException] we call
              * `callback.onWriteFailed`. In any case we close [mPdfDocument] in a finally block and
              * return *null* to our caller.
              *
@@ -976,127 +1301,41 @@ class PrintCustomContent : ListActivity() {
              */
             @SuppressLint("WrongThread")
             override fun doInBackground(vararg params: Void?): Void? {
+                val startTime = SystemClock.elapsedRealtime()
                 /**
-                 * Go over all the pages and write only the requested ones.
-                 * Create an adapter with the stats and an inflater
-                 * to load resources for the printer density.
-                 */
-                val adapter = MotoGpStatAdapter(items,
-                        mPrintContext!!.getSystemService(Context.LAYOUT_INFLATER_SERVICE) as LayoutInflater)
-                /**
-                 * Current page number that we are working on
-                 */
-                var currentPage = -1
-                /**
-                 * Height of the current page so far
-                 */
-                var pageContentHeight = 0
-                /**
-                 * Set to -1 so we only request a new [View] the first time
-                 * (`getItemViewType` returns > 0)
-                 */
-                var viewType = -1
-                /**
-                 * View for item that we are laying out, then drawing to the pdf `Canvas`
-                 */
-                var view: View? = null
-                /**
-                 * [PdfDocument.Page] page of the pdf that we are drawing to.
-                 */
-                var page: PdfDocument.Page? = null
-                /**
-                 * This dummy [LinearLayout] is used to provide `LayoutParams` for rendering the
-                 * data item [View].
+                 * Go over the requested pages only.
                  */
-                val dummyParent = LinearLayout(mPrintContext)
-                dummyParent.orientation = LinearLayout.VERTICAL
-                /**
-                 * The content is laid out and rendered in screen pixels with
-                 * the width and height of the paper size times the print
-                 * density but the PDF canvas size is in points which are 1/72",
-                 * so we will scale down the content.
-                 */
-                val scale = (
-                        mPdfDocument.pageContentRect.width().toFloat()
-                                / mRenderPageWidth).coerceAtMost((
-                        mPdfDocument.pageContentRect.height().toFloat()
-                                / mRenderPageHeight))
-                val itemCount = adapter.count
-                for (i in 0 until itemCount) {
-                    /**
-                     * Be nice and respond to cancellation.
-                     */
-                    if (isCancelled) {
-                        return null
-                    }
-                    /**
-                     * Get the next view.
-                     */
-                    val nextViewType = adapter.getItemViewType(i)
-                    view = if (viewType == nextViewType) {
-                        adapter.getView(i, (view)!!, dummyParent)
-                    } else {
-                        adapter.getView(i, null, dummyParent)
+                val requested = TreeSet<Int>()
+                for (range in pages) {
+                    for (pageNumber in range.start.coerceAtLeast(0)..range.end.coerceAtMost(pageIndex.pageCount - 1)) {
+                        requested.add(pageNumber)
                     }
-                    viewType = nextViewType
-                    /**
-                     * Measure the next view
-                     */
-                    measureView(view)
-                    /**
-                     * Add the height but if the view crosses the page
-                     * boundary we will put it to the next one.
-                     */
-                    pageContentHeight += view.measuredHeight
-                    if (currentPage < 0 || pageContentHeight > mRenderPageHeight) {
-                        pageContentHeight = view.measuredHeight
-                        currentPage++
-                        /**
-                         * Done with the current page - finish it.
-                         */
-                        if (page != null) {
-                            mPdfDocument.finishPage(page)
-                        }
-                        /**
-                         * If the page is requested, render it.
-                         */
-                        if (containsPage(pages, currentPage)) {
-                            page = mPdfDocument.startPage(currentPage)
-                            page.canvas.scale(scale, scale)
-                            /**
-                             * Keep track which pages are written.
-                             */
-                            mWrittenPages.append(mWrittenPages.size(), currentPage)
-                        } else {
-                            page = null
-                        }
+                }
+                try {
+                    val written = writePages(mPdfDocument, items, pageIndex, requested,
+                            mWrittenPages, true) { isCancelled }
+                    if (!written) {
+                        return null
                     }
-                    /**
-                     * If the current view is on a requested page, render it.
-                     */
-                    if (page != null) {
-                        /**
-                         * Layout and render the content.
-                         */
-                        view.layout(0, 0, view.measuredWidth, view.measuredHeight)
-                        view.draw(page.canvas)
-                        /**
-                         * Move the canvas for the next view.
-                         */
-                        page.canvas.translate(0f, view.height.toFloat())
+                } catch (e: InterruptedException) {
+                    return null
+                } catch (e: ExecutionException) {
+                    if (isCancelled) {
+                        return null
                     }
-                }
-                /**
-                 * Done with the last page.
-                 */
-                if (page != null) {
-                    mPdfDocument.finishPage(page)
+                    callback.onWriteFailed(e.cause?.toString())
+                    mPdfDocument.close()
+                    return null
                 }
                 /**
                  * Write the data and return success or failure.
                  */
                 try {
                     mPdfDocument.writeTo(FileOutputStream(destination.fileDescriptor))
+                    val elapsed = (SystemClock.elapsedRealtime() - startTime).coerceAtLeast(1)
+                    Log.i(TAG, "Wrote ${mWrittenPages.size()} pages of ${items.size} rows in "
+                            + "${elapsed}ms, ${mWrittenPages.size() * 1000L / elapsed} pages/s "
+                            + "using $RENDER_THREADS threads")
                     /**
                      * Compute which page ranges were written based on
                      * the bookkeeping we maintained.
@@ -1134,5 +1373,42 @@ class PrintCustomContent : ListActivity() {
          * How many mils in an inch
          */
         private const val MILS_IN_INCH = 1000
+
+        /**
+         * How many [PageIndex]'s (one per set of [PrintAttributes]) we keep in our layout cache.
+         */
+        private const val MAX_CACHED_LAYOUTS = 4
+
+        /**
+         * TAG used for logging.
+         */
+        private const val TAG = "PrintCustomContent"
+
+        /**
+         * Name of an optional [Int] extra of our intent, the number of rows to print (the MotoGp
+         * stats are repeated to fill them).
+         */
+        const val EXTRA_ROWS = "rows"
+
+        /**
+         * Number of rows printed by our benchmark.
+         */
+        private const val BENCHMARK_ROWS = 10000
+
+        /**
+         * Number of threads in [sRenderExecutor].
+         */
+        private val RENDER_THREADS = Runtime.getRuntime().availableProcessors().coerceIn(2, 4)
+
+        /**
+         * Maximum number of pages submitted to [sRenderExecutor] which have not yet been added to
+         * the PDF document, bounds the number of recorded [Picture]'s held in memory.
+         */
+        private val MAX_PAGES_IN_FLIGHT = RENDER_THREADS * 2
+
+        /**
+         * Bounded thread pool on which the pages of a write pass are recorded in parallel.
+         */
+        private val sRenderExecutor: ExecutorService = Executors.newFixedThreadPool(RENDER_THREADS)
     }
 }
\ No newline at end of file
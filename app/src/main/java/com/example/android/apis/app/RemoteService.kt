@@ -36,6 +36,14 @@ import com.example.android.apis.app.RemoteService.Controller
 // Need the following import to get access to the app resources, since this
 // class is in a sub-package.
 import com.example.android.apis.R
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * This is an example of implementing an application service that runs in a
@@ -59,10 +67,28 @@ class RemoteService : Service() {
      * that it can be accessed more efficiently from inner classes.
      */
     val mCallbacks = RemoteCallbackList<IRemoteServiceCallback>()
+    /**
+     * Callbacks registered through `openValueRing` which only want to be woken up when there
+     * are new values in [mRing], at most once every WAKEUP_INTERVAL_MS.
+     */
+    val mWakeups = RemoteCallbackList<IRemoteServiceCallback>()
     /**
      * Value that we increment and send to our clients
      */
     var mValue = 0
+    /**
+     * Shared memory ring buffer we write every new value to, *null* if it could not be created.
+     */
+    var mRing: SharedValueRing? = null
+    /**
+     * Read only file descriptor of [mRing], a duplicate of it is handed to every client which
+     * calls `openValueRing`.
+     */
+    var mRingFd: ParcelFileDescriptor? = null
+    /**
+     * `SystemClock.uptimeMillis` of the last time we woke up the callbacks in [mWakeups].
+     */
+    var mLastWakeup = 0L
     /**
      * Handle to the system level NOTIFICATION_SERVICE service
      */
@@ -78,8 +104,10 @@ class RemoteService : Service() {
      * VISIBILITY_PRIVATE (shows this notification on all lockscreens, but conceals sensitive or
      * private information on secure lockscreens). We then have [mNM] create notification channel
      * `chan1`. Next we call our method [showNotification] to post a notification that we are
-     * running. Then we use our [Handler] field [mHandler] to send a message with the `what` field
-     * set to REPORT_MSG to all the clients registered with us.
+     * running. We create our [SharedValueRing] field [mRing] (and its read only file descriptor
+     * [mRingFd]) in our cache directory, logging the failure if we cannot. Then we use our
+     * [Handler] field [mHandler] to send a message with the `what` field set to REPORT_MSG to all
+     * the clients registered with us.
      */
     override fun onCreate() {
         mNM = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
@@ -92,6 +120,13 @@ class RemoteService : Service() {
          * Display a notification about us starting.
          */
         showNotification()
+        try {
+            val (ring, fd) = SharedValueRing.create(File(cacheDir, "value_ring"), RING_CAPACITY)
+            mRing = ring
+            mRingFd = fd
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not create the value ring", e)
+        }
         /**
          * While this service is running, it will continually increment a
          * number.  Send the first message that is used to perform the
@@ -139,8 +174,9 @@ class RemoteService : Service() {
      * cancel our notification, toast a message "Remote service has stopped", disable the callback
      * list `RemoteCallbackList<IRemoteServiceCallback>` field [mCallbacks] (all registered callbacks
      * are unregistered, and the list is disabled so that future calls to `register(E)` will fail).
-     * Finally we remove any pending posts of messages with code 'what' set to REPORT_MSG that are
-     * in the message queue.
+     * Finally we remove any pending posts of messages with code 'what' set to REPORT_MSG (and
+     * WAKEUP_MSG) that are in the message queue, do the same to [mWakeups] as to [mCallbacks],
+     * and close our file descriptor of the ring [mRingFd].
      */
     override fun onDestroy() {
         /**
@@ -159,6 +195,13 @@ class RemoteService : Service() {
          * Remove the next pending message to increment the counter, stopping the increment loop.
          */
         mHandler.removeMessages(REPORT_MSG)
+        mHandler.removeMessages(WAKEUP_MSG)
+        mWakeups.kill()
+        try {
+            mRingFd?.close()
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not close the value ring", e)
+        }
     }
 
     /**
@@ -192,8 +235,9 @@ class RemoteService : Service() {
      * The [IRemoteService] interface is defined through the IDL file `IRemoteService.aidl`,
      * it defines two methods `registerCallback` (adds the [IRemoteServiceCallback] parameter
      * `cb` to our `RemoteCallbackList<IRemoteServiceCallback>` field [mCallbacks] by calling its
-     * method `register`, and `unregisterCallback` which removes the [IRemoteServiceCallback]
-     * parameter `cb` from [mCallbacks], and we implement them here. The bound client then
+     * method `register`, `unregisterCallback` which removes the [IRemoteServiceCallback]
+     * parameter `cb` from [mCallbacks] (and [mWakeups]), and `openValueRing` which hands out our
+     * shared memory ring of values, and we implement them here. The bound client then
      * accesses them using its [IRemoteService] field `mService` which is initialized in its
      * `onServiceConnected` callback from the [IBinder] `service` passed it by the service (uses
      * the method `IRemoteService.Stub.asInterface(service)` to convert the [IBinder] to an
@@ -218,13 +262,33 @@ class RemoteService : Service() {
          * @param cb the [IRemoteServiceCallback] we should register
          */
         override fun unregisterCallback(cb: IRemoteServiceCallback) {
-            if (cb != null) mCallbacks.unregister(cb)
+            if (cb != null) {
+                mCallbacks.unregister(cb)
+                mWakeups.unregister(cb)
+            }
+        }
+
+        /**
+         * Returns a duplicate of the read only file descriptor of our [SharedValueRing] field
+         * [mRing] (the binder closes it once it has been sent), registering [wakeup] if it is not
+         * *null* to be told when there are new values in the ring.
+         *
+         * @param wakeup callback to wake up when new values are written, may be *null*.
+         * @return file descriptor the client can map with `SharedValueRing.open`, or *null*
+         * if we do not have a ring.
+         */
+        override fun openValueRing(wakeup: IRemoteServiceCallback?): ParcelFileDescriptor? {
+            val fd = mRingFd ?: return null
+            if (wakeup != null) mWakeups.register(wakeup)
+            return fd.dup()
         }
     }
     /**
      * A secondary interface to the service is defined through the IDL file `ISecondary.aidl`,
-     * and consists of two methods which are accessible in much the same way as the methods in
-     * the [IRemoteService.Stub] field [mBinder]
+     * and consists of methods which are accessible in much the same way as the methods in
+     * the [IRemoteService.Stub] field [mBinder]. Besides `basicTypes` it has two batched
+     * variants which take the arguments of many calls at once, `basicTypesBatch` in a single
+     * transaction as an array of [BasicTypes], and `basicTypesStream` through a pipe.
      */
     private val mSecondaryBinder: ISecondary.Stub = object : ISecondary.Stub() {
         /**
@@ -250,6 +314,42 @@ class RemoteService : Service() {
         override fun basicTypes(anInt: Int, aLong: Long, aBoolean: Boolean,
                                 aFloat: Float, aDouble: Double, aString: String) {
         }
+
+        /**
+         * Handles the arguments of a batch of `basicTypes` calls sent in a single transaction.
+         *
+         * @param batch the arguments of each call.
+         * @return the number of items handled.
+         */
+        override fun basicTypesBatch(batch: Array<BasicTypes>): Int {
+            return batch.size
+        }
+
+        /**
+         * Handles the arguments of `basicTypes` calls read from the pipe [source] until the
+         * client closes its end. We read through a buffer so that the pipe is drained in large
+         * reads, and close [source] when we are done.
+         *
+         * @param source the read end of a pipe the client writes [BasicTypes] to.
+         * @return the number of items handled.
+         */
+        override fun basicTypesStream(source: ParcelFileDescriptor): Int {
+            var count = 0
+            DataInputStream(BufferedInputStream(
+                    ParcelFileDescriptor.AutoCloseInputStream(source))).use { input ->
+                try {
+                    while (true) {
+                        BasicTypes.readFrom(input)
+                        count++
+                    }
+                } catch (e: EOFException) {
+                    // The client closed its end of the pipe, we have read everything.
+                } catch (e: IOException) {
+                    Log.e(TAG, "Failed reading basicTypes stream", e)
+                }
+            }
+            return count
+        }
     }
 
     /**
@@ -284,10 +384,17 @@ class RemoteService : Service() {
          * [mCallbacks] and call their method `valueChanged(value)` (Note that we have to try/catch
          * [RemoteException] in case one of the callbacks has gone away). After looping through
          * all the callbacks we clean up the state of the broadcast by calling the method
-         * `finishBroadcast`. Finally we enqueue a new REPORT_MSG message into the message
-         * queue with a delay of 1000 milliseconds.
+         * `finishBroadcast`. We also write the value to our [SharedValueRing] field [mRing] and
+         * schedule a WAKEUP_MSG for the readers of the ring unless one is already pending, no
+         * sooner than WAKEUP_INTERVAL_MS after the last one. Finally we enqueue a new REPORT_MSG
+         * message into the message queue with a delay of 1000 milliseconds.
+         *
+         * If the `what` field is WAKEUP_MSG we call `valueChanged` with the latest value on every
+         * callback in [mWakeups], which tells them to drain the ring, and note the time in
+         * [mLastWakeup]. However fast values are written, the readers of the ring only cost one
+         * binder call each per WAKEUP_INTERVAL_MS.
          *
-         * @param msg [Message] sent to us, we only use REPORT_MSG
+         * @param msg [Message] sent to us, we use REPORT_MSG and WAKEUP_MSG
          */
         override fun handleMessage(msg: Message) { // It is time to bump the value!
             if (msg.what == REPORT_MSG) { // Up it goes.
@@ -306,10 +413,32 @@ class RemoteService : Service() {
                     }
                 }
                 mCallbacks.finishBroadcast()
+                /**
+                 * Publish the value to the readers of the ring, waking them up no more often
+                 * than every WAKEUP_INTERVAL_MS.
+                 */
+                mRing?.write(value)
+                if (!hasMessages(WAKEUP_MSG)) {
+                    val delay = mLastWakeup + WAKEUP_INTERVAL_MS - SystemClock.uptimeMillis()
+                    sendMessageDelayed(obtainMessage(WAKEUP_MSG), delay.coerceAtLeast(0))
+                }
                 /**
                  * Repeat every 1 second.
                  */
                 sendMessageDelayed(obtainMessage(REPORT_MSG), 1000)
+            } else if (msg.what == WAKEUP_MSG) {
+                mLastWakeup = SystemClock.uptimeMillis()
+                val n = mWakeups.beginBroadcast()
+                for (i in 0 until n) {
+                    try {
+                        mWakeups.getBroadcastItem(i).valueChanged(mValue)
+                    } catch (e: RemoteException) {
+                        /**
+                         * The RemoteCallbackList will take care of removing the dead object for us.
+                         */
+                    }
+                }
+                mWakeups.finishBroadcast()
             } else {
                 super.handleMessage(msg)
             }
@@ -447,6 +576,27 @@ class RemoteService : Service() {
          * [TextView] we use to display status information
          */
         var mCallbackText: TextView? = null
+        /**
+         * [TextView] we use to display the results of the batching benchmark
+         */
+        var mBenchmarkText: TextView? = null
+        /**
+         * [TextView] we use to display the values we read from the shared memory ring of the service
+         */
+        var mRingText: TextView? = null
+        /**
+         * Our [SharedValueRing.Reader] of the shared memory ring the service writes its values to,
+         * *null* until we have mapped the ring. Only used on the UI thread.
+         */
+        var mRingReader: SharedValueRing.Reader? = null
+        /**
+         * Buffer [drainRing] reads the values of the ring into
+         */
+        private val mRingValues = IntArray(64)
+        /**
+         * Number of values [drainRing] has read from the ring
+         */
+        private var mRingRead = 0L
         /**
          * Flag to keep track of whether we are bound to the service or not
          */
@@ -462,8 +612,13 @@ class RemoteService : Service() {
          * (unbinds us from the service when clicked), and set `button` to the [Button] with ID
          * R.id.kill ("Kill Process") and set its `OnClickListener` to `OnClickListener` field
          * [mKillListener] (uses the service method `getPid()` to obtain the service PID, and issues
-         * a `killProcess` request). Finally we locate the [TextView] with ID R.id.callback to
-         * initialize [TextView] field [mCallbackText] and set its text to ("Not attached.").
+         * a `killProcess` request). We set the `OnClickListener` of the [Button] with ID
+         * R.id.benchmark ("Benchmark Batching") to [mBenchmarkListener], that of the [Button] with
+         * ID R.id.benchmark_ring ("Benchmark Value Ring") to [mRingBenchmarkListener] and locate
+         * the [TextView] with ID R.id.benchmark_result to initialize [mBenchmarkText] and the one
+         * with ID R.id.ring to initialize [mRingText]. Finally we locate the [TextView] with ID
+         * R.id.callback to initialize [TextView] field [mCallbackText] and set its text to
+         * ("Not attached.").
          *
          * @param savedInstanceState we do not override [onSaveInstanceState] so do not use
          */
@@ -480,6 +635,12 @@ class RemoteService : Service() {
             mKillButton = findViewById(R.id.kill)
             mKillButton!!.setOnClickListener(mKillListener)
             mKillButton!!.isEnabled = false
+            button = findViewById(R.id.benchmark)
+            button.setOnClickListener(mBenchmarkListener)
+            button = findViewById(R.id.benchmark_ring)
+            button.setOnClickListener(mRingBenchmarkListener)
+            mBenchmarkText = findViewById(R.id.benchmark_result)
+            mRingText = findViewById(R.id.ring)
             mCallbackText = findViewById(R.id.callback)
             mCallbackText!!.text = "Not attached."
         }
@@ -504,7 +665,12 @@ class RemoteService : Service() {
              * [mCallback] as a callback interface for the service to use. [mCallback] has a
              * `valueChanged` method which the service will call when there is a new value to display
              * (every 1000 milliseconds). `valueChanged` formats and sends a Message to our [Handler]
-             * field [mHandler] which will in turn display this new value on the UI thread.
+             * field [mHandler] which will in turn display this new value on the UI thread. We also
+             * call `openValueRing` to get the file descriptor of the shared memory ring the service
+             * writes its values to, registering [IRemoteServiceCallback] field [mRingWakeup] to be
+             * told when there are new values in it, map the ring with `SharedValueRing.open` and
+             * create a `Reader` of it for [mRingReader] (logging the failure if it cannot be
+             * mapped).
              *
              * Finally we toast the message: "Connected to remote service".
              *
@@ -529,6 +695,16 @@ class RemoteService : Service() {
                  */
                 try {
                     mService!!.registerCallback(mCallback)
+                    /**
+                     * Read the values of the service through shared memory as well, waking up
+                     * only when [mRingWakeup] is told there are new ones.
+                     */
+                    val fd = mService!!.openValueRing(mRingWakeup)
+                    if (fd != null) {
+                        mRingReader = SharedValueRing.open(fd).Reader()
+                    }
+                } catch (e: IOException) {
+                    Log.e(TAG, "Could not map the value ring", e)
                 } catch (e: RemoteException) {
                     /**
                      * In this case the service has crashed before we could even
@@ -552,9 +728,10 @@ class RemoteService : Service() {
              * is what happens when you kill the service process - it is restarted and
              * your binding continues to exist, and [onServiceConnected] is called again.
              *
-             * We set [IRemoteService] field [mService] to null, disable [Button] field
-             * [mKillButton], set the text of [TextView] field [mCallbackText] to "Disconnected.",
-             * and toast the message "Disconnected from remote service".
+             * We set [IRemoteService] field [mService] and [SharedValueRing.Reader] field
+             * [mRingReader] to null (the restarted service writes to a new ring), disable [Button]
+             * field [mKillButton], set the text of [TextView] field [mCallbackText] to
+             * "Disconnected.", and toast the message "Disconnected from remote service".
              *
              * @param className The concrete component name of the service
              * whose connection has been lost.
@@ -565,6 +742,7 @@ class RemoteService : Service() {
                  * unexpectedly disconnected -- that is, its process crashed.
                  */
                 mService = null
+                mRingReader = null
                 mKillButton!!.isEnabled = false
                 mCallbackText!!.text = "Disconnected."
                 /**
@@ -662,10 +840,11 @@ class RemoteService : Service() {
          * has been called and initialized [IRemoteService] field [mService] with the [IBinder]
          * sent from the service, and if so we use [mService] to access the server method
          * `unregisterCallback` to unregister our [IRemoteServiceCallback] field [mCallback]
-         * we previously registered using the `registerCallback` method of [mService]. Then
-         * we unbind our [ServiceConnection] field [mConnection] and [ServiceConnection] field
-         * [mSecondaryConnection], set our flag field [mIsBound] to *false*, and set the text
-         * of [TextView] field [mCallbackText] to "Unbinding."
+         * we previously registered using the `registerCallback` method of [mService] (and
+         * [mRingWakeup] which we registered using its `openValueRing` method). Then we unbind
+         * our [ServiceConnection] field [mConnection] and [ServiceConnection] field
+         * [mSecondaryConnection], set [mRingReader] to *null*, set our flag field [mIsBound] to
+         * *false*, and set the text of [TextView] field [mCallbackText] to "Unbinding."
          *
          * Parameter: View of the Button that was clicked
          */
@@ -678,6 +857,7 @@ class RemoteService : Service() {
                 if (mService != null) {
                     try {
                         mService!!.unregisterCallback(mCallback)
+                        mService!!.unregisterCallback(mRingWakeup)
                     } catch (e: RemoteException) {
                         /**
                          * There is nothing special we need to do if the service has crashed.
@@ -689,6 +869,7 @@ class RemoteService : Service() {
                  */
                 unbindService(mConnection)
                 unbindService(mSecondaryConnection)
+                mRingReader = null
                 mKillButton!!.isEnabled = false
                 mIsBound = false
                 mCallbackText!!.text = "Unbinding."
@@ -738,6 +919,239 @@ class RemoteService : Service() {
         }
         // ----------------------------------------------------------------------
 
+        /**
+         * Called when the R.id.benchmark ("Benchmark Batching") `Button` is clicked. If we are
+         * connected to the [ISecondary] interface of the service we start a background thread
+         * which, for each of BENCHMARK_SIZES items, times sending them one `basicTypes` call at a
+         * time, in `basicTypesBatch` transactions of at most BENCHMARK_CHUNK items, and through
+         * the pipe of `basicTypesStream`, and then displays the microseconds per item of each in
+         * [TextView] field [mBenchmarkText].
+         *
+         * Parameter: View of the Button that was clicked
+         */
+        private val mBenchmarkListener: View.OnClickListener = View.OnClickListener {
+            val secondary = mSecondaryService ?: return@OnClickListener
+            mBenchmarkText!!.text = "Running benchmark..."
+            Thread(Runnable {
+                val report = StringBuilder("µs per item: call / batch / pipe")
+                try {
+                    for (size in BENCHMARK_SIZES) {
+                        val items = Array(size) {
+                            BasicTypes(it, it.toLong(), it % 2 == 0, it.toFloat(), it.toDouble(), "Item $it")
+                        }
+                        val perCall = timeMicros(size) {
+                            for (item in items) {
+                                secondary.basicTypes(item.anInt, item.aLong, item.aBoolean,
+                                        item.aFloat, item.aDouble, item.aString)
+                            }
+                        }
+                        val batched = timeMicros(size) {
+                            var start = 0
+                            while (start < size) {
+                                val end = (start + BENCHMARK_CHUNK).coerceAtMost(size)
+                                secondary.basicTypesBatch(items.copyOfRange(start, end))
+                                start = end
+                            }
+                        }
+                        val piped = timeMicros(size) { stream(secondary, items) }
+                        report.append(String.format("\n%d items: %.2f / %.2f / %.2f",
+                                size, perCall, batched, piped))
+                    }
+                } catch (e: RemoteException) {
+                    report.append("\nService died.")
+                }
+                runOnUiThread { mBenchmarkText!!.text = report }
+            }).start()
+        }
+
+        /**
+         * Runs [block] and returns the time it took in microseconds divided by [items].
+         *
+         * @param items number of items handled by [block].
+         * @param block the code to time.
+         * @return microseconds per item.
+         */
+        private inline fun timeMicros(items: Int, block: () -> Unit): Double {
+            val start = SystemClock.elapsedRealtimeNanos()
+            block()
+            return (SystemClock.elapsedRealtimeNanos() - start) / 1000.0 / items
+        }
+
+        /**
+         * Sends [items] to the `basicTypesStream` method of [secondary] through a pipe. The call
+         * only returns once the service has read the whole pipe, so the write end is written
+         * (through a buffer) and closed by a separate thread.
+         *
+         * @param secondary the [ISecondary] interface of the service.
+         * @param items the items to send.
+         * @throws RemoteException if the service has died.
+         */
+        @Throws(RemoteException::class)
+        private fun stream(secondary: ISecondary, items: Array<BasicTypes>) {
+            val pipe = ParcelFileDescriptor.createPipe()
+            val writer = Thread(Runnable {
+                try {
+                    DataOutputStream(BufferedOutputStream(
+                            ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]))).use { out ->
+                        for (item in items) {
+                            item.writeTo(out)
+                        }
+                    }
+                } catch (e: IOException) {
+                    Log.e(TAG, "Failed writing basicTypes stream", e)
+                }
+            })
+            writer.start()
+            try {
+                secondary.basicTypesStream(pipe[0])
+            } finally {
+                pipe[0].close()
+                writer.join()
+            }
+        }
+
+        /**
+         * Called when the R.id.benchmark_ring ("Benchmark Value Ring") `Button` is clicked. We
+         * start a background thread which streams RING_BENCHMARK_VALUES values through each of
+         * the two paths the service offers, using in-process stand-ins so that the numbers do not
+         * depend on the service: [benchmarkCallbacks] for one `valueChanged` transaction per
+         * value, and [benchmarkRing] for a [SharedValueRing]. Then we display the microseconds
+         * spent sending each value and the average latency until it was read in [TextView] field
+         * [mBenchmarkText].
+         *
+         * Parameter: View of the Button that was clicked
+         */
+        private val mRingBenchmarkListener: View.OnClickListener = View.OnClickListener {
+            mBenchmarkText!!.text = "Running benchmark..."
+            Thread(Runnable {
+                val report = StringBuilder("µs per value: send / latency")
+                try {
+                    val callbacks = benchmarkCallbacks(RING_BENCHMARK_VALUES)
+                    report.append(String.format("\ncallback: %.2f / %.2f",
+                            callbacks.sendMicros, callbacks.latencyMicros))
+                    val ring = benchmarkRing(RING_BENCHMARK_VALUES)
+                    report.append(String.format("\nring: %.2f / %.2f, %d dropped",
+                            ring.sendMicros, ring.latencyMicros, ring.dropped))
+                } catch (e: IOException) {
+                    report.append("\nCould not create a ring.")
+                } catch (e: RemoteException) {
+                    report.append("\nTransaction failed.")
+                }
+                runOnUiThread { mBenchmarkText!!.text = report }
+            }).start()
+        }
+
+        /**
+         * Results of [benchmarkCallbacks] or [benchmarkRing].
+         *
+         * @param sendMicros microseconds the sender spent per value.
+         * @param latencyMicros average microseconds from sending a value to reading it.
+         * @param dropped number of values the receiver lost.
+         */
+        private class RingBenchmark(
+                val sendMicros: Double,
+                val latencyMicros: Double,
+                val dropped: Long
+        )
+
+        /**
+         * Sends [count] values to an in-process stand-in for a client's [IRemoteServiceCallback],
+         * marshalling each into a `valueChanged` transaction exactly as the service's proxy does
+         * and calling `transact` on the stand-in's binder, which unmarshals it and calls
+         * `valueChanged`. Each value is the time it was sent, so the stand-in can add up the
+         * latency. This leaves out the hop through the kernel and onto a binder thread of the
+         * client, so it is a lower bound for the cost of the real callbacks.
+         *
+         * @param count number of values to send.
+         * @return the send cost and latency per value.
+         * @throws RemoteException if a transaction fails.
+         */
+        @Throws(RemoteException::class)
+        private fun benchmarkCallbacks(count: Int): RingBenchmark {
+            var latency = 0L
+            var received = 0L
+            val standIn = object : IRemoteServiceCallback.Stub() {
+                override fun valueChanged(value: Int) {
+                    latency += nowMicros() - value
+                    received++
+                }
+            }
+            val binder = standIn.asBinder()
+            val start = SystemClock.elapsedRealtimeNanos()
+            for (i in 0 until count) {
+                val data = Parcel.obtain()
+                try {
+                    data.writeInterfaceToken(IRemoteServiceCallback::class.java.name)
+                    data.writeInt(nowMicros())
+                    binder.transact(IBinder.FIRST_CALL_TRANSACTION, data, null,
+                            IBinder.FLAG_ONEWAY)
+                } finally {
+                    data.recycle()
+                }
+            }
+            val send = (SystemClock.elapsedRealtimeNanos() - start) / 1000.0 / count
+            return RingBenchmark(send, latency.toDouble() / received.coerceAtLeast(1),
+                    count - received)
+        }
+
+        /**
+         * Writes [count] values to an in-process stand-in for the ring of the service: a
+         * [SharedValueRing] of RING_CAPACITY slots which we map a second time through its read
+         * only file descriptor, just as a client does. A reader thread polls the ring without
+         * waiting for wakeups, so that we measure the ring itself. The writer is not paced, so
+         * if the reader cannot keep up it is lapped and the values it loses are counted. Each
+         * value is the time it was written, so the reader can add up the latency.
+         *
+         * @param count number of values to write.
+         * @return the write cost and latency per value, and the number of values dropped.
+         * @throws IOException if the ring cannot be created or mapped.
+         */
+        @Throws(IOException::class)
+        private fun benchmarkRing(count: Int): RingBenchmark {
+            val (ring, fd) = SharedValueRing.create(File(cacheDir, "value_ring_benchmark"),
+                    RING_CAPACITY)
+            val reader = SharedValueRing.open(fd).Reader()
+            val done = AtomicBoolean()
+            var latency = 0L
+            var received = 0L
+            val readerThread = Thread(Runnable {
+                val values = IntArray(64)
+                while (true) {
+                    val finished = done.get()
+                    val n = reader.poll(values)
+                    val now = nowMicros()
+                    for (i in 0 until n) {
+                        latency += now - values[i]
+                    }
+                    received += n
+                    if (n == 0) {
+                        if (finished) break
+                        Thread.yield()
+                    }
+                }
+            })
+            readerThread.start()
+            val start = SystemClock.elapsedRealtimeNanos()
+            for (i in 0 until count) {
+                ring.write(nowMicros())
+            }
+            val send = (SystemClock.elapsedRealtimeNanos() - start) / 1000.0 / count
+            done.set(true)
+            readerThread.join()
+            return RingBenchmark(send, latency.toDouble() / received.coerceAtLeast(1),
+                    reader.dropped)
+        }
+
+        /**
+         * Returns the low 32 bits of `SystemClock.elapsedRealtimeNanos` in microseconds, the
+         * difference of two of these is correct as long as they are less than 35 minutes apart.
+         *
+         * @return the current time in microseconds, truncated to an [Int].
+         */
+        private fun nowMicros(): Int {
+            return (SystemClock.elapsedRealtimeNanos() / 1000).toInt()
+        }
+
         // Code showing how to deal with callbacks.
 
         // ----------------------------------------------------------------------
@@ -764,6 +1178,42 @@ class RemoteService : Service() {
                 mHandler.sendMessage(mHandler.obtainMessage(BUMP_MSG, value, 0))
             }
         }
+
+        /**
+         * Registered through `openValueRing`, the service calls this no more often than every
+         * WAKEUP_INTERVAL_MS to tell us there are new values in its shared memory ring.
+         */
+        private val mRingWakeup: IRemoteServiceCallback = object : IRemoteServiceCallback.Stub() {
+            /**
+             * Called on a binder thread when there are new values in the ring, we send a
+             * RING_MSG to [mHandler] to read them on the UI thread.
+             *
+             * @param value the latest value of the service, we read the values from the ring.
+             */
+            override fun valueChanged(value: Int) {
+                mHandler.sendEmptyMessage(RING_MSG)
+            }
+        }
+
+        /**
+         * Reads all the values waiting in the shared memory ring of the service with our
+         * [SharedValueRing.Reader] field [mRingReader] (if we have one) and displays the latest
+         * of them, with the number of values read and dropped so far, in [mRingText].
+         */
+        private fun drainRing() {
+            val reader = mRingReader ?: return
+            var latest: Int? = null
+            while (true) {
+                val n = reader.poll(mRingValues)
+                if (n == 0) break
+                mRingRead += n
+                latest = mRingValues[n - 1]
+            }
+            if (latest != null) {
+                mRingText!!.text = "Read from ring: $latest ($mRingRead read, " +
+                        "${reader.dropped} dropped)"
+            }
+        }
         /**
          * [Handler] running on the UI thread which other threads can use to post text into
          * the [TextView] field [mCallbackText].
@@ -775,13 +1225,16 @@ class RemoteService : Service() {
              * of the `Message msg` parameter, defaulting to passing `msg` on to our super's
              * implementation of `handleMessage`. If `what` contained BUMP_MSG, we set the
              * text of [TextView] field [mCallbackText] to "Received from service: ", with the
-             * value of field `msg.arg1` concatenated to the end.
+             * value of field `msg.arg1` concatenated to the end. If it contained RING_MSG we call
+             * [drainRing] to read the new values from the shared memory ring.
              *
              * @param msg Message sent us by `mHandler.sendMessage`
              */
             override fun handleMessage(msg: Message) {
                 if (msg.what == BUMP_MSG) {
                     mCallbackText!!.text = "Received from service: " + msg.arg1
+                } else if (msg.what == RING_MSG) {
+                    drainRing()
                 } else {
                     super.handleMessage(msg)
                 }
@@ -796,6 +1249,23 @@ class RemoteService : Service() {
              * Message `what` field for receiving a new value from the service, value will be in `arg1`
              */
             private const val BUMP_MSG = 1
+            /**
+             * Numbers of items the batching benchmark sends
+             */
+            private val BENCHMARK_SIZES = intArrayOf(1, 100, 10000)
+            /**
+             * Maximum number of items sent in one `basicTypesBatch` transaction, keeps each
+             * transaction well below the 1MB binder buffer
+             */
+            private const val BENCHMARK_CHUNK = 1000
+            /**
+             * Message `what` field telling us there are new values in the shared memory ring
+             */
+            private const val RING_MSG = 2
+            /**
+             * Number of values the value ring benchmark streams through each path
+             */
+            private const val RING_BENCHMARK_VALUES = 100000
         }
     }
 
@@ -1135,5 +1605,22 @@ class RemoteService : Service() {
          * to be incremented and broadcast
          */
         private const val REPORT_MSG = 1
+        /**
+         * Used as `what` field of message sent to `mHandler` which wakes up the callbacks
+         * registered through `openValueRing`
+         */
+        private const val WAKEUP_MSG = 2
+        /**
+         * Minimum time between two wakeups of the readers of the value ring, in milliseconds
+         */
+        const val WAKEUP_INTERVAL_MS = 100L
+        /**
+         * Number of values the value ring holds
+         */
+        const val RING_CAPACITY = 1024
+        /**
+         * TAG used for logging
+         */
+        private const val TAG = "RemoteService"
     }
 }
\ No newline at end of file
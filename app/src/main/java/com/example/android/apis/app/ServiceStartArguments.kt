@@ -30,6 +30,8 @@ import androidx.appcompat.app.AppCompatActivity
 
 import com.example.android.apis.R
 import com.example.android.apis.app.ServiceStartArguments.Controller
+import java.util.ArrayDeque
+import java.util.TreeSet
 
 /**
  * This is an example of implementing an application service that runs locally
@@ -41,6 +43,13 @@ import com.example.android.apis.app.ServiceStartArguments.Controller
  * interact with the user, rather than doing something more disruptive such as
  * calling startActivity().
  *
+ * Commands are not run one at a time on a single thread. A small [CommandScheduler] runs them
+ * on a pool of [WORKER_COUNT] `HandlerThread`'s, taking them from one queue (lane) per priority
+ * given by the [EXTRA_PRIORITY] extra of the start [Intent], and choosing between lanes by
+ * weighted round robin so that urgent commands go first without starving the others. One worker
+ * is kept for urgent commands only, so a burst of low priority commands cannot delay an urgent
+ * one.
+ *
  * For applications targeting Android 1.5 or beyond, you may want consider
  * using the [android.app.IntentService] class, which takes care of all the
  * work of creating the extra thread and dispatching commands to it.
@@ -53,42 +62,41 @@ class ServiceStartArguments : Service() {
      */
     private var mNM: NotificationManager? = null
     /**
-     * [Looper] for the `HandlerThread` background thread we create to run our service in
-     */
-    @Volatile
-    private var mServiceLooper: Looper? = null
-    /**
-     * Our instance of the custom [ServiceHandler] subclass of [Handler] for messages
-     * sent to our service thread
+     * The [CommandScheduler] running our commands on its pool of worker threads.
      */
     @Volatile
-    private var mServiceHandler: ServiceHandler? = null
+    private var mScheduler: CommandScheduler? = null
 
     /**
-     * This is a [Handler] class which is used to receive messages sent to the thread that is
-     * running our service.
+     * This is a [Handler] class which is used to receive messages sent to one of the worker
+     * threads of our [CommandScheduler].
      *
      * Our constructor just passes our [Looper] parameter `looper` through to our super's
      * constructor so that it uses it instead of the default one.
      *
-     * @param looper `Looper` for `HandlerThread` that is running our service
+     * @param looper `Looper` for the `HandlerThread` of the worker
      */
     private inner class ServiceHandler(looper: Looper?) : Handler(looper!!) {
         /**
-         * Subclasses must implement this to receive messages. First we retrieve the [Bundle]
-         * stored in `obj` field of our [Message] parameter [msg] to initialize our variable
-         * `var arguments`. Then we extract the [String] which is stored in `arguments` under
-         * the key "name" to initialize variable `var txt`, and the [Boolean] which is stored
-         * under the key "redeliver" to initialize variable `val redeliver` (if set, otherwise
-         * we default to *false*). We then log the [msg] we have received. If `redeliver` is
-         * *false* we prepend "New cmd #" to txt, otherwise we prepend "Re-delivered #". We call
-         * our method [showNotification] to display a notification containing `txt`. Then we wait
-         * for 5 seconds before calling our method [hideNotification] to dismiss our notification,
-         * log a message "Done with #", and stop ourselves.
+         * Subclasses must implement this to receive messages. The `what` field of our [Message]
+         * parameter [msg] is the lane of the command, `arg1` its start id and `obj` the extras of
+         * its [Intent]. First we set the priority of our thread to THREAD_PRIORITY_DEFAULT for an
+         * urgent command and THREAD_PRIORITY_BACKGROUND otherwise. We retrieve the [Bundle]
+         * stored in `obj` field of [msg] to initialize our variable `var arguments`. Then we
+         * extract the [String] which is stored in `arguments` under the key "name" to initialize
+         * variable `var txt`, and the [Boolean] which is stored under the key "redeliver" to
+         * initialize variable `val redeliver` (if set, otherwise we default to *false*). We then
+         * log the [msg] we have received. If `redeliver` is *false* we prepend "New cmd #" to txt,
+         * otherwise we prepend "Re-delivered #". We tell our [CommandScheduler] that `txt` has
+         * started (which shows it in our notification). Then we wait for 5 seconds before logging
+         * a message "Done with #", and telling the scheduler that we are done so that it can give
+         * us another command and stop the service if this was the last command outstanding.
          *
          * @param msg A [Message][android.os.Message] object
          */
         override fun handleMessage(msg: Message) {
+            Process.setThreadPriority(if (msg.what == LANE_URGENT)
+                Process.THREAD_PRIORITY_DEFAULT else Process.THREAD_PRIORITY_BACKGROUND)
             val arguments = msg.obj as Bundle
             var txt = arguments.getString("name")
             val redeliver = arguments.getBoolean("redeliver", false)
@@ -98,7 +106,7 @@ class ServiceStartArguments : Service() {
             } else {
                 "Re-delivered #" + msg.arg1 + ": " + txt
             }
-            showNotification(txt)
+            mScheduler!!.onStarted(txt)
             /**
              * Normally we would do some work here. For our sample, we will just sleep for 5 seconds
              */
@@ -112,9 +120,235 @@ class ServiceStartArguments : Service() {
                     }
                 }
             }
-            hideNotification()
             Log.i(TAG, "Done with #" + msg.arg1)
-            stopSelf(msg.arg1)
+            mScheduler!!.onFinished(this, msg.what, msg.arg1, txt)
+        }
+    }
+
+    /**
+     * A start command waiting in one of the lanes of our [CommandScheduler].
+     */
+    private class Command(
+            /**
+             * The start id passed to `onStartCommand`.
+             */
+            val startId: Int,
+            /**
+             * The flags passed to `onStartCommand`.
+             */
+            val flags: Int,
+            /**
+             * The extras of the start [Intent].
+             */
+            val extras: Bundle?
+    )
+
+    /**
+     * Runs our start commands on a pool of worker threads. Each command waits in the lane of its
+     * priority, and whenever a worker is idle we choose the lane to serve by smooth weighted round
+     * robin over the lanes which have commands (weights [LANE_WEIGHTS]): every eligible lane earns
+     * its weight in credits, the richest lane is served and pays back the total weight. Urgent
+     * commands thus get most of the turns while normal and low priority commands still get a
+     * share. Commands which are not urgent never occupy more than `WORKER_COUNT - 1` workers, so
+     * there is always a worker ready for an urgent command.
+     *
+     * Commands finish in any order, so instead of each command calling `stopSelf` with its own
+     * start id (which would stop the service under the feet of a command started earlier that is
+     * still running) we keep the start ids which have not finished, and those which have finished
+     * after an earlier one that has not. As commands finish we call `stopSelfResult` with the
+     * highest start id up to which every command we received has finished. That tells the system
+     * that the intents up to it have been handled, so that after a crash only the unfinished ones
+     * are redelivered to a START_REDELIVER_INTENT command, and stops the service once it is the
+     * latest start id (a newer command keeps the service running).
+     *
+     * All methods are synchronized, they are called from the main thread and the workers.
+     */
+    private inner class CommandScheduler {
+        /**
+         * One queue of waiting commands per lane, indexed by lane.
+         */
+        private val mLanes = Array(LANE_COUNT) { ArrayDeque<Command>() }
+        /**
+         * The round robin credits of each lane.
+         */
+        private val mCredits = IntArray(LANE_COUNT)
+        /**
+         * The threads of our workers.
+         */
+        private val mThreads = ArrayList<HandlerThread>()
+        /**
+         * The workers which are not running a command.
+         */
+        private val mIdle = ArrayDeque<ServiceHandler>()
+        /**
+         * Number of workers running a command which is not urgent.
+         */
+        private var mBusyNotUrgent = 0
+        /**
+         * The start ids of the commands which have not finished, in order.
+         */
+        private val mOutstanding = TreeSet<Int>()
+        /**
+         * The start ids of the commands which have finished but are later than a command which
+         * has not, in order.
+         */
+        private val mFinished = TreeSet<Int>()
+        /**
+         * The latest start id we have received.
+         */
+        private var mLastStartId = 0
+        /**
+         * The last start id we have passed to `stopSelfResult`.
+         */
+        private var mStoppedThrough = 0
+        /**
+         * The texts of the commands being run, shown in our notification.
+         */
+        private val mRunning = ArrayList<String>()
+
+        init {
+            // Start up the threads running the service.  Note that we create
+            // separate threads because the service normally runs in the process's
+            // main thread, which we don't want to block.  We also make them
+            // background priority so CPU-intensive work will not disrupt our UI.
+            for (i in 0 until WORKER_COUNT) {
+                val thread = HandlerThread("ServiceStartArgumentsWorker$i",
+                        Process.THREAD_PRIORITY_BACKGROUND)
+                thread.start()
+                mThreads.add(thread)
+                mIdle.add(ServiceHandler(thread.looper))
+            }
+        }
+
+        /**
+         * Queues a start command in lane [lane] and dispatches it if a worker is available.
+         *
+         * @param lane the lane of the command, LANE_URGENT, LANE_NORMAL or LANE_LOW.
+         * @param startId the start id passed to `onStartCommand`.
+         * @param flags the flags passed to `onStartCommand`.
+         * @param extras the extras of the start [Intent].
+         */
+        @Synchronized
+        fun submit(lane: Int, startId: Int, flags: Int, extras: Bundle?) {
+            mOutstanding.add(startId)
+            mLastStartId = mLastStartId.coerceAtLeast(startId)
+            mLanes[lane].add(Command(startId, flags, extras))
+            dispatch()
+        }
+
+        /**
+         * Called by a worker when it starts running the command described by [txt], which we
+         * add to our notification.
+         *
+         * @param txt description of the command.
+         */
+        @Synchronized
+        fun onStarted(txt: String) {
+            mRunning.add(txt)
+            showNotification(mRunning.joinToString("\n"))
+        }
+
+        /**
+         * Called by [worker] when it has finished the command with start id [startId] from lane
+         * [lane]. We remove the command from our notification, make [worker] idle again, call
+         * [acknowledge] with its start id, and dispatch the next command.
+         *
+         * @param worker the worker which ran the command.
+         * @param lane the lane of the command.
+         * @param startId the start id of the command.
+         * @param txt description of the command.
+         */
+        @Synchronized
+        fun onFinished(worker: ServiceHandler, lane: Int, startId: Int, txt: String) {
+            mRunning.remove(txt)
+            if (mRunning.isEmpty()) {
+                hideNotification()
+            } else {
+                showNotification(mRunning.joinToString("\n"))
+            }
+            if (lane != LANE_URGENT) {
+                mBusyNotUrgent--
+            }
+            mIdle.add(worker)
+            acknowledge(startId)
+            dispatch()
+        }
+
+        /**
+         * Records that the command with start id [startId] has finished. If every command with
+         * a start id up to some later one than [mStoppedThrough] has now finished we call
+         * `stopSelfResult` with the highest such start id: the latest one we received if no
+         * command is outstanding, otherwise the highest finished one below the earliest command
+         * still outstanding.
+         *
+         * @param startId the start id of the command which has finished.
+         */
+        private fun acknowledge(startId: Int) {
+            mOutstanding.remove(startId)
+            mFinished.add(startId)
+            val completed = if (mOutstanding.isEmpty()) {
+                mLastStartId
+            } else {
+                mFinished.lower(mOutstanding.first()) ?: return
+            }
+            mFinished.headSet(completed, true).clear()
+            if (completed > mStoppedThrough) {
+                mStoppedThrough = completed
+                stopSelfResult(completed)
+            }
+        }
+
+        /**
+         * Stops all our worker threads, commands which have not run are dropped.
+         */
+        @Synchronized
+        fun quit() {
+            for (thread in mThreads) {
+                thread.quit()
+            }
+        }
+
+        /**
+         * Hands waiting commands to idle workers for as long as there are both, choosing the
+         * lane of each command with [nextLane].
+         */
+        private fun dispatch() {
+            while (mIdle.isNotEmpty()) {
+                val lane = nextLane()
+                if (lane < 0) return
+                val command = mLanes[lane].poll()!!
+                if (lane != LANE_URGENT) {
+                    mBusyNotUrgent++
+                }
+                val worker = mIdle.poll()!!
+                val msg = worker.obtainMessage(lane, command.startId, command.flags, command.extras)
+                worker.sendMessage(msg)
+                Log.i(TAG, "Sending: $msg")
+            }
+        }
+
+        /**
+         * Chooses the lane to serve next by smooth weighted round robin over the lanes which
+         * have waiting commands and are allowed a worker.
+         *
+         * @return the lane to serve, or -1 if no lane can be served.
+         */
+        private fun nextLane(): Int {
+            var best = -1
+            var totalWeight = 0
+            for (lane in 0 until LANE_COUNT) {
+                if (mLanes[lane].isEmpty()) continue
+                if (lane != LANE_URGENT && mBusyNotUrgent >= WORKER_COUNT - 1) continue
+                mCredits[lane] += LANE_WEIGHTS[lane]
+                totalWeight += LANE_WEIGHTS[lane]
+                if (best < 0 || mCredits[lane] > mCredits[best]) {
+                    best = lane
+                }
+            }
+            if (best >= 0) {
+                mCredits[best] -= totalWeight
+            }
+            return best
         }
     }
 
@@ -127,12 +361,8 @@ class ServiceStartArguments : Service() {
      * the notification light color of `chan1` to GREEN, and set its lock screen visibility to
      * VISIBILITY_PRIVATE (shows this notification on all lockscreens, but conceals sensitive or
      * private information on secure lockscreens). We then have [mNM] create notification channel
-     * `chan1`. Then we display a toast with the message "Service created." We next create a
-     * [HandlerThread] to initialize our variable `val thread` with the thread name
-     * "ServiceStartArgumentsBackground", and the priority THREAD_PRIORITY_BACKGROUND.
-     * We start `thread` running, then retrieve the [Looper] of the thread to initialize our field
-     * [mServiceLooper] and use it to construct an instance of [ServiceHandler] for our field
-     * [mServiceHandler].
+     * `chan1`. Then we display a toast with the message "Service created." Finally we create the
+     * [CommandScheduler] for our field [mScheduler], which starts its worker threads.
      */
     override fun onCreate() {
         mNM = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
@@ -142,14 +372,7 @@ class ServiceStartArguments : Service() {
         chan1.lockscreenVisibility = Notification.VISIBILITY_PRIVATE
         mNM!!.createNotificationChannel(chan1)
         Toast.makeText(this, R.string.service_created, Toast.LENGTH_SHORT).show()
-        // Start up the thread running the service.  Note that we create a
-// separate thread because the service normally runs in the process's
-// main thread, which we don't want to block.  We also make it
-// background priority so CPU-intensive work will not disrupt our UI.
-        val thread = HandlerThread("ServiceStartArgumentsBackground", Process.THREAD_PRIORITY_BACKGROUND)
-        thread.start()
-        mServiceLooper = thread.looper
-        mServiceHandler = ServiceHandler(mServiceLooper)
+        mScheduler = CommandScheduler()
     }
 
     /**
@@ -158,12 +381,10 @@ class ServiceStartArguments : Service() {
      * unique integer token representing the start request. Note that the system calls this on your
      * service's main thread. First we log a message informing the user that we are "Starting #",
      * with the `startId` request number, and the contents of the extras included in the
-     * [Intent] parameter [intent] that started us. We obtain a [Message] from our background
-     * [ServiceHandler] in field [mServiceHandler] to initialize variable `val msg`, set its field
-     * `arg1` to our parameter [startId] push `msg` onto the end of the message queue for
-     * [mServiceHandler] after all pending messages before the current time. It will be received
-     * in `handleMessage(Message)`, in the thread attached to this handler. Then we log the message
-     * "Sending: " with `msg` appended to it.
+     * [Intent] parameter [intent] that started us. We then submit the command to our
+     * [CommandScheduler] field [mScheduler] in the lane given by the [Int] extra stored under
+     * the key [EXTRA_PRIORITY] (LANE_NORMAL if there is none). It will be received in
+     * `handleMessage(Message)` of one of the worker threads of the scheduler.
      *
      * Then we check to see if we were started using the "Start Failed Delivery" [Button], and
      * if so we kill our process to simulate a failed delivery (but only if this is not a retry
@@ -189,12 +410,8 @@ class ServiceStartArguments : Service() {
      */
     override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
         Log.i(TAG, "Starting #" + startId + ": " + intent.extras)
-        val msg = mServiceHandler!!.obtainMessage()
-        msg.arg1 = startId
-        msg.arg2 = flags
-        msg.obj = intent.extras
-        mServiceHandler!!.sendMessage(msg)
-        Log.i(TAG, "Sending: $msg")
+        val lane = intent.getIntExtra(EXTRA_PRIORITY, LANE_NORMAL).coerceIn(0, LANE_COUNT - 1)
+        mScheduler!!.submit(lane, startId, flags, intent.extras)
         /**
          * For the start fail button, we will simulate the process dying
          * for some reason in onStartCommand().
@@ -225,12 +442,12 @@ class ServiceStartArguments : Service() {
 
     /**
      * Called by the system to notify a Service that it is no longer used and is being removed.
-     * First we tell our [Looper] field [mServiceLooper] which is receiving messages to terminate
-     * without processing any more messages in the message queue. Then we call our method
+     * First we tell our [CommandScheduler] field [mScheduler] to quit the loopers of its worker
+     * threads without processing any more messages in their message queues. Then we call our method
      * [hideNotification] which cancels our notification, and toast the message "Service destroyed."
      */
     override fun onDestroy() {
-        mServiceLooper!!.quit()
+        mScheduler!!.quit()
         hideNotification()
         /**
          * Tell the user we stopped.
@@ -318,6 +535,8 @@ class ServiceStartArguments : Service() {
          *  * R.id.start2 "Start Two no redeliver" [mStart2Listener]
          *  * R.id.start3 "Start Three w/redeliver" [mStart3Listener]
          *  * R.id.startfail "Start failed delivery" [mStartFailListener]
+         *  * R.id.start_urgent "Start Urgent high priority" [mStartUrgentListener]
+         *  * R.id.start_burst "Start 5 low priority" [mStartBurstListener]
          *  * R.id.kill "Kill Process" [mKillListener]
          *
          *
@@ -335,6 +554,10 @@ class ServiceStartArguments : Service() {
             button.setOnClickListener(mStart3Listener)
             button = findViewById(R.id.startfail)
             button.setOnClickListener(mStartFailListener)
+            button = findViewById(R.id.start_urgent)
+            button.setOnClickListener(mStartUrgentListener)
+            button = findViewById(R.id.start_burst)
+            button.setOnClickListener(mStartBurstListener)
             button = findViewById(R.id.kill)
             button.setOnClickListener(mKillListener)
         }
@@ -381,6 +604,31 @@ class ServiceStartArguments : Service() {
                     .putExtra("name", "Failure")
                     .putExtra("fail", true))
         }
+        /**
+         * `OnClickListener` for the R.id.start_urgent "Start Urgent high priority" Button, calls
+         * the [startService] method with an explicit [Intent] for the [ServiceStartArguments]
+         * class with an extra storing the [String] "Urgent" under the key "name", and an extra
+         * storing LANE_URGENT under the key [EXTRA_PRIORITY].
+         */
+        private val mStartUrgentListener = View.OnClickListener {
+            startService(Intent(this@Controller, ServiceStartArguments::class.java)
+                    .putExtra("name", "Urgent")
+                    .putExtra(EXTRA_PRIORITY, LANE_URGENT))
+        }
+        /**
+         * `OnClickListener` for the R.id.start_burst "Start 5 low priority" Button, calls the
+         * [startService] method 5 times with an explicit [Intent] for the [ServiceStartArguments]
+         * class with an extra storing the [String] "Low 1" to "Low 5" under the key "name", and an
+         * extra storing LANE_LOW under the key [EXTRA_PRIORITY]. Starting an urgent command right
+         * after shows that it does not wait for these.
+         */
+        private val mStartBurstListener = View.OnClickListener {
+            for (i in 1..5) {
+                startService(Intent(this@Controller, ServiceStartArguments::class.java)
+                        .putExtra("name", "Low $i")
+                        .putExtra(EXTRA_PRIORITY, LANE_LOW))
+            }
+        }
         /**
          * `OnClickListener` for the R.id.kill "Kill Process" Button, calls the [Process.killProcess]
          * method with the PID of our process which the [Process.myPid] returns
@@ -405,5 +653,34 @@ class ServiceStartArguments : Service() {
          * The id of the primary notification channel
          */
         const val PRIMARY_CHANNEL = "default"
+        /**
+         * Key of the [Int] extra of the start [Intent] choosing the lane (priority) of the
+         * command, one of LANE_URGENT, LANE_NORMAL or LANE_LOW
+         */
+        const val EXTRA_PRIORITY = "priority"
+        /**
+         * Lane of urgent commands
+         */
+        const val LANE_URGENT = 0
+        /**
+         * Lane of normal commands, the default
+         */
+        const val LANE_NORMAL = 1
+        /**
+         * Lane of low priority commands
+         */
+        const val LANE_LOW = 2
+        /**
+         * Number of lanes
+         */
+        private const val LANE_COUNT = 3
+        /**
+         * Round robin weight of each lane, indexed by lane
+         */
+        private val LANE_WEIGHTS = intArrayOf(4, 2, 1)
+        /**
+         * Number of worker threads, one of which is kept for urgent commands
+         */
+        private const val WORKER_COUNT = 3
     }
 }
\ No newline at end of file
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.apis.app
+
+import android.os.ParcelFileDescriptor
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Single writer, multiple reader ring buffer of [Int] values living in memory shared between
+ * processes, used by [RemoteService] to stream its values to clients without a binder transaction
+ * per value. The memory is a file mapped by both processes: the writer creates it, unlinks it
+ * and hands a read only [ParcelFileDescriptor] to readers, which map it themselves.
+ *
+ * The layout is a header holding a magic number, the capacity and the low 32 bits of the number
+ * of values ever written, followed by [capacity] slots of two [Int] words: a stamp and the value.
+ * Every access to the shared memory is an aligned 32 bit load or store, which is single copy
+ * atomic on every ABI (a 64 bit access may tear on 32 bit ARM). Each slot is a seqlock of its
+ * own, the stamp being its sequence word:
+ *
+ *  * To write value number `n` (values are numbered from 1) the writer stores [BUSY] in the
+ *  stamp, then the value, then the stamp of `n` (see [stamp]), and only then publishes the new
+ *  count in the header, with a [fence] between each of these stores.
+ *  * To read value number `n` a reader loads the count, then the stamp, then the value and then
+ *  the stamp again, with a [fence] between each of these loads. The value is only accepted if
+ *  both stamps are the stamp of `n`, otherwise the writer has lapped the reader and overwritten
+ *  (or is overwriting) the slot.
+ *
+ * Stamps are always odd and [BUSY] is 0, so neither a slot which is being written nor one which
+ * was never written (the file starts out zeroed) can be mistaken for a value.
+ */
+class SharedValueRing
+/**
+ * Our constructor, use [create] or [open] to get an instance.
+ *
+ * @param mBuffer the mapped memory of the ring.
+ * @param capacity the number of slots of the ring.
+ */
+private constructor(
+        /**
+         * The mapped memory of the ring, in native byte order.
+         */
+        private val mBuffer: ByteBuffer,
+        /**
+         * The number of slots of the ring, a reader which falls further behind than this loses
+         * values.
+         */
+        val capacity: Int
+) {
+    /**
+     * Number of values written by this instance, only used by the writer.
+     */
+    private var mWritten = 0L
+
+    /**
+     * Number of values ever written to the ring as last published by the writer, modulo 2^32.
+     * Readers keep their own 64 bit count and only use the difference between two of these.
+     */
+    private val publishedCount: Int
+        get() = mBuffer.getInt(OFFSET_WRITTEN)
+
+    /**
+     * Reads the values of the ring in order. Each [Reader] has its own position and must only be
+     * used by one thread.
+     */
+    inner class Reader {
+        /**
+         * Number of values this reader has consumed (read or dropped), the next value it reads
+         * is value number `cursor + 1`. It starts at the number of values written so far, so a
+         * new reader only sees values written after it was created.
+         */
+        var cursor = publishedCount.toLong() and 0xffffffffL
+            private set
+        /**
+         * Number of values which were overwritten before this reader got to them.
+         */
+        var dropped = 0L
+            private set
+
+        /**
+         * Copies the values written since our last call into [out], oldest first, and returns
+         * how many were copied. If more than `out.size` values are waiting the rest are left for
+         * the next call. If the writer has lapped us the values lost are skipped and counted in
+         * [dropped].
+         *
+         * @param out array to copy the values into.
+         * @return the number of values copied into [out].
+         */
+        fun poll(out: IntArray): Int {
+            val end = cursor + (publishedCount - cursor.toInt())
+            fence()
+            if (cursor < end - capacity) {
+                dropped += end - capacity - cursor
+                cursor = end - capacity
+            }
+            var count = 0
+            while (cursor < end && count < out.size) {
+                val index = cursor + 1
+                val value = read(index)
+                if (value != null) {
+                    out[count++] = value
+                } else {
+                    dropped++
+                }
+                cursor = index
+            }
+            return count
+        }
+    }
+
+    /**
+     * Appends [value] to the ring, overwriting the oldest value once the ring is full. Only the
+     * process which created the ring may call this, and only from one thread at a time. The slot
+     * is marked [BUSY] while it is rewritten, and the count of values written is only published
+     * once the slot holds the stamp of the new value, so a reader which sees the new count also
+     * sees the new slot.
+     *
+     * @param value the value to append.
+     */
+    fun write(value: Int) {
+        val index = mWritten + 1
+        val offset = slotOffset(index)
+        mBuffer.putInt(offset + SLOT_STAMP, BUSY)
+        fence()
+        mBuffer.putInt(offset + SLOT_VALUE, value)
+        fence()
+        mBuffer.putInt(offset + SLOT_STAMP, stamp(index))
+        fence()
+        mWritten = index
+        mBuffer.putInt(OFFSET_WRITTEN, index.toInt())
+    }
+
+    /**
+     * Returns the most recently written value, or [default] if there is none (or it is being
+     * overwritten).
+     *
+     * @param default the value to return if there is no value to read.
+     * @return the latest value.
+     */
+    fun latest(default: Int): Int {
+        val index = publishedCount.toLong() and 0xffffffffL
+        fence()
+        if (index == 0L) return default
+        return read(index) ?: default
+    }
+
+    /**
+     * Reads value number [index] from its slot, following the read side of the seqlock: stamp,
+     * value, stamp again.
+     *
+     * @param index the number of the value to read, from 1.
+     * @return the value, or *null* if its slot no longer (or not yet) holds it.
+     */
+    private fun read(index: Long): Int? {
+        val offset = slotOffset(index)
+        val expected = stamp(index)
+        if (mBuffer.getInt(offset + SLOT_STAMP) != expected) return null
+        fence()
+        val value = mBuffer.getInt(offset + SLOT_VALUE)
+        fence()
+        return if (mBuffer.getInt(offset + SLOT_STAMP) == expected) value else null
+    }
+
+    /**
+     * Returns the offset in [mBuffer] of the slot used by the value with index [index].
+     *
+     * @param index the index of a value.
+     * @return offset of its slot.
+     */
+    private fun slotOffset(index: Long): Int {
+        return HEADER_SIZE + (index % capacity).toInt() * SLOT_SIZE
+    }
+
+    /**
+     * Our static constants and factory methods.
+     */
+    companion object {
+        /**
+         * Magic number identifying the ring, stored at [OFFSET_MAGIC].
+         */
+        private const val MAGIC = 0x52696e67 // "Ring"
+        /**
+         * Offset of the magic number in the header.
+         */
+        private const val OFFSET_MAGIC = 0
+        /**
+         * Offset of the capacity in the header.
+         */
+        private const val OFFSET_CAPACITY = 4
+        /**
+         * Offset of the number of values written in the header.
+         */
+        private const val OFFSET_WRITTEN = 8
+        /**
+         * Size of the header, the slots follow it.
+         */
+        private const val HEADER_SIZE = 16
+        /**
+         * Size of a slot.
+         */
+        private const val SLOT_SIZE = 8
+        /**
+         * Offset of the stamp in a slot.
+         */
+        private const val SLOT_STAMP = 0
+        /**
+         * Offset of the value in a slot.
+         */
+        private const val SLOT_VALUE = 4
+        /**
+         * Stamp of a slot which is being written, or was never written.
+         */
+        private const val BUSY = 0
+
+        /**
+         * Volatile variable [fence] writes and reads.
+         */
+        private val sFence = AtomicInteger()
+
+        /**
+         * Keeps the loads and stores of the shared memory on either side of the call from being
+         * reordered across it, by the compiler or the CPU. Plain `ByteBuffer` accesses carry no
+         * ordering at all, and minSdk 16 has no explicit fence (`VarHandle.fullFence` only came
+         * with API 33), but ART compiles a volatile write followed by a volatile read of the same
+         * variable to a full barrier on every ABI (`dmb ish` on ARM, a release store followed by
+         * an acquire load on ARM64, a locked instruction on x86).
+         */
+        private fun fence() {
+            sFence.set(0)
+            sFence.get()
+        }
+
+        /**
+         * Returns the stamp of value number [index]: its low 31 bits shifted left, with the low
+         * bit set so that it never equals [BUSY].
+         *
+         * @param index the number of a value, from 1.
+         * @return the stamp to store in its slot.
+         */
+        private fun stamp(index: Long): Int {
+            return (index.toInt() shl 1) or 1
+        }
+
+        /**
+         * Creates a ring of [capacity] slots for writing, backed by the file [file]. The file is
+         * mapped, opened read only for readers and then deleted so that only our mapping and the
+         * file descriptor keep the memory alive.
+         *
+         * @param file the file to create, in our private storage.
+         * @param capacity the number of slots.
+         * @return the ring and a read only [ParcelFileDescriptor] for it, which the caller owns.
+         * @throws IOException if the file cannot be created or mapped.
+         */
+        @Throws(IOException::class)
+        fun create(file: File, capacity: Int): Pair<SharedValueRing, ParcelFileDescriptor> {
+            val size = (HEADER_SIZE + capacity * SLOT_SIZE).toLong()
+            RandomAccessFile(file, "rw").use { raf ->
+                raf.setLength(size)
+                val buffer = raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+                buffer.order(ByteOrder.nativeOrder())
+                buffer.putInt(OFFSET_MAGIC, MAGIC)
+                buffer.putInt(OFFSET_CAPACITY, capacity)
+                buffer.putInt(OFFSET_WRITTEN, 0)
+                val readFd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)
+                file.delete()
+                return Pair(SharedValueRing(buffer, capacity), readFd)
+            }
+        }
+
+        /**
+         * Maps the ring whose read only file descriptor is [fd] for reading. We close [fd] once
+         * it is mapped, the mapping stays valid.
+         *
+         * @param fd the [ParcelFileDescriptor] handed out by the writer.
+         * @return the ring, only its read methods may be used.
+         * @throws IOException if [fd] cannot be mapped or does not hold a ring.
+         */
+        @Throws(IOException::class)
+        fun open(fd: ParcelFileDescriptor): SharedValueRing {
+            fd.use {
+                FileInputStream(fd.fileDescriptor).channel.use { channel ->
+                    if (channel.size() < HEADER_SIZE) {
+                        throw IOException("Not a value ring")
+                    }
+                    val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    buffer.order(ByteOrder.nativeOrder())
+                    val capacity = buffer.getInt(OFFSET_CAPACITY)
+                    if (buffer.getInt(OFFSET_MAGIC) != MAGIC || capacity <= 0
+                            || channel.size() < HEADER_SIZE + capacity.toLong() * SLOT_SIZE) {
+                        throw IOException("Not a value ring")
+                    }
+                    return SharedValueRing(buffer, capacity)
+                }
+            }
+        }
+    }
+}
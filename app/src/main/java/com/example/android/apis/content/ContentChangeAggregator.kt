@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.apis.content
+
+import android.net.Uri
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import java.util.*
+
+/**
+ * Merges the content changes reported by many runs of a content trigger job into bursts, so that
+ * a mass import which triggers the job over and over is processed (and reported) once. Each call
+ * of [add] adds the triggering authorities and URIs to deduplicated sets, and pushes back the end
+ * of the burst to [windowMs] after the latest change: a sliding debounce window. So that a steady
+ * stream of changes cannot hold a burst back forever, a burst always ends [maxWaitMs] after its
+ * first change. When a burst ends its [Burst] is handed to our [Listener] on our worker thread,
+ * never on the main thread.
+ *
+ * Times are measured with `elapsedRealtime`, which keeps counting while the device is in deep
+ * sleep, but our timer can only fire while the CPU is awake: the owner is expected to hold a
+ * wakelock (a running job does) for as long as a burst is pending, and to call [quit] when it is
+ * done with us.
+ *
+ * @param windowMs how long after the latest change a burst ends.
+ * @param maxWaitMs how long after the first change a burst ends at the latest.
+ */
+class ContentChangeAggregator(
+        private val windowMs: Long,
+        private val maxWaitMs: Long
+) {
+    /**
+     * Told about each burst of changes.
+     */
+    interface Listener {
+        /**
+         * Called on the worker thread of the aggregator when a burst ends.
+         *
+         * @param burst the changes of the burst.
+         */
+        fun onBurst(burst: Burst)
+    }
+
+    /**
+     * The changes of one burst.
+     *
+     * @param authorities the distinct authorities which triggered during the burst.
+     * @param uris the distinct URIs which triggered during the burst.
+     * @param triggers number of times [add] was called during the burst.
+     * @param overflow *true* if some trigger could not tell which URIs changed.
+     * @param latencyMs time from the first change of the burst to its delivery.
+     */
+    class Burst(
+            val authorities: Set<String>,
+            val uris: Set<Uri>,
+            val triggers: Int,
+            val overflow: Boolean,
+            val latencyMs: Long
+    )
+
+    /**
+     * Thread our bursts are delivered on.
+     */
+    private val mThread = HandlerThread("ContentChangeAggregator").apply { start() }
+    /**
+     * [Handler] running [mFlush] on [mThread].
+     */
+    private val mHandler = Handler(mThread.looper)
+    /**
+     * Delivers the pending burst, run on [mThread].
+     */
+    private val mFlush = Runnable { flush() }
+    /**
+     * Authorities of the pending burst.
+     */
+    private var mAuthorities = LinkedHashSet<String>()
+    /**
+     * URIs of the pending burst.
+     */
+    private var mUris = LinkedHashSet<Uri>()
+    /**
+     * Number of calls of [add] of the pending burst.
+     */
+    private var mTriggers = 0
+    /**
+     * *true* if a trigger of the pending burst did not say which URIs changed.
+     */
+    private var mOverflow = false
+    /**
+     * `elapsedRealtime` of the first change of the pending burst, 0 if no burst is pending.
+     */
+    private var mBurstStart = 0L
+    /**
+     * Our [Listener], if any.
+     */
+    private var mListener: Listener? = null
+
+    /**
+     * Number of bursts delivered so far.
+     */
+    var bursts = 0
+        private set
+    /**
+     * Number of triggers merged into the bursts delivered so far.
+     */
+    var triggers = 0L
+        private set
+    /**
+     * The last burst delivered, if any.
+     */
+    var lastBurst: Burst? = null
+        private set
+
+    /**
+     * Sets the [Listener] told about our bursts.
+     *
+     * @param listener the [Listener], or *null* to stop listening.
+     */
+    @Synchronized
+    fun setListener(listener: Listener?) {
+        mListener = listener
+    }
+
+    /**
+     * Adds the changes of one trigger to the pending burst, starting one if none is pending, and
+     * moves the end of the burst to [windowMs] from now, or to [maxWaitMs] after its first change
+     * if that is sooner.
+     *
+     * @param authorities the authorities which triggered, as returned by
+     * `getTriggeredContentAuthorities`.
+     * @param uris the URIs which triggered, as returned by `getTriggeredContentUris`, *null* if
+     * too many changed for the system to say.
+     */
+    @Synchronized
+    fun add(authorities: Array<String>?, uris: Array<Uri>?) {
+        val now = SystemClock.elapsedRealtime()
+        if (mBurstStart == 0L) {
+            mBurstStart = now
+        }
+        authorities?.let { mAuthorities.addAll(it) }
+        if (uris != null) {
+            mUris.addAll(uris)
+        } else if (authorities != null) {
+            mOverflow = true
+        }
+        mTriggers++
+        mHandler.removeCallbacks(mFlush)
+        mHandler.postDelayed(mFlush, minOf(now + windowMs, mBurstStart + maxWaitMs) - now)
+    }
+
+    /**
+     * Drops the pending burst, if any, without telling our [Listener] about it.
+     */
+    @Synchronized
+    fun clear() {
+        mHandler.removeCallbacks(mFlush)
+        mAuthorities = LinkedHashSet()
+        mUris = LinkedHashSet()
+        mTriggers = 0
+        mOverflow = false
+        mBurstStart = 0L
+    }
+
+    /**
+     * Drops the pending burst and stops our worker thread, we cannot be used after this.
+     */
+    fun quit() {
+        clear()
+        mThread.quit()
+    }
+
+    /**
+     * Ends the pending burst: we take its changes, update our counts and hand it to our
+     * [Listener]. Run on [mThread], the listener is called without holding our lock so that [add]
+     * is never blocked by it.
+     */
+    private fun flush() {
+        val burst: Burst
+        val listener: Listener?
+        synchronized(this) {
+            if (mBurstStart == 0L) return
+            burst = Burst(mAuthorities, mUris, mTriggers, mOverflow,
+                    SystemClock.elapsedRealtime() - mBurstStart)
+            mAuthorities = LinkedHashSet()
+            mUris = LinkedHashSet()
+            mTriggers = 0
+            mOverflow = false
+            mBurstStart = 0L
+            bursts++
+            triggers += burst.triggers
+            lastBurst = burst
+            listener = mListener
+        }
+        listener?.onBurst(burst)
+    }
+}
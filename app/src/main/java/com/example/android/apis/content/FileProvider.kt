@@ -16,6 +16,7 @@
 package com.example.android.apis.content
 
 import android.annotation.TargetApi
+import android.content.ClipDescription
 import android.content.ContentProvider
 import android.content.ContentProvider.PipeDataWriter
 import android.content.ContentValues
@@ -25,19 +26,47 @@ import android.database.MatrixCursor
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.HandlerThread
 import android.os.ParcelFileDescriptor
+import android.os.ProxyFileDescriptorCallback
+import android.os.storage.StorageManager
+import android.system.ErrnoException
+import android.system.OsConstants
 import android.provider.OpenableColumns
 import android.util.Log
+import com.example.android.apis.StreamUtils
+import java.io.FileInputStream
 import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 
 /**
  * A very simple content provider that can serve arbitrary asset files from our .apk.
+ *
+ * Clients which open a [Uri] with `openFileDescriptor` or `openInputStream` get a pipe which a
+ * helper thread fills by copying the file out of the .apk (see [openFile]). Clients which ask for
+ * a typed [AssetFileDescriptor] with `openTypedAssetFileDescriptor` instead get, whenever the file
+ * is stored uncompressed, a slice (offset and length) of the .apk itself with no copying at all, so
+ * that they can `mmap` it or `sendfile` it wherever they like (see [openTypedAssetFile]).
+ *
+ * A client which only wants part of a file can add the query parameters [QUERY_OFFSET] and
+ * [QUERY_LENGTH] to the [Uri], and only that byte range is sent (or sliced). A client which needs
+ * to seek, such as an image viewer or a video player, can add [QUERY_SEEKABLE]=true on Android O
+ * or newer and gets a seekable proxy file descriptor whose reads are served by positional reads of
+ * the .apk, so random access costs only the bytes actually read.
  */
 @TargetApi(Build.VERSION_CODES.HONEYCOMB)
 class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
+    /**
+     * [Handler] of the thread which serves the reads of our seekable proxy file descriptors,
+     * created by [proxyHandler] when the first one is opened.
+     */
+    private var mProxyHandler: Handler? = null
+
     /**
      * Implement this to initialize your content provider on startup, we simply return *true*
      *
@@ -59,8 +88,8 @@ class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
      * hold the row for `cursor` which we will build. We build this row by going through the columns
      * needed to build a row and if the index of the column matches `displayNameIndex` we store the
      * decoded path of the [Uri] parameter [uri] in that column, and if the index of the column matches
-     * `sizeIndex` we store the arbitrary value 42 in that column (the size of the file being piped
-     * is unknown, but gmail needs it.) Then we add the row `result` to `cursor` and return it to
+     * `sizeIndex` we store the size returned by our method [sizeOf] for [uri] in that column (or the
+     * arbitrary value 42 if the size is unknown, gmail needs one.) Then we add the row `result` to `cursor` and return it to
      * the caller.
      *
      * @param uri The URI to query. This will be the full URI sent by the client; if the client is
@@ -114,9 +143,10 @@ class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
             }
             if (i == sizeIndex) {
                 /**
-                 * Size is unknown, so let us pretend it is 42 and surprise, it works!
+                 * If the size is unknown, let us pretend it is 42 and surprise, it works!
                  */
-                result[i] = 42L
+                val size = sizeOf(uri)
+                result[i] = if (size >= 0) size else 42L
             }
         }
         cursor.addRow(result)
@@ -179,26 +209,20 @@ class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
     }
 
     /**
-     * Override this to handle requests to open a file blob. Wrapped in a try block intended to catch
-     * [IOException], we initialize [String] `val path` to the decoded path of our [Uri] parameter
-     * [uri] (Since [uri] is "content://com.example.android.apis.content.FileProvider/2/res/drawable-nodpi-v4/jellies.jpg"
-     * that is: "/2/res/drawable-nodpi-v4/jellies.jpg" in our case), locate the index of the '/'
-     * character following the cookie to set `val off` and if we don't find it where we expect it we
-     * throw [FileNotFoundException]. We extract the cookie substring ("2" in our case) and convert
-     * it to [Int] `val cookie`, and set [String] `val assetPath` to the rest of the `path` following
-     * the '/' character that terminated the cookie part of the path. ("res/drawable-nodpi-v4/jellies.jpg"
-     * in our case).
-     *
-     * We create [AssetFileDescriptor] `val asset` by getting the context this provider is running
-     * in, using it to get an `AssetManager` instance for the application's package, which we in
-     * turn use to open a non-asset file descriptor using `cookie` and `assetPath`.
+     * Override this to handle requests to open a file blob. We create and return a
+     * [ParcelFileDescriptor] constructed using the [ParcelFileDescriptor] returned by
+     * `openPipeHelper` which it builds using [uri] as the URI whose data is to be written, a mime
+     * type of "image/jpeg", a *null* option [Bundle], the [InputStream] returned by our method
+     * [openStream] for [uri] as the arguments to the function that will actually stream the data,
+     * and *this* as the `PipeDataWriter<InputStream>` that will actually stream the data from the
+     * [InputStream] argument. A pipe is used since a client calling `openFileDescriptor` cannot
+     * handle a slice of the .apk, clients which can get one from [openTypedAssetFile]. The byte
+     * range requested by the [QUERY_OFFSET] and [QUERY_LENGTH] query parameters of [uri] (if any)
+     * is passed in the option [Bundle] so that [writeDataToPipe] sends only that range.
      *
-     * We then create and return a [ParcelFileDescriptor] constructed using the [ParcelFileDescriptor]
-     * returned by `openPipeHelper` which it builds using [uri] as the URI whose data is to be written,
-     * a mime type of "image/jpeg", a *null* option [Bundle], a `FileInputStream` created from `asset`
-     * as the arguments to the function that will actually stream the data, and *this* as the
-     * `PipeDataWriter<InputStream>` that will actually stream the data from the `FileInputStream`
-     * argument.
+     * If [uri] has the query parameter [QUERY_SEEKABLE] set to true and we are running on Android
+     * O or newer we instead return the seekable proxy file descriptor created by [openSeekable],
+     * unless the file is stored compressed in which case only a pipe is possible.
      *
      * @param uri The URI whose file is to be opened.
      * @param mode Access mode for the file.  May be "r" for read-only access, "rw" for read and
@@ -212,41 +236,248 @@ class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
      */
     @Throws(FileNotFoundException::class)
     override fun openFile(uri: Uri, mode: String): ParcelFileDescriptor? { // Try to open an asset with the given name.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && uri.getBooleanQueryParameter(QUERY_SEEKABLE, false)) {
+            val proxy = openSeekable(uri)
+            if (proxy != null) return proxy
+        }
+        val (offset, length) = parseRange(uri)
+        val opts = Bundle()
+        opts.putLong(QUERY_OFFSET, offset)
+        opts.putLong(QUERY_LENGTH, length)
+        return ParcelFileDescriptor(
+                openPipeHelper(uri, "image/jpeg",
+                        opts,
+                        openStream(uri),
+                        this
+                )
+        )
+    }
+
+    /**
+     * Called by a client to open a file as a typed [AssetFileDescriptor], unlike
+     * `openFileDescriptor` such a client is ready for a descriptor which is only a slice of a larger
+     * file. If the MIME type of our data ("image/jpeg") does not match our [String] parameter
+     * [mimeTypeFilter] we defer to our super's implementation (which throws). Otherwise if the file
+     * named by [uri] is stored uncompressed in our .apk, `openNonAssetFd` gives us the .apk file
+     * descriptor with the offset and length of the file, and we return that as is: the client reads
+     * (or maps) the bytes straight from the .apk and no thread of ours is involved. A byte range
+     * requested with the [QUERY_OFFSET] and [QUERY_LENGTH] query parameters just narrows the slice.
+     * If it is stored compressed we fall back to wrapping the pipe returned by [openFile], of
+     * unknown length.
+     *
+     * Note that the client gets a descriptor of the whole .apk, which is harmless since the .apk is
+     * readable by every app anyway.
+     *
+     * @param uri The data in the content provider being queried.
+     * @param mimeTypeFilter The type of data the client desires.
+     * @param opts Additional options from the client, we ignore them.
+     * @return an [AssetFileDescriptor] for the file.
+     * @throws FileNotFoundException if there is no file associated with [uri].
+     */
+    @Throws(FileNotFoundException::class)
+    override fun openTypedAssetFile(uri: Uri, mimeTypeFilter: String, opts: Bundle?): AssetFileDescriptor? {
+        if (!ClipDescription.compareMimeTypes("image/jpeg", mimeTypeFilter)) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts)
+        }
+        val (cookie, assetPath) = parseAssetPath(uri)
         return try {
-            val path = uri.path
-            val off = path!!.indexOf('/', 1)
-            if (off < 0 || off >= path.length - 1) {
-                throw FileNotFoundException("Unable to open $uri")
+            val asset = context!!.assets.openNonAssetFd(cookie, assetPath)
+            val (offset, length) = parseRange(uri)
+            if (offset == 0L && length < 0) {
+                asset
+            } else {
+                val start = offset.coerceAtMost(asset.length)
+                val available = asset.length - start
+                AssetFileDescriptor(asset.parcelFileDescriptor, asset.startOffset + start,
+                        if (length < 0) available else length.coerceAtMost(available))
+            }
+        } catch (e: FileNotFoundException) {
+            // Compressed, so there is no slice of the .apk to hand out.
+            AssetFileDescriptor(openFile(uri, "r")!!, 0, AssetFileDescriptor.UNKNOWN_LENGTH)
+        }
+    }
+
+    /**
+     * Splits the decoded path of our [Uri] parameter [uri] into the cookie of the .apk holding the
+     * file and the path of the file in that .apk. (Since [uri] is
+     * "content://com.example.android.apis.content.FileProvider/2/res/drawable-nodpi-v4/jellies.jpg"
+     * that is: 2 and "res/drawable-nodpi-v4/jellies.jpg" in our case).
+     *
+     * @param uri The URI whose file is to be opened.
+     * @return the cookie and the path of the file in the .apk.
+     * @throws FileNotFoundException if [uri] does not have the form "/cookie/path".
+     */
+    @Throws(FileNotFoundException::class)
+    private fun parseAssetPath(uri: Uri): Pair<Int, String> {
+        val path = uri.path ?: throw FileNotFoundException("Unable to open $uri")
+        val off = path.indexOf('/', 1)
+        if (off < 0 || off >= path.length - 1) {
+            throw FileNotFoundException("Unable to open $uri")
+        }
+        val cookie = try {
+            path.substring(1, off).toInt()
+        } catch (e: NumberFormatException) {
+            throw FileNotFoundException("Unable to open $uri")
+        }
+        return Pair(cookie, path.substring(off + 1))
+    }
+
+    /**
+     * Returns the byte range requested by the [QUERY_OFFSET] and [QUERY_LENGTH] query parameters
+     * of [uri]. A missing offset means 0, a missing length means up to the end of the file.
+     *
+     * @param uri The URI whose file is to be opened.
+     * @return the offset of the range and its length, or -1 for the rest of the file.
+     * @throws FileNotFoundException if the parameters are not valid non-negative numbers.
+     */
+    @Throws(FileNotFoundException::class)
+    private fun parseRange(uri: Uri): Pair<Long, Long> {
+        return try {
+            val offset = uri.getQueryParameter(QUERY_OFFSET)?.toLong() ?: 0L
+            val length = uri.getQueryParameter(QUERY_LENGTH)?.toLong() ?: -1L
+            if (offset < 0 || length < -1) throw NumberFormatException()
+            Pair(offset, length)
+        } catch (e: NumberFormatException) {
+            throw FileNotFoundException("Invalid range in $uri")
+        }
+    }
+
+    /**
+     * Returns the size of the file named by [uri] if it is stored uncompressed, -1 otherwise.
+     *
+     * @param uri The URI of the file.
+     * @return the size of the file, or -1 if it is unknown.
+     */
+    private fun sizeOf(uri: Uri): Long {
+        return try {
+            val (cookie, assetPath) = parseAssetPath(uri)
+            context!!.assets.openNonAssetFd(cookie, assetPath).use { it.length }
+        } catch (e: IOException) {
+            -1L
+        }
+    }
+
+    /**
+     * Opens a seekable proxy file descriptor for the file named by [uri] with the `openProxyFileDescriptor`
+     * method of [StorageManager]. The system calls back our [ProxyFileDescriptorCallback] on the
+     * thread of [mProxyHandler] for each read of the client, and we serve it with a positional read
+     * of the .apk at the start offset of the file plus the offset of the read, so nothing is read
+     * that the client does not ask for and the client may seek freely.
+     *
+     * @param uri The URI whose file is to be opened.
+     * @return a seekable [ParcelFileDescriptor], or *null* if the file is stored compressed.
+     * @throws FileNotFoundException if there is no file associated with [uri].
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    @Throws(FileNotFoundException::class)
+    private fun openSeekable(uri: Uri): ParcelFileDescriptor? {
+        val (cookie, assetPath) = parseAssetPath(uri)
+        val context = context!!
+        val asset = try {
+            context.assets.openNonAssetFd(cookie, assetPath)
+        } catch (e: FileNotFoundException) {
+            return null
+        }
+        val channel = FileInputStream(asset.fileDescriptor).channel
+        val callback = object : ProxyFileDescriptorCallback() {
+            override fun onGetSize(): Long {
+                return asset.length
+            }
+
+            override fun onRead(offset: Long, size: Int, data: ByteArray): Int {
+                val count = size.toLong().coerceAtMost(asset.length - offset).toInt()
+                if (count <= 0) return 0
+                val buffer = ByteBuffer.wrap(data, 0, count)
+                try {
+                    while (buffer.hasRemaining()) {
+                        val n = channel.read(buffer, asset.startOffset + offset + buffer.position())
+                        if (n < 0) break
+                    }
+                } catch (e: IOException) {
+                    Log.i(TAG, "Failed reading $uri", e)
+                    throw ErrnoException("onRead", OsConstants.EIO)
+                }
+                return buffer.position()
             }
-            val cookie = path.substring(1, off).toInt()
-            val assetPath = path.substring(off + 1)
-            val asset: AssetFileDescriptor = context!!.assets.openNonAssetFd(cookie, assetPath)
-            ParcelFileDescriptor(
-                    openPipeHelper(uri, "image/jpeg",
-                            null,
-                            asset.createInputStream(),
-                            this
-                    )
-            )
+
+            override fun onRelease() {
+                try {
+                    asset.close()
+                } catch (e: IOException) {
+                    Log.i(TAG, e.localizedMessage!!)
+                }
+            }
+        }
+        val storage = context.getSystemService(StorageManager::class.java)
+        return try {
+            storage.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY, callback, proxyHandler())
         } catch (e: IOException) {
+            asset.close()
             throw FileNotFoundException("Unable to open $uri")
         }
     }
 
+    /**
+     * Returns [mProxyHandler], starting its thread the first time we are called.
+     *
+     * @return the [Handler] our proxy file descriptor callbacks run on.
+     */
+    @Synchronized
+    private fun proxyHandler(): Handler {
+        var handler = mProxyHandler
+        if (handler == null) {
+            val thread = HandlerThread("FileProviderProxy")
+            thread.start()
+            handler = Handler(thread.looper)
+            mProxyHandler = handler
+        }
+        return handler
+    }
+
+    /**
+     * Opens an [InputStream] reading the file named by [uri]. If the file is stored uncompressed
+     * we read it through the [AssetFileDescriptor] returned by `openNonAssetFd`. That fails for a
+     * compressed file, and if it lives under "assets/" we can still read it (decompressing it as we
+     * go) with `AssetManager.open`.
+     *
+     * @param uri The URI whose file is to be opened.
+     * @return an [InputStream] reading the file.
+     * @throws FileNotFoundException if there is no file associated with [uri].
+     */
+    @Throws(FileNotFoundException::class)
+    private fun openStream(uri: Uri): InputStream {
+        val (cookie, assetPath) = parseAssetPath(uri)
+        val assets = context!!.assets
+        return try {
+            assets.openNonAssetFd(cookie, assetPath).createInputStream()
+        } catch (e: IOException) {
+            if (!assetPath.startsWith(ASSETS_PREFIX)) {
+                throw FileNotFoundException("Unable to open $uri")
+            }
+            try {
+                assets.open(assetPath.substring(ASSETS_PREFIX.length))
+            } catch (e2: IOException) {
+                throw FileNotFoundException("Unable to open $uri")
+            }
+        }
+    }
+
     /**
      * Called from a background thread to stream data out to a pipe. Note that the pipe is blocking,
      * so this thread can block on writes for an arbitrary amount of time if the client is slow
      * at reading.
      *
-     * First we allocate 8192 bytes for [Byte] array `val buffer`, declare an [Int] `var n` to hold
-     * the number of bytes read for each read attempt, and create [FileOutputStream] `val fout` using
-     * the actual `FileDescriptor` associated with our [ParcelFileDescriptor] parameter [output].
+     * First we create [FileOutputStream] `val fout` using the actual `FileDescriptor` associated
+     * with our [ParcelFileDescriptor] parameter [output].
      *
-     * Then wrapped in a try block intended to catch [IOException] we read from our [InputStream]
-     * parameter [args] into `buffer` capturing the number of bytes read in `n` and for as long as
-     * `n` is greater than or equal to 0, we write the `n` bytes in `buffer` to [FileOutputStream]
-     * `fout`. When we are at the end of file of `args`, `n` will be -1 and we fall through to the
-     * finally block where we close both `args` and `fout`.
+     * Then wrapped in a try block intended to catch [IOException] we use [StreamUtils.copy] to copy
+     * our [InputStream] parameter [args] to `fout` through a pooled buffer of
+     * [StreamUtils.CHUNK_SIZE] bytes (so that each transfer does not allocate its own buffer, and
+     * the pipe is written in large writes). If [opts] holds a byte range (under the keys
+     * [QUERY_OFFSET] and [QUERY_LENGTH]) the copy first skips to its offset and stops once its
+     * length has been written. Then we fall through to the finally block where we close both
+     * `args` and `fout`.
      *
      * @param output The pipe where data should be written. This will be closed for you upon
      * returning from this function.
@@ -264,13 +495,11 @@ class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
         /**
          * Transfer data from the asset to the pipe the client is reading.
          */
-        val buffer = ByteArray(8192)
-        var n: Int
         val fout = FileOutputStream(output.fileDescriptor)
         try {
-            while (args!!.read(buffer).also { n = it } >= 0) {
-                fout.write(buffer, 0, n)
-            }
+            StreamUtils.copy(args!!, fout,
+                    opts?.getLong(QUERY_OFFSET, 0L) ?: 0L,
+                    opts?.getLong(QUERY_LENGTH, -1L) ?: -1L)
         } catch (e: IOException) {
             Log.i(TAG, "Failed transferring", e)
         } finally {
@@ -288,12 +517,32 @@ class FileProvider : ContentProvider(), PipeDataWriter<InputStream> {
     }
 
     /**
-     * Our static constant
+     * Our static constants
      */
     companion object {
         /**
          * TAG for logging
          */
         private const val TAG = "FileProvider"
+
+        /**
+         * Directory of the .apk which `AssetManager.open` reads from
+         */
+        private const val ASSETS_PREFIX = "assets/"
+
+        /**
+         * Query parameter holding the offset of the first byte the client wants
+         */
+        const val QUERY_OFFSET = "offset"
+
+        /**
+         * Query parameter holding the number of bytes the client wants
+         */
+        const val QUERY_LENGTH = "length"
+
+        /**
+         * Query parameter which, set to true, asks for a seekable file descriptor
+         */
+        const val QUERY_SEEKABLE = "seekable"
     }
 }
\ No newline at end of file
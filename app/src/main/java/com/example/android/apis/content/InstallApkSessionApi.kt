@@ -21,31 +21,82 @@ package com.example.android.apis.content
 import android.app.PendingIntent
 import android.content.Context
 import android.content.Intent
+import android.content.IntentSender
 import android.content.pm.PackageInstaller
 import android.content.pm.PackageInstaller.SessionParams
+import android.content.res.AssetFileDescriptor
 import android.os.Build
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import android.view.View
 import android.widget.Button
+import android.widget.ProgressBar
+import android.widget.TextView
 import android.widget.Toast
 import androidx.annotation.RequiresApi
 import androidx.appcompat.app.AppCompatActivity
 import com.example.android.apis.R
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
 import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Demonstration of package installation using the package installer Session API.
  * AndroidManifest activity element has an android:launchMode="singleTop" attribute.
  *
+ * The APKs of the package (the base APK and any split APKs, listed in [SPLITS]) are written into
+ * the session off the UI thread by [SessionWriter], each one concurrently on its own session
+ * stream opened with its known size so that the installer can preallocate it. An APK which is
+ * stored uncompressed in our assets is copied with `FileChannel.transferTo` straight from the
+ * asset file descriptor (which the kernel can do with `sendfile`), a compressed one through a
+ * large direct buffer. Each stream is `fsync`'d before it is closed, and the progress is shown
+ * in our [ProgressBar] and reported to the installer with `setStagingProgress`.
+ *
  * @see InstallApk for a demo of the original
  */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 class InstallApkSessionApi : AppCompatActivity() {
+    /**
+     * The "Install" [Button], disabled while an install is being staged.
+     */
+    private lateinit var mInstallButton: Button
+    /**
+     * [ProgressBar] showing the progress of the staging of an install.
+     */
+    private lateinit var mProgress: ProgressBar
+    /**
+     * [TextView] showing the status of the staging of an install.
+     */
+    private lateinit var mStatus: TextView
+    /**
+     * [Handler] used to report to the UI thread.
+     */
+    private val mHandler = Handler(Looper.getMainLooper())
+    /**
+     * The threads our [SessionWriter] writes APKs on.
+     */
+    private val mExecutor: ExecutorService =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors().coerceIn(2, 4))
     /**
      * Called when the activity is starting. First we call our super's implementation of `onCreate`,
      * then we set our content view to our layout file R.layout.install_apk_session_api. We initialize
-     * [Button] variable `val button` by finding the view with id R.id.install and set its
-     * `OnClickListener` to a lambda which creates, configures, and commits a package installer
-     * session.
+     * our [Button] field [mInstallButton] by finding the view with id R.id.install and set its
+     * `OnClickListener` to a lambda which creates and configures a package installer session, then
+     * hands it to a [SessionWriter] which writes our APKs into it in the background and commits it.
+     * We also locate our [ProgressBar] field [mProgress] and [TextView] field [mStatus].
      *
      * @param savedInstanceState we do not override [onSaveInstanceState] so do not use.
      */
@@ -53,13 +104,14 @@ class InstallApkSessionApi : AppCompatActivity() {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.install_apk_session_api)
         // Watch for button clicks.
-        val button = findViewById<Button>(R.id.install)
+        mInstallButton = findViewById(R.id.install)
+        mProgress = findViewById(R.id.progress)
+        mStatus = findViewById(R.id.status)
         /**
          * Called when the button with id R.id.install ("Install") is clicked. We initialize our
          * [PackageInstaller.Session] variable `val session` to null, then wrapped in a try block
-         * intended to catch [IOException] in order to convert it to a [RuntimeException], and then
-         * catch [RuntimeException] in order to abandon `session` if it is not *null* and rethrow
-         * the [RuntimeException] we:
+         * intended to catch [IOException] and [RuntimeException] in order to abandon `session` if it
+         * is not *null* and report the failure we:
          *
          *  * Initialize [PackageInstaller] variable `val packageInstaller` with the interface that
          *  offers the ability to install, upgrade, and remove applications on the device  as
@@ -71,8 +123,6 @@ class InstallApkSessionApi : AppCompatActivity() {
          *  session in [Int] variable `val sessionId`.
          *  * Use `packageInstaller` to open session `sessionId` to actively perform work, saving
          *  the `Session` instance in `session`.
-         *  * Call our method [addApkToInstallSession] to read our sample APK assets file
-         *  "HelloActivity.apk" and write it into `session` under the name "package".
          *  * Initialize [Context] variable `var context` with the context of *this* instance of
          *  [InstallApkSessionApi].
          *  * Initialize [Intent] variable `val intent` with a new instance intended for our
@@ -80,19 +130,20 @@ class InstallApkSessionApi : AppCompatActivity() {
          *  and use it as the [Intent] that will be fired by [PendingIntent] variable
          *  `val pendingIntent` using a request code of 0 and no flags.
          *  * Initialize `IntentSender` variable `val statusReceiver` with an `IntentSender`
-         *  object that wraps the existing sender of [PendingIntent] `pendingIntent`, and use
-         *  it as the status receiver callback when we commit `session` causing it to do its work.
+         *  object that wraps the existing sender of [PendingIntent] `pendingIntent`.
+         *  * Disable [mInstallButton], and start a [SessionWriter] writing the APKs listed in
+         *  [SPLITS] into `session`, which will commit `session` with `statusReceiver` (causing it
+         *  to do its work) once they are all written.
          *
          * Parameter: `View` that was clicked.
          */
-        button.setOnClickListener {
+        mInstallButton.setOnClickListener {
             var session: PackageInstaller.Session? = null
             try {
                 val packageInstaller = packageManager.packageInstaller
                 val params = SessionParams(SessionParams.MODE_FULL_INSTALL)
                 val sessionId = packageInstaller.createSession(params)
                 session = packageInstaller.openSession(sessionId)
-                addApkToInstallSession("HelloActivity.apk", session)
                 /**
                  * Create an install status receiver.
                  */
@@ -107,56 +158,231 @@ class InstallApkSessionApi : AppCompatActivity() {
                 )
                 val statusReceiver = pendingIntent.intentSender
                 /**
-                 * Commit the session (this will start the installation workflow).
+                 * Write the APKs and commit the session (this will start the installation
+                 * workflow) in the background.
                  */
-                session.commit(statusReceiver)
+                mInstallButton.isEnabled = false
+                mProgress.progress = 0
+                mProgress.visibility = View.VISIBLE
+                mStatus.text = ""
+                SessionWriter(session, SPLITS).start(statusReceiver)
             } catch (e: IOException) {
-                throw RuntimeException("Couldn't install package", e)
+                session?.abandon()
+                Log.e(TAG, "Couldn't install package", e)
+                Toast.makeText(this, "Couldn't install package: $e", Toast.LENGTH_SHORT).show()
             } catch (e: RuntimeException) {
                 session?.abandon()
-                throw e
+                Log.e(TAG, "Couldn't install package", e)
+                Toast.makeText(this, "Couldn't install package: $e", Toast.LENGTH_SHORT).show()
             }
         }
     }
 
     /**
-     * Reads the file in our assets  with the filename of our [String] parameter [assetName] and
-     * writes it to the [PackageInstaller.Session] parameter [session]. We open the closeable asset
-     * `OutputStream` variable `val packageInSession` (a stream to write an APK file into the
-     * [PackageInstaller.Session] parameter [session] using the name "package") and `InputStream`
-     * variable `inputStream` (an `InputStream` for the file with file name given by our parameter
-     * [assetName]) and we `use` both `packageInSession` and `inputStream` in a *while* loop:
-     * (**Note:** the `use` library extension functions catch any exceptions and sees that both
-     * `packageInSession` and `inputStream` are closed like a java "try with assets block)
-     *
-     *  * Allocate 16384 bytes for `byte[] buffer`
-     *  * Declare `int n`
-     *  * Loop while there is data to be read from `inputStream` into `buffer` saving the number
-     *  of bytes read in `n` then writing `n` bytes from `buffer` into `packageInSession`.
+     * Called when the activity is being destroyed, we stop the threads of [mExecutor]. A staging
+     * which is still running is interrupted and abandons its session.
+     */
+    override fun onDestroy() {
+        mExecutor.shutdownNow()
+        mHandler.removeCallbacksAndMessages(null)
+        super.onDestroy()
+    }
+
+    /**
+     * Writes the APKs of an install into its [PackageInstaller.Session] and commits it. Every APK
+     * is written by its own task on [mExecutor] to its own session stream, so the APKs of a bundle
+     * are staged in parallel. Each stream is opened with the size of its APK, which lets the
+     * installer preallocate it (and fail early if the disk is full), and `fsync`'d once written so
+     * that the data is on disk before we commit. If any APK fails the session is abandoned.
      *
-     * @param assetName File name of the apk in our assets that we should read in
-     * @param session Package session we should write our apk to.
-     * @throws IOException if an IO error occurs.
+     * @param session the session to write the APKs into.
+     * @param splits pairs of the name of each APK in the session and the name of its asset, the
+     * base APK first.
      */
-    @Suppress("SameParameterValue")
-    @Throws(IOException::class)
-    private fun addApkToInstallSession(assetName: String, session: PackageInstaller.Session) {
+    private inner class SessionWriter(
+            private val session: PackageInstaller.Session,
+            private val splits: Array<Pair<String, String>>
+    ) {
         /**
-         * It's recommended to pass the file size to openWrite(). Otherwise installation may fail
-         * if the disk is almost full.
+         * Total number of bytes of all our APKs, known once they are all opened.
          */
-        session.openWrite("package", 0, -1)
-                .use { packageInSession ->
-                    assets.open(assetName).use { inputStream ->
-                        val buffer = ByteArray(16384)
-                        var n: Int
-                        while ((inputStream.read(buffer).also { n = it }) >= 0) {
-                            packageInSession.write(buffer, 0, n)
-                        }
+        private val mTotal = AtomicLong()
+        /**
+         * Number of bytes written so far, by all our tasks.
+         */
+        private val mWritten = AtomicLong()
+        /**
+         * `uptimeMillis` of the last progress report, so that we report at most every 100ms.
+         */
+        @Volatile
+        private var mLastReport = 0L
+
+        /**
+         * Starts writing our APKs. A coordinating thread opens every asset to learn the sizes,
+         * submits one writing task per APK to [mExecutor], waits for them all and then commits the
+         * session with [statusReceiver], reporting the outcome to the UI thread.
+         *
+         * @param statusReceiver where the installer reports the result of the install.
+         */
+        fun start(statusReceiver: IntentSender) {
+            val started = SystemClock.uptimeMillis()
+            Thread(Runnable {
+                val futures = ArrayList<Future<*>>()
+                try {
+                    val sources = splits.map { (name, asset) -> Pair(name, openAsset(asset)) }
+                    mTotal.set(sources.map { it.second.length }.sum())
+                    for ((name, source) in sources) {
+                        futures.add(mExecutor.submit(Runnable { write(name, source) }))
                     }
+                    for (future in futures) {
+                        future.get()
+                    }
+                    session.commit(statusReceiver)
+                    val elapsed = SystemClock.uptimeMillis() - started
+                    report("Staged " + splits.size + " APK(s), " + mTotal.get() / 1024 + " KB in "
+                            + elapsed + " ms")
+                } catch (e: Exception) {
+                    for (future in futures) {
+                        future.cancel(true)
+                    }
+                    session.abandon()
+                    val cause = if (e is ExecutionException) e.cause ?: e else e
+                    Log.e(TAG, "Couldn't install package", cause)
+                    report("Couldn't install package: $cause")
+                }
+            }, "InstallApkSessionWriter").start()
+        }
+
+        /**
+         * Opens the asset [assetName], as an [AssetFileDescriptor] with its offset and length if it
+         * is stored uncompressed, otherwise as a stream whose length is its uncompressed size (the
+         * `available` method of an asset stream returns the whole remaining size of the asset).
+         *
+         * @param assetName the name of the asset.
+         * @return the asset and its length.
+         * @throws IOException if the asset cannot be opened.
+         */
+        @Throws(IOException::class)
+        private fun openAsset(assetName: String): Source {
+            return try {
+                val fd = assets.openFd(assetName)
+                Source(fd, null, fd.length)
+            } catch (e: FileNotFoundException) {
+                // Stored compressed, there is no file descriptor to copy from.
+                val stream = assets.open(assetName)
+                Source(null, stream, stream.available().toLong())
+            }
+        }
+
+        /**
+         * Writes the APK [source] into our session under the name [name], on a thread of
+         * [mExecutor]. We open the session stream with the length of the APK, copy the APK into
+         * it with [transfer] or [copy], `fsync` it and close it.
+         *
+         * @param name the name of the APK in the session.
+         * @param source the APK to write.
+         */
+        private fun write(name: String, source: Source) {
+            session.openWrite(name, 0, source.length).use { out ->
+                if (source.fd != null) {
+                    source.fd.use { transfer(it, out) }
+                } else {
+                    source.stream!!.use { copy(it, out) }
                 }
+                session.fsync(out)
+            }
+        }
+
+        /**
+         * Copies the slice of [fd] into [out] with `FileChannel.transferTo`, in chunks of
+         * [TRANSFER_CHUNK] bytes so that we can report progress and be interrupted. When [out] is
+         * a [FileOutputStream] (it is a pipe or a file on all recent versions) the kernel moves the
+         * bytes without them ever entering our heap.
+         *
+         * @param fd the asset to copy.
+         * @param out the session stream to copy it to.
+         * @throws IOException if the copy fails.
+         */
+        @Throws(IOException::class)
+        private fun transfer(fd: AssetFileDescriptor, out: OutputStream) {
+            val channel = FileInputStream(fd.fileDescriptor).channel
+            val target = if (out is FileOutputStream) out.channel else Channels.newChannel(out)
+            var position = 0L
+            while (position < fd.length) {
+                if (Thread.interrupted()) throw IOException("Interrupted")
+                val n = channel.transferTo(fd.startOffset + position,
+                        minOf(TRANSFER_CHUNK, fd.length - position), target)
+                if (n <= 0) throw IOException("Short asset")
+                position += n
+                progress(n)
+            }
+        }
+
+        /**
+         * Copies [input] into [out] through a direct buffer of [TRANSFER_CHUNK] bytes.
+         *
+         * @param input the asset to copy.
+         * @param out the session stream to copy it to.
+         * @throws IOException if the copy fails.
+         */
+        @Throws(IOException::class)
+        private fun copy(input: InputStream, out: OutputStream) {
+            val source = Channels.newChannel(input)
+            val target = if (out is FileOutputStream) out.channel else Channels.newChannel(out)
+            val buffer = ByteBuffer.allocateDirect(TRANSFER_CHUNK.toInt())
+            while (source.read(buffer) >= 0) {
+                if (Thread.interrupted()) throw IOException("Interrupted")
+                buffer.flip()
+                val n = buffer.remaining()
+                while (buffer.hasRemaining()) {
+                    target.write(buffer)
+                }
+                buffer.clear()
+                progress(n.toLong())
+            }
+        }
+
+        /**
+         * Adds [bytes] to the bytes written, and at most every 100ms reports the progress to the
+         * installer with `setStagingProgress` and to our [ProgressBar].
+         *
+         * @param bytes number of bytes just written.
+         */
+        private fun progress(bytes: Long) {
+            val written = mWritten.addAndGet(bytes)
+            val now = SystemClock.uptimeMillis()
+            if (now - mLastReport < 100) return
+            mLastReport = now
+            val total = mTotal.get()
+            val fraction = if (total > 0) written.toFloat() / total else 0f
+            session.setStagingProgress(fraction)
+            mHandler.post { mProgress.progress = (fraction * mProgress.max).toInt() }
+        }
+
+        /**
+         * Posts [message] to our status [TextView] on the UI thread once the staging is over,
+         * hides the progress bar and enables the "Install" button again.
+         *
+         * @param message the status to show.
+         */
+        private fun report(message: String) {
+            mHandler.post {
+                mStatus.text = message
+                mProgress.visibility = View.GONE
+                mInstallButton.isEnabled = true
+            }
+        }
     }
 
+    /**
+     * An opened APK asset: either a file descriptor slice or a stream, and its length.
+     *
+     * @param fd the asset file descriptor, if the asset is stored uncompressed.
+     * @param stream a stream reading the asset, if it is stored compressed.
+     * @param length the length of the asset.
+     */
+    private class Source(val fd: AssetFileDescriptor?, val stream: InputStream?, val length: Long)
+
     /**
      * **Note:** this Activity must run in singleTop launchMode for it to be able to receive the
      * [Intent] in [onNewIntent].
@@ -256,9 +482,25 @@ class InstallApkSessionApi : AppCompatActivity() {
     }
 
     /**
-     * Our static constant.
+     * Our static constants.
      */
     companion object {
+        /**
+         * TAG used for logging.
+         */
+        private const val TAG = "InstallApkSessionApi"
+
+        /**
+         * The APKs we install: the name of each APK in the session and the name of its asset. The
+         * base APK comes first, split APKs of the same package can simply be added after it.
+         */
+        private val SPLITS = arrayOf(Pair("package", "HelloActivity.apk"))
+
+        /**
+         * Largest number of bytes copied by one `transferTo` call or one buffer.
+         */
+        private const val TRANSFER_CHUNK = 1024 * 1024L
+
         /**
          * Action of the [Intent] used for the install status receiver.
          */
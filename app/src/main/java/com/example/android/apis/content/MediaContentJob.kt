@@ -31,26 +31,41 @@ import android.widget.Toast
 import androidx.annotation.RequiresApi
 
 /**
- * Example stub job to monitor when there is a change to any media: content URI.
+ * Example stub job to monitor when there is a change to any media: content URI. The changes of
+ * each run are held by the [ContentChangeAggregator] in [mAggregator] until they stop for
+ * [DEBOUNCE_MS], and then summarized (and toasted) once, off the main thread. The job keeps
+ * running until then, so the system holds its wakelock and keeps our process alive for as long
+ * as a burst is pending, and the changes which happen meanwhile are kept by the [JobScheduler]
+ * for the run which follows when we reschedule.
  */
 @Suppress("MemberVisibilityCanBePrivate")
 @RequiresApi(api = Build.VERSION_CODES.N)
 class MediaContentJob : JobService() {
     /**
-     * `Handler` we use to delay our work by 10 seconds so we can see batching happen.
+     * `Handler` we use to finish our job after [onStartJob] has returned.
      */
     val mHandler = Handler()
     /**
-     * [Runnable] which does all our "work" after a ten second delay. When an object implementing
-     * interface [Runnable] is used to create a thread, starting the thread causes the object's
-     * `run` method to be called in that separately executing thread. We call our method
-     * [scheduleJob] to schedule *this* [MediaContentJob] to run, then we call the [jobFinished]
-     * method to inform the [JobScheduler] that the job has finished its work, with *false* as the
-     * wants reschedule argument to specify that we do not want the job rescheduled.
+     * [Runnable] which finishes our job, posted to [mHandler] when our burst has been reported.
+     * If our job has already been stopped ([mRunningParams] is *null*) there is nothing to do.
+     * Otherwise we call our method [scheduleJob] to schedule *this* [MediaContentJob] to run
+     * again, then we call the [jobFinished] method to inform the [JobScheduler] that the job has
+     * finished its work, with *false* as the wants reschedule argument to specify that we do not
+     * want the job rescheduled.
      */
     val mWorker: Runnable = Runnable {
+        val params = mRunningParams ?: return@Runnable
+        mRunningParams = null
         scheduleJob(this@MediaContentJob)
-        jobFinished(mRunningParams, false)
+        jobFinished(params, false)
+    }
+
+    /**
+     * Merges the changes of our run into a burst which ends when they stop for [DEBOUNCE_MS], or
+     * at the latest [MAX_BURST_MS] after the first one, and hands it to our [BurstReporter].
+     */
+    val mAggregator = ContentChangeAggregator(DEBOUNCE_MS, MAX_BURST_MS).apply {
+        setListener(BurstReporter())
     }
 
     /**
@@ -77,25 +92,11 @@ class MediaContentJob : JobService() {
      * for the job will be released, and [onStopJob] will not be invoked.
      *
      * First we log the fact that our [MediaContentJob] has started, then we save our parameters in
-     * our [JobParameters] field [mRunningParams]. We initialize [StringBuilder] variable `val sb`
-     * with a new instance and append the string "Media content has changed:\n" to it. We then
-     * branch on whether the `getTriggeredContentAuthorities` method of [params] is *null* or not
-     * (list of which content authorities have triggered this job):
-     *  * not *null*: we append the string "Authorities: " to `sb`, and initialize [Boolean]
-     *  variable `val first` to *true*. Then for each [String] `auth` in the list of strings
-     *  returned by the `getTriggeredContentAuthorities` method of [params]: If `first` is *true*
-     *  we set it to *false*, if it is *false* we append ", " to `sb` then append `auth` to `sb`.
-     *  When done with the list of content authorities that triggered us, we check whether the
-     *  `getTriggeredContentUris` method of [params] is not *null* (returns which URIs have
-     *  triggered  this job), and if it is not we loop through the [Uri] `uri` in the list of [Uri]
-     *  returned by `getTriggeredContentUris` appending a newline followed by the string value of
-     *  `uri` to `sb`.
-     *  * *null*: we append the string "(No content)" to `sb`
-     *
-     * We now toast a message containing `sb` converted to a [String], and log it as well, then
-     * add [Runnable] field [mWorker] to the queue of [Handler] field [mHandler] to be run after a
-     * delay of 10 seconds. Finally we return *true* to indicate that our service will continue
-     * running.
+     * our [JobParameters] field [mRunningParams]. We add the content authorities and URIs which
+     * triggered this run to [mAggregator], which holds them until the changes stop for
+     * [DEBOUNCE_MS] and then has them summarized by [BurstReporter] on its worker thread. We
+     * return *true* since our job keeps running until then: [BurstReporter] posts [mWorker] to
+     * reschedule the job (content triggers fire only once) and call [jobFinished].
      *
      * @param params Parameters specifying info about this job, including the optional extras
      * configured with [JobInfo.Builder.setExtras] (This object serves to identify this specific
@@ -106,40 +107,61 @@ class MediaContentJob : JobService() {
     override fun onStartJob(params: JobParameters): Boolean {
         Log.i("MediaContentJob", "JOB STARTED!")
         mRunningParams = params
-        val sb = StringBuilder()
-        sb.append("Media content has changed:\n")
-        if (params.triggeredContentAuthorities != null) {
-            sb.append("Authorities: ")
-            var first = true
-            for (auth: String? in params.triggeredContentAuthorities!!) {
-                if (first) {
-                    first = false
-                } else {
-                    sb.append(", ")
-                }
-                sb.append(auth)
-            }
-            if (params.triggeredContentUris != null) {
-                for (uri: Uri? in params.triggeredContentUris!!) {
+        mAggregator.add(params.triggeredContentAuthorities, params.triggeredContentUris)
+        return true
+    }
+
+    /**
+     * Summarizes each burst of media changes, toasts the summary on the main thread and logs it,
+     * then finishes our job.
+     */
+    private inner class BurstReporter : ContentChangeAggregator.Listener {
+        /**
+         * Called on the worker thread of [mAggregator] when a burst of changes ends. We build a
+         * summary listing the authorities and the URIs which changed (or "(No content)" if the
+         * trigger did not say) along with the number of triggers merged into the burst and its
+         * latency, and log it. Then we post a [Runnable] to toast it to [mHandler], followed by
+         * [mWorker] to finish our job.
+         *
+         * @param burst the changes of the burst.
+         */
+        override fun onBurst(burst: ContentChangeAggregator.Burst) {
+            val sb = StringBuilder()
+            sb.append("Media content has changed:\n")
+            if (burst.authorities.isNotEmpty()) {
+                sb.append("Authorities: ")
+                sb.append(burst.authorities.joinToString(", "))
+                for (uri in burst.uris.take(MAX_URIS_SHOWN)) {
                     sb.append("\n")
                     sb.append(uri)
                 }
+                if (burst.uris.size > MAX_URIS_SHOWN) {
+                    sb.append("\n... ").append(burst.uris.size - MAX_URIS_SHOWN).append(" more")
+                }
+                if (burst.overflow) {
+                    sb.append("\n(Too many changes to list)")
+                }
+            } else {
+                sb.append("(No content)")
             }
-        } else {
-            sb.append("(No content)")
+            sb.append("\n").append(burst.triggers).append(" triggers, ")
+                    .append(burst.latencyMs).append(" ms")
+            Log.i("MediaContentJob", "Burst " + mAggregator.bursts + " of " +
+                    mAggregator.triggers + " triggers: $sb")
+            val text = sb.toString()
+            val context: Context = applicationContext
+            mHandler.post { Toast.makeText(context, text, Toast.LENGTH_LONG).show() }
+            mHandler.post(mWorker)
         }
-        Toast.makeText(this, sb.toString(), Toast.LENGTH_LONG).show()
-        Log.i("MediaContentJob", "onStartJob called: $sb")
-        // We will emulate taking some time to do this work, so we can see batching happen.
-        mHandler.postDelayed(mWorker, 10 * 1000.toLong())
-        return true
     }
 
     /**
      * This method is called if the system has determined that you must stop execution of your job
-     * even before you've had a chance to call [jobFinished]. We remove any pending posts of
-     * [Runnable] field [mWorker] from the queue of [Handler] field [mHandler] and return *false*
-     * to end our job entirely.
+     * even before you've had a chance to call [jobFinished]. We drop the pending burst of
+     * [mAggregator], remove any pending posts of [Runnable] field [mWorker] from the queue of
+     * [Handler] field [mHandler] and set [mRunningParams] to *null* so that a burst which is
+     * being reported right now does not finish or reschedule us, then return *false* to end our
+     * job entirely.
      *
      * @param params The parameters identifying this job, as supplied to
      * the job in the [onStartJob] callback.
@@ -148,10 +170,22 @@ class MediaContentJob : JobService() {
      * Regardless of the value returned, your job must stop executing.
      */
     override fun onStopJob(params: JobParameters): Boolean {
+        mAggregator.clear()
         mHandler.removeCallbacks(mWorker)
+        mRunningParams = null
         return false
     }
 
+    /**
+     * Called by the system to notify a Service that it is no longer used and is being removed. We
+     * have [mAggregator] stop its worker thread, then call our super's implementation of
+     * `onDestroy`.
+     */
+    override fun onDestroy() {
+        mAggregator.quit()
+        super.onDestroy()
+    }
+
     /**
      * Our static constants and static methods.
      */
@@ -161,6 +195,21 @@ class MediaContentJob : JobService() {
          */
         val MEDIA_URI: Uri = Uri.parse("content://" + MediaStore.AUTHORITY + "/")
 
+        /**
+         * How long the media content has to stay unchanged for a burst of changes to end
+         */
+        const val DEBOUNCE_MS = 3000L
+
+        /**
+         * How long a burst of changes lasts at most
+         */
+        const val MAX_BURST_MS = 30 * 1000L
+
+        /**
+         * Most URIs listed in the summary of a burst
+         */
+        const val MAX_URIS_SHOWN = 10
+
         /**
          * Called to Schedule a [MediaContentJob] job to be executed. We initialize [JobScheduler]
          * varible `val js` with a handle to the system level service which has the class
@@ -170,7 +219,10 @@ class MediaContentJob : JobService() {
          * as the job id, and [MediaContentJob] (our [JobService]) to receive the callback from the
          * [JobScheduler]. We add to `builder` the [TriggerContentUri] for the [Uri] field [MEDIA_URI]
          * ("content://media/"), and the flags FLAG_NOTIFY_FOR_DESCENDANTS (also trigger if any
-         * descendants of the given URI change). We then use `js` to schedule the job built from
+         * descendants of the given URI change). We ask the system to wait for the content to be
+         * unchanged for 500ms (but no more than 5 seconds) before running us, which already merges
+         * the changes of one burst of provider notifications into one run. We then use `js` to
+         * schedule the job built from
          * `builder`, and log the fact that we have scheduled the [MediaContentJob].
          *
          * @param context [Context] to use to access activity resources, `MediaContentJob.this`
@@ -184,6 +236,8 @@ class MediaContentJob : JobService() {
                     ComponentName(context, MediaContentJob::class.java))
             builder.addTriggerContentUri(TriggerContentUri(MEDIA_URI,
                     TriggerContentUri.FLAG_NOTIFY_FOR_DESCENDANTS))
+            builder.setTriggerContentUpdateDelay(500)
+            builder.setTriggerContentMaxDelay(5000)
             js!!.schedule(builder.build())
             Log.i("MediaContentJob", "JOB SCHEDULED!")
         }
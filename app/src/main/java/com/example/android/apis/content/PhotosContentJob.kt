@@ -21,7 +21,9 @@ import android.app.job.JobParameters
 import android.app.job.JobScheduler
 import android.app.job.JobService
 import android.content.ComponentName
+import android.content.ContentResolver
 import android.content.Context
+import android.content.SharedPreferences
 import android.database.Cursor
 import android.net.Uri
 import android.os.Build
@@ -32,6 +34,9 @@ import android.util.Log
 import android.widget.Toast
 import androidx.annotation.RequiresApi
 import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 /**
  * Example stub job to monitor when there is a change to photos in the media provider.
@@ -70,6 +75,24 @@ class PhotosContentJob : JobService() {
         @Suppress("DEPRECATION")
         val DCIM_DIR: String = Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_DCIM).path
+        /**
+         * Largest number of ids we put in one `IN (?, ?, ...)` selection, below the default limit
+         * of 999 bind arguments per statement of older SQLite versions.
+         */
+        const val MAX_BIND_ARGS = 500
+        /**
+         * Name of the [SharedPreferences] file holding our watermark.
+         */
+        const val PREFS_NAME = "photos_content_job"
+        /**
+         * Key of the highest image id we have already resolved in our [SharedPreferences].
+         */
+        const val PREF_LAST_SEEN_ID = "last_seen_id"
+        /**
+         * Background thread our [BatchResolver] runs on. A single thread so that the watermark is
+         * read and advanced by one job run at a time.
+         */
+        val RESOLVER_EXECUTOR: ExecutorService = Executors.newSingleThreadExecutor()
         /**
          * A pre-built JobInfo we use for scheduling our job, built in our *init* block.
          */
@@ -153,15 +176,112 @@ class PhotosContentJob : JobService() {
         }
     }
 
-    // Fake job work.  A real implementation would do some work on a separate thread.
+    /**
+     * Resolves the ids of images which triggered our job into the images which are new and in the
+     * DCIM directory. The ids of the media provider only grow, so we keep a watermark, the highest
+     * id we have already resolved, in [SharedPreferences] and drop the ids at or below it before
+     * querying: a repeat trigger for media we have already seen costs no query at all. The ids left
+     * are queried in chunks of at most [MAX_BIND_ARGS] with a parameterised `_id IN (?, ?, ...)`
+     * selection, so a burst of thousands of ids after a restore is a handful of bounded queries
+     * instead of one giant hand built selection string. When the system could not tell us which
+     * URIs changed we query everything above the watermark with a single `_id > ?` selection.
+     *
+     * Must be called on a background thread.
+     *
+     * @param resolver the [ContentResolver] to query with.
+     * @param prefs the [SharedPreferences] holding our watermark under [PREF_LAST_SEEN_ID].
+     */
+    class BatchResolver(
+            private val resolver: ContentResolver,
+            private val prefs: SharedPreferences
+    ) {
+        /**
+         * The result of one call of [resolve].
+         *
+         * @param photos "id: path" of each new image in the DCIM directory.
+         * @param skipped number of ids dropped because they were at or below the watermark.
+         * @param queries number of queries made.
+         */
+        class Result(val photos: List<String>, val skipped: Int, val queries: Int)
+
+        /**
+         * The highest image id we have resolved, or -1 if we have never resolved one.
+         */
+        val watermark: Long
+            get() = prefs.getLong(PREF_LAST_SEEN_ID, -1L)
+
+        /**
+         * Resolves the images with ids [ids], and if [rescan] is *true* every image above the
+         * watermark (if we have one, a rescan cannot be done without one). Afterwards the
+         * watermark is advanced to the highest id seen.
+         *
+         * @param ids ids of the images which triggered our job.
+         * @param rescan *true* if some change could not be narrowed down to an id.
+         * @return the new images in the DCIM directory, and some counts.
+         * @throws SecurityException if we have no access to the media provider.
+         */
+        fun resolve(ids: Collection<Long>, rescan: Boolean): Result {
+            val lastSeen = watermark
+            val fresh = ids.filter { it > lastSeen }.distinct().sorted()
+            val photos = ArrayList<String>()
+            var maxSeen = lastSeen
+            var queries = 0
+            if (rescan && lastSeen >= 0) {
+                maxSeen = maxOf(maxSeen, query("${MediaStore.Images.ImageColumns._ID} > ?",
+                        arrayOf(lastSeen.toString()), photos))
+                queries++
+            } else {
+                for (chunk in fresh.chunked(MAX_BIND_ARGS)) {
+                    val selection = MediaStore.Images.ImageColumns._ID +
+                            " IN (" + chunk.joinToString(",") { "?" } + ")"
+                    maxSeen = maxOf(maxSeen, query(selection,
+                            Array(chunk.size) { chunk[it].toString() }, photos))
+                    queries++
+                }
+            }
+            if (maxSeen > lastSeen) {
+                prefs.edit().putLong(PREF_LAST_SEEN_ID, maxSeen).apply()
+            }
+            return Result(photos, ids.size - fresh.size, queries)
+        }
+
+        /**
+         * Runs one query of the images matching [selection], adding "id: path" of those in the
+         * DCIM directory to [photos].
+         *
+         * @param selection the selection, with `?` for each of [args].
+         * @param args the bind arguments of [selection].
+         * @param photos list to add the new images in the DCIM directory to.
+         * @return the highest id returned, or -1 if none was.
+         */
+        private fun query(selection: String, args: Array<String>, photos: MutableList<String>): Long {
+            var maxId = -1L
+            resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    PROJECTION, selection, args, null)?.use { cursor ->
+                while (cursor.moveToNext()) {
+                    val id = cursor.getLong(PROJECTION_ID)
+                    maxId = maxOf(maxId, id)
+                    /**
+                     * We only care about files in the DCIM directory.
+                     */
+                    val dir = cursor.getString(PROJECTION_DATA)
+                    if (dir != null && dir.startsWith(DCIM_DIR)) {
+                        photos.add("$id: $dir")
+                    }
+                }
+            }
+            return maxId
+        }
+    }
 
     /**
-     * [Handler] we use to delay our work by 10 seconds so we can see batching happen.
+     * [Handler] we use to show our results on the main thread, and to delay finishing our job by
+     * 10 seconds so we can see batching happen.
      */
     val mHandler = Handler()
 
     /**
-     * [Runnable] which does all our "work" after a ten second delay. When an object implementing
+     * [Runnable] which finishes our "work" after a ten second delay. When an object implementing
      * interface [Runnable] is used to create a thread, starting the thread causes the object's
      * `run` method to be called in that separately executing thread. We call our method [scheduleJob]
      * to schedule *this* [PhotosContentJob] to run, then we call the [jobFinished] to inform the
@@ -179,6 +299,11 @@ class PhotosContentJob : JobService() {
      */
     var mRunningParams: JobParameters? = null
 
+    /**
+     * The resolution running on [RESOLVER_EXECUTOR] for the current job, canceled by [onStopJob].
+     */
+    var mResolving: Future<*>? = null
+
     /**
      * Called to indicate that the job has begun executing. Override this method with the logic for
      * your job. Like all other component lifecycle callbacks, this method executes on your application's
@@ -197,54 +322,22 @@ class PhotosContentJob : JobService() {
      * for the job will be released, and [onStopJob] will **not** be invoked.
      *
      * First we log the fact that our [PhotosContentJob] has started, then we save our parameters in
-     * our [JobParameters] field [mRunningParams]. We initialize [StringBuilder] variable `val sb`
-     * with a new instance. If the list of content authorities that have triggered our job is *null*
-     * we just append the string "(No photos content)" to `sb`. If it is not *null* we initialize our
-     * [Boolean] varible `var rescanNeeded` to *false* (this flag if *true* is used to flag the fact
-     * that the data that we read from our [JobParameters] parameter [params] suggest that to properly
-     * list the content changes will require a rescan of the photos, in which case we append the string
-     * "Photos rescan needed!" to `sb`). If the list of URIs that have triggered the job returned by
-     * the `getTriggeredContentUris` method of [params] is not *null* we want to iterate through
-     * them and collect either the ids that were impacted or note that a generic change has happened,
-     * so we initialize `ArrayList<String>` variable `val ids` with a new instance then for each
-     * [Uri] `uri` in the list of URIs that have triggered the job returned by the `getTriggeredContentUris`
-     * method of [params] we initialize `MutableList<String>` variable `val path` with the decoded
-     * path segments of `uri`, each without a leading or trailing '/'. If `path` is not *null* and
-     * its size is one more than the size of EXTERNAL_PATH_SEGMENTS then the last entry in `path` is
-     * a filename so we add that last entry to our list `ids`, otherwise there is some general
-     * change in the photos so we set `rescanNeeded` to true.
-     *
-     * When done processing the changed URIs in [params], we check if the size of `ids` is greater
-     * than 0 (we found some ids that changed), and if so we proceed to determine what they are.
-     * To do this we initialize [StringBuilder] variable `val selection` with a new instance then
-     * loop over `i` for all the entries in `ids` first appending the string " OR " to `selection`
-     * following every selection clause in `selection` (by skipping doing this if `selection` is not
-     * empty). We then append the string "_id" followed by the string "='" followed by the `i`'th
-     * entry in `ids` followed by the string "'" (forming a selection query like _id='88').
-     *
-     * When done forming our selection string in `selection` we initialize [Cursor] variable
-     * `var cursor` to *null* and [Boolean] `var haveFiles` to *false*. Then wrapped in a try block
-     * intended to catch [SecurityException], and whose finally block closes [Cursor] `cursor` if it
-     * is not *null* we:
+     * our [JobParameters] field [mRunningParams]. If the list of content authorities that have
+     * triggered our job is *null* we toast "(No photos content)" and post [mWorker] to finish the
+     * job after ten seconds. Otherwise we initialize our [Boolean] variable `var rescanNeeded` to
+     * *false*, and if the list of URIs that have triggered the job returned by the
+     * `getTriggeredContentUris` method of [params] is not *null* we iterate through them: if the
+     * decoded path segments of a `uri` are one more than EXTERNAL_PATH_SEGMENTS the last entry is
+     * the id of an image which we add to our list `ids`, otherwise there is some general change in
+     * the photos so we set `rescanNeeded` to *true*. If the list of URIs is *null* (too many changed
+     * at once) we also set `rescanNeeded` to *true*.
      *
-     *  * We use a `ContentResolver` instance for our application's package to query the URI
-     *  EXTERNAL_CONTENT_URI ("content://media/external/images/media") for the projection
-     *  PROJECTION (the _ID and DATA columns) with the selection consisting of the string
-     *  value of `selection` with *null* for the selection arguments and *null* for the sort
-     *  order saving the [Cursor] returned in `cursor`.
-     *  * We now loop while the `moveToNext` method of `cursor` returns *true* when moving to
-     *  the next row (*false* is returned if it is past the last entry). We initialize [String]
-     *  variable `val dir` by retrieving the string in column PROJECTION_DATA of `cursor`. If
-     *  `dir` starts with the string DCIM_DIR, we check if `haveFiles` is *false* (first time
-     *  through) and if so we set it to *true* and append the string "New photos:\n" to `sb`.
-     *  Then we append the string value of the int in column PROJECTION_ID of `cursor` to `sb`,
-     *  followed by the string ": ", followed by `dir` followed by a newline, then loop back
-     *  for the next row.
-     *
-     * After adding any filenames that have changed to `sb`, or adding text to the effect that
-     * we did not find any we toast the string value of `sb`, then add a delayed execution of
-     * [Runnable] field [mWorker] to the queue of [Handler] field [mHandler], and finally we
-     * return *true* to the caller indicating that our service will continue running.
+     * We then submit a task to [RESOLVER_EXECUTOR] which uses a [BatchResolver] to resolve `ids`
+     * (or rescan everything above our watermark) off the main thread, builds a summary of the new
+     * photos in the DCIM directory and posts a [Runnable] to [mHandler] which, unless the job has
+     * been stopped (or replaced) since, toasts the summary and posts [mWorker] to finish the job
+     * after ten seconds. Finally we return *true* to the
+     * caller indicating that our service will continue running.
      *
      * @param params [JobParameters] specifying info about this job, including the optional extras
      * configured with [JobInfo.Builder.setExtras] (serves to identify this specific running job
@@ -255,109 +348,98 @@ class PhotosContentJob : JobService() {
     override fun onStartJob(params: JobParameters): Boolean {
         Log.i("PhotosContentJob", "JOB STARTED!")
         mRunningParams = params
-        /**
-         * Instead of real work, we are going to build a string to show to the user.
-         */
-        val sb = StringBuilder()
         /**
          * Did we trigger due to a content change?
          */
-        if (params.triggeredContentAuthorities != null) {
-            var rescanNeeded = false
-            if (params.triggeredContentUris != null) {
-                /**
-                 * If we have details about which URIs changed, then iterate through them
-                 * and collect either the ids that were impacted or note that a generic
-                 * change has happened.
-                 */
-                val ids = ArrayList<String>()
-                for (uri: Uri in params.triggeredContentUris!!) {
-                    val path = uri.pathSegments
-                    if (path != null && path.size == EXTERNAL_PATH_SEGMENTS.size + 1) {
-                        /**
-                         * This is a specific file.
-                         */
-                        ids.add(path[path.size - 1])
-                    } else {
-                        /**
-                         * Oops, there is some general change!
-                         */
-                        rescanNeeded = true
-                    }
+        if (params.triggeredContentAuthorities == null) {
+            Toast.makeText(this, "(No photos content)", Toast.LENGTH_LONG).show()
+            mHandler.postDelayed(mWorker, 10 * 1000.toLong())
+            return true
+        }
+        var rescanNeeded = false
+        val ids = ArrayList<Long>()
+        val uris = params.triggeredContentUris
+        if (uris != null) {
+            /**
+             * If we have details about which URIs changed, then iterate through them
+             * and collect either the ids that were impacted or note that a generic
+             * change has happened.
+             */
+            for (uri: Uri in uris) {
+                val path = uri.pathSegments
+                val id = if (path != null && path.size == EXTERNAL_PATH_SEGMENTS.size + 1) {
+                    path[path.size - 1].toLongOrNull()
+                } else {
+                    null
                 }
-                if (ids.size > 0) {
+                if (id != null) {
                     /**
-                     * If we found some ids that changed, we want to determine what they are.
-                     * First, we do a query with content provider to ask about all of them.
+                     * This is a specific file.
                      */
-                    val selection = StringBuilder()
-                    for (i in ids.indices) {
-                        if (selection.isNotEmpty()) {
-                            selection.append(" OR ")
-                        }
-                        selection.append(MediaStore.Images.ImageColumns._ID)
-                        selection.append("='")
-                        selection.append(ids[i])
-                        selection.append("'")
-                    }
+                    ids.add(id)
+                } else {
                     /**
-                     * Now we iterate through the query, looking at the filenames of
-                     * the items to determine if they are ones we are interested in.
+                     * Oops, there is some general change!
                      */
-                    var cursor: Cursor? = null
-                    var haveFiles = false
-                    try {
-                        cursor = contentResolver.query(
-                                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                                PROJECTION, selection.toString(), null, null)
-                        while (cursor!!.moveToNext()) {
-                            /**
-                             * We only care about files in the DCIM directory.
-                             */
-                            val dir = cursor.getString(PROJECTION_DATA)
-                            if (dir.startsWith(DCIM_DIR)) {
-                                if (!haveFiles) {
-                                    haveFiles = true
-                                    sb.append("New photos:\n")
-                                }
-                                sb.append(cursor.getInt(PROJECTION_ID))
-                                sb.append(": ")
-                                sb.append(dir)
-                                sb.append("\n")
-                            }
-                        }
-                    } catch (e: SecurityException) {
-                        sb.append("Error: no access to media!")
-                    } finally {
-                        cursor?.close()
-                    }
+                    rescanNeeded = true
                 }
-            } else {
-                /**
-                 * We don't have any details about URIs (because too many changed at once),
-                 * so just note that we need to do a full rescan.
-                 */
-                rescanNeeded = true
-            }
-            if (rescanNeeded) {
-                sb.append("Photos rescan needed!")
             }
         } else {
-            sb.append("(No photos content)")
+            /**
+             * We don't have any details about URIs (because too many changed at once),
+             * so just note that we need to do a full rescan.
+             */
+            rescanNeeded = true
         }
-        Toast.makeText(this, sb.toString(), Toast.LENGTH_LONG).show()
-        /**
-         * We will emulate taking some time to do this work, so we can see batching happen.
-         */
-        mHandler.postDelayed(mWorker, 10 * 1000.toLong())
+        val resolver = BatchResolver(contentResolver,
+                getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE))
+        val rescan = rescanNeeded
+        mResolving = RESOLVER_EXECUTOR.submit(Runnable {
+            /**
+             * Instead of real work, we are going to build a string to show to the user.
+             */
+            val sb = StringBuilder()
+            try {
+                val canRescan = resolver.watermark >= 0
+                val result = resolver.resolve(ids, rescan)
+                if (result.photos.isNotEmpty()) {
+                    sb.append("New photos:\n")
+                    for (photo in result.photos) {
+                        sb.append(photo).append("\n")
+                    }
+                }
+                Log.i("PhotosContentJob", "Resolved " + ids.size + " ids with " + result.queries
+                        + " queries, " + result.skipped + " already seen")
+                if (rescan && !canRescan) {
+                    sb.append("Photos rescan needed!")
+                }
+            } catch (e: SecurityException) {
+                sb.append("Error: no access to media!")
+            }
+            mHandler.post(Runnable {
+                /**
+                 * A resolution which had already started when the job was stopped still gets
+                 * here, and must not toast or finish a job which is no longer running.
+                 */
+                if (mRunningParams !== params) return@Runnable
+                if (sb.isNotEmpty()) {
+                    Toast.makeText(this, sb.toString(), Toast.LENGTH_LONG).show()
+                }
+                /**
+                 * We will emulate taking some time to do this work, so we can see batching happen.
+                 */
+                mHandler.postDelayed(mWorker, 10 * 1000.toLong())
+            })
+        })
         return true
     }
 
     /**
      * This method is called if the system has determined that you must stop execution of your job
-     * even before you've had a chance to call [jobFinished]. We remove any pending posts of
-     * [Runnable] field [mWorker] from the queue of [Handler] field [mHandler] and return *false* to
-     * end our job entirely.
+     * even before you've had a chance to call [jobFinished]. We cancel the resolution in [mResolving]
+     * if it has not started yet, set [mRunningParams] to *null* so that a resolution which has
+     * already started drops its result instead of posting [mWorker], remove any pending posts from
+     * the queue of [Handler] field [mHandler] and return *false* to end our job entirely.
      *
      * @param params The [JobParameters] identifying this job, as supplied to the job in the
      * [onStartJob] callback.
@@ -366,7 +448,10 @@ class PhotosContentJob : JobService() {
      * Regardless of the value returned, your job must stop executing.
      */
     override fun onStopJob(params: JobParameters): Boolean {
-        mHandler.removeCallbacks(mWorker)
+        mResolving?.cancel(false)
+        mResolving = null
+        mRunningParams = null
+        mHandler.removeCallbacksAndMessages(null)
         return false
     }
 }
\ No newline at end of file
@@ -15,7 +15,17 @@
  */
 package com.example.android.apis.content
 
+import android.content.res.AssetManager
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.util.LruCache
+import android.view.Gravity
+import android.view.View
+import android.view.ViewGroup
+import android.widget.BaseAdapter
+import android.widget.ListView
 import android.widget.TextView
 import androidx.appcompat.app.AppCompatActivity
 
@@ -23,62 +33,426 @@ import androidx.appcompat.app.AppCompatActivity
 // class is in a sub-package.
 import com.example.android.apis.R
 
+import java.io.BufferedReader
+import java.io.EOFException
 import java.io.IOException
+import java.io.InputStreamReader
+import java.io.Reader
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 /**
  * Shows how to read a data file contained in the app's apk "assets" directory using [getAssets] to
  * get an `AssetManager` and then how to use that `AssetManager`'s method `open(String filename)`
  * to open the "file" as an `InputStream`.
+ *
+ * The text is not read into one buffer and decoded on the UI thread. A [PageReader] streams the
+ * asset through a UTF-8 decoder on a background thread one page of at most [PAGE_CHARS] characters
+ * at a time, and each page becomes a row of a [ListView]. The first page is shown as soon as it is
+ * decoded, and the next page is only read when the user scrolls close to the end of the pages read
+ * so far, so that even a multi-megabyte asset opens at once. Only the last [CACHED_PAGES] pages
+ * shown are held in memory: for every page we remember the byte offset in the asset it starts at,
+ * and a page which has been evicted is read again from there when the user scrolls back to it.
  */
 class ReadAsset : AppCompatActivity() {
+    /**
+     * The most recently used pages, each one the text of a row of our [ListView], keyed by the
+     * index of the page.
+     */
+    private val mPages = LruCache<Int, String>(CACHED_PAGES)
+    /**
+     * The byte offset in the asset at which each page read so far starts, its size is the number
+     * of rows of our [ListView].
+     */
+    private val mPageStarts = ArrayList<Long>()
+    /**
+     * The indices of the evicted pages which are being read again.
+     */
+    private val mRereading = HashSet<Int>()
+    /**
+     * Background thread our [PageReader] reads on.
+     */
+    private val mExecutor: ExecutorService = Executors.newSingleThreadExecutor()
+    /**
+     * [Handler] used to deliver pages to the UI thread.
+     */
+    private val mHandler = Handler(Looper.getMainLooper())
+    /**
+     * Reads the pages of our asset, only used on the thread of [mExecutor].
+     */
+    private var mReader: PageReader? = null
+    /**
+     * *true* while a page is being read.
+     */
+    private var mLoading = false
+    /**
+     * *true* once the last page has been read.
+     */
+    private var mFinished = false
+    /**
+     * The adapter of our [ListView], one row per page.
+     */
+    private lateinit var mAdapter: PageAdapter
+
     /**
      * Called when the activity is starting. First we call through to our super's implementation of
-     * `onCreate`, then we set our content view to our layout file R.layout.read_asset.
-     * Wrapped in a try block intended to catch [IOException] and rethrow it as a [RuntimeException]
-     * we open an `InputStream` for `val inputStream` by obtaining an `AssetManager` instance for
-     * the application's package and using it to `open` the asset "read_asset.txt" using the mode
-     * ACCESS_STREAMING (the `AssetManager.open` method provides access to files that have been
-     * bundled with an application as assets -- that is, files placed in to the "assets" directory).
-     * We set [Int] variable `val size` to an estimate of the number of bytes that can be read (or
-     * skipped over) the input stream `inputStream` without blocking by the next invocation of a
-     * method for this input stream. We use `size` to allocate a [ByteArray] for `var buffer`, read
-     * the entire contents of `inputStream` into `buffer` and then close `inputStream`. We convert
-     * `buffer` to [String] variable `val text`, locate the [TextView] in our layout with ID R.id.text
-     * to initialize variable `val tv` and set its text to `text`.
+     * `onCreate`, then we set our content view to our layout file R.layout.read_asset. We create
+     * a [PageReader] for the asset "read_asset.txt" for our field [mReader] (it does not open the
+     * asset until it reads the first page on the background thread), locate the [ListView] in our
+     * layout with ID R.id.pages and set its adapter to a new [PageAdapter]. Finally we call our
+     * method [loadNextPage] to start reading the first page.
      *
      * @param savedInstanceState we do not override `onSaveInstanceState` so do not use.
      */
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.read_asset)
-        try {
-            val inputStream = assets.open("read_asset.txt")
-            /**
-             * We guarantee that the available method returns the total
-             * size of the asset...  of course, this does mean that a single
-             * asset can't be more than 2 gigs.
-             */
-            val size = inputStream.available()
-            /**
-             * Read the entire asset into a local byte buffer.
-             */
-            val buffer = ByteArray(size)
-            inputStream.read(buffer)
-            inputStream.close()
-            /**
-             * Convert the buffer into a string.
-             */
-            val text = String(buffer)
-            /**
-             * Finally stick the string into the text view.
-             */
-            val tv = findViewById<TextView>(R.id.text)
-            tv.text = text
-        } catch (e: IOException) {
-            /**
-             * Should never happen!
-             */
-            throw RuntimeException(e)
+        mReader = PageReader(assets, "read_asset.txt")
+        mAdapter = PageAdapter()
+        findViewById<ListView>(R.id.pages).adapter = mAdapter
+        loadNextPage()
+    }
+
+    /**
+     * Called when the activity is being destroyed. We queue the closing of our [PageReader] behind
+     * any page being read, shut down [mExecutor] and remove any pages waiting to be delivered.
+     */
+    override fun onDestroy() {
+        val reader = mReader
+        mReader = null
+        if (reader != null) {
+            mExecutor.execute { reader.close() }
+        }
+        mExecutor.shutdown()
+        mHandler.removeCallbacksAndMessages(null)
+        super.onDestroy()
+    }
+
+    /**
+     * Reads the next page on the thread of [mExecutor] unless one is already being read or we have
+     * read them all. The page is handed back to the UI thread where its start offset is added to
+     * [mPageStarts] as a new row, and the page itself to [mPages]. An [IOException] ends the text
+     * with an error message rather than crashing, since we may be half way through a large file.
+     */
+    private fun loadNextPage() {
+        val reader = mReader
+        if (mLoading || mFinished || reader == null) return
+        mLoading = true
+        mExecutor.execute {
+            val start = reader.offset
+            val page: String? = try {
+                reader.readPage()
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed reading asset", e)
+                reader.close()
+                "\n(" + e.localizedMessage + ")"
+            }
+            mHandler.post {
+                mLoading = false
+                if (page == null || reader.isClosed) {
+                    mFinished = true
+                }
+                if (page != null) {
+                    mPages.put(mPageStarts.size, page)
+                    mPageStarts.add(start)
+                    mAdapter.notifyDataSetChanged()
+                }
+            }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the page at [index] again after it has been evicted from [mPages], unless it is
+     * already being read. We read it on the thread of [mExecutor] with the `readPageAt` method of
+     * our [PageReader], starting at the offset saved in [mPageStarts], and hand it back to the UI
+     * thread where it is put in [mPages] and our rows are rebound.
+     *
+     * @param index the index of the page to read again.
+     */
+    private fun rereadPage(index: Int) {
+        val reader = mReader
+        if (reader == null || !mRereading.add(index)) return
+        val start = mPageStarts[index]
+        mExecutor.execute {
+            val page: String = try {
+                reader.readPageAt(start)
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed reading asset", e)
+                "\n(" + e.localizedMessage + ")"
+            }
+            mHandler.post {
+                mRereading.remove(index)
+                mPages.put(index, page)
+                mAdapter.notifyDataSetChanged()
+            }
+        }
+    }
+
+    /**
+     * Adapter of our [ListView], each row is a [TextView] holding one page. Binding one of the
+     * last [PREFETCH_PAGES] rows asks for the next page, so pages are read just ahead of the user,
+     * and binding a row whose page has been evicted from [mPages] has it read again.
+     */
+    private inner class PageAdapter : BaseAdapter() {
+        /**
+         * How many items are in the data set represented by this Adapter, the number of pages read.
+         *
+         * @return Count of items.
+         */
+        override fun getCount(): Int {
+            return mPageStarts.size
+        }
+
+        /**
+         * Get the data item associated with the specified position in the data set, a page.
+         *
+         * @param position Position of the item whose data we want.
+         * @return The text of the page at [position], or an empty string while it is read again.
+         */
+        override fun getItem(position: Int): Any {
+            return mPages.get(position) ?: ""
+        }
+
+        /**
+         * Get the row id associated with the specified position in the list, the position itself.
+         *
+         * @param position The position of the item whose row id we want.
+         * @return The id of the item at the specified position.
+         */
+        override fun getItemId(position: Int): Long {
+            return position.toLong()
+        }
+
+        /**
+         * Get a View that displays the page at position [position]. We reuse [convertView] if it is
+         * not *null*, otherwise we create a horizontally centered [TextView], and set its text to the
+         * page. If the page has been evicted from [mPages] we leave the row empty and call
+         * [rereadPage] to fetch it. If the row is one of the last [PREFETCH_PAGES] we call
+         * [loadNextPage].
+         *
+         * @param position The position of the item whose view we want.
+         * @param convertView The old view to reuse, if possible.
+         * @param parent The parent that this view will eventually be attached to.
+         * @return A View corresponding to the data at the specified position.
+         */
+        override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
+            val tv = convertView as TextView? ?: TextView(this@ReadAsset).apply {
+                gravity = Gravity.CENTER_HORIZONTAL
+            }
+            val page: String? = mPages.get(position)
+            tv.text = page ?: ""
+            if (page == null) {
+                rereadPage(position)
+            }
+            if (position >= mPageStarts.size - PREFETCH_PAGES) {
+                loadNextPage()
+            }
+            return tv
+        }
+    }
+
+    /**
+     * Reads a text asset one page at a time. The asset is decoded as UTF-8 by a [Reader] reading
+     * it in chunks, so memory use is bounded by the size of a page whatever the size of the asset.
+     * A page is cut after its last newline so that no line is split between two rows, the rest is
+     * carried over to the next page. Since a page always starts with the characters carried over,
+     * reading [PAGE_CHARS] characters from the byte offset a page starts at and cutting them the
+     * same way gives the same page again, which [readPageAt] does. Not thread safe, use it from one
+     * thread at a time.
+     *
+     * @param assets the [AssetManager] to open the asset with.
+     * @param name the name of the asset.
+     */
+    private class PageReader(private val assets: AssetManager, private val name: String) {
+        /**
+         * The decoder reading our asset, opened by the first call of [readPage].
+         */
+        private var mReader: Reader? = null
+        /**
+         * Characters read after the last newline of the previous page.
+         */
+        private var mCarry = ""
+        /**
+         * Buffer the characters of a page are read into.
+         */
+        private val mBuffer = CharArray(PAGE_CHARS)
+
+        /**
+         * *true* once the end of the asset has been reached or [close] has been called.
+         */
+        var isClosed = false
+            private set
+
+        /**
+         * Byte offset in the asset at which the next page read by [readPage] starts.
+         */
+        var offset = 0L
+            private set
+
+        /**
+         * Reads the next page: up to [PAGE_CHARS] characters, cut after the last newline unless
+         * the page has none or is the last one.
+         *
+         * @return the next page, or *null* if there are no more.
+         * @throws IOException if the asset cannot be read.
+         */
+        @Throws(IOException::class)
+        fun readPage(): String? {
+            if (isClosed) return null
+            val reader = mReader ?: open(0L).also { mReader = it }
+            val want = PAGE_CHARS - mCarry.length
+            val count = fill(reader, want)
+            val text = mCarry + String(mBuffer, 0, count)
+            if (count < want) {
+                close()
+                mCarry = ""
+                offset += utf8Length(text)
+                return if (text.isEmpty()) null else text
+            }
+            val cut = cut(text)
+            mCarry = text.substring(cut)
+            val page = text.substring(0, cut)
+            offset += utf8Length(page)
+            return page
+        }
+
+        /**
+         * Reads the page which starts at the byte offset [start] of the asset again, using a
+         * stream of its own so that the position of [readPage] is not disturbed.
+         *
+         * @param start the byte offset the page starts at, as read from [offset] before the page
+         * was read by [readPage].
+         * @return the page.
+         * @throws IOException if the asset cannot be read.
+         */
+        @Throws(IOException::class)
+        fun readPageAt(start: Long): String {
+            val reader = open(start)
+            try {
+                val count = fill(reader, PAGE_CHARS)
+                val text = String(mBuffer, 0, count)
+                return if (count < PAGE_CHARS) text else text.substring(0, cut(text))
+            } finally {
+                reader.close()
+            }
+        }
+
+        /**
+         * Opens our asset and skips to the byte offset [start].
+         *
+         * @param start the byte offset to start reading at.
+         * @return a [Reader] decoding the asset as UTF-8 from [start] on.
+         * @throws IOException if the asset cannot be opened or is shorter than [start].
+         */
+        @Throws(IOException::class)
+        private fun open(start: Long): Reader {
+            val stream = assets.open(name, AssetManager.ACCESS_STREAMING)
+            var left = start
+            while (left > 0) {
+                val n = stream.skip(left)
+                if (n <= 0) {
+                    stream.close()
+                    throw EOFException("$name is shorter than $start bytes")
+                }
+                left -= n
+            }
+            return BufferedReader(InputStreamReader(stream, Charsets.UTF_8))
+        }
+
+        /**
+         * Reads up to [want] characters from [reader] into [mBuffer], fewer only at the end of the
+         * asset.
+         *
+         * @param reader the [Reader] to read from.
+         * @param want the number of characters wanted.
+         * @return the number of characters read.
+         * @throws IOException if the asset cannot be read.
+         */
+        @Throws(IOException::class)
+        private fun fill(reader: Reader, want: Int): Int {
+            var count = 0
+            while (count < want) {
+                val n = reader.read(mBuffer, count, want - count)
+                if (n < 0) break
+                count += n
+            }
+            return count
+        }
+
+        /**
+         * Finds where to cut a full page: after its last newline, or if it has none at its end,
+         * moved back one character if that would split a surrogate pair.
+         *
+         * @param text the characters read for the page.
+         * @return the length of the page.
+         */
+        private fun cut(text: String): Int {
+            var cut = text.lastIndexOf('\n') + 1
+            if (cut == 0) {
+                cut = text.length
+                if (Character.isHighSurrogate(text[cut - 1])) cut--
+            }
+            return cut
+        }
+
+        /**
+         * Counts the bytes [text] takes up encoded as UTF-8, which is where the next page starts
+         * in the asset as long as the asset is valid UTF-8.
+         *
+         * @param text the text to measure.
+         * @return the length of [text] in UTF-8.
+         */
+        private fun utf8Length(text: String): Long {
+            var length = 0L
+            var i = 0
+            while (i < text.length) {
+                val c = text[i]
+                length += when {
+                    c.toInt() < 0x80 -> 1
+                    c.toInt() < 0x800 -> 2
+                    Character.isHighSurrogate(c) && i + 1 < text.length -> {
+                        i++
+                        4
+                    }
+                    else -> 3
+                }
+                i++
+            }
+            return length
+        }
+
+        /**
+         * Closes the asset, [readPage] returns *null* afterwards.
+         */
+        fun close() {
+            isClosed = true
+            try {
+                mReader?.close()
+            } catch (e: IOException) {
+                Log.i(TAG, e.localizedMessage!!)
+            }
+        }
+    }
+
+    /**
+     * Our static constants.
+     */
+    companion object {
+        /**
+         * TAG used for logging
+         */
+        private const val TAG = "ReadAsset"
+        /**
+         * Largest number of characters in a page
+         */
+        const val PAGE_CHARS = 16 * 1024
+        /**
+         * Most pages held in memory at a time
+         */
+        const val CACHED_PAGES = 16
+        /**
+         * How many rows from the end binding a row asks for the next page
+         */
+        const val PREFETCH_PAGES = 2
+    }
+}
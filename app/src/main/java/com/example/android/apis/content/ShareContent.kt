@@ -15,23 +15,39 @@
  */
 package com.example.android.apis.content
 
+import android.annotation.SuppressLint
 import android.annotation.TargetApi
 import android.content.ClipData
 import android.content.Intent
+import android.content.res.AssetFileDescriptor
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
+import android.os.ParcelFileDescriptor
 import android.util.TypedValue
 import android.view.View
+import android.widget.TextView
 import androidx.appcompat.app.AppCompatActivity
 import com.example.android.apis.R
+import com.example.android.apis.StreamUtils
+import java.io.IOException
 
 /**
  * Example of sharing content from a private content provider. Uses the `provider`
  * ".content.FileProvider" to pipe the image/jpeg to the app that the user selects to handle it.
+ * The "Benchmark Reads" button compares reading a file through the pipe `openFileDescriptor` gets
+ * from that provider with reading the slice of the .apk `openTypedAssetFileDescriptor` gets, for
+ * both the small image and a video of well over a megabyte, since the fixed cost of setting up a
+ * pipe dominates the first while the cost of copying every byte through it dominates the second.
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+@SuppressLint("SetTextI18n")
 class ShareContent : AppCompatActivity() {
+    /**
+     * The [TextView] we use to display the results of the read benchmark.
+     */
+    private var mBenchmarkText: TextView? = null
+
     /**
      * Called when the activity is starting. First we call through to our super's implementation of
      * `onCreate`, then we set our content view to our layout file R.layout.share_content.
@@ -40,7 +56,9 @@ class ShareContent : AppCompatActivity() {
      * allow the user to choose an app capable of handling an "image/jpeg" data stream to be
      * provided by our `ContentProvider` class com.example.android.apis.content.FileProvider
      * when it reads the resource file R.drawable.jellies from our APK. We then launch this
-     * `Intent`.
+     * `Intent`. Then we locate the `Button` R.id.benchmark_reads ("Benchmark Reads") and set its
+     * `OnClickListener` to [mBenchmarkListener], and initialize our [TextView] field
+     * [mBenchmarkText] by finding the view with ID R.id.benchmark_result.
      *
      * @param savedInstanceState we do not override [onSaveInstanceState] so do not use
      */
@@ -52,34 +70,134 @@ class ShareContent : AppCompatActivity() {
          * First we create an [Intent] with action ACTION_SEND (Deliver some data to someone else).
          * Next we add the flag FLAG_GRANT_READ_URI_PERMISSION (the recipient of this [Intent]
          * will be granted permission to perform read operations on the URI in the Intent's data
-         * and any URIs specified in its [ClipData]). We create [Uri.Builder] `val b`, add the
-         * scheme "content" to it, and the authority "com.example.android.apis.content.FileProvider".
-         * We create a [TypedValue] `val tv` (Container for a dynamically typed data value. Primarily
-         * used with Resources for holding resource values). We place the raw data associated with
-         * the resource ID R.drawable.jellies into `tv`. We append to `b` the string value of the
-         * field `tv.assetCookie`, and the string value of `tv.string` and then use `b` to build
-         * [Uri] `val uri`. We set the type of [Intent] `intent` to "image/jpeg", then add `uri`
-         * as an extra using the key EXTRA_STREAM. We next set the [ClipData] associated with this
-         * [Intent] `intent` to a [ClipData] created to hold `uri`. Finally we create an ACTION_CHOOSER
-         * [Intent] from `intent` and start that `Activity`.
+         * and any URIs specified in its [ClipData]). We set [Uri] `val uri` to the [Uri] of the
+         * image R.drawable.jellies returned by our method [resourceUri]. We set the type of
+         * [Intent] `intent` to "image/jpeg", then add `uri` as an extra using the key EXTRA_STREAM.
+         * We next set the [ClipData] associated with this [Intent] `intent` to a [ClipData] created
+         * to hold `uri`. Finally we create an ACTION_CHOOSER [Intent] from `intent` and start that
+         * `Activity`.
          *
          * Parameter: View of Button that was clicked
          */
         findViewById<View>(R.id.share_image).setOnClickListener {
             val intent = Intent(Intent.ACTION_SEND)
             intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
-            val b = Uri.Builder()
-            b.scheme("content")
-            b.authority("com.example.android.apis.content.FileProvider")
-            val tv = TypedValue()
-            resources.getValue(R.drawable.jellies, tv, true)
-            b.appendEncodedPath(tv.assetCookie.toString())
-            b.appendEncodedPath(tv.string.toString())
-            val uri = b.build()
+            val uri = resourceUri(R.drawable.jellies)
             intent.type = "image/jpeg"
             intent.putExtra(Intent.EXTRA_STREAM, uri)
             intent.clipData = ClipData.newUri(contentResolver, "image", uri)
             startActivity(Intent.createChooser(intent, "Select share target"))
         }
+        findViewById<View>(R.id.benchmark_reads).setOnClickListener(mBenchmarkListener)
+        mBenchmarkText = findViewById(R.id.benchmark_result)
+    }
+
+    /**
+     * Returns the [Uri] under which our FileProvider serves the resource file [id]. We
+     * create [Uri.Builder] `val b`, add the scheme "content" to it, and the authority
+     * "com.example.android.apis.content.FileProvider". We create a [TypedValue] `val tv`
+     * (Container for a dynamically typed data value. Primarily used with Resources for holding
+     * resource values). We place the raw data associated with the resource ID [id] into `tv`. We
+     * append to `b` the string value of the field `tv.assetCookie`, and the string value of
+     * `tv.string` and then return the [Uri] built by `b`.
+     *
+     * @param id the resource ID of a file resource, R.drawable.jellies for instance.
+     * @return the content [Uri] of the file.
+     */
+    private fun resourceUri(id: Int): Uri {
+        val b = Uri.Builder()
+        b.scheme("content")
+        b.authority("com.example.android.apis.content.FileProvider")
+        val tv = TypedValue()
+        resources.getValue(id, tv, true)
+        b.appendEncodedPath(tv.assetCookie.toString())
+        b.appendEncodedPath(tv.string.toString())
+        return b.build()
+    }
+
+    /**
+     * Called when the R.id.benchmark_reads ("Benchmark Reads") `Button` is clicked. We start a
+     * background thread which calls our method [benchmarkReads] for the small image
+     * R.drawable.jellies and then for the much larger video R.raw.videoviewdemo (both of which
+     * are stored uncompressed in the .apk), and displays the two reports in our [TextView] field
+     * [mBenchmarkText], one after the other.
+     *
+     * Parameter: View of the Button that was clicked
+     */
+    private val mBenchmarkListener = View.OnClickListener {
+        mBenchmarkText!!.text = "Running benchmark..."
+        Thread(Runnable {
+            val report = StringBuilder()
+            report.append("jellies.jpg: ")
+            benchmarkReads(resourceUri(R.drawable.jellies), report)
+            report.append("\n\nvideoviewdemo.mp4: ")
+            benchmarkReads(resourceUri(R.raw.videoviewdemo), report)
+            runOnUiThread { mBenchmarkText!!.text = report }
+        }).start()
+    }
+
+    /**
+     * Reads the file served under [uri] [BENCHMARK_READS] times through the pipe returned by
+     * `openFileDescriptor` (our provider copies the file into it on a thread of its own) and as
+     * many times through the [AssetFileDescriptor] returned by `openTypedAssetFileDescriptor`
+     * (which is a slice of the .apk when the file is stored uncompressed, and wraps the same pipe
+     * otherwise). Then we append the size of the file, and the microseconds per read and the
+     * throughput of each way to [report]. Called on a background thread.
+     *
+     * @param uri the content [Uri] of the file to read.
+     * @param report the [StringBuilder] to append our results to.
+     */
+    private fun benchmarkReads(uri: Uri, report: StringBuilder) {
+        try {
+            var size = 0
+            val piped = timeMicros {
+                val pfd = contentResolver.openFileDescriptor(uri, "r")!!
+                ParcelFileDescriptor.AutoCloseInputStream(pfd).use {
+                    size = StreamUtils.readFully(it).size
+                }
+            }
+            var sliced = false
+            val slice = timeMicros {
+                // Our provider serves every file as "image/jpeg".
+                val afd = contentResolver.openTypedAssetFileDescriptor(uri, "image/jpeg", null)!!
+                try {
+                    sliced = afd.length != AssetFileDescriptor.UNKNOWN_LENGTH
+                    StreamUtils.readFully(afd)
+                } finally {
+                    afd.close() // AssetFileDescriptor is only Closeable from KitKat on
+                }
+            }
+            report.append(String.format("%d reads of %d bytes, µs per read (MB/s)",
+                    BENCHMARK_READS, size))
+            report.append(String.format("\npipe: %.0f (%.1f)", piped, size / piped))
+            report.append(String.format("\n%s: %.0f (%.1f)",
+                    if (sliced) "slice" else "pipe (compressed)", slice, size / slice))
+        } catch (e: IOException) {
+            report.append("Read failed: $e")
+        }
+    }
+
+    /**
+     * Runs [block] [BENCHMARK_READS] times and returns the time it took in microseconds per run.
+     *
+     * @param block the read to time.
+     * @return microseconds per run.
+     */
+    private inline fun timeMicros(block: () -> Unit): Double {
+        val start = System.nanoTime()
+        for (i in 0 until BENCHMARK_READS) {
+            block()
+        }
+        return (System.nanoTime() - start) / 1000.0 / BENCHMARK_READS
+    }
+
+    /**
+     * Our static constants.
+     */
+    companion object {
+        /**
+         * Number of times the read benchmark reads each file each way.
+         */
+        private const val BENCHMARK_READS = 50
     }
 }
\ No newline at end of file
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("DEPRECATION")
+
+package com.example.android.apis.graphics
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+// Movie is deprecated, TODO: replace with android.graphics.drawable.AnimatedImageDrawable
+import android.graphics.Movie
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.SystemClock
+import java.util.ArrayDeque
+
+/**
+ * Plays an animated GIF without decoding it on the UI thread. Drawing a [Movie] directly from
+ * `onDraw` (as `BitmapDecode` used to) decodes every frame on the UI thread during the draw
+ * pass, and keeps the view invalidating itself on every vsync even when the frame has not
+ * changed. Instead, we render the frames ahead, on the [DECODER] thread shared by all instances,
+ * into a ring of [ringSize] bitmaps which are reused over and over:
+ *
+ *  * The decoder thread takes a free bitmap, renders the next frame into it and queues it as
+ *  ready, one frame per message so that several images playing at once take turns.
+ *  * [draw] (called on the UI thread) shows the oldest ready frame once the delay of the frame
+ *  on screen has elapsed, gives the bitmap it replaces back to the ring, and returns how long
+ *  until the next frame is due so that the view can invalidate itself exactly then.
+ *  * Once the ring is full the decoder thread has nothing to do, so an image which is not being
+ *  drawn (off screen, say) decodes nothing. [stop] also stops the decoding outright.
+ *
+ * The delay of each frame is read from the Graphic Control Extension blocks of the GIF by
+ * [gifFrameDelays], [Movie] itself only tells us its total duration. The raw delays give the time
+ * in the [Movie] of each frame, exactly as [Movie] lays out its own timeline, while the delays
+ * used to schedule the frames on screen are clamped the way browsers do it.
+ *
+ * @param data the encoded GIF.
+ * @param ringSize number of frame bitmaps, the frame on screen plus those decoded ahead.
+ */
+class AnimatedImage(data: ByteArray, private val ringSize: Int = RING_SIZE) {
+    /**
+     * Told when a frame [draw] was waiting for has been decoded.
+     */
+    interface Listener {
+        /**
+         * Called on the UI thread when a frame is ready after [draw] found none.
+         *
+         * @param image the [AnimatedImage] which has a new frame.
+         */
+        fun onFrameReady(image: AnimatedImage)
+    }
+
+    /**
+     * A decoded frame.
+     *
+     * @param bitmap the bitmap of the ring the frame is rendered into.
+     * @param delay how long the frame stays on screen, in milliseconds.
+     */
+    private class Frame(val bitmap: Bitmap, val delay: Int)
+
+    /**
+     * The [Movie] rendering our frames, only used on the [DECODER] thread after construction.
+     */
+    private val mMovie: Movie = Movie.decodeByteArray(data, 0, data.size)
+            ?: throw IllegalArgumentException("Not a movie")
+    /**
+     * Width of the image in pixels.
+     */
+    val width: Int = mMovie.width()
+    /**
+     * Height of the image in pixels.
+     */
+    val height: Int = mMovie.height()
+    /**
+     * How long each frame stays on screen in milliseconds: its delay, or [DEFAULT_DELAY] if that
+     * is less than [MIN_DELAY].
+     */
+    private val mDelays: IntArray
+    /**
+     * Time in the [Movie] at which each frame starts, in milliseconds, the sum of the raw delays
+     * of the frames before it.
+     */
+    private val mFrameTimes: IntArray
+    /**
+     * Lock guarding [mFree], [mReady], [mShown], [mScheduled] and [mStarved].
+     */
+    private val mLock = Any()
+    /**
+     * Bitmaps of the ring which hold no frame.
+     */
+    private val mFree = ArrayDeque<Bitmap>()
+    /**
+     * Frames decoded and waiting for their turn on screen, oldest first.
+     */
+    private val mReady = ArrayDeque<Frame>()
+    /**
+     * The frame on screen, *null* until the first frame has been decoded.
+     */
+    private var mShown: Frame? = null
+    /**
+     * `uptimeMillis` at which the frame on screen is to be replaced by the next one.
+     */
+    private var mDueAt = 0L
+    /**
+     * *true* while [mProduce] is queued on the [DECODER] thread.
+     */
+    private var mScheduled = false
+    /**
+     * *true* if [draw] found no frame ready, so [mListener] must be told about the next one.
+     */
+    private var mStarved = false
+    /**
+     * Index of the next frame to decode, only used on the [DECODER] thread.
+     */
+    private var mNextFrame = 0
+    /**
+     * [Canvas] the frames are rendered with, only used on the [DECODER] thread.
+     */
+    private val mCanvas = Canvas()
+    /**
+     * *true* between [start] and [stop].
+     */
+    @Volatile
+    private var mRunning = false
+    /**
+     * Our [Listener], if any.
+     */
+    @Volatile
+    private var mListener: Listener? = null
+    /**
+     * Decodes one frame, run on the [DECODER] thread.
+     */
+    private val mProduce = Runnable { produce() }
+
+    init {
+        var delays = gifFrameDelays(data)
+        if (delays == null || delays.isEmpty()) {
+            val duration = mMovie.duration()
+            val count = if (duration > 0) (duration + DEFAULT_DELAY - 1) / DEFAULT_DELAY else 1
+            delays = IntArray(count)
+            delays.fill(DEFAULT_DELAY)
+        }
+        mFrameTimes = IntArray(delays.size)
+        for (i in 1 until delays.size) {
+            mFrameTimes[i] = mFrameTimes[i - 1] + delays[i - 1]
+        }
+        mDelays = IntArray(delays.size)
+        for (i in delays.indices) {
+            mDelays[i] = if (delays[i] < MIN_DELAY) DEFAULT_DELAY else delays[i]
+        }
+        repeat(ringSize) {
+            mFree.add(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888))
+        }
+    }
+
+    /**
+     * Sets the [Listener] told when a frame [draw] was waiting for is ready.
+     *
+     * @param listener the [Listener], or *null* for none.
+     */
+    fun setListener(listener: Listener?) {
+        mListener = listener
+    }
+
+    /**
+     * Starts (or resumes) decoding frames ahead.
+     */
+    fun start() {
+        mRunning = true
+        schedule()
+    }
+
+    /**
+     * Stops decoding frames, the frames already decoded are kept.
+     */
+    fun stop() {
+        mRunning = false
+    }
+
+    /**
+     * Stops decoding and recycles the bitmaps of the ring. The recycling is done on the [DECODER]
+     * thread, after any frame it is rendering.
+     */
+    fun release() {
+        stop()
+        DECODER.post {
+            synchronized(mLock) {
+                mFree.forEach { it.recycle() }
+                mReady.forEach { it.bitmap.recycle() }
+                mShown?.bitmap?.recycle()
+                mFree.clear()
+                mReady.clear()
+                mShown = null
+            }
+        }
+    }
+
+    /**
+     * Draws the current frame at ([x], [y]) on [canvas], on the UI thread. If the frame on screen
+     * has been there for its delay and the next frame is ready, the next frame replaces it and
+     * its bitmap goes back to the ring. When we are late by more than a frame we resynchronize
+     * to the current time rather than racing through frames to catch up.
+     *
+     * @param canvas the [Canvas] to draw on.
+     * @param x X coordinate of the left edge of the image.
+     * @param y Y coordinate of the top edge of the image.
+     * @return milliseconds until the next frame is due, or -1 if it is not decoded yet (our
+     * [Listener] is called when it is) or we are stopped.
+     */
+    fun draw(canvas: Canvas, x: Float, y: Float): Long {
+        val now = SystemClock.uptimeMillis()
+        val shown: Frame?
+        val starved: Boolean
+        synchronized(mLock) {
+            val next = mReady.peekFirst()
+            if (next != null && (mShown == null || now >= mDueAt)) {
+                mReady.pollFirst()
+                val previous = mShown
+                mDueAt = if (previous == null || now - mDueAt > next.delay) {
+                    now + next.delay
+                } else {
+                    mDueAt + next.delay
+                }
+                previous?.let { mFree.addLast(it.bitmap) }
+                mShown = next
+            }
+            shown = mShown
+            starved = mReady.isEmpty()
+            mStarved = starved
+        }
+        schedule()
+        if (shown != null) {
+            canvas.drawBitmap(shown.bitmap, x, y, null)
+        }
+        return if (!mRunning || starved) -1 else maxOf(0L, mDueAt - now)
+    }
+
+    /**
+     * Queues [mProduce] on the [DECODER] thread if we are running, a bitmap of the ring is free,
+     * and it is not already queued.
+     */
+    private fun schedule() {
+        synchronized(mLock) {
+            if (mScheduled || !mRunning || mFree.isEmpty()) return
+            mScheduled = true
+        }
+        DECODER.post(mProduce)
+    }
+
+    /**
+     * Renders the next frame into a free bitmap of the ring and queues it as ready, on the
+     * [DECODER] thread. If [draw] was waiting for it we tell our [Listener] on the UI thread.
+     * Then we queue ourselves again if there is still room in the ring, one frame per message so
+     * that other images get their turn in between.
+     */
+    private fun produce() {
+        val bitmap = synchronized(mLock) {
+            if (!mRunning) null else mFree.pollFirst()
+        }
+        if (bitmap != null) {
+            val index = mNextFrame
+            mNextFrame = (index + 1) % mDelays.size
+            bitmap.eraseColor(Color.TRANSPARENT)
+            mMovie.setTime(mFrameTimes[index])
+            mCanvas.setBitmap(bitmap)
+            mMovie.draw(mCanvas, 0f, 0f)
+            mCanvas.setBitmap(null)
+            val notify = synchronized(mLock) {
+                mReady.addLast(Frame(bitmap, mDelays[index]))
+                val waiting = mStarved
+                mStarved = false
+                waiting
+            }
+            if (notify) {
+                MAIN.post { mListener?.onFrameReady(this) }
+            }
+        }
+        synchronized(mLock) {
+            mScheduled = false
+        }
+        schedule()
+    }
+
+    /**
+     * Our static constants and method.
+     */
+    companion object {
+        /**
+         * Default number of bitmaps in the ring: the frame on screen and two decoded ahead.
+         */
+        const val RING_SIZE = 3
+        /**
+         * Delay used for frames which ask for less than [MIN_DELAY], and for every frame when the
+         * delays cannot be read, in milliseconds. Browsers do the same.
+         */
+        const val DEFAULT_DELAY = 100
+        /**
+         * Shortest frame delay honoured, in milliseconds.
+         */
+        const val MIN_DELAY = 20
+
+        /**
+         * The thread all instances render their frames on.
+         */
+        private val DECODER: Handler by lazy {
+            val thread = HandlerThread("AnimatedImage")
+            thread.start()
+            Handler(thread.looper)
+        }
+
+        /**
+         * [Handler] for the UI thread.
+         */
+        private val MAIN = Handler(Looper.getMainLooper())
+
+        /**
+         * Reads the delay of each frame of the GIF [data]. We walk the blocks of the GIF: a
+         * Graphic Control Extension gives the delay (in hundredths of a second) of the image which
+         * follows it, and every Image Descriptor is a frame. The sub-blocks of the image data and
+         * of other extensions are skipped. The delays are returned as they are, with 0 for a frame
+         * which has no Graphic Control Extension, since that is what [Movie] uses to place the
+         * frames on its timeline.
+         *
+         * @param data the encoded GIF.
+         * @return the delay of each frame in milliseconds, or *null* if [data] is not a GIF.
+         */
+        fun gifFrameDelays(data: ByteArray): IntArray? {
+            if (data.size < 13 || data[0] != 'G'.toByte() || data[1] != 'I'.toByte()
+                    || data[2] != 'F'.toByte()) {
+                return null
+            }
+            fun u8(i: Int): Int = if (i < data.size) data[i].toInt() and 0xff else 0
+            fun skipSubBlocks(start: Int): Int {
+                var i = start
+                while (i < data.size) {
+                    val size = u8(i)
+                    i += 1 + size
+                    if (size == 0) break
+                }
+                return i
+            }
+            val delays = ArrayList<Int>()
+            var pendingDelay = 0
+            var pos = 13
+            val screenFlags = u8(10)
+            if (screenFlags and 0x80 != 0) {
+                pos += 3 * (1 shl ((screenFlags and 0x07) + 1))
+            }
+            while (pos < data.size) {
+                when (u8(pos)) {
+                    0x21 -> {
+                        if (u8(pos + 1) == 0xf9 && u8(pos + 2) >= 4) {
+                            pendingDelay = (u8(pos + 4) or (u8(pos + 5) shl 8)) * 10
+                        }
+                        pos = skipSubBlocks(pos + 2)
+                    }
+                    0x2c -> {
+                        val flags = u8(pos + 9)
+                        pos += 10
+                        if (flags and 0x80 != 0) {
+                            pos += 3 * (1 shl ((flags and 0x07) + 1))
+                        }
+                        pos = skipSubBlocks(pos + 1)
+                        delays.add(pendingDelay)
+                        pendingDelay = 0
+                    }
+                    else -> break
+                }
+            }
+            return delays.toIntArray()
+        }
+    }
+}
@@ -19,44 +19,59 @@
 package com.example.android.apis.graphics
 
 import android.content.Context
+import android.content.res.Resources
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.graphics.Canvas
-// Movie is deprecated, TODO: replace with android.graphics.drawable.AnimatedImageDrawable
-import android.graphics.Movie
+import android.graphics.ImageDecoder
 import android.graphics.drawable.Drawable
+import android.os.Build
 import android.os.Bundle
-import android.os.SystemClock
 import android.util.Log
 import android.view.View
+import android.view.ViewGroup
+import android.widget.LinearLayout
 import com.example.android.apis.R
-import java.io.ByteArrayOutputStream
+import com.example.android.apis.StreamUtils
 import java.io.IOException
-import java.io.InputStream
 
 /**
  * Shows how to decode various image file formats into displayable bitmaps: drawable/beach.jpg,
  * drawable/frog.gif (creates also an Bitmap.Config.ARGB_8888 bitmap, and a Bitmap.Config.ARGB_4444
  * bitmap from that bitmap), drawable/button.9.png, and drawable/animated_gif.gif which it animates
- * using android.graphics.Movie.java
+ * [ANIMATION_COUNT] times over using [AnimatedImage], which renders the frames of an
+ * android.graphics.Movie ahead on a background thread. Below them a [TiledImageView] shows
+ * R.raw.beach again, this time decoded in tiles by `BitmapRegionDecoder` at the sample size the
+ * zoom level calls for, so that it can be panned and zoomed without decoding the whole image.
  */
 class BitmapDecode : GraphicsActivity() {
     /**
      * Called when the activity is starting. First we call through to our super's implementation of
-     * `onCreate`, then we set our content view to a new instance of `SampleView`.
+     * `onCreate`, then we create a vertical [LinearLayout] holding a new instance of `SampleView`
+     * above a new instance of [TiledImageView] displaying the raw bytes of R.raw.beach (read by
+     * [StreamUtils.readRawResource] into an array of exactly the right size), each
+     * taking half of the height, and set our content view to it.
      *
      * @param savedInstanceState we do not override [onSaveInstanceState] so do not use.
      */
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
-        setContentView(SampleView(this))
+        val layout = LinearLayout(this)
+        layout.orientation = LinearLayout.VERTICAL
+        layout.addView(SampleView(this),
+                LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1f))
+        val tiled = TiledImageView(this)
+        tiled.setImage(StreamUtils.readRawResource(resources, R.raw.beach))
+        layout.addView(tiled,
+                LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1f))
+        setContentView(layout)
     }
 
     /**
-     * Custom View which draws 4 [Bitmap]'s, one [Drawable], and an animated gif in a
-     * [Movie] instance.
+     * Custom View which draws 4 [Bitmap]'s, one [Drawable], and [ANIMATION_COUNT] copies of an
+     * animated gif played by [AnimatedImage] instances.
      */
-    private class SampleView(context: Context) : View(context) {
+    private class SampleView(context: Context) : View(context), AnimatedImage.Listener {
         /**
          * Decoded R.raw.beach jpg, scaled down by 4
          */
@@ -78,15 +93,14 @@ class BitmapDecode : GraphicsActivity() {
          */
         private val mDrawable: Drawable
         /**
-         * [Movie] used to play the animated gif R.raw.animated_gif
+         * The [AnimatedImage] instances playing the animated gif R.raw.animated_gif, empty if it
+         * could not be decoded.
          */
-        @Suppress("DEPRECATION")
-        private var mMovie: Movie? = null
+        private val mAnimations = ArrayList<AnimatedImage>()
         /**
-         * Start time in milliseconds of the [Movie] used to calculate the relative time of the
-         * animation before asking [mMovie] to draw the frame that is scheduled for that time.
+         * *true* while we are attached to a window.
          */
-        private var mMovieStart: Long = 0
+        private var mAttached = false
 
         /**
          * We implement this to do our drawing when requested to do so. First we set the entire
@@ -96,17 +110,12 @@ class BitmapDecode : GraphicsActivity() {
          * (110,170), and [Bitmap] field [mBitmap4] at (210,170). We draw [Drawable] field [mDrawable]
          * to [canvas] (its bounds already position it correctly).
          *
-         * Next we fetch the current system time to [Long] variable `val now`, and if our [Long]
-         * field [mMovieStart] is zero (first time we are called) we set [mMovieStart] to `now`.
-         * If [Movie] field [mMovie] is not *null*, we fetch the duration of [mMovie] to [Int]
-         * variable `var dur` (1000 for our gif), making sure it is 1000 if [Movie.duration] returned
-         * zero. We calculate [Int] variable `val relTime` to be modulo `dur` of the time in
-         * milliseconds since [mMovieStart], set the time of [mMovie] to `relTime` and instruct it
-         * to draw the current frame of the animated gif at the bottom right corner of [Canvas]
-         * parameter [canvas].
-         *
-         * Finally we invalidate our [View] which will schedule us to run again for the next refresh
-         * of the screen.
+         * Next we draw the current frame of each of the [AnimatedImage] instances in [mAnimations]
+         * side by side from the bottom right corner of [canvas]. The frames were decoded ahead on
+         * a background thread, so drawing them is just a bitmap blit. Each `draw` returns how long
+         * until its next frame is due, and we invalidate ourselves only when the soonest of these
+         * comes, instead of on every refresh of the screen. (An instance whose next frame is not
+         * decoded yet returns -1, and calls our [onFrameReady] when it is.)
          *
          * @param canvas [Canvas] to draw our [View] onto
          */
@@ -119,27 +128,128 @@ class BitmapDecode : GraphicsActivity() {
             canvas.drawBitmap(mBitmap3, 110f, 170f, null)
             canvas.drawBitmap(mBitmap4, 210f, 170f, null)
             mDrawable.draw(canvas)
-            val now = SystemClock.uptimeMillis()
-            if (mMovieStart == 0L) { // first time
-                mMovieStart = now
+            var nextFrame = Long.MAX_VALUE
+            var x = width.toFloat()
+            for (animation in mAnimations) {
+                x -= animation.width
+                val delay = animation.draw(canvas, x, height - animation.height.toFloat())
+                if (delay >= 0) {
+                    nextFrame = minOf(nextFrame, delay)
+                }
+            }
+            if (nextFrame != Long.MAX_VALUE) {
+                postInvalidateDelayed(nextFrame)
+            }
+        }
+
+        /**
+         * Called by one of our [AnimatedImage] instances when a frame our last [onDraw] was
+         * waiting for has been decoded, we invalidate ourselves to draw it.
+         *
+         * @param image the [AnimatedImage] which has a new frame.
+         */
+        override fun onFrameReady(image: AnimatedImage) {
+            invalidate()
+        }
+
+        /**
+         * This is called when the view is attached to a window, we start our animations if we
+         * are visible.
+         */
+        override fun onAttachedToWindow() {
+            super.onAttachedToWindow()
+            mAttached = true
+            updateAnimating()
+        }
+
+        /**
+         * This is called when the view is detached from its window, we release our animations.
+         */
+        override fun onDetachedFromWindow() {
+            super.onDetachedFromWindow()
+            mAttached = false
+            for (animation in mAnimations) {
+                animation.release()
             }
-            if (mMovie != null) {
-                @Suppress("DEPRECATION")
-                var dur = mMovie!!.duration()
-                if (dur == 0) {
-                    dur = 1000
+        }
+
+        /**
+         * Called when the visibility of the window containing us has changed, we start or stop
+         * decoding the frames of our animations to match.
+         *
+         * @param visibility The new visibility of the window.
+         */
+        override fun onWindowVisibilityChanged(visibility: Int) {
+            super.onWindowVisibilityChanged(visibility)
+            updateAnimating()
+        }
+
+        /**
+         * Called when the visibility of the view or an ancestor of the view has changed, we start
+         * or stop decoding the frames of our animations to match.
+         *
+         * @param changedView The view whose visibility changed.
+         * @param visibility The new visibility of [changedView].
+         */
+        override fun onVisibilityChanged(changedView: View, visibility: Int) {
+            super.onVisibilityChanged(changedView, visibility)
+            updateAnimating()
+        }
+
+        /**
+         * Starts our [AnimatedImage] instances decoding frames ahead if we are attached and shown
+         * in a visible window, and stops them otherwise so that no frames are decoded while we
+         * are off screen.
+         */
+        private fun updateAnimating() {
+            val animate = mAttached && isShown && windowVisibility == VISIBLE
+            for (animation in mAnimations) {
+                if (animate) {
+                    animation.start()
+                    animation.setListener(this)
+                } else {
+                    animation.stop()
                 }
-                val relTime = ((now - mMovieStart) % dur).toInt()
-                @Suppress("DEPRECATION")
-                mMovie!!.setTime(relTime)
-                @Suppress("DEPRECATION")
-                mMovie!!.draw(canvas, width - mMovie!!.width().toFloat(), height - mMovie!!.height().toFloat())
+            }
+            if (animate) {
                 invalidate()
             }
         }
 
         /**
-         * Our static constants and method
+         * Decodes our resource gif R.raw.frog. On Android P and newer we map the slice of our .apk
+         * holding it with [StreamUtils.mapAsset] and decode it with [ImageDecoder] straight from
+         * the mapping, asking for a software bitmap since we read its pixels with `getPixels`.
+         * Otherwise (or if the resource is stored compressed and cannot be mapped) we decode it
+         * from a stream with [BitmapFactory.decodeStream].
+         *
+         * @param context `Context` to use to fetch resources.
+         * @return the decoded [Bitmap].
+         */
+        private fun decodeFrog(context: Context): Bitmap {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                try {
+                    val afd = context.resources.openRawResourceFd(R.raw.frog)
+                    val buffer = afd.use { StreamUtils.mapAsset(it) }
+                    if (buffer != null) {
+                        val source = ImageDecoder.createSource(buffer)
+                        return ImageDecoder.decodeBitmap(source) { decoder, _, _ ->
+                            decoder.allocator = ImageDecoder.ALLOCATOR_SOFTWARE
+                        }
+                    }
+                } catch (e: IOException) {
+                    Log.i(TAG, "Could not map R.raw.frog", e)
+                } catch (e: Resources.NotFoundException) {
+                    Log.i(TAG, "R.raw.frog is compressed", e)
+                }
+            }
+            return context.resources.openRawResource(R.raw.frog).use {
+                BitmapFactory.decodeStream(it)
+            }
+        }
+
+        /**
+         * Our static constants
          */
         companion object {
             /**
@@ -147,76 +257,52 @@ class BitmapDecode : GraphicsActivity() {
              */
             private const val TAG = "BitMapDecode"
             /**
-             * Set to *false* to use [Movie.decodeByteArray] instead of [Movie.decodeStream]
-             */
-            private const val DECODE_STREAM = true
-
-            /**
-             * Used to read an [InputStream] into a [Byte] array. First we allocate a
-             * [ByteArrayOutputStream] for `val os` with an initial buffer capacity of 1024, and a
-             * [Byte] array `val buffer` with a capacity of 1024. Then wrapped in a *try* block
-             * intended to catch and log [IOException] we read up to 1024 bytes at a time from
-             * [inputStream] into `buffer` and write them to `os`, stopping when the read from
-             * `inputStream` is less than 0 (end of file). Finally we return the current contents
-             * of the output stream `os`, in a newly allocated byte array as returned by
-             * [ByteArrayOutputStream.toByteArray].
-             *
-             * @param inputStream `InputStream` to read bytes from
-             * @return a `byte[]` array containing the raw data from `inputStream`
+             * Number of copies of the animated gif we play at once.
              */
-            private fun streamToBytes(inputStream: InputStream): ByteArray {
-                val os = ByteArrayOutputStream(1024)
-                val buffer = ByteArray(1024)
-                var len: Int
-                try {
-                    while (inputStream.read(buffer).also { len = it } >= 0) {
-                        os.write(buffer, 0, len)
-                    }
-                } catch (e: IOException) {
-                    Log.i(TAG, e.localizedMessage!!)
-                }
-                return os.toByteArray()
-            }
+            private const val ANIMATION_COUNT = 2
         }
 
         /**
          * Constructs and initializes an instance of `SampleView`. First we call through to our
-         * super's constructor, then we enable this View to receive focus. We declare `InputStream`
-         * variable `var inputStream` and use it to open the resource jpg R.raw.beach. We create
-         * a `BitmapFactory.Options` for variable `val opts`, and declare `var bm` to be a `Bitmap`.
-         * We set the `inJustDecodeBounds` field of `opts` to true (the decoder will return null (no
-         * bitmap), but the out... fields will still be set, allowing the caller to query the bitmap
-         * without having to allocate the memory for its pixels), and use it as the `Options`
-         * parameter when we call `decodeStream` on `inputStream` after which the fields `opts.outWidth`
-         * and `opts.outHeight` contain the dimensions of the bitmap that would be created from
-         * `inputStream` (null is returned instead of a bitmap). We now set the `opts.inJustDecodeBounds`
-         * field to false, and `opts.inSampleSize` to 4, rewind `inputStream` and decode it again
-         * this time into our `Bitmap` variable `bm`. This results in a bitmap version of `inputStream`
-         * scaled down by 4. We set our [`Bitmap`] field `mBitmap` to `bm`.
+         * super's constructor, then we enable this View to receive focus. We use the method
+         * [StreamUtils.readRawResource] to read the resource jpg R.raw.beach into [ByteArray]
+         * variable `val beach` (it is stored uncompressed, so its length is known and it is read
+         * straight into an array of that size). We create a `BitmapFactory.Options` for variable
+         * `val opts`, and declare `var bm` to be a `Bitmap`. We set the `inJustDecodeBounds` field of
+         * `opts` to true (the decoder will return null (no bitmap), but the out... fields will still
+         * be set, allowing the caller to query the bitmap without having to allocate the memory for
+         * its pixels), and use it as the `Options` parameter when we call `decodeByteArray` on
+         * `beach` after which the fields `opts.outWidth` and `opts.outHeight` contain the dimensions
+         * of the bitmap that would be created from `beach` (null is returned instead of a bitmap).
+         * We now set the `opts.inJustDecodeBounds` field to false, and `opts.inSampleSize` to 4, and
+         * decode `beach` again this time into our `Bitmap` variable `bm` (no stream needs to be
+         * rewound, the bytes are in memory). This results in a bitmap version of `beach` scaled down
+         * by 4. We set our [`Bitmap`] field `mBitmap` to `bm`.
          *
-         * Now we use `inputStream` to open our resource gif R.raw.frog, and decode it into our `Bitmap`
+         * Now we call our method [decodeFrog] to decode our resource gif R.raw.frog into our `Bitmap`
          * field `mBitmap2`. We fetch the width of `mBitmap2` to `Int` variable `val w` and the
          * height to `Int` variable `val h` and allocate `Int` variable `val pixels` to contain
          * `w*h` ints. We copy all of the pixels from `Bitmap2` into `pixels`, then use `pixels`
          * to create `Bitmap` field `mBitmap3` using a config of ARGB_8888, and create `Bitmap` field
          * `mBitmap4` using a config of ARGB_4444. Then we load `Drawable` field `mDrawable` from our
          * resource file R.drawable.button and set its bounds to (150, 20, 300, 100) (left,top,right,
-         * bottom). We open our resource animated gif file R.raw.animated_gif using `inputStream`,
-         * and decode this stream into `Movie` field `mMovie` (If DECODE_STREAM is true that is,
-         * otherwise we read the raw bytes of `inputStream` into `Byte` array variable `val array`
-         * and decode that byte array into `Movie` field `mMovie`).
+         * bottom). We read the raw bytes of our resource animated gif file R.raw.animated_gif into
+         * `Byte` array variable `val array` using [StreamUtils.readRawResource], and add
+         * [ANIMATION_COUNT] [AnimatedImage] instances playing `array` to our field `mAnimations`
+         * (they need the bytes to read the delay of each frame, not just a `Movie` decoded from a
+         * stream).
          *
          * Parameter: `Context` to use to fetch resources, "this" when called from our
          * `onCreate` override
          */
         init {
             isFocusable = true
-            var inputStream: InputStream = context.resources.openRawResource(R.raw.beach)
+            val beach = StreamUtils.readRawResource(context.resources, R.raw.beach)
             val opts = BitmapFactory.Options()
             var bm: Bitmap?
             opts.inJustDecodeBounds = true
             @Suppress("UNUSED_VALUE")
-            bm = BitmapFactory.decodeStream(inputStream, null, opts)
+            bm = BitmapFactory.decodeByteArray(beach, 0, beach.size, opts)
             /**
              * now opts.outWidth and opts.outHeight are the dimension of the
              * bitmap, even though bm is null
@@ -226,21 +312,12 @@ class BitmapDecode : GraphicsActivity() {
              * this will request the bm scaled down by 4
              */
             opts.inSampleSize = 4
-            try {
-                /**
-                 * Need to rewind inputStream in order to read it again.
-                 */
-                inputStream.reset()
-            } catch (e: IOException) {
-                e.printStackTrace()
-            }
-            bm = BitmapFactory.decodeStream(inputStream, null, opts)
+            bm = BitmapFactory.decodeByteArray(beach, 0, beach.size, opts)
             mBitmap = bm
             /**
              * decode an image with transparency
              */
-            inputStream = context.resources.openRawResource(R.raw.frog)
-            mBitmap2 = BitmapFactory.decodeStream(inputStream)
+            mBitmap2 = decodeFrog(context)
             /**
              * create a deep copy of it using getPixels() into different configs
              */
@@ -254,15 +331,13 @@ class BitmapDecode : GraphicsActivity() {
             @Suppress("DEPRECATION")
             mDrawable = context.resources.getDrawable(R.drawable.button)
             mDrawable.setBounds(150, 20, 300, 100)
-            inputStream = context.resources.openRawResource(R.raw.animated_gif)
-            @Suppress("ConstantConditionIf")
-            mMovie = if (DECODE_STREAM) {
-                @Suppress("DEPRECATION")
-                Movie.decodeStream(inputStream)
-            } else {
-                val array = streamToBytes(inputStream)
-                @Suppress("DEPRECATION")
-                Movie.decodeByteArray(array, 0, array.size)
+            val array = StreamUtils.readRawResource(context.resources, R.raw.animated_gif)
+            try {
+                repeat(ANIMATION_COUNT) {
+                    mAnimations.add(AnimatedImage(array))
+                }
+            } catch (e: IllegalArgumentException) {
+                Log.e(TAG, "Could not decode the animated gif", e)
             }
         }
     }
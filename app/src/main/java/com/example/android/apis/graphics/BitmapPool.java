@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.apis.graphics;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable {@code Bitmap} objects which are no longer displayed, to be handed to
+ * {@code BitmapFactory.Options.inBitmap} so that a decode reuses their memory instead of allocating
+ * a new bitmap (and later making the garbage collector free it). The bitmaps are kept in buckets
+ * keyed by their allocation size in bytes:
+ * <ul>
+ * <li>
+ * From KitKat on a decode may reuse any bitmap whose allocation is at least as large as the one it
+ * needs, so {@code get} takes the smallest bucket which is large enough, but not one more than
+ * {@code MAX_SLACK} times too large since that would waste the memory of a big bitmap on a small
+ * image.
+ * </li>
+ * <li>
+ * Before KitKat the reused bitmap must have exactly the size of the decoded image, so {@code get}
+ * only looks in the bucket of the exact size, for a bitmap of the same width, height and config.
+ * </li>
+ * </ul>
+ * The pool holds at most {@code maxBytes} bytes, when a bitmap put into it goes over that the
+ * oldest bitmaps of the largest buckets are recycled. It counts its hits and misses so that its
+ * effectiveness can be shown. All methods are thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BitmapPool {
+    /**
+     * How many times larger than needed a reused bitmap may be.
+     */
+    private static final int MAX_SLACK = 2;
+
+    /**
+     * Largest number of bytes of bitmaps we hold.
+     */
+    private final long mMaxBytes;
+    /**
+     * Our bitmaps, keyed by their allocation size, oldest first in each bucket.
+     */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    /**
+     * Number of bytes of the bitmaps we hold.
+     */
+    private long mBytes;
+    /**
+     * Number of calls of {@code get} which returned a bitmap.
+     */
+    private long mHits;
+    /**
+     * Number of calls of {@code get} which returned null, or whose bitmap could not be reused.
+     */
+    private long mMisses;
+
+    /**
+     * Our constructor.
+     *
+     * @param maxBytes largest number of bytes of bitmaps the pool holds.
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes used by {@code bitmap}: its allocation size from KitKat on (a
+     * reused bitmap may hold a smaller image than its allocation), its byte count before.
+     *
+     * @param bitmap a bitmap.
+     * @return the number of bytes of memory it uses.
+     */
+    public static int sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    /**
+     * Takes a bitmap out of the pool which a decode of an image of {@code width} by {@code height}
+     * pixels into {@code config} can reuse, if we have one.
+     *
+     * @param width  width of the image to be decoded.
+     * @param height height of the image to be decoded.
+     * @param config config the image is decoded to.
+     * @return a bitmap for {@code BitmapFactory.Options.inBitmap}, or null if we have none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * bytesPerPixel(config);
+        Bitmap bitmap = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBuckets.ceilingEntry(needed);
+            if (entry != null && entry.getKey() <= (long) needed * MAX_SLACK) {
+                bitmap = entry.getValue().pollFirst();
+                if (entry.getValue().isEmpty()) {
+                    mBuckets.remove(entry.getKey());
+                }
+            }
+        } else {
+            ArrayDeque<Bitmap> bucket = mBuckets.get(needed);
+            if (bucket != null) {
+                Iterator<Bitmap> it = bucket.iterator();
+                while (it.hasNext()) {
+                    Bitmap candidate = it.next();
+                    if (candidate.getWidth() == width && candidate.getHeight() == height
+                            && candidate.getConfig() == config) {
+                        it.remove();
+                        bitmap = candidate;
+                        break;
+                    }
+                }
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(needed);
+                }
+            }
+        }
+        if (bitmap == null) {
+            mMisses++;
+            return null;
+        }
+        mBytes -= sizeOf(bitmap);
+        mHits++;
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap which is no longer displayed to the pool. Bitmaps which cannot be reused
+     * (immutable or recycled ones) are ignored, and a bitmap larger than the whole pool is
+     * recycled at once. Otherwise it is added to its bucket and the pool is trimmed back to
+     * {@code mMaxBytes}.
+     *
+     * @param bitmap the bitmap, the caller must not use it any more.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = sizeOf(bitmap);
+        if (size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        mBytes += size;
+        while (mBytes > mMaxBytes) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = mBuckets.lastEntry();
+            Bitmap evicted = largest.getValue().pollFirst();
+            if (largest.getValue().isEmpty()) {
+                mBuckets.remove(largest.getKey());
+            }
+            mBytes -= largest.getKey();
+            //noinspection ConstantConditions
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * Called when the bitmap returned by {@code get} turned out not to be reusable by the decode
+     * (the decoder threw {@code IllegalArgumentException}). We count the hit as a miss and recycle
+     * the bitmap.
+     *
+     * @param bitmap the bitmap which could not be reused.
+     */
+    public synchronized void reuseFailed(Bitmap bitmap) {
+        mHits--;
+        mMisses++;
+        bitmap.recycle();
+    }
+
+    /**
+     * Recycles all the bitmaps of the pool.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> bucket : mBuckets.values()) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+        }
+        mBuckets.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns the number of bytes of the bitmaps we hold.
+     *
+     * @return number of bytes pooled.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the fraction of calls of {@code get} whose bitmap was reused.
+     *
+     * @return the hit rate, between 0 and 1, or 0 if {@code get} was never called.
+     */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0f : (float) mHits / total;
+    }
+
+    /**
+     * Returns the number of bytes a pixel takes in {@code config}.
+     *
+     * @param config a bitmap config.
+     * @return the number of bytes per pixel.
+     */
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -34,6 +34,8 @@ import android.os.Message;
  * Bitmap over and over again up to 200 times until out-of-memory occurs.
  * In contrast, the Purgeable case shows that the system can complete decoding
  * the encoded bitstream 200 times without hitting the out-of-memory case.
+ * The Pooled case decodes the bitstream thousands of times into bitmaps reused
+ * from a pool, with a fixed memory footprint.
  */
 public class PurgeableBitmap extends GraphicsActivity {
 
@@ -107,10 +109,12 @@ public class PurgeableBitmap extends GraphicsActivity {
      * Called when the activity is starting. First we call though to our super's implementation of
      * {@code onCreate}, then we initialize our field {@code PurgeableBitmapView mView} with a new
      * instance of {@code PurgeableBitmapView}. We pass its constructor the return value of our method
-     * {@code detectIfPurgeableRequest} which queries the {@code PackageManager} to determine if the
-     * textual label associated with our activity in the AndroidManifest was "Purgeable", returning
-     * true if so. {@code PurgeableBitmapView} sets the {@code inPurgeable} field of the options used
-     * to create its bitmaps to that value (it is ignored since Lollipop). We then call the {@code sleep}
+     * {@code detectRequestedMode} which queries the {@code PackageManager} to determine if the
+     * textual label associated with our activity in the AndroidManifest was "Purgeable", "Pooled"
+     * or "NonPurgeable", returning the matching mode of {@code PurgeableBitmapView}. In the
+     * {@code MODE_PURGEABLE} mode {@code PurgeableBitmapView} sets the {@code inPurgeable} field of
+     * the options used to create its bitmaps (it is ignored since Lollipop), in the
+     * {@code MODE_POOLED} mode it reuses its bitmaps. We then call the {@code sleep}
      * method of our field {@code RefreshHandler mRedrawHandler} with a delay of 0 to start the loading
      * of bitmaps by {@code mView}. Finally we set our content view to {@code mView}.
      *
@@ -119,27 +123,28 @@ public class PurgeableBitmap extends GraphicsActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mView = new PurgeableBitmapView(this, detectIfPurgeableRequest());
+        mView = new PurgeableBitmapView(this, detectRequestedMode());
         mRedrawHandler.sleep(0);
         setContentView(mView);
     }
 
     /**
-     * Called to determine if the user started us using a "Purgeable" label, or "NonPurgeable" label.
+     * Called to determine if the user started us using a "Purgeable", "Pooled" or "NonPurgeable" label.
      * First we retrieve an instance of {@code PackageManager} to {@code PackageManager pm}, and use
      * it to retrieve to {@code ActivityInfo info} the metaData data Bundles that are associated with
      * the component name of this activity. From {@code info} we load the textual label associated with
      * the activity into {@code CharSequence labelSeq}. We slit {@code labelSeq} using "/" as the
      * delimiter into {@code String[] components}. Then if the last string in {@code components} is
-     * "Purgeable" we return true, otherwise we return false.
+     * "Purgeable" we return MODE_PURGEABLE, if it is "Pooled" we return MODE_POOLED, otherwise we
+     * return MODE_NON_PURGEABLE.
      *
-     * @return true if the android:label in the AndroidManifest associated with this instance of
-     * {@code PurgeableBitmap} ended in the string "Purgeable", false otherwise (an activity-alias
-     * element uses an android:label that ends in "Purgeable", but the android:targetActivity activity
-     * element uses an android:label that ends in "NonPurgeable" and both elements can be used to
-     * start this activity).
+     * @return the mode of {@code PurgeableBitmapView} named by the end of the android:label in the
+     * AndroidManifest associated with this instance of {@code PurgeableBitmap} (two activity-alias
+     * elements use an android:label that ends in "Purgeable" and "Pooled", but the
+     * android:targetActivity activity element uses an android:label that ends in "NonPurgeable" and
+     * all three elements can be used to start this activity).
      */
-    private boolean detectIfPurgeableRequest() {
+    private int detectRequestedMode() {
         PackageManager pm = getPackageManager();
         @SuppressWarnings("UnusedAssignment")
         CharSequence labelSeq = null;
@@ -148,15 +153,17 @@ public class PurgeableBitmap extends GraphicsActivity {
             labelSeq = info.loadLabel(pm);
         } catch (NameNotFoundException e) {
             e.printStackTrace();
-            return false;
+            return PurgeableBitmapView.MODE_NON_PURGEABLE;
         }
 
         String[] components = labelSeq.toString().split("/");
-        //noinspection RedundantIfStatement
-        if (components[components.length - 1].equals("Purgeable")) {
-            return true;
+        String last = components[components.length - 1];
+        if (last.equals("Purgeable")) {
+            return PurgeableBitmapView.MODE_PURGEABLE;
+        } else if (last.equals("Pooled")) {
+            return PurgeableBitmapView.MODE_POOLED;
         } else {
-            return false;
+            return PurgeableBitmapView.MODE_NON_PURGEABLE;
         }
     }
 
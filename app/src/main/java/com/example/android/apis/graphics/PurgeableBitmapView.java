@@ -24,9 +24,13 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+import android.util.LruCache;
 import android.view.View;
 
-import java.io.ByteArrayOutputStream;
+import com.example.android.apis.StreamUtils;
+
+import java.util.Locale;
 
 /**
  * PurgeableBitmapView works with PurgeableBitmap to demonstrate the effects of setting
@@ -35,6 +39,14 @@ import java.io.ByteArrayOutputStream;
  * PurgeableBitmapView decodes an encoded bitstream to a Bitmap each time update()
  * is invoked(), and its onDraw() draws the Bitmap and a number to screen.
  * The number is used to indicate the number of Bitmaps that have been decoded.
+ * <p>
+ * In the {@code MODE_POOLED} mode the decoded frames are not kept in an array until memory runs
+ * out. They are kept in {@code LruCache<Integer, Bitmap> mFrames}, which is bounded by the bytes
+ * of the frames it holds, and the frames it evicts go to {@code BitmapPool mPool}. Each decode
+ * takes a bitmap of a suitable size out of the pool and hands it to {@code Options.inBitmap}, so
+ * thousands of decodes (alternating between sample sizes so that several buckets of the pool are
+ * exercised) run with a fixed memory footprint and no garbage for the collector. The mean decode
+ * time, the hit rate of the pool and the footprint are drawn on the screen.
  */
 @SuppressWarnings("FieldCanBeLocal")
 @SuppressLint("ViewConstructor")
@@ -101,6 +113,70 @@ public class PurgeableBitmapView extends View {
      */
     private static int delay = 100;
 
+    /**
+     * Mode of {@code update}: decode new bitmaps which are not purgeable until out of memory.
+     */
+    public static final int MODE_NON_PURGEABLE = 0;
+    /**
+     * Mode of {@code update}: decode new purgeable bitmaps (ignored since Lollipop).
+     */
+    public static final int MODE_PURGEABLE = 1;
+    /**
+     * Mode of {@code update}: decode into bitmaps reused from {@code BitmapPool mPool}.
+     */
+    public static final int MODE_POOLED = 2;
+    /**
+     * Number of bitmaps we decode in the {@code MODE_POOLED} mode.
+     */
+    private static final int POOLED_DECODES = 5000;
+    /**
+     * Delay in milliseconds between the decodes of the {@code MODE_POOLED} mode.
+     */
+    private static final int POOLED_DELAY = 5;
+    /**
+     * The {@code inSampleSize} values the decodes of the {@code MODE_POOLED} mode cycle through,
+     * so that frames of several sizes share the pool (KitKat and later only, before KitKat a
+     * reused bitmap must have the exact size of the image).
+     */
+    private static final int[] SAMPLE_SIZES = {1, 2, 1, 4};
+    /**
+     * Number of bytes of a full size decoded frame.
+     */
+    private static final int FRAME_BYTES = WIDTH * HEIGHT * 4;
+
+    /**
+     * Our mode, one of {@code MODE_NON_PURGEABLE}, {@code MODE_PURGEABLE} or {@code MODE_POOLED}.
+     */
+    private final int mMode;
+    /**
+     * Bitmaps evicted from {@code mFrames}, reused by our decodes in the {@code MODE_POOLED} mode.
+     */
+    private final BitmapPool mPool = new BitmapPool(4 * FRAME_BYTES);
+    /**
+     * The most recently decoded frames in the {@code MODE_POOLED} mode, keyed by decode number and
+     * bounded by their bytes. The frames it evicts are given to {@code mPool}, except the frame
+     * {@code onDraw} is displaying, {@code mBitmap}, which must be neither reused nor recycled.
+     */
+    private final LruCache<Integer, Bitmap> mFrames =
+            new LruCache<Integer, Bitmap>(4 * FRAME_BYTES) {
+                @Override
+                protected int sizeOf(Integer key, Bitmap value) {
+                    return BitmapPool.sizeOf(value);
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, Integer key, Bitmap oldValue,
+                                            Bitmap newValue) {
+                    if (oldValue != mBitmap) {
+                        mPool.put(oldValue);
+                    }
+                }
+            };
+    /**
+     * Total time in nanoseconds spent in {@code decodeByteArray} in the {@code MODE_POOLED} mode.
+     */
+    private long mDecodeNanos;
+
     /**
      * Our constructor. First we call our super's constructor, then we enable our view to receive
      * focus, and initialize the {@code inPurgeable} field of {@code Options mOptions} to the value
@@ -115,10 +191,25 @@ public class PurgeableBitmapView extends View {
      *                    object we use when decoding our bitmaps.
      */
     public PurgeableBitmapView(Context context, boolean isPurgeable) {
+        this(context, isPurgeable ? MODE_PURGEABLE : MODE_NON_PURGEABLE);
+    }
+
+    /**
+     * Our constructor taking a mode. As the constructor above, except that the {@code inPurgeable}
+     * field of {@code Options mOptions} is set only in the {@code MODE_PURGEABLE} mode, and in the
+     * {@code MODE_POOLED} mode its {@code inMutable} field is set so that our bitmaps can be reused
+     * by {@code inBitmap}.
+     *
+     * @param context {@code Context} to use to access resources.
+     * @param mode    one of {@code MODE_NON_PURGEABLE}, {@code MODE_PURGEABLE} or {@code MODE_POOLED}.
+     */
+    public PurgeableBitmapView(Context context, int mode) {
         super(context);
         setFocusable(true);
+        mMode = mode;
         //noinspection deprecation
-        mOptions.inPurgeable = isPurgeable;
+        mOptions.inPurgeable = mode == MODE_PURGEABLE;
+        mOptions.inMutable = mode == MODE_POOLED;
 
         int[] colors = createColors();
         Bitmap src = Bitmap.createBitmap(colors, 0, STRIDE, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
@@ -167,6 +258,9 @@ public class PurgeableBitmapView extends View {
      * decoded, negated if we did not run out of memory and  positive if we did run out of memory
      */
     public int update(PurgeableBitmap.RefreshHandler handler) {
+        if (mMode == MODE_POOLED) {
+            return updatePooled(handler);
+        }
         try {
             mBitmapArray[mDecodingCount] = BitmapFactory.decodeByteArray(bitstream, 0, bitstream.length, mOptions);
             mBitmap = mBitmapArray[mDecodingCount];
@@ -186,10 +280,66 @@ public class PurgeableBitmapView extends View {
         }
     }
 
+    /**
+     * The {@code update} of the {@code MODE_POOLED} mode. We pick the sample size of this decode
+     * from {@code SAMPLE_SIZES}, and ask {@code BitmapPool mPool} for a bitmap the decoded image
+     * fits in, which we set as the {@code inBitmap} field of {@code Options mOptions} (a null when
+     * the pool has none makes the decode allocate a new bitmap). We decode {@code byte[] bitstream}
+     * timing the decode, and if the decoder rejects the reused bitmap with an
+     * IllegalArgumentException we tell the pool and decode again into a new bitmap. The frame is
+     * put in {@code mFrames}, which hands the oldest frames it no longer has room for back to the
+     * pool, and becomes the {@code Bitmap mBitmap} drawn by {@code onDraw}. We schedule the next
+     * call until {@code POOLED_DECODES} bitmaps have been decoded, then return the negated count.
+     * An OutOfMemoryError (which our fixed footprint should never cause) empties the cache and the
+     * pool, recycling every bitmap but the one still displayed, and returns the count of the failed
+     * decode as {@code update} does.
+     *
+     * @param handler {@code Handler} whose {@code sleep} method we call to schedule another call to us.
+     * @return Zero if we still have bitmaps to decode, or if non-zero, the number of bitmaps successfully
+     * decoded, negated if we did not run out of memory and  positive if we did run out of memory
+     */
+    private int updatePooled(PurgeableBitmap.RefreshHandler handler) {
+        int sampleSize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                ? SAMPLE_SIZES[mDecodingCount % SAMPLE_SIZES.length] : 1;
+        mOptions.inSampleSize = sampleSize;
+        Bitmap reuse = mPool.get((WIDTH + sampleSize - 1) / sampleSize,
+                (HEIGHT + sampleSize - 1) / sampleSize, Bitmap.Config.ARGB_8888);
+        mOptions.inBitmap = reuse;
+        try {
+            long start = System.nanoTime();
+            Bitmap frame;
+            try {
+                frame = BitmapFactory.decodeByteArray(bitstream, 0, bitstream.length, mOptions);
+            } catch (IllegalArgumentException e) {
+                mPool.reuseFailed(reuse);
+                mOptions.inBitmap = null;
+                frame = BitmapFactory.decodeByteArray(bitstream, 0, bitstream.length, mOptions);
+            }
+            mDecodeNanos += System.nanoTime() - start;
+            mFrames.put(mDecodingCount, frame);
+            mBitmap = frame;
+            mDecodingCount++;
+            if (mDecodingCount < POOLED_DECODES) {
+                handler.sleep(POOLED_DELAY);
+                return 0;
+            } else {
+                return -mDecodingCount;
+            }
+        } catch (OutOfMemoryError error) {
+            mFrames.evictAll();
+            mPool.clear();
+            return mDecodingCount + 1;
+        } finally {
+            mOptions.inBitmap = null;
+        }
+    }
+
     /**
      * We implement this to do our drawing. First we set the entire {@code Canvas canvas} to the
-     * color WHITE, then we draw {@code Bitmap mBitmap} to it, and finally we draw the number of
-     * bitmaps decoded so far on it.
+     * color WHITE, then we draw {@code Bitmap mBitmap} to it, and then we draw the number of
+     * bitmaps decoded so far on it. In the {@code MODE_POOLED} mode we also draw to the right of
+     * the bitmap the mean decode time, the hit rate of {@code BitmapPool mPool}, and the bytes held
+     * by {@code mFrames} and {@code mPool}.
      *
      * @param canvas the canvas on which the background will be drawn
      */
@@ -198,14 +348,26 @@ public class PurgeableBitmapView extends View {
         canvas.drawColor(Color.WHITE);
         canvas.drawBitmap(mBitmap, 0, 0, null);
         canvas.drawText(String.valueOf(mDecodingCount), WIDTH / 2 - 20, HEIGHT / 2, mPaint);
+        if (mMode == MODE_POOLED && mDecodingCount > 0) {
+            float x = WIDTH + textSize / 2f;
+            canvas.drawText(String.format(Locale.US, "decode %.2f ms",
+                    mDecodeNanos / 1e6 / mDecodingCount), x, textSize, mPaint);
+            canvas.drawText(String.format(Locale.US, "pool hits %.1f%%",
+                    mPool.getHitRate() * 100), x, 2 * textSize, mPaint);
+            canvas.drawText("frames " + mFrames.size() / 1024 + " KB, pool "
+                    + mPool.getBytes() / 1024 + " KB", x, 3 * textSize, mPaint);
+        }
     }
 
     /**
      * Create a compressed version of the {@code Bitmap} passed to it, and returns it in a {@code Byte[]}
-     * array, First we allocate a new {@code ByteArrayOutputStream os}, and use the compress method
-     * of {@code Bitmap src} to write a compressed version of the bitmap to this {@code ByteArrayOutputStream}
+     * array, First we allocate a new {@code StreamUtils.ChunkedOutputStream os} (which collects
+     * what is written to it in pooled chunks instead of reallocating one growing array), and use
+     * the compress method of {@code Bitmap src} to write a compressed version of the bitmap to it
      * using our parameter {@code quality} for the quality hint, and our parameter {@code format} as
-     * the compression format. Finally we return the contents of {@code os} as a byte array to the caller.
+     * the compression format. Finally we return the contents of {@code os} copied once into a byte
+     * array of exactly their size to the caller, and close {@code os} to give its chunks back to
+     * the pool.
      *
      * @param src     {@code Bitmap} we are to compress into a byte array
      * @param format  Format of the compression that we are to use.
@@ -215,9 +377,13 @@ public class PurgeableBitmapView extends View {
      */
     @SuppressLint("WrongThread")
     private byte[] generateBitstream(Bitmap src, Bitmap.CompressFormat format, int quality) {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        src.compress(format, quality, os);
-        return os.toByteArray();
+        StreamUtils.ChunkedOutputStream os = new StreamUtils.ChunkedOutputStream();
+        try {
+            src.compress(format, quality, os);
+            return os.toByteArray();
+        } finally {
+            os.close();
+        }
     }
 
 }
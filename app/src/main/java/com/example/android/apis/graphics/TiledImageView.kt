@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.apis.graphics
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import android.util.Log
+import android.util.LruCache
+import android.view.GestureDetector
+import android.view.MotionEvent
+import android.view.ScaleGestureDetector
+import android.view.View
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Displays an image of any size which the user can pan by dragging and zoom by pinching, without
+ * ever decoding the whole image at full resolution. The image is cut into tiles of [TILE_SIZE] by
+ * [TILE_SIZE] decoded pixels, and only the tiles in view are decoded, by [BitmapRegionDecoder]
+ * with the `inSampleSize` chosen from the zoom level: the largest power of two which still gives
+ * at least one decoded pixel per screen pixel. Zoomed out a tile therefore covers many image
+ * pixels but costs no more memory than a tile zoomed in.
+ *
+ * The tiles are decoded on a pool of [WORKER_COUNT] threads, each using its own decoder since a
+ * [BitmapRegionDecoder] serializes its calls. Decoded tiles are kept in [mTiles], an [LruCache]
+ * bounded by [CACHE_BYTES] bytes of bitmaps, and a tile which has scrolled out of view before its
+ * turn comes is not decoded at all. Until the tiles of the current zoom level are ready, a preview
+ * of the whole image decoded at a sample size which makes it about [PREVIEW_SIZE] pixels is drawn
+ * in their place, and when zoomed out far enough the preview is all that is drawn.
+ *
+ * @param context the [Context] the view is running in.
+ */
+class TiledImageView(context: Context) : View(context) {
+    /**
+     * Identifies a tile: the sample size it is decoded at, and its column and row in the grid of
+     * tiles of that sample size.
+     */
+    private data class TileKey(val sampleSize: Int, val col: Int, val row: Int)
+
+    /**
+     * The encoded image, each decoder is created from it.
+     */
+    private var mData: ByteArray? = null
+    /**
+     * Width of the image in pixels.
+     */
+    private var mImageWidth = 0
+    /**
+     * Height of the image in pixels.
+     */
+    private var mImageHeight = 0
+    /**
+     * The whole image decoded at the sample size [mPreviewSample], *null* until it is decoded.
+     */
+    private var mPreview: Bitmap? = null
+    /**
+     * The sample size [mPreview] is decoded at.
+     */
+    private var mPreviewSample = 1
+    /**
+     * Screen pixels per image pixel, 0 until we have been laid out.
+     */
+    private var mScale = 0f
+    /**
+     * The smallest value of [mScale], which fits the whole image in the view.
+     */
+    private var mMinScale = 0f
+    /**
+     * Image X coordinate of the left edge of the view.
+     */
+    private var mLeft = 0f
+    /**
+     * Image Y coordinate of the top edge of the view.
+     */
+    private var mTop = 0f
+    /**
+     * The threads our tiles are decoded on, created by [executor] when first needed and shut
+     * down when we are detached, so that a view which is thrown away does not leak its threads.
+     */
+    private var mExecutor: ExecutorService? = null
+    /**
+     * Decoders not in use by a worker, a worker takes one (or creates one) for each tile.
+     */
+    private val mDecoders = ConcurrentLinkedQueue<BitmapRegionDecoder>()
+    /**
+     * Decoded tiles, bounded by the bytes of their bitmaps.
+     */
+    private val mTiles = object : LruCache<TileKey, Bitmap>(CACHE_BYTES) {
+        override fun sizeOf(key: TileKey, value: Bitmap): Int {
+            return value.byteCount
+        }
+    }
+    /**
+     * Tiles queued or being decoded, only used on the UI thread.
+     */
+    private val mPending = HashSet<TileKey>()
+    /**
+     * The tiles drawn by the latest [onDraw], a worker skips a tile which is no longer in it.
+     */
+    @Volatile
+    private var mVisible: Set<TileKey> = emptySet()
+    /**
+     * *true* while we are detached, when workers must drop their results.
+     */
+    @Volatile
+    private var mReleased = false
+    /**
+     * [Paint] used to draw our bitmaps with filtering.
+     */
+    private val mPaint = Paint(Paint.FILTER_BITMAP_FLAG)
+    /**
+     * [Paint] used to draw the zoom level and tile count.
+     */
+    private val mTextPaint = Paint(Paint.ANTI_ALIAS_FLAG).apply {
+        color = Color.WHITE
+        textSize = 24f
+    }
+    /**
+     * Destination rectangle of the bitmap being drawn, in image coordinates.
+     */
+    private val mDst = Rect()
+
+    /**
+     * Zooms about the focal point of a pinch.
+     */
+    private val mScaleDetector = ScaleGestureDetector(context,
+            object : ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                override fun onScale(detector: ScaleGestureDetector): Boolean {
+                    zoomTo(mScale * detector.scaleFactor, detector.focusX, detector.focusY)
+                    return true
+                }
+            })
+
+    /**
+     * Pans on a drag, and zooms in 2x (or back out) on a double tap.
+     */
+    private val mGestureDetector = GestureDetector(context,
+            object : GestureDetector.SimpleOnGestureListener() {
+                override fun onDown(e: MotionEvent): Boolean {
+                    return true
+                }
+
+                override fun onScroll(e1: MotionEvent, e2: MotionEvent,
+                                      distanceX: Float, distanceY: Float): Boolean {
+                    mLeft += distanceX / mScale
+                    mTop += distanceY / mScale
+                    clampViewport()
+                    invalidate()
+                    return true
+                }
+
+                override fun onDoubleTap(e: MotionEvent): Boolean {
+                    val target = if (mScale < MAX_SCALE / 2) mScale * 2 else mMinScale
+                    zoomTo(target, e.x, e.y)
+                    return true
+                }
+            })
+
+    /**
+     * Sets the image we display to the encoded image [data]. We read its size without decoding
+     * it, forget the tiles of any previous image, reset the viewport so that the image is fitted
+     * to the view at the next layout, and decode the preview on a worker.
+     *
+     * @param data the encoded image, in any format [BitmapRegionDecoder] supports (JPEG, PNG or
+     * WebP).
+     */
+    fun setImage(data: ByteArray) {
+        val opts = BitmapFactory.Options()
+        opts.inJustDecodeBounds = true
+        BitmapFactory.decodeByteArray(data, 0, data.size, opts)
+        mData = data
+        mImageWidth = opts.outWidth
+        mImageHeight = opts.outHeight
+        recycleDecoders()
+        mTiles.evictAll()
+        mPending.clear()
+        mPreview = null
+        mScale = 0f
+        var sample = 1
+        while (max(mImageWidth, mImageHeight) / (sample * 2) >= PREVIEW_SIZE) {
+            sample *= 2
+        }
+        mPreviewSample = sample
+        decodePreview(data, sample)
+        fitImage()
+        invalidate()
+    }
+
+    /**
+     * Decodes the preview of the image [data] at the sample size [sample] on a worker, and hands
+     * it back to the UI thread where it becomes [mPreview] if [data] is still our image.
+     *
+     * @param data the encoded image.
+     * @param sample the sample size to decode the preview at.
+     */
+    private fun decodePreview(data: ByteArray, sample: Int) {
+        executor().execute {
+            val previewOpts = BitmapFactory.Options()
+            previewOpts.inSampleSize = sample
+            val preview = BitmapFactory.decodeByteArray(data, 0, data.size, previewOpts)
+            post {
+                if (mData === data) {
+                    mPreview = preview
+                    invalidate()
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns our [ExecutorService] field [mExecutor], creating a pool of [WORKER_COUNT] threads
+     * for it if we do not have one (the first time, and after we have been detached).
+     *
+     * @return the [ExecutorService] to run our workers on.
+     */
+    private fun executor(): ExecutorService {
+        return mExecutor ?: Executors.newFixedThreadPool(WORKER_COUNT).also { mExecutor = it }
+    }
+
+    /**
+     * This is called during layout when the size of this view has changed. We fit the image to
+     * our new size.
+     *
+     * @param w Current width of this view.
+     * @param h Current height of this view.
+     * @param oldw Old width of this view.
+     * @param oldh Old height of this view.
+     */
+    override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
+        super.onSizeChanged(w, h, oldw, oldh)
+        mScale = 0f
+        fitImage()
+    }
+
+    /**
+     * If we have both an image and a size, and have not set up the viewport yet, we set [mMinScale]
+     * to the scale which fits the whole image in the view and zoom out to it.
+     */
+    private fun fitImage() {
+        if (mImageWidth <= 0 || mImageHeight <= 0 || width == 0 || height == 0 || mScale != 0f) {
+            return
+        }
+        mMinScale = min(width.toFloat() / mImageWidth, height.toFloat() / mImageHeight)
+        mScale = mMinScale
+        clampViewport()
+    }
+
+    /**
+     * Zooms to [scale] (limited to between [mMinScale] and [MAX_SCALE]) keeping the image point
+     * under the view point ([focusX], [focusY]) where it is.
+     *
+     * @param scale the new screen pixels per image pixel.
+     * @param focusX X coordinate of the focal point in the view.
+     * @param focusY Y coordinate of the focal point in the view.
+     */
+    private fun zoomTo(scale: Float, focusX: Float, focusY: Float) {
+        if (mScale == 0f) return
+        val imageX = mLeft + focusX / mScale
+        val imageY = mTop + focusY / mScale
+        mScale = scale.coerceIn(mMinScale, max(mMinScale, MAX_SCALE))
+        mLeft = imageX - focusX / mScale
+        mTop = imageY - focusY / mScale
+        clampViewport()
+        invalidate()
+    }
+
+    /**
+     * Keeps the viewport inside the image, centering the image along an axis on which it is
+     * smaller than the view.
+     */
+    private fun clampViewport() {
+        val viewWidth = width / mScale
+        val viewHeight = height / mScale
+        mLeft = if (viewWidth >= mImageWidth) {
+            (mImageWidth - viewWidth) / 2
+        } else {
+            mLeft.coerceIn(0f, mImageWidth - viewWidth)
+        }
+        mTop = if (viewHeight >= mImageHeight) {
+            (mImageHeight - viewHeight) / 2
+        } else {
+            mTop.coerceIn(0f, mImageHeight - viewHeight)
+        }
+    }
+
+    /**
+     * Implement this method to handle touch screen motion events, we hand [event] to our
+     * [ScaleGestureDetector] and our [GestureDetector].
+     *
+     * @param event The motion event.
+     * @return *true* since we consume all touch events.
+     */
+    @SuppressLint("ClickableViewAccessibility")
+    override fun onTouchEvent(event: MotionEvent): Boolean {
+        mScaleDetector.onTouchEvent(event)
+        if (!mScaleDetector.isInProgress) {
+            mGestureDetector.onTouchEvent(event)
+        }
+        return true
+    }
+
+    /**
+     * We implement this to do our drawing. We scale and translate [canvas] so that we can draw in
+     * image coordinates, and draw the preview under everything. Then, unless the preview is already
+     * as sharp as the sample size the zoom level calls for, we walk the tiles of that sample size
+     * which intersect the view. The tiles we want are first published in [mVisible], so that the
+     * workers can skip the ones which have scrolled away (publishing them before any of them is
+     * queued keeps a worker from skipping a tile we have just asked for). Then a cached tile is
+     * drawn and a missing one is queued by [requestTile], and finally we draw the sample size and
+     * number of cached tiles.
+     *
+     * @param canvas the canvas on which the background will be drawn
+     */
+    override fun onDraw(canvas: Canvas) {
+        canvas.drawColor(Color.BLACK)
+        if (mData == null || mScale == 0f) return
+        val sample = sampleSizeFor(mScale)
+        val visible = HashSet<TileKey>()
+        canvas.save()
+        canvas.scale(mScale, mScale)
+        canvas.translate(-mLeft, -mTop)
+        mPreview?.let {
+            mDst.set(0, 0, mImageWidth, mImageHeight)
+            canvas.drawBitmap(it, null, mDst, mPaint)
+        }
+        if (sample < mPreviewSample || mPreview == null) {
+            val tileSpan = TILE_SIZE * sample
+            val firstCol = max(0, floor(mLeft / tileSpan).toInt())
+            val lastCol = min((mImageWidth - 1) / tileSpan,
+                    ceil((mLeft + width / mScale) / tileSpan).toInt() - 1)
+            val firstRow = max(0, floor(mTop / tileSpan).toInt())
+            val lastRow = min((mImageHeight - 1) / tileSpan,
+                    ceil((mTop + height / mScale) / tileSpan).toInt() - 1)
+            for (row in firstRow..lastRow) {
+                for (col in firstCol..lastCol) {
+                    visible.add(TileKey(sample, col, row))
+                }
+            }
+        }
+        mVisible = visible
+        for (key in visible) {
+            val tile = mTiles.get(key)
+            if (tile != null) {
+                tileRect(key, mDst)
+                canvas.drawBitmap(tile, null, mDst, mPaint)
+            } else {
+                requestTile(key)
+            }
+        }
+        canvas.restore()
+        canvas.drawText("1/" + sample + " " + mTiles.size() / 1024 + " KB of tiles",
+                8f, height - 8f, mTextPaint)
+    }
+
+    /**
+     * Queues the decoding of the tile [key] on a worker unless it is already queued. The worker
+     * skips it if it is no longer visible when its turn comes, otherwise decodes it with a decoder
+     * taken from [mDecoders] (or a new one) and hands it back to the UI thread, which caches it and
+     * redraws. If the tile was skipped but has scrolled back into view by the time the UI thread
+     * hears about it we redraw as well, so that it is queued again.
+     *
+     * @param key the tile to decode.
+     */
+    private fun requestTile(key: TileKey) {
+        val data = mData ?: return
+        if (!mPending.add(key)) return
+        executor().execute {
+            var tile: Bitmap? = null
+            val skipped = key !in mVisible || mReleased
+            if (!skipped) {
+                try {
+                    tile = decodeTile(data, key)
+                } catch (e: IOException) {
+                    Log.e(TAG, "Failed to decode tile $key", e)
+                }
+            }
+            post {
+                mPending.remove(key)
+                if (mData === data && !mReleased) {
+                    if (tile != null) {
+                        mTiles.put(key, tile)
+                        invalidate()
+                    } else if (skipped && key in mVisible) {
+                        invalidate()
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the tile [key] of the image [data], on a worker thread. We take a decoder from
+     * [mDecoders], creating one if none is free, decode the image rectangle of the tile at its
+     * sample size and give the decoder back.
+     *
+     * @param data the encoded image.
+     * @param key the tile to decode.
+     * @return the decoded tile, or *null* if it could not be decoded.
+     * @throws IOException if a decoder cannot be created.
+     */
+    @Throws(IOException::class)
+    private fun decodeTile(data: ByteArray, key: TileKey): Bitmap? {
+        val decoder = mDecoders.poll() ?: BitmapRegionDecoder.newInstance(data, 0, data.size, false)
+        try {
+            val rect = Rect()
+            tileRect(key, rect)
+            val opts = BitmapFactory.Options()
+            opts.inSampleSize = key.sampleSize
+            return decoder.decodeRegion(rect, opts)
+        } finally {
+            if (mReleased || mData !== data) {
+                decoder.recycle()
+            } else {
+                mDecoders.add(decoder)
+            }
+        }
+    }
+
+    /**
+     * Sets [rect] to the rectangle of the image covered by the tile [key], clipped to the image.
+     *
+     * @param key a tile.
+     * @param rect the [Rect] to set.
+     */
+    private fun tileRect(key: TileKey, rect: Rect) {
+        val tileSpan = TILE_SIZE * key.sampleSize
+        rect.set(key.col * tileSpan, key.row * tileSpan,
+                min(mImageWidth, (key.col + 1) * tileSpan),
+                min(mImageHeight, (key.row + 1) * tileSpan))
+    }
+
+    /**
+     * This is called when the view is attached to a window, again after being detached if it is
+     * reused. We let workers deliver their results again, and if the decoding of the preview was
+     * dropped when we were detached we start it again. Our workers are created again on demand by
+     * [executor], and [onDraw] queues the tiles in view again.
+     */
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        mReleased = false
+        val data = mData
+        if (data != null && mPreview == null) {
+            decodePreview(data, mPreviewSample)
+        }
+    }
+
+    /**
+     * This is called when the view is detached from a window. We shut down our workers (the tiles
+     * they had queued are dropped, so we forget them in [mPending]), recycle the free decoders and
+     * empty the tile cache.
+     */
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        mReleased = true
+        mExecutor?.shutdownNow()
+        mExecutor = null
+        mPending.clear()
+        recycleDecoders()
+        mTiles.evictAll()
+    }
+
+    /**
+     * Recycles the decoders in [mDecoders], those in use are recycled by their worker.
+     */
+    private fun recycleDecoders() {
+        while (true) {
+            val decoder = mDecoders.poll() ?: break
+            decoder.recycle()
+        }
+    }
+
+    /**
+     * Our static constants and method.
+     */
+    companion object {
+        /**
+         * TAG used for logging.
+         */
+        private const val TAG = "TiledImageView"
+        /**
+         * Width and height of a tile in decoded pixels.
+         */
+        const val TILE_SIZE = 256
+        /**
+         * Number of threads decoding tiles.
+         */
+        const val WORKER_COUNT = 2
+        /**
+         * Largest number of bytes of decoded tiles we cache.
+         */
+        val CACHE_BYTES = min(Runtime.getRuntime().maxMemory() / 8, 32L * 1024 * 1024).toInt()
+        /**
+         * Largest dimension of the preview of the whole image.
+         */
+        const val PREVIEW_SIZE = 1024
+        /**
+         * Largest zoom, in screen pixels per image pixel.
+         */
+        const val MAX_SCALE = 4f
+
+        /**
+         * Returns the sample size to decode at for the zoom level [scale]: the largest power of
+         * two which does not exceed the number of image pixels per screen pixel.
+         *
+         * @param scale screen pixels per image pixel.
+         * @return the sample size.
+         */
+        fun sampleSizeFor(scale: Float): Int {
+            var sample = 1
+            while (sample * 2 * scale <= 1f) {
+                sample *= 2
+            }
+            return sample
+        }
+    }
+}
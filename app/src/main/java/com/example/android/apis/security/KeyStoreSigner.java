@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.apis.security;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStore.PrivateKeyEntry;
+import java.security.KeyStoreException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Signs and verifies data with the keys of a {@code KeyStore} without paying the set up costs of
+ * the keystore for every operation. {@code KeyStoreUsage} used to load the keystore, look up the
+ * entry of the alias and look up a {@code Signature} implementation for every click, we instead:
+ * <ul>
+ * <li>
+ * Load the {@code KeyStore} once, and keep the {@code PrivateKeyEntry} of each alias we have used
+ * in {@code mEntries} until it is invalidated (by {@code invalidate}, or by {@code deleteEntry}).
+ * </li>
+ * <li>
+ * Keep one {@code Signature} object per thread in {@code mSignatures}, which is initialized again
+ * with the key of each operation instead of being looked up again.
+ * </li>
+ * <li>
+ * Sign or verify a batch of independent payloads in parallel on a pool of one thread per core.
+ * </li>
+ * <li>
+ * Sign or verify an {@code InputStream} or a {@code ParcelFileDescriptor} of any size in chunks,
+ * reporting progress to a {@code ProgressListener}. A stream is read through one buffer of
+ * {@code STREAM_CHUNK_SIZE} bytes, a regular file is mapped {@code MAP_CHUNK_SIZE} bytes at a time
+ * so that its pages go straight from the page cache to the {@code Signature} without being
+ * copied into the heap.
+ * </li>
+ * </ul>
+ * The {@code KeyStore} is a constructor parameter, so a software keystore (a "PKCS12" or "BKS"
+ * keystore holding an EC key for instance) can stand in for the {@code AndroidKeyStore} where the
+ * hardware backed one is not available. All methods are thread safe, call {@code shutdown} when
+ * done to stop the thread pool.
+ */
+@SuppressWarnings("WeakerAccess")
+public class KeyStoreSigner {
+    /**
+     * The signature algorithm used by {@code KeyStoreUsage}.
+     */
+    public static final String DEFAULT_ALGORITHM = "SHA256withECDSA";
+    /**
+     * Size of the buffer used to read streams.
+     */
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    /**
+     * Size of the windows of a file we map at a time.
+     */
+    public static final long MAP_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Told about the progress of a streaming sign or verify, called on the thread doing it after
+     * each chunk.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each chunk has been fed to the {@code Signature}.
+         *
+         * @param done  number of bytes processed so far.
+         * @param total total number of bytes, or -1 if it is not known.
+         */
+        void onProgress(long done, long total);
+    }
+
+    /**
+     * The loaded {@code KeyStore} holding our keys, also used as the lock guarding it.
+     */
+    private final KeyStore mKeyStore;
+    /**
+     * Name of the signature algorithm we use.
+     */
+    private final String mAlgorithm;
+    /**
+     * The entries of the aliases we have used, keyed by alias.
+     */
+    private final ConcurrentHashMap<String, PrivateKeyEntry> mEntries = new ConcurrentHashMap<>();
+    /**
+     * The {@code Signature} object of each thread which has signed or verified with us.
+     */
+    private final ThreadLocal<Signature> mSignatures = new ThreadLocal<>();
+    /**
+     * The pool of threads running our batches.
+     */
+    private final ExecutorService mExecutor;
+
+    /**
+     * Creates a signer for the keys of {@code keyStore}.
+     *
+     * @param keyStore  a loaded {@code KeyStore}.
+     * @param algorithm the signature algorithm to use, for instance {@code DEFAULT_ALGORITHM}.
+     * @param threads   number of threads to run batches on.
+     */
+    public KeyStoreSigner(KeyStore keyStore, String algorithm, int threads) {
+        mKeyStore = keyStore;
+        mAlgorithm = algorithm;
+        mExecutor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Creates a signer for the {@code AndroidKeyStore} using {@code DEFAULT_ALGORITHM} and one batch
+     * thread per core. This loads the keystore, so do not call it on the UI thread.
+     *
+     * @return a new {@code KeyStoreSigner}.
+     * @throws GeneralSecurityException if the {@code AndroidKeyStore} is not available.
+     * @throws IOException              if the {@code AndroidKeyStore} cannot be loaded.
+     */
+    public static KeyStoreSigner forAndroidKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+        ks.load(null);
+        return new KeyStoreSigner(ks, DEFAULT_ALGORITHM, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns the aliases of the keystore, in the order the keystore lists them.
+     *
+     * @return list of the aliases.
+     * @throws KeyStoreException if the keystore cannot be read.
+     */
+    public List<String> aliases() throws KeyStoreException {
+        Enumeration<String> aliases;
+        synchronized (mKeyStore) {
+            aliases = mKeyStore.aliases();
+        }
+        return Collections.list(aliases);
+    }
+
+    /**
+     * Returns the {@code PrivateKeyEntry} of {@code alias}, from {@code mEntries} if we have it,
+     * otherwise we load it from the keystore and remember it.
+     *
+     * @param alias alias of the entry.
+     * @return the entry of {@code alias}.
+     * @throws GeneralSecurityException if the entry cannot be loaded or is not a
+     *                                  {@code PrivateKeyEntry}.
+     */
+    public PrivateKeyEntry getEntry(String alias) throws GeneralSecurityException {
+        PrivateKeyEntry entry = mEntries.get(alias);
+        if (entry != null) {
+            return entry;
+        }
+        KeyStore.Entry loaded;
+        synchronized (mKeyStore) {
+            loaded = mKeyStore.getEntry(alias, null);
+        }
+        if (!(loaded instanceof PrivateKeyEntry)) {
+            throw new KeyStoreException("Not an instance of a PrivateKeyEntry: " + alias);
+        }
+        entry = (PrivateKeyEntry) loaded;
+        mEntries.put(alias, entry);
+        return entry;
+    }
+
+    /**
+     * Forgets the cached entry of {@code alias}, call when its key has been replaced.
+     *
+     * @param alias alias of the entry.
+     */
+    public void invalidate(String alias) {
+        mEntries.remove(alias);
+    }
+
+    /**
+     * Forgets all cached entries, call when the keystore has been changed behind our back.
+     */
+    public void invalidateAll() {
+        mEntries.clear();
+    }
+
+    /**
+     * Deletes the entry of {@code alias} from the keystore and from our cache.
+     *
+     * @param alias alias of the entry.
+     * @throws KeyStoreException if the entry cannot be deleted.
+     */
+    public void deleteEntry(String alias) throws KeyStoreException {
+        mEntries.remove(alias);
+        synchronized (mKeyStore) {
+            mKeyStore.deleteEntry(alias);
+        }
+    }
+
+    /**
+     * Signs {@code data} with the private key of {@code alias}.
+     *
+     * @param alias alias of the key.
+     * @param data  the data to sign.
+     * @return the signature.
+     * @throws GeneralSecurityException if the key cannot be loaded or the signing fails.
+     */
+    public byte[] sign(String alias, byte[] data) throws GeneralSecurityException {
+        Signature s = getSignature();
+        s.initSign(getEntry(alias).getPrivateKey());
+        s.update(data);
+        return s.sign();
+    }
+
+    /**
+     * Verifies that {@code signature} is a signature of {@code data} by the key of {@code alias},
+     * using the public key of the certificate of its entry.
+     *
+     * @param alias     alias of the key.
+     * @param data      the data which was signed.
+     * @param signature the signature to verify.
+     * @return true if the signature is valid.
+     * @throws GeneralSecurityException if the key cannot be loaded or the verification fails.
+     */
+    public boolean verify(String alias, byte[] data, byte[] signature) throws GeneralSecurityException {
+        Signature s = getSignature();
+        s.initVerify(getEntry(alias).getCertificate());
+        s.update(data);
+        return s.verify(signature);
+    }
+
+    /**
+     * Signs everything that can be read from {@code in} with the private key of {@code alias},
+     * reading it in chunks of {@code STREAM_CHUNK_SIZE} bytes. {@code in} is not closed.
+     *
+     * @param alias    alias of the key.
+     * @param in       the data to sign.
+     * @param total    number of bytes {@code in} holds for progress reports, or -1 if unknown.
+     * @param listener told about the progress after each chunk, may be null.
+     * @return the signature.
+     * @throws GeneralSecurityException if the key cannot be loaded or the signing fails.
+     * @throws IOException              if {@code in} cannot be read.
+     */
+    public byte[] sign(String alias, InputStream in, long total, ProgressListener listener)
+            throws GeneralSecurityException, IOException {
+        Signature s = getSignature();
+        s.initSign(getEntry(alias).getPrivateKey());
+        update(s, in, total, listener);
+        return s.sign();
+    }
+
+    /**
+     * Verifies that {@code signature} is a signature by the key of {@code alias} of everything
+     * that can be read from {@code in}, reading it in chunks of {@code STREAM_CHUNK_SIZE} bytes.
+     * {@code in} is not closed.
+     *
+     * @param alias     alias of the key.
+     * @param in        the data which was signed.
+     * @param total     number of bytes {@code in} holds for progress reports, or -1 if unknown.
+     * @param signature the signature to verify.
+     * @param listener  told about the progress after each chunk, may be null.
+     * @return true if the signature is valid.
+     * @throws GeneralSecurityException if the key cannot be loaded or the verification fails.
+     * @throws IOException              if {@code in} cannot be read.
+     */
+    public boolean verify(String alias, InputStream in, long total, byte[] signature,
+                          ProgressListener listener) throws GeneralSecurityException, IOException {
+        Signature s = getSignature();
+        s.initVerify(getEntry(alias).getCertificate());
+        update(s, in, total, listener);
+        return s.verify(signature);
+    }
+
+    /**
+     * Signs the contents of {@code fd} with the private key of {@code alias}. A regular file is
+     * mapped and fed to the {@code Signature} in windows of {@code MAP_CHUNK_SIZE} bytes starting at
+     * offset 0, anything else (a pipe or a socket) is read as a stream from its current position.
+     * {@code fd} is not closed.
+     *
+     * @param alias    alias of the key.
+     * @param fd       the data to sign.
+     * @param listener told about the progress after each chunk, may be null.
+     * @return the signature.
+     * @throws GeneralSecurityException if the key cannot be loaded or the signing fails.
+     * @throws IOException              if {@code fd} cannot be read.
+     */
+    public byte[] sign(String alias, ParcelFileDescriptor fd, ProgressListener listener)
+            throws GeneralSecurityException, IOException {
+        Signature s = getSignature();
+        s.initSign(getEntry(alias).getPrivateKey());
+        update(s, fd, listener);
+        return s.sign();
+    }
+
+    /**
+     * Verifies that {@code signature} is a signature by the key of {@code alias} of the contents
+     * of {@code fd}, which are read as described for {@code sign(String, ParcelFileDescriptor,
+     * ProgressListener)}. {@code fd} is not closed.
+     *
+     * @param alias     alias of the key.
+     * @param fd        the data which was signed.
+     * @param signature the signature to verify.
+     * @param listener  told about the progress after each chunk, may be null.
+     * @return true if the signature is valid.
+     * @throws GeneralSecurityException if the key cannot be loaded or the verification fails.
+     * @throws IOException              if {@code fd} cannot be read.
+     */
+    public boolean verify(String alias, ParcelFileDescriptor fd, byte[] signature,
+                          ProgressListener listener) throws GeneralSecurityException, IOException {
+        Signature s = getSignature();
+        s.initVerify(getEntry(alias).getCertificate());
+        update(s, fd, listener);
+        return s.verify(signature);
+    }
+
+    /**
+     * Signs each of {@code payloads} with the key of {@code alias}, spreading them over our thread
+     * pool. The entry is loaded once before the batch starts.
+     *
+     * @param alias    alias of the key.
+     * @param payloads the data to sign.
+     * @return the signatures, in the order of {@code payloads}.
+     * @throws GeneralSecurityException if the key cannot be loaded or any signing fails.
+     * @throws InterruptedException     if we are interrupted while waiting for the batch.
+     */
+    public List<byte[]> signAll(final String alias, List<byte[]> payloads)
+            throws GeneralSecurityException, InterruptedException {
+        getEntry(alias);
+        List<Callable<byte[]>> tasks = new ArrayList<>(payloads.size());
+        for (final byte[] data : payloads) {
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws GeneralSecurityException {
+                    return sign(alias, data);
+                }
+            });
+        }
+        return runAll(tasks);
+    }
+
+    /**
+     * Verifies each of {@code signatures} against the payload at the same index of
+     * {@code payloads} with the key of {@code alias}, spreading them over our thread pool.
+     *
+     * @param alias      alias of the key.
+     * @param payloads   the data which was signed.
+     * @param signatures the signatures to verify, as many as there are payloads.
+     * @return whether each signature is valid, in the order of {@code payloads}.
+     * @throws GeneralSecurityException if the key cannot be loaded or any verification fails.
+     * @throws InterruptedException     if we are interrupted while waiting for the batch.
+     */
+    public boolean[] verifyAll(final String alias, List<byte[]> payloads, List<byte[]> signatures)
+            throws GeneralSecurityException, InterruptedException {
+        if (payloads.size() != signatures.size()) {
+            throw new IllegalArgumentException("Expected " + payloads.size()
+                    + " signatures, got " + signatures.size());
+        }
+        getEntry(alias);
+        List<Callable<Boolean>> tasks = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            final byte[] data = payloads.get(i);
+            final byte[] signature = signatures.get(i);
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws GeneralSecurityException {
+                    return verify(alias, data, signature);
+                }
+            });
+        }
+        List<Boolean> results = runAll(tasks);
+        boolean[] valid = new boolean[results.size()];
+        for (int i = 0; i < valid.length; i++) {
+            valid[i] = results.get(i);
+        }
+        return valid;
+    }
+
+    /**
+     * Stops our thread pool, batches may not be run afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the {@code Signature} object of the current thread, creating it the first time.
+     *
+     * @return the {@code Signature} object of the current thread.
+     * @throws GeneralSecurityException if our algorithm is not available.
+     */
+    private Signature getSignature() throws GeneralSecurityException {
+        Signature s = mSignatures.get();
+        if (s == null) {
+            s = Signature.getInstance(mAlgorithm);
+            mSignatures.set(s);
+        }
+        return s;
+    }
+
+    /**
+     * Feeds everything that can be read from {@code in} to {@code s}, one buffer of
+     * {@code STREAM_CHUNK_SIZE} bytes at a time.
+     *
+     * @param s        the initialized {@code Signature}.
+     * @param in       the data to feed.
+     * @param total    number of bytes {@code in} holds, or -1 if unknown.
+     * @param listener told about the progress after each chunk, may be null.
+     * @throws SignatureException if {@code s} is not initialized.
+     * @throws IOException        if {@code in} cannot be read.
+     */
+    private static void update(Signature s, InputStream in, long total, ProgressListener listener)
+            throws SignatureException, IOException {
+        byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+        long done = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            s.update(buffer, 0, count);
+            done += count;
+            if (listener != null) {
+                listener.onProgress(done, total);
+            }
+        }
+    }
+
+    /**
+     * Feeds the contents of {@code fd} to {@code s}. If {@code fd} is a regular file (its stat size
+     * is known) we map it one window of {@code MAP_CHUNK_SIZE} bytes at a time, so only one window
+     * is mapped at once and none of it is copied into the heap. Otherwise we read it as a stream.
+     *
+     * @param s        the initialized {@code Signature}.
+     * @param fd       the data to feed.
+     * @param listener told about the progress after each chunk, may be null.
+     * @throws SignatureException if {@code s} is not initialized.
+     * @throws IOException        if {@code fd} cannot be read or mapped.
+     */
+    private static void update(Signature s, ParcelFileDescriptor fd, ProgressListener listener)
+            throws SignatureException, IOException {
+        // Not closed since that would close fd, which belongs to our caller.
+        FileInputStream in = new FileInputStream(fd.getFileDescriptor());
+        long size = fd.getStatSize();
+        if (size < 0) {
+            update(s, in, -1, listener);
+            return;
+        }
+        FileChannel channel = in.getChannel();
+        for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+            long length = Math.min(MAP_CHUNK_SIZE, size - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            s.update(window);
+            if (listener != null) {
+                listener.onProgress(position + length, size);
+            }
+        }
+    }
+
+    /**
+     * Runs {@code tasks} on our thread pool, or on the calling thread if there is only one, and
+     * returns their results in order. If a task fails the tasks which have not finished are
+     * canceled and its exception is rethrown.
+     *
+     * @param tasks the tasks to run.
+     * @param <T>   the type of the results.
+     * @return the results of {@code tasks}.
+     * @throws GeneralSecurityException if a task failed.
+     * @throws InterruptedException     if we are interrupted while waiting for the tasks.
+     */
+    private <T> List<T> runAll(List<Callable<T>> tasks)
+            throws GeneralSecurityException, InterruptedException {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.size() == 1) {
+            try {
+                results.add(tasks.get(0).call());
+            } catch (GeneralSecurityException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(mExecutor.submit(task));
+        }
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+}
@@ -23,6 +23,8 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.util.Base64;
@@ -36,25 +38,20 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
 import com.example.android.apis.R;
 
+import java.io.File;
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
-import java.security.KeyStore.PrivateKeyEntry;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -81,6 +78,11 @@ public class KeyStoreUsage extends Activity {
      */
     AliasAdapter mAdapter;
 
+    /**
+     * The {@code ListView} in our layout which lists the aliases.
+     */
+    ListView mListView;
+
     /**
      * Button in the UI that causes a new keypair to be generated in the
      * {@code KeyStore}.
@@ -105,6 +107,22 @@ public class KeyStoreUsage extends Activity {
      */
     Button mDeleteButton;
 
+    /**
+     * Button in the UI that causes the APK of this app to be signed and verified by a key we
+     * selected from the list available in the {@code KeyStore}.
+     */
+    Button mSignFileButton;
+
+    /**
+     * Shows the progress of signing and verifying the APK.
+     */
+    ProgressBar mSignFileProgress;
+
+    /**
+     * Shows the result of signing and verifying the APK.
+     */
+    TextView mSignFileResult;
+
     /**
      * Text field in the UI that holds plaintext.
      */
@@ -120,12 +138,25 @@ public class KeyStoreUsage extends Activity {
      */
     private String mSelectedAlias;
 
+    /**
+     * The {@code KeyStoreSigner} our tasks use to talk to the {@code AndroidKeyStore}, it keeps the
+     * keystore loaded and caches the entries of the aliases we use. Created by {@code getSigner}
+     * the first time one of our background tasks needs it.
+     */
+    private KeyStoreSigner mSigner;
+
+    /**
+     * Set by {@code onDestroy}, after which {@code getSigner} refuses to create a new
+     * {@code KeyStoreSigner} for a background task which is still running.
+     */
+    private boolean mDestroyed;
+
     /**
      * Called when the activity is starting. First we call through to our super's implementation of
      * {@code onCreate}, then we set our content view to our layout file R.layout.keystore_usage.
-     * We locate the {@code ListView lv} with ID R.id.entries_list, allocate a new instance to for
-     * {@code AliasAdapter mAdapter}, set it as the adapter for {@code lv}, set the choice mode of
-     * {@code lv} to CHOICE_MODE_SINGLE and set its {@code OnItemClickListener} to an anonymous class
+     * We locate the {@code ListView mListView} with ID R.id.entries_list, allocate a new instance to for
+     * {@code AliasAdapter mAdapter}, set it as the adapter for {@code mListView}, set the choice mode of
+     * {@code mListView} to CHOICE_MODE_SINGLE and set its {@code OnItemClickListener} to an anonymous class
      * which sets {@code String mSelectedAlias} to the item that has been clicked and calls our method
      * {@code setKeyActionButtonsEnabled} to enable the views which need a key to use, namely
      * {@code EditText mPlainText}, {@code EditText mCipherText}, {@code Button mSignButton},
@@ -160,6 +191,11 @@ public class KeyStoreUsage extends Activity {
      * to temporarily disable the key action views, and then starts the {@code AsyncTask DeleteTask} running using
      * the argument {@code alias}.
      * <p>
+     * We locate the button with ID R.id.sign_file_button to initialize our field
+     * {@code Button mSignFileButton} and set its {@code OnClickListener} to an anonymous class which
+     * does the same with the {@code AsyncTask SignFileTask}, and locate the {@code ProgressBar}
+     * R.id.sign_file_progress and the {@code TextView} R.id.sign_file_result it reports to.
+     * <p>
      * We locate the {@code EditText} with ID R.id.plaintext to initialize our field {@code EditText mPlainText} and
      * set its {@code OnFocusChangeListener} to an anonymous class which sets the color of the text to the correct
      * color for its state based on the values in android.R.color.primary_text_dark.
@@ -184,11 +220,11 @@ public class KeyStoreUsage extends Activity {
          * Set up our {@code ListView} with an adapter that allows
          * us to choose from the available entry aliases.
          */
-        ListView lv = (ListView) findViewById(R.id.entries_list);
+        mListView = (ListView) findViewById(R.id.entries_list);
         mAdapter = new AliasAdapter(getApplicationContext());
-        lv.setAdapter(mAdapter);
-        lv.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
-        lv.setOnItemClickListener(new OnItemClickListener() {
+        mListView.setAdapter(mAdapter);
+        mListView.setChoiceMode(ListView.CHOICE_MODE_SINGLE);
+        mListView.setOnItemClickListener(new OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
                 mSelectedAlias = mAdapter.getItem(position);
@@ -263,6 +299,20 @@ public class KeyStoreUsage extends Activity {
             }
         });
 
+        mSignFileButton = (Button) findViewById(R.id.sign_file_button);
+        mSignFileButton.setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                final String alias = mSelectedAlias;
+                if (alias != null) {
+                    setKeyActionButtonsEnabled(false);
+                    new SignFileTask().execute(alias);
+                }
+            }
+        });
+        mSignFileProgress = (ProgressBar) findViewById(R.id.sign_file_progress);
+        mSignFileResult = (TextView) findViewById(R.id.sign_file_result);
+
         mPlainText = (EditText) findViewById(R.id.plaintext);
         mPlainText.setOnFocusChangeListener(new OnFocusChangeListener() {
             @Override
@@ -285,6 +335,44 @@ public class KeyStoreUsage extends Activity {
         updateKeyList();
     }
 
+    /**
+     * Called when the activity is being destroyed, we set our flag {@code mDestroyed} so that no new
+     * signer is created, shut down the thread pool of our {@code KeyStoreSigner mSigner} if we
+     * created one, then call through to our super's implementation of {@code onDestroy}.
+     */
+    @Override
+    protected void onDestroy() {
+        synchronized (this) {
+            mDestroyed = true;
+            if (mSigner != null) {
+                mSigner.shutdown();
+                mSigner = null;
+            }
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Returns our {@code KeyStoreSigner mSigner}, creating it for the {@code AndroidKeyStore} the
+     * first time we are called. Called from the background threads of our tasks since creating it
+     * loads the keystore. Once {@code onDestroy} has shut the signer down a task which is still
+     * running gets a {@code KeyStoreException} instead, which it handles like any other failure.
+     *
+     * @return our {@code KeyStoreSigner}.
+     * @throws GeneralSecurityException if the {@code AndroidKeyStore} is not available, or we have
+     *                                  been destroyed.
+     * @throws IOException              if the {@code AndroidKeyStore} cannot be loaded.
+     */
+    private synchronized KeyStoreSigner getSigner() throws GeneralSecurityException, IOException {
+        if (mDestroyed) {
+            throw new KeyStoreException("KeyStoreUsage has been destroyed");
+        }
+        if (mSigner == null) {
+            mSigner = KeyStoreSigner.forAndroidKeyStore();
+        }
+        return mSigner;
+    }
+
     /**
      * The {@code Adapter} we use for our {@code AliasAdapter mAdapter}, it stores the alias strings
      * the use has used in its {@code ArrayAdapter<String>}
@@ -304,18 +392,104 @@ public class KeyStoreUsage extends Activity {
         }
 
         /**
-         * This clears out all previous aliases and replaces it with the current entries. First we
-         * remove all elements from the list, and then we add our parameter {@code List<String> items}
-         * at the end of the array. Finally we call {@code notifyDataSetChanged} to notify the attached
-         * observers that the underlying data has been changed and any View reflecting the data set
-         * should refresh itself.
+         * Returns the position of {@code alias} in our sorted list of aliases if it is there,
+         * otherwise {@code (-(insertion point) - 1)} where the insertion point is the position at
+         * which it would be inserted, the same contract as {@code Collections.binarySearch}.
+         *
+         * @param alias the alias to look for.
+         * @return the position of {@code alias}, or the encoded insertion point.
+         */
+        private int find(String alias) {
+            int low = 0;
+            int high = getCount() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                //noinspection ConstantConditions
+                int cmp = getItem(mid).compareTo(alias);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        /**
+         * Inserts {@code alias} at its sorted position if we do not already have it.
          *
-         * @param items the list of alias entries we should now be using.
+         * @param alias the alias which was added to the keystore.
+         * @return true if it was inserted.
          */
-        public void setAliases(List<String> items) {
-            clear();
-            addAll(items);
-            notifyDataSetChanged();
+        public boolean addAlias(String alias) {
+            int position = find(alias);
+            if (position >= 0) {
+                return false;
+            }
+            insert(alias, -position - 1);
+            return true;
+        }
+
+        /**
+         * Removes {@code alias} if we have it.
+         *
+         * @param alias the alias which was removed from the keystore.
+         * @return true if it was removed.
+         */
+        public boolean removeAlias(String alias) {
+            if (find(alias) < 0) {
+                return false;
+            }
+            remove(alias);
+            return true;
+        }
+
+        /**
+         * Brings our list in line with {@code sorted}, the full sorted list of aliases read from
+         * the keystore, inserting and removing only the aliases which differ. We walk both sorted
+         * lists together like a merge, so the cost is linear in their length plus the cost of the
+         * changes, and we turn off the notification of each change so that observers are told
+         * once at the end, if anything changed at all.
+         *
+         * @param sorted all the aliases of the keystore, sorted.
+         * @return true if anything changed.
+         */
+        public boolean reconcile(List<String> sorted) {
+            setNotifyOnChange(false);
+            boolean changed = false;
+            int position = 0;
+            int index = 0;
+            while (position < getCount() || index < sorted.size()) {
+                int cmp;
+                if (position >= getCount()) {
+                    cmp = 1;
+                } else if (index >= sorted.size()) {
+                    cmp = -1;
+                } else {
+                    //noinspection ConstantConditions
+                    cmp = getItem(position).compareTo(sorted.get(index));
+                }
+                if (cmp < 0) {
+                    remove(getItem(position));
+                    changed = true;
+                } else if (cmp > 0) {
+                    insert(sorted.get(index), position);
+                    position++;
+                    index++;
+                    changed = true;
+                } else {
+                    position++;
+                    index++;
+                }
+            }
+            if (changed) {
+                notifyDataSetChanged();
+            } else {
+                setNotifyOnChange(true);
+            }
+            return changed;
         }
     }
 
@@ -323,17 +497,58 @@ public class KeyStoreUsage extends Activity {
      * Updates the list of keys. First we call our method {@code setKeyActionButtonsEnabled} to disable
      * the views used by the key actions: {@code EditText mPlainText}, {@code EditText mCipherText},
      * {@code Button mSignButton}, {@code Button mVerifyButton}, and {@code Button mDeleteButton}.
-     * Then we start our {@code AsyncTask UpdateKeyListTask} running to do the actual updating.
+     * Then we start our {@code AsyncTask UpdateKeyListTask} running to do the actual updating. This
+     * reads every alias of the keystore, so we only do it when we start and when a generate or
+     * delete fails, after a generate or delete which succeeds we just apply the change to
+     * {@code mAdapter} by calling {@code onAliasesChanged}.
      */
     private void updateKeyList() {
         setKeyActionButtonsEnabled(false);
         new UpdateKeyListTask().execute();
     }
 
+    /**
+     * Applies a change of the keystore to {@code AliasAdapter mAdapter}: if {@code added} is not
+     * null we insert it, if {@code removed} is not null we remove it (forgetting the selection if it
+     * was the selected alias). Since positions move we then check the row of the selected alias
+     * again, and enable the key action views if an alias is still selected.
+     *
+     * @param added   alias which was added to the keystore, or null.
+     * @param removed alias which was removed from the keystore, or null.
+     */
+    private void onAliasesChanged(String added, String removed) {
+        if (added != null) {
+            mAdapter.addAlias(added);
+        }
+        if (removed != null) {
+            mAdapter.removeAlias(removed);
+            if (removed.equals(mSelectedAlias)) {
+                mSelectedAlias = null;
+            }
+        }
+        restoreSelection();
+    }
+
+    /**
+     * Checks the row of {@code mSelectedAlias} in {@code mListView} (or clears the choices if there
+     * is no selection or it is no longer listed) and enables the key action views if there is a
+     * selection.
+     */
+    private void restoreSelection() {
+        int position = mSelectedAlias == null ? -1 : mAdapter.getPosition(mSelectedAlias);
+        if (position < 0) {
+            mSelectedAlias = null;
+            mListView.clearChoices();
+        } else {
+            mListView.setItemChecked(position, true);
+        }
+        setKeyActionButtonsEnabled(mSelectedAlias != null);
+    }
+
     /**
      * Sets all the buttons related to actions that act on an existing key to enabled or disabled:
      * {@code EditText mPlainText}, {@code EditText mCipherText}, {@code Button mSignButton},
-     * {@code Button mVerifyButton}, and {@code Button mDeleteButton}.
+     * {@code Button mVerifyButton}, {@code Button mDeleteButton} and {@code Button mSignFileButton}.
      */
     private void setKeyActionButtonsEnabled(boolean enabled) {
         mPlainText.setEnabled(enabled);
@@ -341,49 +556,34 @@ public class KeyStoreUsage extends Activity {
         mSignButton.setEnabled(enabled);
         mVerifyButton.setEnabled(enabled);
         mDeleteButton.setEnabled(enabled);
+        mSignFileButton.setEnabled(enabled);
     }
 
     /**
      * {@code AsyncTask} which updates the list of aliases used by {@code AliasAdapter mAdapter}.
      */
     @SuppressLint("StaticFieldLeak")
-    private class UpdateKeyListTask extends AsyncTask<Void, Void, Enumeration<String>> {
+    private class UpdateKeyListTask extends AsyncTask<Void, Void, List<String>> {
         /**
-         * Returns an {@code Enumeration<String>} of all the names in the "AndroidKeyStore" keystore
-         * object. First we fetch a {@code KeyStore} object of type "AndroidKeyStore" to initialize
-         * {@code KeyStore ks}, we load {@code ks}, and then return an {@code Enumeration<String> aliases}
-         * listing all of the alias names of this keystore.
+         * Returns a {@code List<String>} of all the names in the "AndroidKeyStore" keystore
+         * object, as listed by the {@code aliases} method of our {@code KeyStoreSigner}, sorted
+         * here in the background so that {@code AliasAdapter.reconcile} can merge it cheaply.
          *
          * @param params we do not use params, so these are {@code Void}
-         * @return An object that implements the Enumeration interface for {@code String} objects,
-         * it generates a series of elements, one at a time. Successive calls to the nextElement
-         * method return successive elements of the series.
+         * @return the aliases of the keystore, or null if they could not be listed.
          */
         @Override
-        protected Enumeration<String> doInBackground(Void... params) {
+        protected List<String> doInBackground(Void... params) {
             try {
 
                 /*
-                 * Load the Android KeyStore instance using the the
-                 * "AndroidKeyStore" provider to list out what entries are
-                 * currently stored.
+                 * Use the Android KeyStore instance loaded by our signer
+                 * to list out what entries are currently stored.
                  */
-                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
-                @SuppressWarnings("UnnecessaryLocalVariable")
-                Enumeration<String> aliases = ks.aliases();
-
+                List<String> aliases = getSigner().aliases();
+                Collections.sort(aliases);
                 return aliases;
-            } catch (KeyStoreException e) {
-                Log.w(TAG, "Could not list keys", e);
-                return null;
-            } catch (NoSuchAlgorithmException e) {
-                Log.w(TAG, "Could not list keys", e);
-                return null;
-            } catch (CertificateException e) {
-                Log.w(TAG, "Could not list keys", e);
-                return null;
-            } catch (IOException e) {
+            } catch (GeneralSecurityException | IOException e) {
                 Log.w(TAG, "Could not list keys", e);
                 return null;
             }
@@ -391,21 +591,19 @@ public class KeyStoreUsage extends Activity {
 
         /**
          * Runs on the UI thread after {@code doInBackground}. The parameter {@code result} is the
-         * value returned by {@code doInBackground}. First we create an {@code ArrayList} for
-         * {@code List<String> aliases}, then we loop through all of the {@code String} objects in
-         * our parameter {@code result} adding each of them to {@code aliases}. Finally we call the
-         * method {@code mAdapter.setAliases} to clear out all previous aliases and replace them with
-         * the contents of {@code aliases}.
+         * value returned by {@code doInBackground}. If it is not null we call the method
+         * {@code mAdapter.reconcile} to insert and remove only the aliases which differ from
+         * {@code result}, then call {@code restoreSelection} to check the row of the selected
+         * alias again.
          *
          * @param result The list of {@code KeyStore} aliases computed by {@code doInBackground}.
          */
         @Override
-        protected void onPostExecute(Enumeration<String> result) {
-            List<String> aliases = new ArrayList<>();
-            while (result.hasMoreElements()) {
-                aliases.add(result.nextElement());
+        protected void onPostExecute(List<String> result) {
+            if (result != null) {
+                mAdapter.reconcile(result);
             }
-            mAdapter.setAliases(aliases);
+            restoreSelection();
         }
     }
 
@@ -414,6 +612,11 @@ public class KeyStoreUsage extends Activity {
      */
     @SuppressLint("StaticFieldLeak")
     private class GenerateTask extends AsyncTask<String, Void, Boolean> {
+        /**
+         * The alias we generate a key for.
+         */
+        private String mAlias;
+
         /**
          * Generate a new EC key pair entry in the Android Keystore by using the KeyPairGenerator API.
          * First we set {@code String alias} from our parameter {@code params[0]} then we set
@@ -423,8 +626,9 @@ public class KeyStoreUsage extends Activity {
          * {@code KeyGenParameterSpec.Builder} which uses {@code alias} as the alias of the entry in
          * which the generated key will appear in Android KeyStore, and whose purpose is both
          * PURPOSE_SIGN and PURPOSE_VERIFY, whose digests algorithms we set to DIGEST_SHA256 and
-         * DIGEST_SHA512 and then build. Finally we instruct {@code kpg} to generate a new key pair,
-         * and return true to the caller.
+         * DIGEST_SHA512 and then build. We instruct {@code kpg} to generate a new key pair, tell our
+         * {@code KeyStoreSigner} to forget any entry it has cached for {@code alias} (the key of an
+         * existing alias is replaced), and return true to the caller.
          *
          * @param params The alias for the key.
          * @return true if successful, false if and exception is thrown (it is ignored though)
@@ -432,6 +636,7 @@ public class KeyStoreUsage extends Activity {
         @Override
         protected Boolean doInBackground(String... params) {
             final String alias = params[0];
+            mAlias = alias;
             try {
 
                 /*
@@ -451,29 +656,30 @@ public class KeyStoreUsage extends Activity {
 
                 @SuppressWarnings("unused")
                 KeyPair kp = kpg.generateKeyPair();
+                getSigner().invalidate(alias);
 
                 return true;
-            } catch (NoSuchAlgorithmException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (InvalidAlgorithmParameterException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (NoSuchProviderException e) {
+            } catch (GeneralSecurityException | IOException e) {
                 Log.w(TAG, "Could not generate key", e);
                 return false;
             }
         }
 
         /**
-         * Called on the UI thread when the background task returns. We call our method {@code updateKeyList}
-         * to update the list of keys, and then enable the {@code Button mGenerateButton}.
+         * Called on the UI thread when the background task returns. If the key was generated we call
+         * our method {@code onAliasesChanged} to insert its alias into the list of keys, otherwise we
+         * call {@code updateKeyList} to reconcile the list with the keystore. Then we enable the
+         * {@code Button mGenerateButton}.
          *
-         * @param result we ignore this.
+         * @param result true if the key was generated.
          */
         @Override
         protected void onPostExecute(Boolean result) {
-            updateKeyList();
+            if (result) {
+                onAliasesChanged(mAlias, null);
+            } else {
+                updateKeyList();
+            }
             mGenerateButton.setEnabled(true);
         }
 
@@ -486,74 +692,68 @@ public class KeyStoreUsage extends Activity {
         }
     }
 
+    /**
+     * Splits {@code text} into the payloads signed and verified by {@code SignTask} and
+     * {@code VerifyTask}: the bytes of each of its lines, empty lines included.
+     *
+     * @param text the text of {@code EditText mPlainText}.
+     * @return the bytes of each line of {@code text}.
+     */
+    private static List<byte[]> linePayloads(String text) {
+        String[] lines = text.split("\n", -1);
+        List<byte[]> payloads = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            payloads.add(line.getBytes());
+        }
+        return payloads;
+    }
+
     /**
      * {@code AsyncTask} which is run to create a signature for some data.
      */
     @SuppressLint("StaticFieldLeak")
     private class SignTask extends AsyncTask<String, Void, String> {
         /**
-         * Uses the keystore entry specified by {@code params[0]} to sign the data specified by
-         * {@code params[1]} and returns the resulting signature. First we copy references to our
-         * two parameters to {@code String alias} and {@code String dataString}. Then we load
-         * {@code byte[] data} with the {@code byte[]} version of {@code dataString}. We initialize
-         * {@code KeyStore ks} with an instance of {@code KeyStore} providing the "AndroidKeyStore"
-         * type, then instruct it to load. We fetch from {@code ks} the keystore entry for the alias
-         * {@code String alias} to initialize {@code KeyStore.Entry entry}. If {@code entry} is not
-         * an instance of {@code PrivateKeyEntry} we log the error and return null. Otherwise we
-         * initialize {@code Signature s} with an instance that implements the "SHA256withECDSA"
-         * signature algorithm. We initialize {@code s} for signing using the {@code PrivateKey} of
-         * {@code entry}, update the data to be signed or verified by {@code s}, and then use {@code s}
-         * to initialize {@code byte[] signature} with the signature bytes of all the data updated.
-         * We then return {@code byte[] signature} as a Base64-encoded string using Base64.DEFAULT.
+         * Uses the keystore entry specified by {@code params[0]} to sign each line of the data
+         * specified by {@code params[1]} and returns the resulting signatures, one per line. First
+         * we copy references to our two parameters to {@code String alias} and
+         * {@code String dataString}. Then we use our method {@code linePayloads} to load
+         * {@code List<byte[]> payloads} with the {@code byte[]} version of each line of
+         * {@code dataString}. We use the {@code signAll} method of our {@code KeyStoreSigner} to
+         * sign all of {@code payloads} in parallel with the "SHA256withECDSA" algorithm and the
+         * {@code PrivateKey} of the entry for {@code alias} (which it loads from the keystore only
+         * the first time the alias is used) to initialize {@code List<byte[]> signatures}. We then
+         * return each of {@code signatures} as a Base64-encoded string using Base64.NO_WRAP, one
+         * per line. If the entry is not a {@code PrivateKeyEntry} or anything else fails we log the
+         * error and return null.
          *
          * @param params the alias in the keystore to use ({@code params[0]}), and the data that we
          *               are to sign ({@code params[1]}).
-         * @return The signature of the data using the keystore alias entry passed us
+         * @return The signatures of the lines of the data using the keystore alias entry passed us
          */
         @Override
         protected String doInBackground(String... params) {
             final String alias = params[0];
             final String dataString = params[1];
             try {
-                byte[] data = dataString.getBytes();
+                List<byte[]> payloads = linePayloads(dataString);
 
                 /*
                  * Use a PrivateKey in the KeyStore to create a signature over
-                 * some data.
+                 * each line of the data.
                  */
-                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
-                KeyStore.Entry entry = ks.getEntry(alias, null);
-                if (!(entry instanceof PrivateKeyEntry)) {
-                    Log.w(TAG, "Not an instance of a PrivateKeyEntry");
-                    return null;
-                }
-                Signature s = Signature.getInstance("SHA256withECDSA");
-                s.initSign(((PrivateKeyEntry) entry).getPrivateKey());
-                s.update(data);
-                byte[] signature = s.sign();
+                List<byte[]> signatures = getSigner().signAll(alias, payloads);
 
-                return Base64.encodeToString(signature, Base64.DEFAULT);
-            } catch (NoSuchAlgorithmException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return null;
-            } catch (KeyStoreException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return null;
-            } catch (CertificateException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return null;
-            } catch (IOException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return null;
-            } catch (UnrecoverableEntryException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return null;
-            } catch (InvalidKeyException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return null;
-            } catch (SignatureException e) {
-                Log.w(TAG, "Could not generate key", e);
+                StringBuilder sb = new StringBuilder();
+                for (byte[] signature : signatures) {
+                    if (sb.length() > 0) {
+                        sb.append('\n');
+                    }
+                    sb.append(Base64.encodeToString(signature, Base64.NO_WRAP));
+                }
+                return sb.toString();
+            } catch (GeneralSecurityException | IOException | InterruptedException e) {
+                Log.w(TAG, "Could not sign data", e);
                 return null;
             }
         }
@@ -590,21 +790,19 @@ public class KeyStoreUsage extends Activity {
     @SuppressLint("StaticFieldLeak")
     private class VerifyTask extends AsyncTask<String, Void, Boolean> {
         /**
-         * Verifies a signature in the background. First we copy references to our three parameters to
-         * {@code String alias}, {@code String dataString} and {@code String signatureString}. We
-         * initialize {@code byte[] data} with the byte version of {@code dataString}, declare
-         * {@code byte[] signature} and try to decode the Base64 contained in {@code signatureString}
-         * into it (setting {@code byte[]} to an zero element array if it fails). We initialize
-         * {@code KeyStore ks} with an instance of {@code KeyStore} providing the "AndroidKeyStore"
-         * type, then instruct it to load. We fetch from {@code ks} the keystore entry for the alias
-         * {@code String alias} to initialize {@code KeyStore.Entry entry}. If {@code entry} is not
-         * an instance of {@code PrivateKeyEntry} we log the error and return false. Otherwise we
-         * initialize {@code Signature s} with an instance that implements the "SHA256withECDSA"
-         * signature algorithm. We initialize {@code s} for verification, using the public key from
-         * the end entity Certificate from the certificate chain of {@code entry}, update the data
-         * verified by {@code s}, and then use {@code s} to verify {@code signature} setting our
-         * variable {@code boolean valid} to the result of the verification which we return to the
-         * caller.
+         * Verifies the signatures of the lines of some data in the background. First we copy
+         * references to our three parameters to {@code String alias}, {@code String dataString} and
+         * {@code String signatureString}. We initialize {@code List<byte[]> payloads} with the byte
+         * version of each line of {@code dataString}, and split {@code signatureString} into its
+         * lines, one signature per line of the data as written by {@code SignTask}. If there are
+         * not as many signatures as lines the data is not valid. Otherwise we try to decode the
+         * Base64 contained in each signature line into {@code List<byte[]> signatures} (using a
+         * zero element array for a line which fails). We then use the {@code verifyAll} method of
+         * our {@code KeyStoreSigner} to verify all of {@code signatures} over {@code payloads} in
+         * parallel with the "SHA256withECDSA" algorithm, using the public key from the end entity
+         * Certificate from the certificate chain of the entry for {@code alias}, and return true
+         * only if every one of them is valid. If the entry is not a {@code PrivateKeyEntry} or
+         * anything else fails we log the error and return false.
          *
          * @param params {@code params[0]} contains the alias to use from the keystore, {@code params[1]}
          *               contains the data that has been signed, and {@code params[2]} contains the
@@ -617,54 +815,36 @@ public class KeyStoreUsage extends Activity {
             final String dataString = params[1];
             final String signatureString = params[2];
             try {
-                byte[] data = dataString.getBytes();
-                byte[] signature;
-                try {
-                    signature = Base64.decode(signatureString, Base64.DEFAULT);
-                } catch (IllegalArgumentException e) {
-                    signature = new byte[0];
+                List<byte[]> payloads = linePayloads(dataString);
+                String[] lines = signatureString.split("\n", -1);
+                if (lines.length != payloads.size()) {
+                    return false;
+                }
+                List<byte[]> signatures = new ArrayList<>(lines.length);
+                for (String line : lines) {
+                    byte[] signature;
+                    try {
+                        signature = Base64.decode(line, Base64.DEFAULT);
+                    } catch (IllegalArgumentException e) {
+                        signature = new byte[0];
+                    }
+                    signatures.add(signature);
                 }
 
                 /*
-                 * Verify a signature previously made by a PrivateKey in our
+                 * Verify the signatures previously made by a PrivateKey in our
                  * KeyStore. This uses the X.509 certificate attached to our
-                 * private key in the KeyStore to validate a previously
-                 * generated signature.
+                 * private key in the KeyStore to validate previously
+                 * generated signatures.
                  */
-                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
-                KeyStore.Entry entry = ks.getEntry(alias, null);
-                if (!(entry instanceof PrivateKeyEntry)) {
-                    Log.w(TAG, "Not an instance of a PrivateKeyEntry");
-                    return false;
+                for (boolean valid : getSigner().verifyAll(alias, payloads, signatures)) {
+                    if (!valid) {
+                        return false;
+                    }
                 }
-                Signature s = Signature.getInstance("SHA256withECDSA");
-                s.initVerify(((PrivateKeyEntry) entry).getCertificate());
-                s.update(data);
-                @SuppressWarnings("UnnecessaryLocalVariable")
-                boolean valid = s.verify(signature);
-
-                return valid;
-            } catch (NoSuchAlgorithmException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (KeyStoreException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (CertificateException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (IOException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (UnrecoverableEntryException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (InvalidKeyException e) {
-                Log.w(TAG, "Could not generate key", e);
-                return false;
-            } catch (SignatureException e) {
-                Log.w(TAG, "Could not generate key", e);
+                return true;
+            } catch (GeneralSecurityException | IOException | InterruptedException e) {
+                Log.w(TAG, "Could not verify signature", e);
                 return false;
             }
         }
@@ -704,23 +884,145 @@ public class KeyStoreUsage extends Activity {
         }
     }
 
+    /**
+     * {@code AsyncTask} which signs the APK of this app with a key and then verifies the signature,
+     * showing the progress of both in {@code ProgressBar mSignFileProgress}. This is the streaming
+     * path of {@code KeyStoreSigner}: the APK is a regular file, so it is mapped a window of
+     * {@code MAP_CHUNK_SIZE} bytes at a time rather than read into the heap.
+     */
+    @SuppressLint("StaticFieldLeak")
+    private class SignFileTask extends AsyncTask<String, Integer, String> {
+        /**
+         * Called on the UI thread before {@code doInBackground}, we reset the progress bar and
+         * clear the previous result.
+         */
+        @Override
+        protected void onPreExecute() {
+            mSignFileProgress.setProgress(0);
+            mSignFileResult.setText(null);
+        }
+
+        /**
+         * Signs the APK of this app with the key of {@code params[0]}, then verifies the signature
+         * with the certificate of the same key. The APK is opened once as a
+         * {@code ParcelFileDescriptor} which both passes map from its start. The first half of the
+         * progress bar follows the signing and the second half the verification.
+         *
+         * @param params {@code params[0]} is the alias of the key to use.
+         * @return a description of the result, or null if anything failed.
+         */
+        @Override
+        protected String doInBackground(String... params) {
+            final String alias = params[0];
+            File apk = new File(getApplicationInfo().sourceDir);
+            ParcelFileDescriptor fd = null;
+            try {
+                fd = ParcelFileDescriptor.open(apk, ParcelFileDescriptor.MODE_READ_ONLY);
+                KeyStoreSigner signer = getSigner();
+                long start = SystemClock.elapsedRealtime();
+                byte[] signature = signer.sign(alias, fd, new Progress(0));
+                long signed = SystemClock.elapsedRealtime();
+                boolean valid = signer.verify(alias, fd, signature, new Progress(50));
+                long verified = SystemClock.elapsedRealtime();
+                return String.format("%s %.1f MB: signed in %d ms, %s in %d ms", apk.getName(),
+                        apk.length() / (1024.0 * 1024.0), signed - start,
+                        valid ? "verified" : "NOT verified", verified - signed);
+            } catch (GeneralSecurityException | IOException e) {
+                Log.w(TAG, "Could not sign " + apk, e);
+                return null;
+            } finally {
+                if (fd != null) {
+                    try {
+                        fd.close();
+                    } catch (IOException e) {
+                        // Nothing to do, we only read it.
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called on the UI thread with the progress published by {@code Progress}, which we show
+         * in {@code ProgressBar mSignFileProgress}.
+         *
+         * @param values {@code values[0]} is the percentage done.
+         */
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mSignFileProgress.setProgress(values[0]);
+        }
+
+        /**
+         * Called on the UI thread when the background task has finished, we show {@code result}
+         * (or "error!") in {@code TextView mSignFileResult} and re-enable the key action views.
+         *
+         * @param result description of the result, or null if anything failed.
+         */
+        @Override
+        protected void onPostExecute(String result) {
+            mSignFileResult.setText(result == null ? "error!" : result);
+            setKeyActionButtonsEnabled(true);
+        }
+
+        /**
+         * Called on the UI thread if the task is cancelled, we re-enable the key action views.
+         */
+        @Override
+        protected void onCancelled() {
+            setKeyActionButtonsEnabled(true);
+        }
+
+        /**
+         * {@code KeyStoreSigner.ProgressListener} which publishes the progress of one pass over
+         * the APK as half of the progress bar, starting at {@code mBase} percent.
+         */
+        private class Progress implements KeyStoreSigner.ProgressListener {
+            /**
+             * Percentage the progress bar shows when the pass starts.
+             */
+            private final int mBase;
+
+            /**
+             * Our constructor.
+             *
+             * @param base percentage the progress bar shows when the pass starts.
+             */
+            Progress(int base) {
+                mBase = base;
+            }
+
+            /**
+             * Called on the background thread after each chunk, we publish the percentage done.
+             *
+             * @param done  number of bytes processed so far.
+             * @param total total number of bytes, or -1 if it is not known.
+             */
+            @Override
+            public void onProgress(long done, long total) {
+                if (total > 0) {
+                    publishProgress(mBase + (int) (done * 50 / total));
+                }
+            }
+        }
+    }
+
     /**
      * {@code AsyncTask} used to delete an alias from the keystore.
      */
     @SuppressLint("StaticFieldLeak")
-    private class DeleteTask extends AsyncTask<String, Void, Void> {
+    private class DeleteTask extends AsyncTask<String, Void, String> {
         /**
          * Deletes a previously generated or stored entry in the KeyStore. First we copy a reference
-         * to our parameter to {@code String alias}. We initialize {@code KeyStore ks} with an instance
-         * of {@code KeyStore} providing the "AndroidKeyStore" type, then instruct it to load. We then
-         * call its {@code deleteEntry} method to delete the entry identified by {@code alias} from
-         * the keystore. Finally we return null to the caller.
+         * to our parameter to {@code String alias}. We then call the {@code deleteEntry} method of
+         * our {@code KeyStoreSigner} to delete the entry identified by {@code alias} from the
+         * keystore (and from its cache). Finally we return {@code alias} to the caller, or null if
+         * the delete failed.
          *
          * @param params {@code params[0]} contains the alias that is to be deleted
-         * @return Void.
+         * @return the alias deleted, or null if the delete failed.
          */
         @Override
-        protected Void doInBackground(String... params) {
+        protected String doInBackground(String... params) {
             final String alias = params[0];
             try {
 
@@ -728,25 +1030,29 @@ public class KeyStoreUsage extends Activity {
                  * Deletes a previously generated or stored entry in the
                  * KeyStore.
                  */
-                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
-                ks.deleteEntry(alias);
-
-            } catch (NoSuchAlgorithmException | KeyStoreException | IOException | CertificateException e) {
-                Log.w(TAG, "Could not generate key", e);
+                getSigner().deleteEntry(alias);
+                return alias;
+            } catch (GeneralSecurityException | IOException e) {
+                Log.w(TAG, "Could not delete key", e);
+                return null;
             }
-            return null;
         }
 
         /**
-         * Called on the UI thread when the background thread has finished. We simply call our method
-         * {@code updateKeyList} to update the list of keys used by our UI.
+         * Called on the UI thread when the background thread has finished. If the delete succeeded
+         * we call our method {@code onAliasesChanged} to remove the alias from the list of keys
+         * used by our UI, otherwise we call {@code updateKeyList} to reconcile the list with the
+         * keystore.
          *
-         * @param result unused, Void
+         * @param result the alias deleted, or null if the delete failed.
          */
         @Override
-        protected void onPostExecute(Void result) {
-            updateKeyList();
+        protected void onPostExecute(String result) {
+            if (result != null) {
+                onAliasesChanged(null, result);
+            } else {
+                updateKeyList();
+            }
         }
 
         /**
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.apis.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.AbsListView;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Binds the rows of a list to data which is slow to fetch without ever fetching on the UI thread.
+ * The data for a position is fetched on a small pool of background threads, the fetch is canceled
+ * if the row is recycled before it finishes, and the results are kept in an {@code LruCache} keyed
+ * by position. While the list scrolls we also prefetch the rows just ahead of the direction of the
+ * scroll, so that by the time they come on screen their data is usually already cached and a fling
+ * shows real content rather than placeholders. All methods must be called on the UI thread.
+ *
+ * @param <D> the type of the data fetched for each row.
+ */
+@SuppressWarnings("WeakerAccess")
+public class AsyncRowBinder<D> implements AbsListView.RecyclerListener {
+    /**
+     * Fetches the data for a row, always called on a background thread.
+     *
+     * @param <D> the type of the data fetched for each row.
+     */
+    public interface Fetcher<D> {
+        /**
+         * Fetch the data for the row at {@code position}.
+         *
+         * @param position position of the row in the adapter.
+         * @return the data for the row, must not be null.
+         * @throws InterruptedException if the fetch was canceled while it was blocked.
+         */
+        D fetch(int position) throws InterruptedException;
+    }
+
+    /**
+     * Displays fetched data (or a placeholder) in a row view, always called on the UI thread.
+     *
+     * @param <D> the type of the data fetched for each row.
+     */
+    public interface Binder<D> {
+        /**
+         * Display {@code data} in {@code view}.
+         *
+         * @param view     the row view.
+         * @param position position of the row in the adapter.
+         * @param data     the data fetched for {@code position}.
+         */
+        void onBind(View view, int position, D data);
+
+        /**
+         * Display a placeholder in {@code view} while the data for {@code position} is fetched.
+         *
+         * @param view     the row view.
+         * @param position position of the row in the adapter.
+         */
+        void onBindPlaceholder(View view, int position);
+    }
+
+    /**
+     * The {@code Fetcher} we run on our background threads.
+     */
+    private final Fetcher<D> mFetcher;
+    /**
+     * The {@code Binder} we use to display data and placeholders.
+     */
+    private final Binder<D> mBinder;
+    /**
+     * The data fetched so far, keyed by position.
+     */
+    private final LruCache<Integer, D> mCache;
+    /**
+     * Number of rows beyond the visible ones that we prefetch in the direction of the scroll.
+     */
+    private final int mPrefetchDistance;
+    /**
+     * Our pool of background threads.
+     */
+    private final ExecutorService mExecutor;
+    /**
+     * {@code Handler} used to deliver fetched data back to the UI thread.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /**
+     * The fetches which have been submitted but not yet delivered, keyed by position.
+     */
+    private final SparseArray<Future<?>> mPending = new SparseArray<>();
+    /**
+     * The position each row view is currently bound to. Weak so that views discarded by the
+     * list do not leak.
+     */
+    private final WeakHashMap<View, Integer> mBound = new WeakHashMap<>();
+    /**
+     * The first visible position reported to the previous call of {@code onScroll}.
+     */
+    private int mLastFirst = -1;
+    /**
+     * True if the list was last seen scrolling towards higher positions.
+     */
+    private boolean mScrollingDown = true;
+
+    /**
+     * Our constructor.
+     *
+     * @param fetcher          the {@code Fetcher} to run on our background threads.
+     * @param binder           the {@code Binder} used to display data and placeholders.
+     * @param cacheSize        maximum number of rows whose data we keep in our cache.
+     * @param prefetchDistance number of rows ahead of the scroll to prefetch.
+     * @param threads          number of background threads to fetch with.
+     */
+    public AsyncRowBinder(Fetcher<D> fetcher, Binder<D> binder, int cacheSize,
+                          int prefetchDistance, int threads) {
+        mFetcher = fetcher;
+        mBinder = binder;
+        mCache = new LruCache<>(cacheSize);
+        mPrefetchDistance = prefetchDistance;
+        mExecutor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Binds {@code view} to the row at {@code position}, called from the {@code getView} override
+     * of the adapter. If the view was bound to a different row whose fetch is still pending and no
+     * other view wants it, that fetch is canceled. If the data for {@code position} is cached we
+     * display it at once, otherwise we display a placeholder and fetch it in the background.
+     *
+     * @param view     the row view, new or recycled.
+     * @param position position of the row in the adapter.
+     */
+    public void bind(View view, int position) {
+        Integer old = mBound.put(view, position);
+        if (old != null && old != position) {
+            cancelIfUnwanted(old);
+        }
+        D data = mCache.get(position);
+        if (data != null) {
+            mBinder.onBind(view, position, data);
+            return;
+        }
+        mBinder.onBindPlaceholder(view, position);
+        fetch(position);
+    }
+
+    /**
+     * Called when {@code view} has been moved to the scrap heap of the list, we forget the position
+     * it was bound to and cancel the fetch of that position if no other view wants it. Register us
+     * by calling {@code setRecyclerListener} on the list.
+     *
+     * @param view the row view which was recycled.
+     */
+    @Override
+    public void onMovedToScrapHeap(View view) {
+        Integer old = mBound.remove(view);
+        if (old != null) {
+            cancelIfUnwanted(old);
+        }
+    }
+
+    /**
+     * Called from the {@code onScroll} callback of the list. We work out the direction of the
+     * scroll from the change in {@code first}, cancel pending prefetches which have fallen outside
+     * of the prefetch window around the visible rows, and then start fetching the
+     * {@code mPrefetchDistance} rows ahead of the visible rows in the direction of the scroll
+     * which are not already cached or pending.
+     *
+     * @param first   the index of the first visible row.
+     * @param visible the number of visible rows.
+     * @param total   the number of rows in the adapter.
+     */
+    public void onScroll(int first, int visible, int total) {
+        if (mLastFirst >= 0 && first != mLastFirst) {
+            mScrollingDown = first > mLastFirst;
+        }
+        mLastFirst = first;
+        int windowStart = first - mPrefetchDistance;
+        int windowEnd = first + visible + mPrefetchDistance;
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            int position = mPending.keyAt(i);
+            if ((position < windowStart || position >= windowEnd) && !mBound.containsValue(position)) {
+                mPending.valueAt(i).cancel(true);
+                mPending.removeAt(i);
+            }
+        }
+        int start = mScrollingDown ? first + visible : Math.max(0, windowStart);
+        int end = mScrollingDown ? Math.min(total, windowEnd) : first;
+        for (int position = start; position < end; position++) {
+            if (mCache.get(position) == null) {
+                fetch(position);
+            }
+        }
+    }
+
+    /**
+     * Forgets all cached data, call when the data set of the adapter changes.
+     */
+    public void invalidate() {
+        for (int i = 0; i < mPending.size(); i++) {
+            mPending.valueAt(i).cancel(true);
+        }
+        mPending.clear();
+        mCache.evictAll();
+    }
+
+    /**
+     * Cancels everything and stops our background threads, call from {@code onDestroy}.
+     */
+    public void shutdown() {
+        invalidate();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Submits a {@code FetchTask} for {@code position} to {@code mExecutor} unless one is already
+     * pending, and remembers it in {@code mPending} until it is delivered or canceled.
+     *
+     * @param position position of the row to fetch.
+     */
+    private void fetch(int position) {
+        if (mPending.get(position) != null || mExecutor.isShutdown()) {
+            return;
+        }
+        FetchTask task = new FetchTask(position);
+        mPending.put(position, task);
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Called on the UI thread with the data fetched for {@code position} by {@code task}. If
+     * {@code task} is no longer the pending fetch of {@code position} (it was canceled, or
+     * {@code invalidate} was called, after it finished) its data is stale and we drop it.
+     * Otherwise we forget the pending fetch, cache the data and display it in every view which is
+     * still bound to {@code position}.
+     *
+     * @param position position of the row that was fetched.
+     * @param data     the data fetched for {@code position}.
+     * @param task     the fetch which produced {@code data}.
+     */
+    private void deliver(int position, D data, Future<?> task) {
+        if (mPending.get(position) != task) {
+            return;
+        }
+        mPending.remove(position);
+        mCache.put(position, data);
+        for (Map.Entry<View, Integer> entry : mBound.entrySet()) {
+            if (entry.getValue() == position) {
+                mBinder.onBind(entry.getKey(), position, data);
+            }
+        }
+    }
+
+    /**
+     * Cancels the pending fetch of {@code position} if no view is bound to it any more.
+     *
+     * @param position position of a row which has scrolled off screen.
+     */
+    private void cancelIfUnwanted(int position) {
+        Future<?> pending = mPending.get(position);
+        if (pending != null && !mBound.containsValue(position)) {
+            pending.cancel(true);
+            mPending.remove(position);
+        }
+    }
+
+    /**
+     * The fetch of one position, run on {@code mExecutor}. Once it has completed (and was not
+     * canceled) {@code done} posts its result to {@code deliver} on the UI thread together with
+     * the task itself, so that {@code deliver} can tell whether it is still the pending fetch of
+     * its position.
+     */
+    private class FetchTask extends FutureTask<D> {
+        /**
+         * Position of the row we fetch.
+         */
+        private final int mPosition;
+
+        /**
+         * Our constructor.
+         *
+         * @param position position of the row to fetch.
+         */
+        FetchTask(final int position) {
+            super(new Callable<D>() {
+                @Override
+                public D call() throws InterruptedException {
+                    return mFetcher.fetch(position);
+                }
+            });
+            mPosition = position;
+        }
+
+        /**
+         * Called on the background thread when the fetch has completed, failed or been canceled.
+         * If it completed we post its data to {@code deliver}.
+         */
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            final D data;
+            try {
+                data = get();
+            } catch (InterruptedException | ExecutionException e) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(mPosition, data, FetchTask.this);
+                }
+            });
+        }
+    }
+}
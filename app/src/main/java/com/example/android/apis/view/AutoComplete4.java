@@ -21,7 +21,6 @@ import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract.Contacts;
 import android.view.LayoutInflater;
@@ -51,6 +50,10 @@ public class AutoComplete4 extends Activity {
      * Index of the column in the cursor containing Contacts.DISPLAY_NAME
      */
     private static final int COLUMN_DISPLAY_NAME = 1;
+    /**
+     * The adapter of our {@code AutoCompleteTextView}.
+     */
+    private ContactListAdapter mAdapter;
 
     /**
      * Called when the activity is starting. First we call through to our super's implementation of
@@ -60,7 +63,10 @@ public class AutoComplete4 extends Activity {
      * (content://com.android.contacts/contacts), with the projection {@code CONTACT_PROJECTION}
      * returning a Cursor over the result set. We create {@code ContactListAdapter adapter} from
      * {@code cursor}, initialize {@code AutoCompleteTextView textView} by finding the view with ID
-     * R.id.edit, and set its adapter to {@code adapter}.
+     * R.id.edit, and set its adapter to {@code adapter}. Finally we add the {@code ContactTypeahead}
+     * of {@code adapter} as a {@code TextWatcher} of {@code textView} so that it can debounce and
+     * cancel its queries as the user types, and have it start observing the contacts so that its
+     * cache is emptied when they change.
      *
      * @param savedInstanceState we do not override {@code onSaveInstanceState} so do not use.
      */
@@ -75,9 +81,22 @@ public class AutoComplete4 extends Activity {
                 null, null, null);
 
         ContactListAdapter adapter = new ContactListAdapter(this, cursor);
+        mAdapter = adapter;
 
         AutoCompleteTextView textView = (AutoCompleteTextView) findViewById(R.id.edit);
         textView.setAdapter(adapter);
+        textView.addTextChangedListener(adapter.getTypeahead());
+        adapter.getTypeahead().startObserving();
+    }
+
+    /**
+     * Called when the activity is being destroyed. We have the {@code ContactTypeahead} of our
+     * adapter stop observing the contacts, then call through to our super's implementation.
+     */
+    @Override
+    protected void onDestroy() {
+        mAdapter.getTypeahead().stopObserving();
+        super.onDestroy();
     }
 
     /**
@@ -91,9 +110,15 @@ public class AutoComplete4 extends Activity {
          */
         private ContentResolver mContent;
 
+        /**
+         * Debouncing, cancelable, prefix caching engine we run our filter queries through.
+         */
+        private final ContactTypeahead mTypeahead;
+
         /**
          * Our constructor. First we call our super's constructor, then we initialize our field
-         * {@code ContentResolver mContent} with a ContentResolver instance for our {@code Context}.
+         * {@code ContentResolver mContent} with a ContentResolver instance for our {@code Context},
+         * and create {@code ContactTypeahead mTypeahead} to query the contacts through it.
          *
          * @param context The context, "this" when called from {@code onCreate} in {@code AutoComplete4}
          * @param c       The cursor from which to get the data.
@@ -102,6 +127,17 @@ public class AutoComplete4 extends Activity {
             //noinspection deprecation
             super(context, c);
             mContent = context.getContentResolver();
+            mTypeahead = new ContactTypeahead(mContent, CONTACT_PROJECTION);
+        }
+
+        /**
+         * Getter for our field {@code ContactTypeahead mTypeahead}, which should be added as a
+         * {@code TextWatcher} of the {@code AutoCompleteTextView} we are the adapter of.
+         *
+         * @return our {@code ContactTypeahead}.
+         */
+        public ContactTypeahead getTypeahead() {
+            return mTypeahead;
         }
 
         /**
@@ -159,10 +195,10 @@ public class AutoComplete4 extends Activity {
          * to this adapter. We initialize {@code FilterQueryProvider filter} the current filter query
          * provider or null if it does not exist, and if it is not null we simply use it to run a
          * query using {@code constraint} as the constraint with which the query must be filtered.
-         * Otherwise we create {@code Uri uri} using Contacts.CONTENT_FILTER_URI as the base Uri with
-         * the string value of {@code constraint} appended to it as the path. Then we return the
-         * {@code Cursor} that results when the {@code ContentResolver mContent} queries {@code uri}
-         * using {@code CONTACT_PROJECTION} as the projection.
+         * Otherwise we return the {@code Cursor} returned by the {@code query} method of our field
+         * {@code ContactTypeahead mTypeahead}, which answers from its prefix cache when it can and
+         * otherwise queries Contacts.CONTENT_FILTER_URI once the user pauses typing (returning
+         * null, which keeps our current cursor, if the query is superseded by a newer keystroke).
          *
          * @param constraint the constraint with which the query must be filtered
          * @return a Cursor representing the results of the new query
@@ -174,10 +210,7 @@ public class AutoComplete4 extends Activity {
                 return filter.runQuery(constraint);
             }
 
-            Uri uri = Uri.withAppendedPath(
-                    Contacts.CONTENT_FILTER_URI,
-                    Uri.encode(constraint.toString()));
-            return mContent.query(uri, CONTACT_PROJECTION, null, null, null);
+            return mTypeahead.query(constraint);
         }
     }
 }
\ No newline at end of file
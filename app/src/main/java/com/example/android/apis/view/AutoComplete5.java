@@ -32,6 +32,11 @@ import android.widget.AutoCompleteTextView;
  * to show the hint "Typing * will show all of your contacts." in the AutoCompleteTextView.
  */
 public class AutoComplete5 extends Activity {
+    /**
+     * The adapter of our {@code AutoCompleteTextView}.
+     */
+    private AutoComplete4.ContactListAdapter mAdapter;
+
     /**
      * Called when the activity is starting. First we call through to our super's implementation of
      * {@code onCreate}, then we set our content view to our layout file R.layout.autocomplete_5.
@@ -40,7 +45,9 @@ public class AutoComplete5 extends Activity {
      * (content://com.android.contacts/contacts), with the projection {@code AutoComplete4.CONTACT_PROJECTION}
      * returning a Cursor over the result set. We create {@code AutoComplete4.ContactListAdapter adapter} from
      * {@code cursor}, initialize {@code AutoCompleteTextView textView} by finding the view with ID
-     * R.id.edit, and set its adapter to {@code adapter}.
+     * R.id.edit, set its adapter to {@code adapter}, add the {@code ContactTypeahead} of
+     * {@code adapter} as a {@code TextWatcher} of {@code textView}, and have it start observing the
+     * contacts.
      *
      * @param savedInstanceState we do not override {@code onSaveInstanceState} so do not use.
      */
@@ -53,8 +60,21 @@ public class AutoComplete5 extends Activity {
         @SuppressLint("Recycle")
         Cursor cursor = content.query(Contacts.CONTENT_URI, AutoComplete4.CONTACT_PROJECTION, null, null, null);
         AutoComplete4.ContactListAdapter adapter = new AutoComplete4.ContactListAdapter(this, cursor);
+        mAdapter = adapter;
 
         AutoCompleteTextView textView = (AutoCompleteTextView)findViewById(R.id.edit);
         textView.setAdapter(adapter);
+        textView.addTextChangedListener(adapter.getTypeahead());
+        adapter.getTypeahead().startObserving();
+    }
+
+    /**
+     * Called when the activity is being destroyed. We have the {@code ContactTypeahead} of our
+     * adapter stop observing the contacts, then call through to our super's implementation.
+     */
+    @Override
+    protected void onDestroy() {
+        mAdapter.getTypeahead().stopObserving();
+        super.onDestroy();
     }
 }
\ No newline at end of file
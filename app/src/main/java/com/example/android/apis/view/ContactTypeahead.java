@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.apis.view;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typeahead engine used by {@code AutoComplete4.ContactListAdapter} to turn keystrokes into
+ * contact queries without sending one provider query per keystroke. It does three things:
+ * <ul>
+ * <li>
+ * Debouncing: a query which is not answered from the cache waits {@code mDebounceMs} first, and
+ * if the user types again in that time it is abandoned in favor of the newer one.
+ * </li>
+ * <li>
+ * Cancellation: the query in flight is given a {@code CancellationSignal} which is canceled as soon
+ * as the text changes again.
+ * </li>
+ * <li>
+ * Prefix caching: the rows returned for each constraint are kept in an {@code LruCache}, and when
+ * the user extends a cached constraint ("ab" to "abc") the cached rows of the longest cached prefix
+ * are filtered in memory instead of querying again. The cache is emptied whenever the contacts
+ * change, between {@code startObserving} and {@code stopObserving}.
+ * </li>
+ * </ul>
+ * Register it as a {@code TextWatcher} of the {@code AutoCompleteTextView} so that it hears about
+ * keystrokes, and call {@code query} from {@code runQueryOnBackgroundThread}.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+@SuppressWarnings("WeakerAccess")
+public class ContactTypeahead implements TextWatcher {
+    /**
+     * The provider behind the engine. The default one queries {@code Contacts.CONTENT_FILTER_URI},
+     * a fake can be supplied to measure how many round trips a sequence of keystrokes costs.
+     */
+    public interface Source {
+        /**
+         * Query the contacts matching {@code constraint}.
+         *
+         * @param constraint the text typed so far.
+         * @param signal     cancellation signal for the query.
+         * @return a cursor whose first two columns are the id and the display name, or null.
+         */
+        Cursor query(String constraint, CancellationSignal signal);
+    }
+
+    /**
+     * Default time a keystroke has to stand alone before we query the provider for it.
+     */
+    public static final long DEFAULT_DEBOUNCE_MS = 150;
+
+    /**
+     * One row of a cached result, the id and display name of a contact.
+     */
+    private static class Row {
+        final long mId;
+        final String mName;
+
+        Row(long id, String name) {
+            mId = id;
+            mName = name;
+        }
+    }
+
+    /**
+     * {@code ContentResolver} our default {@code Source} queries, which {@code mObserver} is
+     * registered with. Null if we were given a {@code Source}.
+     */
+    private final ContentResolver mResolver;
+    /**
+     * Source of our contacts.
+     */
+    private final Source mSource;
+    /**
+     * Column names of the cursors we return, the id column followed by the display name column.
+     */
+    private final String[] mColumns;
+    /**
+     * How long a keystroke has to stand alone before we query {@code mSource} for it.
+     */
+    private final long mDebounceMs;
+    /**
+     * The rows returned for each (lower cased) constraint we have queried.
+     */
+    private final LruCache<String, List<Row>> mCache = new LruCache<>(32);
+    /**
+     * Incremented by every {@code invalidate}, a query which sees it change while it is running
+     * does not cache the rows it read since they may be stale.
+     */
+    private final AtomicInteger mCacheGeneration = new AtomicInteger();
+    /**
+     * Incremented by every text change (in {@code beforeTextChanged}, see there why), a query which
+     * sees it change while it is waiting or running has been superseded.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    /**
+     * Number of queries which actually reached {@code mSource}.
+     */
+    private final AtomicInteger mRoundTrips = new AtomicInteger();
+    /**
+     * Number of queries which were answered from {@code mCache}.
+     */
+    private final AtomicInteger mCacheHits = new AtomicInteger();
+    /**
+     * Cancellation signal of the query currently running against {@code mSource}, if any.
+     */
+    private volatile CancellationSignal mInFlight;
+    /**
+     * Calls {@code invalidate} when the contacts change, registered by {@code startObserving}. It
+     * has no {@code Handler} so it is called on a binder thread, {@code invalidate} is thread safe.
+     */
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    /**
+     * Creates an engine which queries {@code Contacts.CONTENT_FILTER_URI} using {@code resolver}.
+     *
+     * @param resolver {@code ContentResolver} to query with.
+     * @param columns  projection to query, the id column followed by the display name column.
+     */
+    public ContactTypeahead(final ContentResolver resolver, final String[] columns) {
+        this(resolver, new Source() {
+            @Override
+            public Cursor query(String constraint, CancellationSignal signal) {
+                Uri uri = Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI, Uri.encode(constraint));
+                return resolver.query(uri, columns, null, null, null, signal);
+            }
+        }, columns, DEFAULT_DEBOUNCE_MS);
+    }
+
+    /**
+     * Creates an engine on top of an arbitrary {@code Source}.
+     *
+     * @param source     the provider to query.
+     * @param columns    column names of the cursors we return.
+     * @param debounceMs how long a keystroke has to stand alone before we query for it.
+     */
+    public ContactTypeahead(Source source, String[] columns, long debounceMs) {
+        this(null, source, columns, debounceMs);
+    }
+
+    /**
+     * Constructor used by both public constructors.
+     *
+     * @param resolver   {@code ContentResolver} to observe the contacts with, may be null.
+     * @param source     the provider to query.
+     * @param columns    column names of the cursors we return.
+     * @param debounceMs how long a keystroke has to stand alone before we query for it.
+     */
+    private ContactTypeahead(ContentResolver resolver, Source source, String[] columns,
+                             long debounceMs) {
+        mResolver = resolver;
+        mSource = source;
+        mColumns = columns;
+        mDebounceMs = debounceMs;
+    }
+
+    /**
+     * Returns the contacts matching {@code constraint}, called on the filter thread of the adapter.
+     * If {@code constraint} (lower cased) is in our cache we return its rows. Otherwise, if a prefix
+     * of it is cached, we filter the rows of the longest such prefix in memory. Otherwise we wait
+     * {@code mDebounceMs}, and if the text has not changed in the mean time we query {@code mSource}
+     * with a fresh {@code CancellationSignal}, cache the rows (unless {@code invalidate} was called
+     * meanwhile) and return them. If the query was superseded (while waiting or by cancellation)
+     * we return null, which the {@code CursorFilter} of a {@code CursorAdapter} takes to mean
+     * that the adapter keeps its cursor until the newer query is answered. We must not read the
+     * cursor of the adapter here, we are not on the UI thread.
+     *
+     * @param constraint the text typed so far, may be null.
+     * @return a cursor holding the matching contacts, or null if the query was superseded.
+     */
+    public Cursor query(CharSequence constraint) {
+        String key = constraint == null ? "" : constraint.toString().toLowerCase(Locale.getDefault());
+        int cacheGeneration = mCacheGeneration.get();
+        List<Row> rows = mCache.get(key);
+        if (rows != null) {
+            mCacheHits.incrementAndGet();
+            return toCursor(rows);
+        }
+        for (int length = key.length() - 1; length > 0; length--) {
+            String prefix = key.substring(0, length);
+            List<Row> prefixRows = mCache.get(prefix);
+            if (prefixRows != null && isRefinable(prefix)) {
+                rows = refine(prefixRows, key);
+                if (cacheGeneration == mCacheGeneration.get()) {
+                    mCache.put(key, rows);
+                }
+                mCacheHits.incrementAndGet();
+                return toCursor(rows);
+            }
+        }
+
+        int generation = mGeneration.get();
+        SystemClock.sleep(mDebounceMs);
+        if (generation != mGeneration.get()) {
+            return null;
+        }
+        CancellationSignal signal = new CancellationSignal();
+        mInFlight = signal;
+        Cursor cursor = null;
+        try {
+            mRoundTrips.incrementAndGet();
+            cursor = mSource.query(constraint == null ? "" : constraint.toString(), signal);
+            rows = new ArrayList<>();
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    signal.throwIfCanceled();
+                    rows.add(new Row(cursor.getLong(0), cursor.getString(1)));
+                }
+            }
+        } catch (OperationCanceledException e) {
+            return null;
+        } finally {
+            mInFlight = null;
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (cacheGeneration == mCacheGeneration.get()) {
+            mCache.put(key, rows);
+        }
+        return toCursor(rows);
+    }
+
+    /**
+     * Number of queries which actually reached the provider.
+     *
+     * @return provider round trips so far.
+     */
+    public int getRoundTrips() {
+        return mRoundTrips.get();
+    }
+
+    /**
+     * Number of queries which were answered from our prefix cache.
+     *
+     * @return cache hits so far.
+     */
+    public int getCacheHits() {
+        return mCacheHits.get();
+    }
+
+    /**
+     * Forgets all cached results, call if the contacts may have changed. Safe to call from any
+     * thread.
+     */
+    public void invalidate() {
+        mCacheGeneration.incrementAndGet();
+        mCache.evictAll();
+    }
+
+    /**
+     * Starts calling {@code invalidate} whenever anything under {@code Contacts.CONTENT_URI}
+     * changes. Does nothing if we were given a {@code Source} rather than a
+     * {@code ContentResolver}. Call {@code stopObserving} when done, from {@code onDestroy} say.
+     */
+    public void startObserving() {
+        if (mResolver != null) {
+            mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+        }
+    }
+
+    /**
+     * Stops observing the contacts, undoing {@code startObserving}.
+     */
+    public void stopObserving() {
+        if (mResolver != null) {
+            mResolver.unregisterContentObserver(mObserver);
+        }
+    }
+
+    /**
+     * Called before the text changes. We bump {@code mGeneration} so that a query waiting out its
+     * debounce interval gives up, and cancel the query in flight if there is one. This has to be
+     * done here rather than in {@code afterTextChanged}: the {@code AutoCompleteTextView} requests
+     * the filtering of the new text from its own watcher, which was added before us and so runs
+     * before our {@code afterTextChanged}, and the query of the new text could then read the old
+     * generation and be superseded by the very change it was made for. The text view calls
+     * {@code beforeTextChanged} on every watcher before it calls anything else on any of them,
+     * so the filtering of the new text always sees the bumped generation.
+     *
+     * @param s     the text before the change.
+     * @param start where the change starts.
+     * @param count number of characters replaced.
+     * @param after number of characters replacing them.
+     */
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        mGeneration.incrementAndGet();
+        CancellationSignal signal = mInFlight;
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
+    /**
+     * Unused part of the {@code TextWatcher} interface.
+     */
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    /**
+     * Unused part of the {@code TextWatcher} interface.
+     */
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    /**
+     * Builds a cursor with our columns holding {@code rows}. A new cursor is needed every time since
+     * the adapter closes the cursor it replaces.
+     *
+     * @param rows the rows to put in the cursor.
+     * @return a new {@code MatrixCursor}.
+     */
+    private Cursor toCursor(List<Row> rows) {
+        MatrixCursor cursor = new MatrixCursor(mColumns, rows.size());
+        for (Row row : rows) {
+            cursor.newRow().add(row.mId).add(row.mName);
+        }
+        return cursor;
+    }
+
+    /**
+     * Whether the result of {@code prefix} can be refined in memory. The contacts provider matches
+     * each word of the constraint against the start of the words of a name, which we can mimic only
+     * for constraints made of letters, digits and spaces (not for wildcards such as "*").
+     *
+     * @param prefix the cached constraint.
+     * @return true if {@code refine} gives the same answer the provider would.
+     */
+    private static boolean isRefinable(String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Filters {@code rows} down to those whose names match {@code key}: every word of {@code key}
+     * must be the start of some word of the name, ignoring case.
+     *
+     * @param rows the cached rows of a prefix of {@code key}.
+     * @param key  the lower cased constraint.
+     * @return the matching rows.
+     */
+    private static List<Row> refine(List<Row> rows, String key) {
+        String[] words = key.trim().split("\\s+");
+        List<Row> result = new ArrayList<>();
+        for (Row row : rows) {
+            if (row.mName == null) {
+                continue;
+            }
+            String[] nameWords = row.mName.toLowerCase(Locale.getDefault()).split("[^\\p{L}\\p{N}]+");
+            boolean matches = true;
+            for (String word : words) {
+                boolean found = false;
+                for (String nameWord : nameWords) {
+                    if (nameWord.startsWith(word)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+}
@@ -24,10 +24,17 @@ import android.app.FragmentTransaction;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
 import android.util.AttributeSet;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -44,6 +51,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.android.apis.R;
+import com.example.android.apis.TrigramIndex;
+
+import java.util.List;
 
 /**
  * This activity demonstrates how to use system UI flags to implement
@@ -113,6 +123,29 @@ public class ContentBrowserActivity extends Activity
          */
         int mLastSystemUiVis;
 
+        /**
+         * Trigram index of the paragraphs of our text, each paragraph is represented by the
+         * offset of its first character in {@code mText}.
+         */
+        final TrigramIndex<Integer> mIndex = new TrigramIndex<>();
+        /**
+         * Maps the start offset of each paragraph in {@code mIndex} to its end offset.
+         */
+        final SparseIntArray mParagraphEnds = new SparseIntArray();
+        /**
+         * The text of {@code mText} as a {@code String}, used to locate the matches to highlight.
+         */
+        String mPlainText;
+        /**
+         * The search which is currently streaming matching paragraphs to us, canceled when the
+         * query changes.
+         */
+        TrigramIndex<Integer>.Search mSearch;
+        /**
+         * {@code Handler} for the UI thread that the results of {@code mSearch} are delivered on.
+         */
+        final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
         /**
          * {@code Runnable} that makes the navigation invisible after a delay of 2000ms. Used by our
          * {@code onWindowVisibilityChanged} callback in order to show our navigation elements briefly
@@ -138,8 +171,9 @@ public class ContentBrowserActivity extends Activity
          * R.string.alert_dialog_two_buttons2ultra_msg (a very long bit of nonsense text), disable
          * its clickable state, set its {@code OnClickListener} to "this", make its text selectable
          * by the user, then add it our view using {@code LayoutParams} which specify a width of
-         * MATCH_PARENT and a height of WRAP_CONTENT. Finally we register "this" as an
-         * {@code OnSystemUiVisibilityChangeListener}.
+         * MATCH_PARENT and a height of WRAP_CONTENT. We register "this" as an
+         * {@code OnSystemUiVisibilityChangeListener}, and finally call our method {@code indexText}
+         * to build the trigram index our {@code search} method uses.
          *
          * @param context The Context the view is running in, through which it can
          *                access the current theme, resources, etc.
@@ -150,7 +184,8 @@ public class ContentBrowserActivity extends Activity
 
             mText = new TextView(context);
             mText.setTextSize(TypedValue.COMPLEX_UNIT_DIP, 16);
-            mText.setText(context.getString(R.string.alert_dialog_two_buttons2ultra_msg));
+            mText.setText(context.getString(R.string.alert_dialog_two_buttons2ultra_msg),
+                    TextView.BufferType.SPANNABLE);
             mText.setClickable(false);
             mText.setOnClickListener(this);
             mText.setTextIsSelectable(true);
@@ -158,6 +193,98 @@ public class ContentBrowserActivity extends Activity
                     ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
 
             setOnSystemUiVisibilityChangeListener(this);
+            indexText();
+        }
+
+        /**
+         * Builds our {@code TrigramIndex<Integer> mIndex} of the paragraphs (separated by blank
+         * lines) of the text in {@code mText}, adding each paragraph under its start offset and
+         * remembering its end offset in {@code mParagraphEnds}.
+         */
+        void indexText() {
+            CharSequence text = mText.getText();
+            mPlainText = text.toString();
+            mIndex.clear();
+            mParagraphEnds.clear();
+            int start = 0;
+            while (start < text.length()) {
+                int end = TextUtils.indexOf(text, "\n\n", start);
+                if (end < 0) {
+                    end = text.length();
+                }
+                mIndex.add(start, text.subSequence(start, end));
+                mParagraphEnds.put(start, end);
+                start = end + 2;
+            }
+        }
+
+        /**
+         * Highlights the occurrences of {@code query} in our text. First we cancel the search that
+         * is still running for the previous query and remove the old highlights. If {@code query}
+         * is empty we are done, otherwise we create a search of {@code mIndex} for it and execute it
+         * on the {@code AsyncTask} thread pool. As each batch of matching paragraphs arrives on the
+         * UI thread we highlight the occurrences of {@code query} in them, and scroll to the first
+         * one.
+         *
+         * @param query the text to search for, case is ignored.
+         */
+        public void search(final String query) {
+            if (mSearch != null) {
+                mSearch.cancel();
+                mSearch = null;
+            }
+            final Spannable text = (Spannable) mText.getText();
+            for (BackgroundColorSpan span : text.getSpans(0, text.length(), BackgroundColorSpan.class)) {
+                text.removeSpan(span);
+            }
+            if (TextUtils.isEmpty(query)) {
+                return;
+            }
+            mSearch = mIndex.search(query, mUiHandler, new TrigramIndex.ResultSink<Integer>() {
+                /**
+                 * true until we have scrolled to the first match.
+                 */
+                boolean mFirst = true;
+
+                @Override
+                public void onResults(List<Integer> batch) {
+                    for (int start : batch) {
+                        highlight(text, query, start, mParagraphEnds.get(start));
+                    }
+                    if (mFirst) {
+                        mFirst = false;
+                        Layout layout = mText.getLayout();
+                        if (layout != null) {
+                            smoothScrollTo(0, layout.getLineTop(layout.getLineForOffset(batch.get(0))));
+                        }
+                    }
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mSearch);
+        }
+
+        /**
+         * Adds a {@code BackgroundColorSpan} to {@code text} for every occurrence of {@code query}
+         * (ignoring case) between {@code start} and {@code end}.
+         *
+         * @param text  the {@code Spannable} text of {@code mText}.
+         * @param query the text to highlight.
+         * @param start start offset of the paragraph to search.
+         * @param end   end offset of the paragraph to search.
+         */
+        void highlight(Spannable text, String query, int start, int end) {
+            int length = query.length();
+            for (int i = start; i + length <= end; i++) {
+                if (mPlainText.regionMatches(true, i, query, 0, length)) {
+                    text.setSpan(new BackgroundColorSpan(0x80FFFF00), i, i + length,
+                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    i += length - 1;
+                }
+            }
         }
 
         /**
@@ -473,8 +600,9 @@ public class ContentBrowserActivity extends Activity
     }
 
     /**
-     * Called when the query text is changed by the user. We just return true signaling that we have
-     * consumed the event.
+     * Called when the query text is changed by the user. We call the {@code search} method of our
+     * field {@code Content mContent} to have it highlight the occurrences of {@code newText}, then
+     * return true signaling that we have consumed the event.
      *
      * @param newText the new content of the query text field.
      * @return false if the SearchView should perform the default action of showing any
@@ -482,6 +610,7 @@ public class ContentBrowserActivity extends Activity
      */
     @Override
     public boolean onQueryTextChange(String newText) {
+        mContent.search(newText);
         return true;
     }
 
@@ -34,9 +34,11 @@ import com.example.android.apis.R;
 
 /**
  * Demonstrates how a list can avoid expensive operations during scrolls or flings. In this
- * case, we pretend that binding a view to its data is slow (even though it really isn't). When
- * a scroll/fling is happening, the adapter binds the view to temporary data. After the scroll/fling
- * has finished, the temporary data is replaced with the actual data.
+ * case, we pretend that fetching the data of a row is slow (by sleeping on a background thread).
+ * The adapter hands each row to an {@code AsyncRowBinder} which displays "Loading..." until the
+ * data has been fetched off of the UI thread, cancels the fetch if the row is recycled first,
+ * caches the results, and prefetches the rows just ahead of the scroll so that even a fling
+ * usually finds real data waiting for it.
  */
 @SuppressLint("SetTextI18n")
 public class List13 extends ListActivity implements ListView.OnScrollListener {
@@ -48,13 +50,18 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
     private TextView mStatus;
 
     /**
-     * Flag used to indicate that scrolling is in progress, set to true or false in our
-     * {@code onScrollStateChanged} callback
+     * How long we pretend it takes to fetch the data of a single row, in milliseconds.
      */
-    private boolean mBusy = false;
+    private static final long SIMULATED_FETCH_MS = 50;
 
     /**
-     * Will not bind views while the list is scrolling
+     * Fetches the data of our rows in the background, caches it and prefetches ahead of the scroll.
+     */
+    private AsyncRowBinder<String> mRowBinder;
+
+    /**
+     * Binds its views through our {@code AsyncRowBinder mRowBinder}, so it never blocks the UI
+     * thread waiting for the data of a row.
      */
     @SuppressWarnings("WeakerAccess")
     private class SlowAdapter extends BaseAdapter {
@@ -117,9 +124,8 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
          * provide layout parameters in order to set {@code text}. If {@code convertView} is not
          * null we cast it to {@code TextView} in order to set {@code text}.
          * <p>
-         * If our flag {@code mBusy} is false we set the text of {@code text} to the string in
-         * {@code mStrings[position]}, and set its tag to null. If {@code mBusy} is true we set the
-         * text of {@code text} to the string "Loading..." and set the tag to "this".
+         * We then call the {@code bind} method of {@code mRowBinder} which displays the cached
+         * data for {@code position} if it has it, or "Loading..." while it fetches it.
          * <p>
          * Finally we return {@code text} to the caller.
          *
@@ -138,15 +144,7 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
                 text = (TextView) convertView;
             }
 
-            if (!mBusy) {
-                text.setText(mStrings[position]);
-                // Null tag means the view has the correct data
-                text.setTag(null);
-            } else {
-                text.setText("Loading...");
-                // Non-null tag means the view still needs to load it's data
-                text.setTag(this);
-            }
+            mRowBinder.bind(text, position);
 
             return text;
         }
@@ -156,8 +154,12 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
      * Called when the activity is starting. First we call through to our super's implementation of
      * {@code onCreate}, then we set our content view to our layout file R.layout.list_13. We
      * initialize our field {@code mStatus} by finding the view with ID R.id.status and set its text
-     * to the string "Idle". We set the list adapter of our {@code ListView} to a new instance of
-     * {@code SlowAdapter}, and we set its {@code OnScrollListener} to "this".
+     * to the string "Idle". We create our {@code AsyncRowBinder mRowBinder} with a fetcher which
+     * sleeps for SIMULATED_FETCH_MS before returning the cheese at the position requested, and a
+     * binder which sets the text of the row to the cheese, or to "Loading..." while it is fetched.
+     * We set the list adapter of our {@code ListView} to a new instance of {@code SlowAdapter}, we
+     * set its {@code OnScrollListener} to "this", and we set its {@code RecyclerListener} to
+     * {@code mRowBinder} so that fetches for recycled rows are canceled.
      *
      * @param savedInstanceState we do not override {@code onSaveInstanceState} so do not use.
      */
@@ -169,15 +171,50 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
         mStatus = (TextView) findViewById(R.id.status);
         mStatus.setText("Idle");
 
+        mRowBinder = new AsyncRowBinder<>(
+                new AsyncRowBinder.Fetcher<String>() {
+                    @Override
+                    public String fetch(int position) throws InterruptedException {
+                        // Pretend that this is slow.
+                        Thread.sleep(SIMULATED_FETCH_MS);
+                        return mStrings[position];
+                    }
+                },
+                new AsyncRowBinder.Binder<String>() {
+                    @Override
+                    public void onBind(View view, int position, String data) {
+                        ((TextView) view).setText(data);
+                    }
+
+                    @Override
+                    public void onBindPlaceholder(View view, int position) {
+                        ((TextView) view).setText("Loading...");
+                    }
+                },
+                200, 20, 4);
+
         // Use an existing ListAdapter that will map an array
         // of strings to TextViews
         setListAdapter(new SlowAdapter(this));
 
         getListView().setOnScrollListener(this);
+        getListView().setRecyclerListener(mRowBinder);
     }
 
     /**
-     * Callback method to be invoked when the list or grid has been scrolled. We ignore it.
+     * Perform any final cleanup before our activity is destroyed. We call the {@code shutdown}
+     * method of {@code mRowBinder} to cancel any pending fetches and stop its threads, then call
+     * through to our super's implementation of {@code onDestroy}.
+     */
+    @Override
+    protected void onDestroy() {
+        mRowBinder.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Callback method to be invoked when the list or grid has been scrolled. We pass the scroll
+     * position on to {@code mRowBinder} so that it can prefetch the rows ahead of the scroll.
      *
      * @param view             The view whose scroll state is being reported
      * @param firstVisibleItem the index of the first visible cell
@@ -186,6 +223,7 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
      */
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        mRowBinder.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
     }
 
     /**
@@ -193,20 +231,15 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
      * the value of {@code scrollState}:
      * <ul>
      * <li>
-     * SCROLL_STATE_IDLE - we set our flag {@code mBusy} to false, initialize {@code first}
-     * to the position value of the first visible position, and {@code count} to the number
-     * of children in {@code view}. Then we loop over {@code i} from 0 to {@code count-1}
-     * setting {@code TextView t} to each child in turn, and if the tag of {@code t} is not
-     * null we set the text of {@code t} to the string {@code mStrings[first+i]}, and set
-     * its tag to null. We then set the text of {@code mStatus} to the string "Idle" and break.
+     * SCROLL_STATE_IDLE - we set the text of {@code mStatus} to the string "Idle" and break.
+     * There is nothing to rebind, rows are updated as soon as their data has been fetched.
      * </li>
      * <li>
-     * SCROLL_STATE_TOUCH_SCROLL - we set our flag {@code mBusy} to true, set the text of
-     * {@code mStatus} to the string "Touch scroll", and break
+     * SCROLL_STATE_TOUCH_SCROLL - we set the text of {@code mStatus} to the string
+     * "Touch scroll", and break
      * </li>
      * <li>
-     * SCROLL_STATE_FLING - we set our flag {@code mBusy} to true, set the text of
-     * {@code mStatus} to the string "Fling", and break
+     * SCROLL_STATE_FLING - we set the text of {@code mStatus} to the string "Fling", and break
      * </li>
      * </ul>
      *
@@ -218,26 +251,12 @@ public class List13 extends ListActivity implements ListView.OnScrollListener {
     public void onScrollStateChanged(AbsListView view, int scrollState) {
         switch (scrollState) {
             case OnScrollListener.SCROLL_STATE_IDLE:
-                mBusy = false;
-
-                int first = view.getFirstVisiblePosition();
-                int count = view.getChildCount();
-                for (int i = 0; i < count; i++) {
-                    TextView t = (TextView) view.getChildAt(i);
-                    if (t.getTag() != null) {
-                        t.setText(mStrings[first + i]);
-                        t.setTag(null);
-                    }
-                }
-
                 mStatus.setText("Idle");
                 break;
             case OnScrollListener.SCROLL_STATE_TOUCH_SCROLL:
-                mBusy = true;
                 mStatus.setText("Touch scroll");
                 break;
             case OnScrollListener.SCROLL_STATE_FLING:
-                mBusy = true;
                 mStatus.setText("Fling");
                 break;
         }